@@ -0,0 +1,72 @@
+package com.franzoia.common.config.replica;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Data source configuration with read replicas. Services enable it by extending this class with a
+ * {@code @Configuration} conditional on {@code read-replica.enabled}.
+ * <p/>
+ * The primary pool is built from the regular {@code spring.datasource} properties and each replica gets
+ * its own pool, all of them publishing their pool metrics (connections, acquire and usage times) tagged
+ * with the pool name.
+ */
+public abstract class AbstractReadReplicaConfig {
+
+    @Bean
+    @ConfigurationProperties("read-replica")
+    public ReadReplicaProperties readReplicaProperties() {
+        return new ReadReplicaProperties();
+    }
+
+    @Bean(destroyMethod = "close")
+    public ReadReplicaRoutingDataSource readReplicaRoutingDataSource(final DataSourceProperties dataSourceProperties,
+                                                                     final ReadReplicaProperties properties,
+                                                                     final MeterRegistry registry) {
+        final HikariDataSource primary = dataSourceProperties.initializeDataSourceBuilder()
+                .type(HikariDataSource.class)
+                .build();
+        primary.setPoolName(ReadReplicaRoutingDataSource.PRIMARY);
+        primary.setMetricRegistry(registry);
+
+        final Map<String, DataSource> replicas = new LinkedHashMap<>();
+        for (int i = 0; i < properties.getReplicas().size(); i++) {
+            final ReadReplicaProperties.Replica replica = properties.getReplicas().get(i);
+            final HikariDataSource dataSource = DataSourceBuilder.create()
+                    .type(HikariDataSource.class)
+                    .driverClassName(dataSourceProperties.determineDriverClassName())
+                    .url(replica.getUrl())
+                    .username(replica.getUsername())
+                    .password(replica.getPassword())
+                    .build();
+            final String name = replica.getName() != null? replica.getName(): "replica-" + (i + 1);
+            dataSource.setPoolName(name);
+            if (replica.getMaximumPoolSize() != null) {
+                dataSource.setMaximumPoolSize(replica.getMaximumPoolSize());
+            }
+            dataSource.setMetricRegistry(registry);
+            replicas.put(name, dataSource);
+        }
+        return new ReadReplicaRoutingDataSource(primary, replicas, properties, registry);
+    }
+
+    /**
+     * The data source used by JPA and JDBC. Connections are only taken from the routing data source when
+     * the first statement runs, once the read-only flag of the transaction is known.
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(final ReadReplicaRoutingDataSource routingDataSource) {
+        return new LazyConnectionDataSourceProxy(routingDataSource);
+    }
+}
@@ -0,0 +1,45 @@
+package com.franzoia.common.config.replica;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read replicas used by the {@code @Transactional(readOnly = true)} service methods, see {@link ReadReplicaRoutingDataSource}
+ */
+@Getter
+@Setter
+public class ReadReplicaProperties {
+
+    private boolean enabled = false;
+
+    /**
+     * replicas lagging behind the primary for longer than this are not used
+     */
+    private Duration maxLag = Duration.ofSeconds(5);
+
+    private Duration lagCheckInterval = Duration.ofSeconds(5);
+
+    /**
+     * query returning the replication lag of a replica, in milliseconds
+     */
+    private String lagQuery = "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+            "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+    private List<Replica> replicas = new ArrayList<>();
+
+    @Getter
+    @Setter
+    public static class Replica {
+
+        private String name;
+        private String url;
+        private String username;
+        private String password;
+        private Integer maximumPoolSize;
+
+    }
+}
@@ -0,0 +1,152 @@
+package com.franzoia.common.config.replica;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes the connections of read-only transactions to the read replicas, and everything else to the primary.
+ * <p/>
+ * The replication lag of every replica is checked periodically. Replicas lagging more than the allowed
+ * lag, or that can't be reached, are skipped until they catch up, and the reads fall back to the primary
+ * when no replica is usable. The replicas in use take turns.
+ * <p/>
+ * The routing depends on the read-only flag of the transaction, which is only set after the transaction
+ * manager opened its connection, so this data source has to be wrapped in a
+ * {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}.
+ */
+@Slf4j
+public class ReadReplicaRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+
+    public static final String PRIMARY = "primary";
+
+    private final List<DataSource> dataSources;
+
+    private final List<ReplicaState> replicas;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final Map<String, Counter> routed = new HashMap<>();
+
+    private final ScheduledExecutorService lagChecker;
+
+    /**
+     * @param primary the primary data source
+     * @param replicas the replica data sources, by name
+     * @param properties the read replica configuration
+     * @param registry where the routing and lag metrics are registered
+     */
+    public ReadReplicaRoutingDataSource(final DataSource primary, final Map<String, DataSource> replicas,
+                                        final ReadReplicaProperties properties, final MeterRegistry registry) {
+        final Map<Object, Object> targets = new HashMap<>(replicas);
+        targets.put(PRIMARY, primary);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        this.dataSources = targets.values().stream().map(DataSource.class::cast).toList();
+
+        this.replicas = replicas.entrySet().stream()
+                .map(replica -> new ReplicaState(replica.getKey(), new JdbcTemplate(replica.getValue())))
+                .toList();
+        this.routed.put(PRIMARY, Counter.builder("datasource.routing").tag("datasource", PRIMARY).register(registry));
+        this.replicas.forEach(replica -> {
+            routed.put(replica.name, Counter.builder("datasource.routing").tag("datasource", replica.name).register(registry));
+            Gauge.builder("datasource.replica.lag", replica, r -> r.lag)
+                    .tag("datasource", replica.name)
+                    .baseUnit("milliseconds")
+                    .register(registry);
+        });
+
+        this.lagChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "replica-lag-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long interval = properties.getLagCheckInterval().toMillis();
+        lagChecker.scheduleWithFixedDelay(() -> checkLag(properties.getLagQuery(), properties.getMaxLag().toMillis()),
+                0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        final String target = TransactionSynchronizationManager.isCurrentTransactionReadOnly()? nextReplica(): PRIMARY;
+        routed.get(target).increment();
+        return target;
+    }
+
+    /**
+     * @return the next replica in use, or the primary when none is
+     */
+    private String nextReplica() {
+        final int size = replicas.size();
+        final int start = Math.floorMod(next.getAndIncrement(), Math.max(size, 1));
+        for (int i = 0; i < size; i++) {
+            final ReplicaState replica = replicas.get((start + i) % size);
+            if (replica.usable) {
+                return replica.name;
+            }
+        }
+        return PRIMARY;
+    }
+
+    synchronized void checkLag(final String lagQuery, final long maxLag) {
+        replicas.forEach(replica -> {
+            boolean usable;
+            try {
+                final Number lag = replica.jdbcTemplate.queryForObject(lagQuery, Number.class);
+                replica.lag = lag == null? 0: lag.doubleValue();
+                usable = replica.lag <= maxLag;
+            } catch (RuntimeException e) {
+                replica.lag = Double.NaN;
+                usable = false;
+                log.debug("replica {} lag check failed: {}", replica.name, e.getMessage());
+            }
+            if (usable != replica.usable) {
+                log.info("read replica {} is {} (lag: {} ms)", replica.name, usable? "in use": "not in use", replica.lag);
+            }
+            replica.usable = usable;
+        });
+    }
+
+    /**
+     * Stops checking the lag and closes the primary and replica data sources
+     */
+    @Override
+    public void close() {
+        lagChecker.shutdownNow();
+        dataSources.forEach(dataSource -> {
+            if (dataSource instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    log.warn("could not close data source: {}", e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static final class ReplicaState {
+
+        private final String name;
+        private final JdbcTemplate jdbcTemplate;
+        private volatile double lag = Double.NaN;
+        private volatile boolean usable = false;
+
+        ReplicaState(final String name, final JdbcTemplate jdbcTemplate) {
+            this.name = name;
+            this.jdbcTemplate = jdbcTemplate;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.franzoia.common.config.sequence;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.id.enhanced.StandardOptimizerDescriptor;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+/**
+ * Configuration of the pooled sequence ids, see {@link PooledSequences}. Services enable it by extending this
+ * class with a {@code @Configuration}.
+ */
+public abstract class AbstractPooledSequenceConfig {
+
+    /**
+     * The sequences are used with the pooled-lo optimizer, which the column defaults rely on
+     */
+    @Bean
+    public HibernatePropertiesCustomizer pooledSequenceCustomizer() {
+        return properties -> properties.put(AvailableSettings.PREFERRED_POOLED_OPTIMIZER, StandardOptimizerDescriptor.POOLED_LO.getExternalName());
+    }
+
+    @Bean
+    public PooledSequenceMigration pooledSequenceMigration(final EntityManagerFactory entityManagerFactory,
+                                                           final JdbcTemplate jdbcTemplate,
+                                                           final PlatformTransactionManager transactionManager) {
+        return new PooledSequenceMigration(entityManagerFactory, jdbcTemplate, transactionManager);
+    }
+}
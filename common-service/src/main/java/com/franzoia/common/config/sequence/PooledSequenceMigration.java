@@ -0,0 +1,94 @@
+package com.franzoia.common.config.sequence;
+
+import jakarta.persistence.EntityManagerFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves the tables created with identity ids to their pooled sequences, on PostgreSQL, when the service starts.
+ * <p/>
+ * The sequences are created by the schema update starting at 1, so when the table already has rows the sequence
+ * is moved past its highest id. The id column stops being an identity and takes its default from the sequence,
+ * for the inserts that don't go through the entities (the reactive services, scripts). Each table is only
+ * changed once, the services starting at the same time wait for each other with an advisory lock.
+ */
+@Slf4j
+public class PooledSequenceMigration implements SmartInitializingSingleton {
+
+    /**
+     * Lock key of the migration, in the two keys space of the advisory locks, with the sequence name as second key
+     */
+    public static final int MIGRATION_LOCK = 3;
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    public PooledSequenceMigration(final EntityManagerFactory entityManagerFactory, final JdbcTemplate jdbcTemplate,
+                                   final PlatformTransactionManager transactionManager) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        final String database = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+        if (!"PostgreSQL".equals(database)) {
+            return;
+        }
+        final SessionFactoryImplementor sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        sessionFactory.getMappingMetamodel().forEachEntityDescriptor(persister -> {
+            if (persister.getGenerator() instanceof SequenceStyleGenerator generator
+                    && persister instanceof AbstractEntityPersister entityPersister
+                    && entityPersister.getIdentifierColumnNames().length == 1) {
+                transactionTemplate.executeWithoutResult(status -> migrate(entityPersister.getTableName(),
+                        entityPersister.getIdentifierColumnNames()[0],
+                        generator.getDatabaseStructure().getPhysicalName().getObjectName().getText()));
+            }
+        });
+    }
+
+    private void migrate(final String table, final String column, final String sequence) {
+        jdbcTemplate.queryForList("SELECT pg_advisory_xact_lock(" + MIGRATION_LOCK + ", hashtext(?))", sequence);
+
+        final List<Map<String, Object>> columns = jdbcTemplate.queryForList(
+                "SELECT c.is_identity, c.column_default, s.start_value, s.increment_by, s.last_value " +
+                "FROM information_schema.columns c, pg_sequences s " +
+                "WHERE c.table_schema = current_schema() AND c.table_name = ? AND c.column_name = ? " +
+                "AND s.schemaname = current_schema() AND s.sequencename = ?", table, column, sequence);
+        if (columns.isEmpty()) {
+            log.warn("sequence {} of {} not found, the ids of {} are not migrated", sequence, table, table);
+            return;
+        }
+        final Map<String, Object> current = columns.get(0);
+
+        // the next value of the sequence must be past the ids already used
+        final Long lastValue = (Long) current.get("last_value");
+        final long next = lastValue == null? (Long) current.get("start_value"): lastValue + (Long) current.get("increment_by");
+        final Long maxId = jdbcTemplate.queryForObject("SELECT MAX(" + column + ") FROM " + table, Long.class);
+        if (maxId != null && maxId >= next) {
+            jdbcTemplate.queryForList("SELECT setval(CAST(? AS regclass), ?, false)", sequence, maxId + 1);
+            log.info("sequence {} moved past the highest id of {}: {}", sequence, table, maxId);
+        }
+
+        final String columnDefault = (String) current.get("column_default");
+        if ("YES".equals(current.get("is_identity")) || columnDefault == null || !columnDefault.contains("'" + sequence + "'")) {
+            jdbcTemplate.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " DROP IDENTITY IF EXISTS");
+            jdbcTemplate.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " SET DEFAULT nextval('" + sequence + "')");
+            log.info("ids of {} taken from the sequence {}", table, sequence);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.franzoia.common.config.sequence;
+
+/**
+ * Ids of the entities, generated from a database sequence per table in blocks of {@link #ALLOCATION_SIZE}.
+ * <p/>
+ * Each instance takes a block of ids with a single {@code nextval} and hands them out from memory, so inserting
+ * doesn't need a round trip per row to get the id and the inserts can be sent in JDBC batches, which an identity
+ * column doesn't allow. The blocks are used with the pooled-lo optimizer, a {@code nextval} of {@code n} reserves
+ * the ids {@code n} to {@code n + ALLOCATION_SIZE - 1}, so the inserts that take their id from the column default
+ * ({@code nextval} of the same sequence) never collide with them. The entities map their ids as:
+ * <pre>
+ * &#64;Id
+ * &#64;GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "categories_seq")
+ * &#64;SequenceGenerator(name = "categories_seq", allocationSize = PooledSequences.ALLOCATION_SIZE)
+ * private Long id;
+ * </pre>
+ * and the services extend {@link AbstractPooledSequenceConfig}.
+ */
+public final class PooledSequences {
+
+    public static final int ALLOCATION_SIZE = 50;
+
+    private PooledSequences() {
+    }
+}
@@ -0,0 +1,22 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.franzoia.common.util.Dto;
+import lombok.*;
+
+import java.time.LocalDate;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@ToString
+public class StockBalanceDTO implements Dto {
+
+    private Long productId;
+    private String yearMonth;
+    private LocalDate date;
+    private Long balance;
+
+}
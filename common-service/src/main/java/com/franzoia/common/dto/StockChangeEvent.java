@@ -0,0 +1,12 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.*;
+
+/**
+ * A stock movement pushed to the subscribers of the stock changes. The inputs or outputs of the period
+ * change by the quantity, and so do the balances of the period and of every period after it.
+ */
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record StockChangeEvent(Long productId, String yearMonth, TransactionType type, Long quantity) {}
@@ -1,19 +1,81 @@
 package com.franzoia.common.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.franzoia.common.util.PeriodConverter;
+import com.franzoia.common.util.Periods;
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
 import jakarta.persistence.Embeddable;
+import jakarta.persistence.Transient;
 import lombok.*;
 
 import java.io.Serializable;
 
+/**
+ * Stock of a product in a year/month period. The period is kept as an int (see {@link Periods}) and is
+ * exposed as the "yyyyMM" yearMonth text, both in the API and in the database.
+ * <p/>
+ * A yearMonth received that is not a valid period leaves the period unset and is kept as received, so the
+ * request it is part of is rejected by the service, line by line in a batch, and not when it is read.
+ */
 @Getter
 @Setter
 @NoArgsConstructor
-@AllArgsConstructor
 @ToString
+@EqualsAndHashCode
 @Embeddable
 public class StockKey implements Serializable {
 
-    private String yearMonth;
+    @JsonIgnore
+    @ToString.Exclude
+    @Convert(converter = PeriodConverter.class)
+    @Column(name = "year_month")
+    private int period;
+
+    @Column(name = "product_id")
     private Long productId;
 
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private String invalidYearMonth;
+
+    public StockKey(final int period, final Long productId) {
+        this.period = period;
+        this.productId = productId;
+    }
+
+    public StockKey(final String yearMonth, final Long productId) {
+        this(Periods.parse(yearMonth), productId);
+    }
+
+    @ToString.Include(name = "yearMonth")
+    public String getYearMonth() {
+        return Periods.format(period);
+    }
+
+    public void setYearMonth(final String yearMonth) {
+        try {
+            this.period = Periods.parse(yearMonth);
+            this.invalidYearMonth = null;
+        } catch (IllegalArgumentException e) {
+            this.period = Periods.NONE;
+            this.invalidYearMonth = yearMonth;
+        }
+    }
+
+    /**
+     * @return why the period is not set, null when it is
+     */
+    @JsonIgnore
+    public String getPeriodError() {
+        if (period != Periods.NONE) {
+            return null;
+        }
+        return invalidYearMonth == null? "Year/Month period is required":
+                "Year/Month period must be in the format yyyyMM: " + invalidYearMonth;
+    }
+
 }
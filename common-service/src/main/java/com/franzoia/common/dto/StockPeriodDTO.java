@@ -0,0 +1,24 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.franzoia.common.util.Dto;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@ToString
+public class StockPeriodDTO implements Dto {
+
+    private String yearMonth;
+    private StockPeriodStatus status;
+    private Long products;
+    private Long closingBalance;
+    private LocalDateTime closedAt;
+    private LocalDateTime reopenedAt;
+
+}
@@ -0,0 +1,6 @@
+package com.franzoia.common.dto;
+
+public enum StockPeriodStatus {
+    CLOSED, REOPENED;
+
+}
@@ -0,0 +1,30 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.franzoia.common.util.Dto;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@ToString
+public class StockRebuildDTO implements Dto {
+
+    private StockRebuildStatus status;
+    private Boolean dryRun;
+    private String fromYearMonth;
+    private Integer products;
+    private Integer processedProducts;
+    private Integer failedProducts;
+    private Long changedRows;
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+    private String message;
+    private List<StockRebuildDiff> diffs;
+
+}
@@ -0,0 +1,14 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.*;
+
+/**
+ * A stock row that differs from the one rebuilt from the transactions. The current values are null when
+ * the row doesn't exist.
+ */
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record StockRebuildDiff(StockKey key,
+                               Long previousBalance, Long inputs, Long outputs, Long currentBalance,
+                               Long rebuiltPreviousBalance, Long rebuiltInputs, Long rebuiltOutputs, Long rebuiltCurrentBalance) {}
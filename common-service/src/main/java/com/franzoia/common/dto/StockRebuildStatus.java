@@ -0,0 +1,6 @@
+package com.franzoia.common.dto;
+
+public enum StockRebuildStatus {
+    RUNNING, COMPLETED, FAILED;
+
+}
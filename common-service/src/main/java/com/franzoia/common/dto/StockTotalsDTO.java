@@ -0,0 +1,25 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.franzoia.common.util.Dto;
+import lombok.*;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@ToString
+public class StockTotalsDTO implements Dto {
+
+    private String yearMonth;
+    private String fromYearMonth;
+    private String toYearMonth;
+    private Long productId;
+    private Long products;
+    private Long inputs;
+    private Long outputs;
+    private Long openingBalance;
+    private Long closingBalance;
+
+}
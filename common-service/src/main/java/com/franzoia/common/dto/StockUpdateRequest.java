@@ -1,6 +1,17 @@
 package com.franzoia.common.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.*;
 
+/**
+ * A stock movement. The optional idempotency key identifies the movement across retries, an update whose
+ * key was already applied is not applied again and gets the result of the first one.
+ */
 @Builder
-public record StockUpdateRequest(StockKey key, TransactionType type, Long quantity) {}
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record StockUpdateRequest(StockKey key, TransactionType type, Long quantity, String idempotencyKey) {
+
+    public StockUpdateRequest(final StockKey key, final TransactionType type, final Long quantity) {
+        this(key, type, quantity, null);
+    }
+}
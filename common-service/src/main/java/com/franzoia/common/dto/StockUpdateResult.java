@@ -0,0 +1,8 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.*;
+
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record StockUpdateResult(Integer line, StockKey key, StockUpdateStatus status, String message) {}
@@ -6,9 +6,14 @@ import lombok.*;
 
 import java.time.LocalDate;
 
+/**
+ * A transaction. The optional idempotency key identifies its creation across retries, creating it again
+ * with the same key returns the transaction already created.
+ */
 @Builder
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public record TransactionDTO(Long id, LocalDate date, TransactionType type,
-                             Long productId, ProductDTO product, Double price, Long quantity) implements Dto {
+                             Long productId, ProductDTO product, Double price, Long quantity,
+                             String idempotencyKey) implements Dto {
 
 }
@@ -0,0 +1,32 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.franzoia.common.util.Dto;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Report of a transaction import. Only the first errors are listed, the rejected count covers all of them,
+ * and an import replayed with the same idempotency key reports the counts of the first one, without errors.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@ToString
+public class TransactionImportDTO implements Dto {
+
+    private Long id;
+    private String idempotencyKey;
+    private Long lines;
+    private Long imported;
+    private Long rejected;
+    private Integer stockUpdates;
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+    private List<TransactionImportError> errors;
+
+}
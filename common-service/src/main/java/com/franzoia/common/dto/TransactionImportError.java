@@ -0,0 +1,11 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.*;
+
+/**
+ * A line of a transaction import that was not imported
+ */
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record TransactionImportError(Long line, String message) {}
@@ -0,0 +1,18 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.franzoia.common.util.Dto;
+import lombok.*;
+
+import java.time.LocalDate;
+
+/**
+ * A partition of the transactions, of a month or of an archived year. The detached ones are kept in the
+ * database but are no longer read by the transaction queries.
+ */
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record TransactionPartitionDTO(String name, LocalDate startDate, LocalDate endDate,
+                                      Long rows, Long sizeBytes, Boolean attached) implements Dto {
+
+}
@@ -0,0 +1,18 @@
+package com.franzoia.common.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.franzoia.common.util.Dto;
+import lombok.*;
+
+import java.time.LocalDate;
+
+/**
+ * Totals of the transactions of a product and type in a day, or in a "yyyyMM" year/month period. The value is
+ * the sum of the price times the quantity of the transactions.
+ */
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record TransactionRollupDTO(Long productId, TransactionType type, LocalDate date, String yearMonth,
+                                   Long count, Long quantity, Double value) implements Dto {
+
+}
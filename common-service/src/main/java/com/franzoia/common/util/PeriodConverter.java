@@ -0,0 +1,22 @@
+package com.franzoia.common.util;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores an int period (see {@link Periods}) in the "yyyyMM" column used by the existing tables, which keeps
+ * its chronological order when compared as text
+ */
+@Converter
+public class PeriodConverter implements AttributeConverter<Integer, String> {
+
+    @Override
+    public String convertToDatabaseColumn(final Integer period) {
+        return period == null? null: Periods.format(period);
+    }
+
+    @Override
+    public Integer convertToEntityAttribute(final String yearMonth) {
+        return yearMonth == null? Periods.NONE: Periods.parse(yearMonth);
+    }
+}
@@ -0,0 +1,141 @@
+package com.franzoia.common.util;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+
+/**
+ * Year/month periods as an int month ordinal ({@code year * 12 + month - 1}), so that comparing periods,
+ * moving to the next/previous month and iterating a range are plain integer operations.
+ * <p/>
+ * The text form is the "yyyyMM" used by the API and the database. Parsing and formatting don't allocate
+ * for the periods between {@link #FIRST_YEAR} and {@link #LAST_YEAR}, which are kept in a precomputed table.
+ */
+public final class Periods {
+
+    public static final int FIRST_YEAR = 1970;
+    public static final int LAST_YEAR = 2169;
+
+    /**
+     * Value of a period that is not set, lower than any valid period
+     */
+    public static final int NONE = 0;
+
+    private static final int FIRST = of(FIRST_YEAR, 1);
+    private static final int LAST = of(LAST_YEAR, 12);
+
+    private static final String[] TABLE = new String[LAST - FIRST + 1];
+
+    static {
+        for (int period = FIRST; period <= LAST; period++) {
+            TABLE[period - FIRST] = format(year(period), month(period));
+        }
+    }
+
+    private static volatile int current;
+    private static volatile long currentUntil;
+
+    private Periods() {
+    }
+
+    public static int of(final int year, final int month) {
+        if (year < 1 || year > 9999 || month < 1 || month > 12) {
+            throw new IllegalArgumentException("Invalid year/month period: " + year + "/" + month);
+        }
+        return year * 12 + month - 1;
+    }
+
+    public static int of(final LocalDate date) {
+        return of(date.getYear(), date.getMonthValue());
+    }
+
+    public static int of(final YearMonth yearMonth) {
+        return of(yearMonth.getYear(), yearMonth.getMonthValue());
+    }
+
+    public static int year(final int period) {
+        return period / 12;
+    }
+
+    public static int month(final int period) {
+        return period % 12 + 1;
+    }
+
+    public static int next(final int period) {
+        return period + 1;
+    }
+
+    public static int previous(final int period) {
+        return period - 1;
+    }
+
+    public static YearMonth toYearMonth(final int period) {
+        return YearMonth.of(year(period), month(period));
+    }
+
+    /**
+     * @return the period of the current month, recalculated only when the month changes
+     */
+    public static int current() {
+        final long now = System.currentTimeMillis();
+        if (now >= currentUntil) {
+            final YearMonth month = YearMonth.now();
+            current = of(month);
+            currentUntil = month.plusMonths(1).atDay(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        return current;
+    }
+
+    /**
+     * Parses a "yyyyMM" period
+     *
+     * @throws IllegalArgumentException when the text is not a valid period
+     */
+    public static int parse(final CharSequence text) {
+        if (text == null || text.length() != 6) {
+            throw new IllegalArgumentException("Year/Month period must be in the format yyyyMM: " + text);
+        }
+        int year = 0;
+        int month = 0;
+        for (int i = 0; i < 6; i++) {
+            final int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Year/Month period must be in the format yyyyMM: " + text);
+            }
+            if (i < 4) {
+                year = year * 10 + digit;
+            } else {
+                month = month * 10 + digit;
+            }
+        }
+        if (year < 1 || month < 1 || month > 12) {
+            throw new IllegalArgumentException("Year/Month period must be in the format yyyyMM: " + text);
+        }
+        return of(year, month);
+    }
+
+    /**
+     * @return the "yyyyMM" text of a period, or null when it is not set
+     */
+    public static String format(final int period) {
+        if (period == NONE) {
+            return null;
+        }
+        if (period >= FIRST && period <= LAST) {
+            return TABLE[period - FIRST];
+        }
+        return format(year(period), month(period));
+    }
+
+    private static String format(final int year, final int month) {
+        final char[] chars = new char[6];
+        int value = year;
+        for (int i = 3; i >= 0; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        chars[4] = (char) ('0' + month / 10);
+        chars[5] = (char) ('0' + month % 10);
+        return new String(chars);
+    }
+}
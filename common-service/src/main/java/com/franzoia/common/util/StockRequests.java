@@ -0,0 +1,70 @@
+package com.franzoia.common.util;
+
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.exception.InvalidRequestException;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Parsing and validation of the stock requests received by the API, shared by the blocking and the reactive
+ * stock-service so both answer the same invalid requests with the same messages
+ */
+public final class StockRequests {
+
+    private StockRequests() {
+    }
+
+    /**
+     * Parses a "yyyyMM" period received by the API
+     *
+     * @throws InvalidRequestException when the period is invalid
+     */
+    public static int toPeriod(final String yearMonth) {
+        try {
+            return Periods.parse(yearMonth);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("Year/Month period must be in the format yyyyMM", e);
+        }
+    }
+
+    /**
+     * @return the date of a balance query, today when it is not set, or null when it is a "yyyyMM" period
+     * @throws InvalidRequestException when it is neither a date nor a period
+     */
+    public static LocalDate toBalanceDate(final String at) {
+        if (at == null || at.isBlank()) {
+            return LocalDate.now();
+        }
+        if (at.length() == 6) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(at);
+        } catch (DateTimeParseException e) {
+            throw new InvalidRequestException("The balance date must be a yyyy-MM-dd date or a yyyyMM period", e);
+        }
+    }
+
+    /**
+     * Validates the product, period, type and quantity of a stock update, the idempotency key is left to the
+     * service that records it
+     *
+     * @return why the stock update is invalid, null when it is valid
+     */
+    public static String validate(final StockUpdateRequest updateRequest) {
+        if (updateRequest == null || updateRequest.key() == null || updateRequest.key().getProductId() == null) {
+            return "Product is required";
+        }
+        if (updateRequest.key().getPeriod() == Periods.NONE) {
+            return updateRequest.key().getPeriodError();
+        }
+        if (updateRequest.type() == null) {
+            return "Transaction type is required";
+        }
+        if (updateRequest.quantity() == null || updateRequest.quantity() <= 0) {
+            return "Quantity must be greater than zero";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,110 @@
+package com.franzoia.common.config.replica;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadReplicaRoutingDataSourceTest {
+
+    private static final String LAG_QUERY = "SELECT lag FROM replica_lag";
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private JdbcTemplate primary;
+    private JdbcTemplate replica;
+    private ReadReplicaRoutingDataSource routing;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate readOnly;
+    private TransactionTemplate readWrite;
+
+    @BeforeEach
+    void setUp() {
+        // two embedded databases standing in for the primary and the replica
+        primary = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1", "sa", ""));
+        replica = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1", "sa", ""));
+        primary.execute("CREATE TABLE source (name VARCHAR(20))");
+        primary.execute("INSERT INTO source VALUES ('primary')");
+        replica.execute("CREATE TABLE source (name VARCHAR(20))");
+        replica.execute("INSERT INTO source VALUES ('replica')");
+        replica.execute("CREATE TABLE replica_lag (lag BIGINT)");
+        replica.execute("INSERT INTO replica_lag VALUES (0)");
+
+        final ReadReplicaProperties properties = new ReadReplicaProperties();
+        properties.setMaxLag(Duration.ofSeconds(5));
+        properties.setLagCheckInterval(Duration.ofHours(1));
+        properties.setLagQuery(LAG_QUERY);
+        routing = new ReadReplicaRoutingDataSource(primary.getDataSource(), Map.of("replica-1", replica.getDataSource()), properties, registry);
+        routing.afterPropertiesSet();
+        routing.checkLag(LAG_QUERY, 5000);
+
+        final LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(routing);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        readWrite = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        readOnly = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        readOnly.setReadOnly(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        routing.close();
+        primary.execute("DROP ALL OBJECTS");
+        replica.execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    void shouldRouteReadOnlyTransactionsToTheReplica() {
+        // when
+        final String actual = readOnly.execute(status -> jdbcTemplate.queryForObject("SELECT name FROM source", String.class));
+
+        // then
+        assertEquals("replica", actual);
+        assertEquals(1.0, registry.get("datasource.routing").tag("datasource", "replica-1").counter().count());
+    }
+
+    @Test
+    void shouldRouteReadWriteTransactionsToThePrimary() {
+        // when
+        final String actual = readWrite.execute(status -> jdbcTemplate.queryForObject("SELECT name FROM source", String.class));
+
+        // then
+        assertEquals("primary", actual);
+    }
+
+    @Test
+    void shouldFallBackToThePrimaryWhenTheReplicaLags() {
+        // given
+        replica.update("UPDATE replica_lag SET lag = 60000");
+        routing.checkLag(LAG_QUERY, 5000);
+
+        // when
+        final String actual = readOnly.execute(status -> jdbcTemplate.queryForObject("SELECT name FROM source", String.class));
+
+        // then
+        assertEquals("primary", actual);
+        assertEquals(60000.0, registry.get("datasource.replica.lag").tag("datasource", "replica-1").gauge().value());
+    }
+
+    @Test
+    void shouldFallBackToThePrimaryWhenTheReplicaIsNotAvailable() {
+        // given
+        replica.execute("DROP TABLE replica_lag");
+        routing.checkLag(LAG_QUERY, 5000);
+
+        // when
+        final String actual = readOnly.execute(status -> jdbcTemplate.queryForObject("SELECT name FROM source", String.class));
+
+        // then
+        assertEquals("primary", actual);
+    }
+}
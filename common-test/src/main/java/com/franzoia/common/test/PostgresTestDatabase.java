@@ -0,0 +1,38 @@
+package com.franzoia.common.test;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.test.context.DynamicPropertyRegistry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A PostgreSQL server started once for all the tests of a service, for the services whose statements are
+ * native PostgreSQL (upserts, advisory locks) that H2 can't run
+ */
+public final class PostgresTestDatabase {
+
+    private static EmbeddedPostgres postgres;
+
+    private PostgresTestDatabase() {
+    }
+
+    /**
+     * Points the datasource of the test to the server, starting it on first use
+     */
+    public static synchronized void register(final DynamicPropertyRegistry registry) {
+        if (postgres == null) {
+            try {
+                postgres = EmbeddedPostgres.start();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        registry.add("spring.datasource.url", () -> postgres.getJdbcUrl("postgres", "postgres"));
+        registry.add("spring.datasource.username", () -> "postgres");
+        registry.add("spring.datasource.password", () -> "");
+        // the server stops with a shutdown hook of its own, while the contexts may still flush on close, so
+        // those last statements fail fast instead of holding up the exit of the tests
+        registry.add("spring.datasource.hikari.connection-timeout", () -> "2000");
+    }
+}
@@ -11,7 +11,6 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -31,9 +30,7 @@ public class CategoryController {
 
 	@GetMapping
 	public List<CategoryDTO> listAll() {
-		return categoriesService.getMapper()
-				.convertEntityToDTO(categoriesService.findAll()).stream()
-					.sorted(Comparator.comparing(CategoryDTO::name)).toList();
+		return categoriesService.listAll();
 	}
 
 	@GetMapping("/{categoryId}")
@@ -1,5 +1,6 @@
 package com.franzoia.categoryservice.model;
 
+import com.franzoia.common.config.sequence.PooledSequences;
 import com.franzoia.common.util.audit.DefaultAuditableEntity;
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
@@ -16,7 +17,8 @@ import lombok.Setter;
 public class Category extends DefaultAuditableEntity {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "categories_seq")
+    @SequenceGenerator(name = "categories_seq", allocationSize = PooledSequences.ALLOCATION_SIZE)
     private Long id;
 
     @Column(nullable = false)
@@ -1,7 +1,10 @@
 package com.franzoia.categoryservice.repository;
 
 import com.franzoia.categoryservice.model.Category;
+import com.franzoia.common.dto.CategoryDTO;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -9,6 +12,16 @@ import java.util.List;
 @Repository
 public interface CategoryRepository extends CrudRepository<Category, Long> {
 
-    List<Category> findAllByNameLikeOrderByName(final String name);
+    @Query(value = "SELECT new com.franzoia.common.dto.CategoryDTO(c.id, c.name) " +
+                   "FROM Category c " +
+                   "WHERE c.audit.deleted = false " +
+                   "ORDER BY c.name")
+    List<CategoryDTO> findAllDTOsOrderByName();
+
+    @Query(value = "SELECT new com.franzoia.common.dto.CategoryDTO(c.id, c.name) " +
+                   "FROM Category c " +
+                   "WHERE c.name LIKE :name " +
+                   "ORDER BY c.name")
+    List<CategoryDTO> findAllDTOsByNameLikeOrderByName(@Param("name") final String name);
 
 }
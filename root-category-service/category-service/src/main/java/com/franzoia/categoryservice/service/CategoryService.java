@@ -69,15 +69,24 @@ public class CategoryService extends DefaultService<CategoryDTO, Category, Long,
 
 
 
+	/**
+	 * List all categories ordered by name
+	 */
+	@Transactional(readOnly = true)
+	public List<CategoryDTO> listAll() {
+		return ((CategoryRepository) repository).findAllDTOsOrderByName();
+	}
+
 	/**
 	 * Locate all categorys by name or part of the name (min 2 characters)
 	 *
 	 * @param name the name of the category
 	 * @return a list with all categories that match the name (starting with)
 	 */
+	@Transactional(readOnly = true)
 	public List<CategoryDTO> listByName(final String name) {
 		log.info("list by category name");
-		return mapper.convertEntityToDTO(((CategoryRepository) repository).findAllByNameLikeOrderByName(name));
+		return ((CategoryRepository) repository).findAllDTOsByNameLikeOrderByName(name);
 	}
 
 }
@@ -1,2 +1,2 @@
-insert into categories (name, date_created, deleted) values ('Testing', now(), false);
-insert into categories (name, date_created, deleted) values ('Another Test', now(), false);
+insert into categories (id, name, date_created, deleted) values (next value for categories_seq, 'Testing', now(), false);
+insert into categories (id, name, date_created, deleted) values (next value for categories_seq, 'Another Test', now(), false);
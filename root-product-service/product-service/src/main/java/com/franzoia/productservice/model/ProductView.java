@@ -0,0 +1,7 @@
+package com.franzoia.productservice.model;
+
+/**
+ * Read-only projection of a {@link Product} used by the list queries
+ */
+public record ProductView(Long id, String name, Long categoryId, String unit, Double price) {
+}
@@ -1,7 +1,10 @@
 package com.franzoia.productservice.repository;
 
 import com.franzoia.productservice.model.Product;
+import com.franzoia.productservice.model.ProductView;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -9,8 +12,24 @@ import java.util.List;
 @Repository
 public interface ProductRepository extends CrudRepository<Product, Long> {
 
-    List<Product> findAllByNameLikeOrderByName(final String name);
+    @Query(value = "SELECT new com.franzoia.productservice.model.ProductView(p.id, p.name, p.categoryId, p.unit, p.price) " +
+                   "FROM Product p " +
+                   "WHERE p.audit.deleted = false " +
+                   "ORDER BY p.name")
+    List<ProductView> findAllViewsOrderByName();
 
-    List<Product> findAllByCategoryIdOrderByName(final Long categoryId);
+    @Query(value = "SELECT new com.franzoia.productservice.model.ProductView(p.id, p.name, p.categoryId, p.unit, p.price) " +
+                   "FROM Product p " +
+                   "WHERE p.name LIKE :name " +
+                   "AND p.audit.deleted = false " +
+                   "ORDER BY p.name")
+    List<ProductView> findAllViewsByNameLikeOrderByName(@Param("name") final String name);
+
+    @Query(value = "SELECT new com.franzoia.productservice.model.ProductView(p.id, p.name, p.categoryId, p.unit, p.price) " +
+                   "FROM Product p " +
+                   "WHERE p.categoryId = :categoryId " +
+                   "AND p.audit.deleted = false " +
+                   "ORDER BY p.name")
+    List<ProductView> findAllViewsByCategoryIdOrderByName(@Param("categoryId") final Long categoryId);
 
 }
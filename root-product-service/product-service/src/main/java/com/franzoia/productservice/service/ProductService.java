@@ -8,6 +8,7 @@ import com.franzoia.common.exception.ServiceNotAvailableException;
 import com.franzoia.common.util.DefaultService;
 import com.franzoia.productservice.config.CategoryFeignClient;
 import com.franzoia.productservice.model.Product;
+import com.franzoia.productservice.model.ProductView;
 import com.franzoia.productservice.repository.ProductRepository;
 import com.franzoia.productservice.service.mapper.ProductMapper;
 import feign.FeignException;
@@ -81,7 +82,8 @@ public class ProductService extends DefaultService<ProductDTO, Product, Long, Pr
 	}
 
 	public boolean hasDuplicateName(final String name, final Product product) {
-		List<ProductDTO> products = listByName(name).stream()
+		// only the ids are needed, so the categories are not looked up
+		List<ProductView> products = ((ProductRepository) repository).findAllViewsByNameLikeOrderByName(name).stream()
 				.filter(p -> product == null || !p.id().equals(product.getId()))
 				.toList();
         return !products.isEmpty();
@@ -112,31 +114,38 @@ public class ProductService extends DefaultService<ProductDTO, Product, Long, Pr
 	/**
 	 * List all products
 	 */
+	@Transactional(readOnly = true)
 	public List<ProductDTO> listAll() {
-		return createProductList(findAll(), null);
+		return createProductList(((ProductRepository) repository).findAllViewsOrderByName(), null);
 	}
 
 	/**
 	 * Locate all products by name or part of the name (min 2 characters)
 	 */
+	@Transactional(readOnly = true)
 	public List<ProductDTO> listByName(final String name) {
-		return createProductList(((ProductRepository) repository).findAllByNameLikeOrderByName(name), null);
+		return createProductList(((ProductRepository) repository).findAllViewsByNameLikeOrderByName(name), null);
 	}
 
 	/**
 	 * Locate all products by category
 	 */
+	@Transactional(readOnly = true)
 	public Map<CategoryDTO, List<ProductDTO>> listByCategory(final Long categoryId) throws EntityNotFoundException, ServiceNotAvailableException {
 		// implicit category check
 		CategoryDTO category = getCategoryDTO(categoryId);
 
 		// find all products by category and return them grouping by Category
-		return createProductList(((ProductRepository) repository).findAllByCategoryIdOrderByName(categoryId), category)
+		return createProductList(((ProductRepository) repository).findAllViewsByCategoryIdOrderByName(categoryId), category)
 				.stream()
 				.collect(groupingBy(ProductDTO::category));
 	}
 
-	private List<ProductDTO> createProductList(final List<Product> products, final CategoryDTO category) {
+	/**
+	 * Creates the DTOs of the products read by a list query. The queries return read-only projections
+	 * already without the deleted products and ordered by name.
+	 */
+	private List<ProductDTO> createProductList(final List<ProductView> products, final CategoryDTO category) {
 		Map<Long, List<CategoryDTO>> categoryMap = category == null? getCategoryMap(): null;
 
 		// fallback for category-service
@@ -150,20 +159,18 @@ public class ProductService extends DefaultService<ProductDTO, Product, Long, Pr
 			}
 		};
 
-		List<ProductDTO> list = new ArrayList<>();
-		products.stream()
-			.filter(p -> !p.getAudit().getDeleted())
-			.forEach(p -> {
+		List<ProductDTO> list = new ArrayList<>(products.size());
+		products.forEach(p -> {
 				ProductDTO dto = ProductDTO.builder()
-						.id(p.getId())
-						.name(p.getName())
-						.category(category != null? category: cat.apply(p.getCategoryId()))
-						.price(p.getPrice())
-						.unit(p.getUnit())
+						.id(p.id())
+						.name(p.name())
+						.category(category != null? category: cat.apply(p.categoryId()))
+						.price(p.price())
+						.unit(p.unit())
 						.build();
 				list.add(dto);
 			});
-		return list.stream().sorted(Comparator.comparing(ProductDTO::name)).toList();
+		return list;
 	}
 
 	private Map<Long, List<CategoryDTO>> getCategoryMap() {
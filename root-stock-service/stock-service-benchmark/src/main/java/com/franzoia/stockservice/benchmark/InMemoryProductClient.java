@@ -0,0 +1,43 @@
+package com.franzoia.stockservice.benchmark;
+
+import com.franzoia.common.dto.ProductDTO;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.stockservice.config.ProductFeignClient;
+
+import java.util.List;
+import java.util.stream.LongStream;
+
+/**
+ * Stand-in of the product-service with the products 1 to {@code products}
+ */
+public class InMemoryProductClient implements ProductFeignClient {
+
+    private final int products;
+
+    public InMemoryProductClient(final int products) {
+        this.products = products;
+    }
+
+    @Override
+    public List<ProductDTO> getAllProducts() {
+        return LongStream.rangeClosed(1, products).mapToObj(InMemoryProductClient::product).toList();
+    }
+
+    @Override
+    public ProductDTO getProductById(final Long productId) throws EntityNotFoundException {
+        if (productId < 1 || productId > products) {
+            throw new EntityNotFoundException("Product not found");
+        }
+        return product(productId);
+    }
+
+    private static ProductDTO product(final long productId) {
+        return ProductDTO.builder()
+                .id(productId)
+                .name("Product " + productId)
+                .categoryId(productId % 10 + 1)
+                .unit("UN")
+                .price(9.99)
+                .build();
+    }
+}
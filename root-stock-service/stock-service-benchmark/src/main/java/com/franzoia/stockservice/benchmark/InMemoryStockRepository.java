@@ -0,0 +1,316 @@
+package com.franzoia.stockservice.benchmark;
+
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.model.StockTotals;
+import com.franzoia.stockservice.model.StockView;
+import com.franzoia.stockservice.repository.StockRepository;
+
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Stand-in of the {@link StockRepository} keeping the stock rows in memory, by product and period, with
+ * the semantics of the queries the stock computations rely on. Rows are copied when read and when saved,
+ * as they would be materialized from and written to the database, so the benchmarks allocate what the
+ * service allocates. The aggregates over the transactions and the totals are not supported.
+ * <p/>
+ * Not thread-safe, the database locks are not emulated, so the benchmarks run with a single thread.
+ */
+public class InMemoryStockRepository implements StockRepository {
+
+    private final TreeMap<Long, TreeMap<Integer, Stock>> stocks = new TreeMap<>();
+
+    /**
+     * Stores a row as it is, to fill the repository before the benchmarks
+     */
+    public void put(final Stock stock) {
+        stocks.computeIfAbsent(stock.getKey().getProductId(), id -> new TreeMap<>()).put(stock.getKey().getPeriod(), stock);
+    }
+
+    @Override
+    public List<Stock> findAllByProductId(final Long productId) {
+        return copies(rows(productId).values());
+    }
+
+    @Override
+    public List<StockView> findAllViewsOrderByYearMonthAndProductId() {
+        return streamAllOrderByYearMonthAndProductId().map(InMemoryStockRepository::view).toList();
+    }
+
+    @Override
+    public List<StockView> findAllViewsByProductId(final Long productId) {
+        return rows(productId).values().stream().map(InMemoryStockRepository::view).toList();
+    }
+
+    @Override
+    public List<StockView> findAllViewsByYearMonth(final int period) {
+        return streamAllByYearMonth(period).map(InMemoryStockRepository::view).toList();
+    }
+
+    @Override
+    public Stream<Stock> streamAllOrderByYearMonthAndProductId() {
+        return stocks.values().stream()
+                .flatMap(rows -> rows.values().stream())
+                .sorted(Comparator.comparingInt((Stock s) -> s.getKey().getPeriod()).thenComparing(s -> s.getKey().getProductId()))
+                .map(InMemoryStockRepository::copy);
+    }
+
+    @Override
+    public Stream<Stock> streamAllByYearMonth(final int period) {
+        return stocks.values().stream()
+                .map(rows -> rows.get(period))
+                .filter(Objects::nonNull)
+                .map(InMemoryStockRepository::copy);
+    }
+
+    @Override
+    public List<Stock> findAllByProductIdFromPeriod(final Long productId, final int period) {
+        return copies(rows(productId).tailMap(period, true).values());
+    }
+
+    @Override
+    public int shiftBalancesAfterPeriod(final Long productId, final int period, final Long delta) {
+        final Collection<Stock> after = rows(productId).tailMap(period, false).values();
+        after.forEach(stock -> {
+            stock.setPreviousBalance(stock.getPreviousBalance() + delta);
+            stock.setCurrentBalance(stock.getCurrentBalance() + delta);
+            stock.setVersion(stock.getVersion() + 1);
+        });
+        return after.size();
+    }
+
+    @Override
+    public int incrementInputs(final int period, final Long productId, final Long quantity) {
+        final Stock stock = rows(productId).get(period);
+        if (stock == null) {
+            return 0;
+        }
+        stock.setInputs(stock.getInputs() + quantity);
+        stock.setCurrentBalance(stock.getCurrentBalance() + quantity);
+        stock.setVersion(stock.getVersion() + 1);
+        return 1;
+    }
+
+    @Override
+    public int incrementOutputs(final int period, final Long productId, final Long quantity) {
+        final Stock stock = rows(productId).get(period);
+        if (stock == null || stock.getCurrentBalance() < quantity) {
+            return 0;
+        }
+        stock.setOutputs(stock.getOutputs() + quantity);
+        stock.setCurrentBalance(stock.getCurrentBalance() - quantity);
+        stock.setVersion(stock.getVersion() + 1);
+        return 1;
+    }
+
+    @Override
+    public Long findLowestBalanceAfterPeriod(final Long productId, final int period) {
+        return rows(productId).tailMap(period, false).values().stream()
+                .map(Stock::getCurrentBalance)
+                .min(Long::compare)
+                .orElse(null);
+    }
+
+    @Override
+    public Integer lockProductMovements(final Long productId) {
+        return 1;
+    }
+
+    @Override
+    public Integer lockAllMovements() {
+        return 1;
+    }
+
+    @Override
+    public Optional<String> findLastClosedPeriod() {
+        return Optional.empty();
+    }
+
+    @Override
+    public int addInputs(final String period, final Long productId, final Long quantity) {
+        final int p = Periods.parse(period);
+        if (incrementInputs(p, productId, quantity) == 0) {
+            final long opening = openingBalance(productId, p);
+            put(new Stock(new StockKey(p, productId), opening, quantity, 0L, opening + quantity, 0L));
+        }
+        return 1;
+    }
+
+    @Override
+    public int addOutputs(final String period, final Long productId, final Long quantity) {
+        final int p = Periods.parse(period);
+        if (rows(productId).containsKey(p)) {
+            return incrementOutputs(p, productId, quantity);
+        }
+        final long opening = openingBalance(productId, p);
+        if (opening < quantity) {
+            return 0;
+        }
+        put(new Stock(new StockKey(p, productId), opening, 0L, quantity, opening - quantity, 0L));
+        return 1;
+    }
+
+    @Override
+    public Optional<Stock> findFirstByKey_ProductIdAndKey_PeriodLessThanOrderByKey_PeriodDesc(final Long productId, final int period) {
+        return Optional.ofNullable(rows(productId).lowerEntry(period)).map(entry -> copy(entry.getValue()));
+    }
+
+    @Override
+    public int createOpeningRows(final String period, final String previous) {
+        final int p = Periods.parse(period);
+        final int previousPeriod = Periods.parse(previous);
+        int created = 0;
+        for (TreeMap<Integer, Stock> rows : stocks.values()) {
+            final Map.Entry<Integer, Stock> latest = rows.lowerEntry(p);
+            if (latest != null && !rows.containsKey(p)
+                    && (latest.getValue().getCurrentBalance() != 0 || latest.getKey() == previousPeriod)) {
+                final Long balance = latest.getValue().getCurrentBalance();
+                put(new Stock(new StockKey(p, latest.getValue().getKey().getProductId()), balance, 0L, 0L, balance, 0L));
+                created++;
+            }
+        }
+        return created;
+    }
+
+    @Override
+    public Optional<Integer> findFirstPeriod() {
+        return stocks.values().stream()
+                .filter(rows -> !rows.isEmpty())
+                .map(TreeMap::firstKey)
+                .min(Integer::compare);
+    }
+
+    @Override
+    public long countByKey_Period(final int period) {
+        return stocks.values().stream().filter(rows -> rows.containsKey(period)).count();
+    }
+
+    @Override
+    public Long sumCurrentBalanceByPeriod(final int period) {
+        return stocks.values().stream()
+                .map(rows -> rows.get(period))
+                .filter(Objects::nonNull)
+                .mapToLong(Stock::getCurrentBalance)
+                .sum();
+    }
+
+    @Override
+    public Long sumBalancesAtEndOf(final String period) {
+        final int p = Periods.parse(period);
+        return stocks.values().stream()
+                .map(rows -> rows.floorEntry(p))
+                .filter(Objects::nonNull)
+                .mapToLong(entry -> entry.getValue().getCurrentBalance())
+                .sum();
+    }
+
+    @Override
+    public List<StockTotals> sumByPeriod(final String from, final String to) {
+        throw new UnsupportedOperationException("the stock totals are not benchmarked");
+    }
+
+    @Override
+    public Optional<StockTotals> sumByProduct(final Long productId, final String from, final String to) {
+        throw new UnsupportedOperationException("the stock totals are not benchmarked");
+    }
+
+    @Override
+    public List<StockTotals> findTopMovers(final String from, final String to, final int limit) {
+        throw new UnsupportedOperationException("the stock totals are not benchmarked");
+    }
+
+    @Override
+    public <S extends Stock> S save(final S entity) {
+        entity.setVersion(entity.getVersion() == null? 0L: entity.getVersion() + 1);
+        put(copy(entity));
+        return entity;
+    }
+
+    @Override
+    public <S extends Stock> Iterable<S> saveAll(final Iterable<S> entities) {
+        final List<S> saved = new ArrayList<>();
+        entities.forEach(entity -> saved.add(save(entity)));
+        return saved;
+    }
+
+    @Override
+    public Optional<Stock> findById(final StockKey key) {
+        return Optional.ofNullable(rows(key.getProductId()).get(key.getPeriod())).map(InMemoryStockRepository::copy);
+    }
+
+    @Override
+    public boolean existsById(final StockKey key) {
+        return rows(key.getProductId()).containsKey(key.getPeriod());
+    }
+
+    @Override
+    public Iterable<Stock> findAll() {
+        return streamAllOrderByYearMonthAndProductId().toList();
+    }
+
+    @Override
+    public Iterable<Stock> findAllById(final Iterable<StockKey> keys) {
+        final List<Stock> found = new ArrayList<>();
+        keys.forEach(key -> findById(key).ifPresent(found::add));
+        return found;
+    }
+
+    @Override
+    public long count() {
+        return stocks.values().stream().mapToLong(TreeMap::size).sum();
+    }
+
+    @Override
+    public void deleteById(final StockKey key) {
+        rows(key.getProductId()).remove(key.getPeriod());
+    }
+
+    @Override
+    public void delete(final Stock entity) {
+        deleteById(entity.getKey());
+    }
+
+    @Override
+    public void deleteAllById(final Iterable<? extends StockKey> keys) {
+        keys.forEach(this::deleteById);
+    }
+
+    @Override
+    public void deleteAll(final Iterable<? extends Stock> entities) {
+        StreamSupport.stream(entities.spliterator(), false).forEach(this::delete);
+    }
+
+    @Override
+    public void deleteAll() {
+        stocks.clear();
+    }
+
+    private TreeMap<Integer, Stock> rows(final Long productId) {
+        final TreeMap<Integer, Stock> rows = stocks.get(productId);
+        return rows == null? new TreeMap<>(): rows;
+    }
+
+    private long openingBalance(final Long productId, final int period) {
+        final Map.Entry<Integer, Stock> previous = rows(productId).lowerEntry(period);
+        return previous == null? 0L: previous.getValue().getCurrentBalance();
+    }
+
+    private static List<Stock> copies(final Collection<Stock> rows) {
+        final List<Stock> copies = new ArrayList<>(rows.size());
+        rows.forEach(stock -> copies.add(copy(stock)));
+        return copies;
+    }
+
+    private static Stock copy(final Stock stock) {
+        return new Stock(new StockKey(stock.getKey().getPeriod(), stock.getKey().getProductId()), stock.getPreviousBalance(),
+                stock.getInputs(), stock.getOutputs(), stock.getCurrentBalance(), stock.getVersion());
+    }
+
+    private static StockView view(final Stock stock) {
+        return new StockView(stock.getKey().getPeriod(), stock.getKey().getProductId(), stock.getPreviousBalance(),
+                stock.getInputs(), stock.getOutputs(), stock.getCurrentBalance());
+    }
+}
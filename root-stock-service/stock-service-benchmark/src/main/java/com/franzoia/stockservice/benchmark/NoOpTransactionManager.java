@@ -0,0 +1,29 @@
+package com.franzoia.stockservice.benchmark;
+
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+/**
+ * Transaction manager without a resource, so the transaction templates and synchronizations of the stock
+ * services run as they do in the service, minus the database transaction itself
+ */
+public class NoOpTransactionManager extends AbstractPlatformTransactionManager {
+
+    @Override
+    protected Object doGetTransaction() {
+        return new Object();
+    }
+
+    @Override
+    protected void doBegin(final Object transaction, final TransactionDefinition definition) {
+    }
+
+    @Override
+    protected void doCommit(final DefaultTransactionStatus status) {
+    }
+
+    @Override
+    protected void doRollback(final DefaultTransactionStatus status) {
+    }
+}
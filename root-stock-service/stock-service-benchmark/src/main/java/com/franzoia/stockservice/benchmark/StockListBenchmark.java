@@ -0,0 +1,32 @@
+package com.franzoia.stockservice.benchmark;
+
+import com.franzoia.common.dto.StockDTO;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.util.Periods;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing the stocks enriched with the cached product data: every product in the current month, which
+ * looks the products up all at once, and every month of a product picked at random
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StockListBenchmark {
+
+    @Benchmark
+    public List<StockDTO> listByYearMonth(final StockServiceState state) {
+        return state.stockService.listByYearMonth(Periods.format(state.lastPeriod));
+    }
+
+    @Benchmark
+    public List<StockDTO> listByProduct(final StockServiceState state) throws EntityNotFoundException, ServiceNotAvailableException {
+        return state.stockService.listByProduct(state.productId(state.next()));
+    }
+}
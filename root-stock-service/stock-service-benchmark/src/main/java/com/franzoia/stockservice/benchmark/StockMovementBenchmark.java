@@ -0,0 +1,30 @@
+package com.franzoia.stockservice.benchmark;
+
+import com.franzoia.common.exception.EntityNotFoundException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single stock movements of one unit on a product and month picked at random: the row of the month is
+ * updated and the balances of every month after it are shifted, half of the history on average
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StockMovementBenchmark {
+
+    @Benchmark
+    public void addToStock(final StockServiceState state) {
+        final int target = state.next();
+        state.stockService.addToStock(state.period(target), state.productId(target), 1L);
+    }
+
+    @Benchmark
+    public void removeFromStock(final StockServiceState state) throws EntityNotFoundException {
+        final int target = state.next();
+        state.stockService.removeFromStock(state.period(target), state.productId(target), 1L);
+    }
+}
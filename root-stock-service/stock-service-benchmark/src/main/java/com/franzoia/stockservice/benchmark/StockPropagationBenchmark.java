@@ -0,0 +1,42 @@
+package com.franzoia.stockservice.benchmark;
+
+import com.franzoia.stockservice.service.StockBalanceEngine.Applied;
+import com.franzoia.stockservice.service.StockBalanceEngine.Movement;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forward propagation of a movement in the first month of the history through every month after it, for
+ * a product picked at random: shifting the balances of the rows, as the single movements do, and reading
+ * and recalculating all the rows of the product, as the batches of movements do
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StockPropagationBenchmark {
+
+    // the movements of the batches cancel out, so the balances of the months after the first one don't change
+    private static final Movement MOVEMENT = new Movement(1, 1);
+
+    @Benchmark
+    public int shiftForward(final StockServiceState state) {
+        final int target = state.next();
+        // alternating the sign keeps the balances around their initial values
+        return state.balanceEngine.shiftForward(state.productId(target), state.firstPeriod, (target & 1) == 0? 1L: -1L);
+    }
+
+    @Benchmark
+    public Applied applyMovements(final StockServiceState state) {
+        final int target = state.next();
+        final SortedMap<Integer, Movement> movements = new TreeMap<>();
+        movements.put(state.firstPeriod, MOVEMENT);
+        final SortedMap<Long, SortedMap<Integer, Movement>> products = new TreeMap<>();
+        products.put(state.productId(target), movements);
+        return state.balanceEngine.apply(products);
+    }
+}
@@ -0,0 +1,109 @@
+package com.franzoia.stockservice.benchmark;
+
+import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.model.StockView;
+import com.franzoia.stockservice.repository.StockRepository;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.transaction.TransactionAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading every stock row as managed entities and as read-only projections, both inside a read-only
+ * transaction, through the JPA repository over an in-memory H2 database holding {@code products} products
+ * over {@code months} months
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StockReadBenchmark {
+
+    @Benchmark
+    public List<Stock> readEntities(final JpaState state) {
+        return state.readOnly.execute(status -> {
+            final List<Stock> stocks = new ArrayList<>();
+            state.repository.findAll().forEach(stocks::add);
+            return stocks;
+        });
+    }
+
+    @Benchmark
+    public List<StockView> readViews(final JpaState state) {
+        return state.readOnly.execute(status -> state.repository.findAllViewsOrderByYearMonthAndProductId());
+    }
+
+    /**
+     * The stock repositories over an in-memory H2 database, with nothing else of the stock-service
+     */
+    @State(Scope.Benchmark)
+    public static class JpaState {
+
+        @Param({ "5000" })
+        public int products;
+
+        @Param({ "20" })
+        public int months;
+
+        StockRepository repository;
+
+        TransactionTemplate readOnly;
+
+        private ConfigurableApplicationContext context;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            context = new SpringApplicationBuilder(JpaConfiguration.class)
+                    .web(WebApplicationType.NONE)
+                    // the application.yaml of the stock-service is left out
+                    .run("--spring.config.name=stock-benchmark",
+                            "--spring.main.banner-mode=off",
+                            "--spring.datasource.url=jdbc:h2:mem:stocks;DB_CLOSE_DELAY=-1",
+                            "--spring.jpa.hibernate.ddl-auto=create-drop");
+            repository = context.getBean(StockRepository.class);
+            readOnly = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+            readOnly.setReadOnly(true);
+
+            final JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+            final List<Object[]> rows = new ArrayList<>(products);
+            for (int month = 0; month < months; month++) {
+                rows.clear();
+                final String yearMonth = String.format("%d%02d", 2020 + month / 12, month % 12 + 1);
+                for (long product = 1; product <= products; product++) {
+                    rows.add(new Object[] { yearMonth, product, 10L * month, 10L, 0L, 10L * (month + 1) });
+                }
+                jdbcTemplate.batchUpdate("INSERT INTO stocks (year_month, product_id, previous_balance, inputs, outputs, current_balance, version) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, 0)", rows);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            context.close();
+        }
+    }
+
+    @Configuration
+    @ImportAutoConfiguration({ DataSourceAutoConfiguration.class, JdbcTemplateAutoConfiguration.class,
+            HibernateJpaAutoConfiguration.class, TransactionAutoConfiguration.class })
+    @EntityScan(basePackageClasses = Stock.class)
+    @EnableJpaRepositories(basePackageClasses = StockRepository.class)
+    static class JpaConfiguration {
+    }
+}
@@ -0,0 +1,144 @@
+package com.franzoia.stockservice.benchmark;
+
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.service.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+/**
+ * A {@link StockService} wired by hand over an {@link InMemoryStockRepository} holding the stocks of
+ * {@code products} products over the last {@code months} months, up to the current one, as the month
+ * opening leaves them. The product-service is in memory too and its products are already cached.
+ * <p/>
+ * The write-behind ledger, the stock matrix and the presence bitmaps are left out, so the movements go
+ * through the repository the same way they go through the database.
+ */
+@State(Scope.Benchmark)
+public class StockServiceState {
+
+    /**
+     * Quantity moved into the stock of every product in every month, ten times what moves out, so the
+     * removals of the benchmarks never run out of balance
+     */
+    private static final long MONTHLY_INPUTS = 1_000_000_000L;
+
+    /**
+     * Products and months the benchmarks pick from, cycling through them
+     */
+    private static final int TARGETS = 1 << 16;
+
+    @Param({ "100", "1000", "10000" })
+    public int products;
+
+    @Param({ "12", "120" })
+    public int months;
+
+    public InMemoryStockRepository repository;
+
+    public StockService stockService;
+
+    public StockBalanceEngine balanceEngine;
+
+    public int firstPeriod;
+
+    public int lastPeriod;
+
+    private long[] productIds;
+
+    private int[] periods;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        lastPeriod = Periods.current();
+        firstPeriod = lastPeriod - months + 1;
+        repository = new InMemoryStockRepository();
+        for (long productId = 1; productId <= products; productId++) {
+            long balance = 0;
+            for (int period = firstPeriod; period <= lastPeriod; period = Periods.next(period)) {
+                final long inputs = MONTHLY_INPUTS + productId;
+                final long outputs = MONTHLY_INPUTS / 10;
+                repository.put(new Stock(new StockKey(period, productId), balance, inputs, outputs, balance + inputs - outputs, 0L));
+                balance += inputs - outputs;
+            }
+        }
+
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        final TransactionTemplate transactionTemplate = new TransactionTemplate(new NoOpTransactionManager());
+        // the balance index is never loaded by the benchmarked paths, only shifted and invalidated
+        final StockBalanceIndex balanceIndex = new StockBalanceIndex(null, null, registry, 100_000, Duration.ofMinutes(5));
+        balanceEngine = new StockBalanceEngine(repository, transactionTemplate, balanceIndex);
+        inject(balanceEngine, "maxAttempts", 3);
+
+        final StockChangeBroadcaster changeBroadcaster = new StockChangeBroadcaster(registry, 256, 5000, 1, 15_000, 1_800_000);
+        final StockChangePublisher changePublisher = new StockChangePublisher(changeBroadcaster,
+                absent(StockChangeRelay.class), absent(StockMatrix.class), absent(StockPresence.class));
+        final StockPeriodService periodService = new StockPeriodService(repository, null, transactionTemplate,
+                absent(StockLedger.class), changePublisher, registry, 1_000_000);
+        final ProductService productService = new ProductService(new InMemoryProductClient(products), registry,
+                50_000, Duration.ofHours(1), Duration.ofHours(2), 20);
+        productService.getProducts(LongStream.rangeClosed(1, products).boxed().toList());
+
+        stockService = new StockService(repository);
+        inject(stockService, "productService", productService);
+        inject(stockService, "balanceEngine", balanceEngine);
+        inject(stockService, "periodService", periodService);
+        inject(stockService, "balanceIndex", balanceIndex);
+        inject(stockService, "changePublisher", changePublisher);
+        inject(stockService, "changeBroadcaster", changeBroadcaster);
+        inject(stockService, "transactionTemplate", transactionTemplate);
+
+        final Random random = new Random(products * 31L + months);
+        productIds = new long[TARGETS];
+        periods = new int[TARGETS];
+        for (int i = 0; i < TARGETS; i++) {
+            productIds[i] = 1 + random.nextInt(products);
+            periods[i] = firstPeriod + random.nextInt(months);
+        }
+    }
+
+    /**
+     * Moves to the next product and month picked at random
+     */
+    public int next() {
+        next = (next + 1) & (TARGETS - 1);
+        return next;
+    }
+
+    public Long productId(final int target) {
+        return productIds[target];
+    }
+
+    public int period(final int target) {
+        return periods[target];
+    }
+
+    private static <T> ObjectProvider<T> absent(final Class<T> type) {
+        return new StaticListableBeanFactory().getBeanProvider(type);
+    }
+
+    /**
+     * Sets the fields the services get injected by Spring
+     */
+    private static void inject(final Object target, final String name, final Object value) {
+        final Field field = ReflectionUtils.findField(target.getClass(), name);
+        if (field == null) {
+            throw new IllegalStateException("No field " + name + " in " + target.getClass().getSimpleName());
+        }
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+}
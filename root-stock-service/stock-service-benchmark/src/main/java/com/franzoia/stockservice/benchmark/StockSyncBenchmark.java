@@ -0,0 +1,24 @@
+package com.franzoia.stockservice.benchmark;
+
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The repair resync of the whole history of a product picked at random, reading all of its rows and
+ * recalculating them up to the current month
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StockSyncBenchmark {
+
+    @Benchmark
+    public void syncStockBalance(final StockServiceState state) throws EntityNotFoundException, ServiceNotAvailableException {
+        state.stockService.syncStockBalance(state.productId(state.next()));
+    }
+}
@@ -0,0 +1,13 @@
+package com.franzoia.stockservice.config;
+
+import com.franzoia.common.config.replica.AbstractReadReplicaConfig;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Sends the read-only service methods to the read replicas, when they are enabled
+ */
+@Configuration
+@ConditionalOnProperty(name = "read-replica.enabled", havingValue = "true")
+public class ReadReplicaConfig extends AbstractReadReplicaConfig {
+}
@@ -0,0 +1,10 @@
+package com.franzoia.stockservice.config;
+
+import com.franzoia.common.config.DefaultErrorDecoder;
+
+public class TransactionErrorDecoder extends DefaultErrorDecoder {
+
+    protected TransactionErrorDecoder() {
+        setServiceName("Transaction");
+    }
+}
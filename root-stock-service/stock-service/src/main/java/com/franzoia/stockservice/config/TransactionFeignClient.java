@@ -0,0 +1,21 @@
+package com.franzoia.stockservice.config;
+
+import com.franzoia.common.dto.TransactionRollupDTO;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import org.springframework.cloud.openfeign.FeignClient;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import java.util.List;
+
+@FeignClient(value = "TRANSACTION-SERVICE", path = "/transaction-service/api/v1/transactions",
+        configuration = { TransactionErrorDecoder.class })
+public interface TransactionFeignClient {
+
+    @GetMapping("/rollups/daily")
+    List<TransactionRollupDTO> getDailyRollups(@RequestParam("startDate") final String startDate,
+                                               @RequestParam("endDate") final String endDate,
+                                               @RequestParam(value = "productId", required = false) final Long productId)
+            throws ServiceNotAvailableException;
+
+}
@@ -1,20 +1,32 @@
 package com.franzoia.stockservice.controller;
 
+import com.franzoia.common.dto.StockBalanceDTO;
 import com.franzoia.common.dto.StockDTO;
+import com.franzoia.common.dto.StockTotalsDTO;
 import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.StockUpdateResult;
 import com.franzoia.common.exception.EntityNotFoundException;
 import com.franzoia.common.exception.InvalidRequestException;
 import com.franzoia.common.exception.ServiceNotAvailableException;
 import com.franzoia.stockservice.service.StockService;
+import com.franzoia.stockservice.service.StockTotalsService;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.function.Consumer;
 
 import io.swagger.v3.oas.annotations.*;
 
@@ -25,9 +37,15 @@ public class StockController {
 
     private final StockService stockService;
 
+    private final StockTotalsService totalsService;
+
+    private final ObjectMapper objectMapper;
+
     @Autowired
-    public StockController(StockService service) {
+    public StockController(StockService service, StockTotalsService totalsService, ObjectMapper objectMapper) {
         this.stockService = service;
+        this.totalsService = totalsService;
+        this.objectMapper = objectMapper;
     }
 
     @Operation(
@@ -43,6 +61,18 @@ public class StockController {
         return stockService.listALl();
     }
 
+    @Operation(
+            summary = "Streams all Stock data available",
+            description = "Streams all available stock information as newline delimited JSON, one StockDTO per line, ordered by Year/Month and Product",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A stream of all Stock information"),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAll() {
+        return ndjson(stockService::streamAll);
+    }
+
     @Operation(
             summary = "Retrieve one Stock for Year/Month and Product",
             description = "Brings information about the stock of one product at the Year/Month provided",
@@ -75,6 +105,38 @@ public class StockController {
         return stockService.listByProduct(productId);
     }
 
+    @Operation(
+            summary = "Retrieve the Stock balance of a product at a point in time",
+            description = "Brings the balance of one product at the end of the provided day (yyyy-MM-dd) or Year/Month (yyyyMM), today when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The Stock balance"),
+            @ApiResponse(responseCode = "400", description = "When the date or Year/Month is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "404", description = "When the provided product doesn't exists", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the product-service or the transaction-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/product/{productId}/balance")
+    public StockBalanceDTO getBalance(@PathVariable("productId") final Long productId,
+                                      @RequestParam(name = "at", required = false) final String at)
+            throws EntityNotFoundException, ServiceNotAvailableException {
+        return stockService.getBalance(productId, at);
+    }
+
+    @Operation(
+            summary = "Retrieve the Stock balance of all products at a point in time",
+            description = "Brings the total balance of all products at the end of the provided day (yyyy-MM-dd) or Year/Month (yyyyMM), today when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The total Stock balance"),
+            @ApiResponse(responseCode = "400", description = "When the date or Year/Month is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the transaction-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/balance")
+    public StockBalanceDTO getTotalBalance(@RequestParam(name = "at", required = false) final String at)
+            throws ServiceNotAvailableException {
+        return stockService.getTotalBalance(at);
+    }
+
     @Operation(
             summary = "Retrieves all Stock from all products for an Year/Month",
             description = "Check all available stock information from all products for a provided year/month and creates a List<StockDTO>",
@@ -88,13 +150,98 @@ public class StockController {
         return stockService.listByYearMonth(yearMonth);
     }
 
+    @Operation(
+            summary = "Streams all Stock from all products for an Year/Month",
+            description = "Streams the stock information from all products for a provided year/month as newline delimited JSON, one StockDTO per line",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A stream of all Stock information for a Year/Month"),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping(value = "/yearMonth/{yearMonth}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamByYearMonth(@PathVariable("yearMonth") final String yearMonth) {
+        return ndjson(consumer -> stockService.streamByYearMonth(yearMonth, consumer));
+    }
+
+    @Operation(
+            summary = "Subscribes to the Stock changes",
+            description = "Server-Sent Events stream of the stock movements committed from now on, optionally only of one product and " +
+                    "of the movements that affect one Year/Month (yyyyMM), which includes the movements of the periods before it. " +
+                    "Each 'stock' event is a StockChangeEvent. A 'resync' event means changes were dropped, because the subscriber " +
+                    "fell behind or they may have been lost, and the stocks must be reloaded before applying the next events. " +
+                    "Subscribe before loading the stocks, so no change is missed in between",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A stream of Stock changes"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the maximum number of subscribers was reached", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeToChanges(@RequestParam(name = "productId", required = false) final Long productId,
+                                         @RequestParam(name = "yearMonth", required = false) final String yearMonth,
+                                         @RequestHeader(name = "Last-Event-ID", required = false) final String lastEventId)
+            throws ServiceNotAvailableException {
+        // a reconnecting subscriber missed the changes while it was away
+        return stockService.subscribeToChanges(productId, yearMonth, lastEventId != null);
+    }
+
+    @Operation(
+            summary = "Retrieves the Stock totals of each Year/Month",
+            description = "Totals of inputs, outputs, opening and closing balances of all products for each Year/Month between from and to (yyyyMM). " +
+                    "The last 12 months when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A List of the Stock totals of each Year/Month with stock"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month range is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/totals")
+    public List<StockTotalsDTO> getTotalsByPeriod(@RequestParam(name = "from", required = false) final String from,
+                                                  @RequestParam(name = "to", required = false) final String to) {
+        return totalsService.getTotalsByPeriod(from, to);
+    }
+
+    @Operation(
+            summary = "Retrieves the Stock totals of a product",
+            description = "Totals of inputs and outputs of a product between from and to (yyyyMM), with its opening and closing balances. " +
+                    "The last 12 months when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The Stock totals of the product"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month range is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "404", description = "When the product doesn't exists or has no stock in the range", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the product-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/totals/product/{productId}")
+    public StockTotalsDTO getTotalsByProduct(@PathVariable("productId") final Long productId,
+                                             @RequestParam(name = "from", required = false) final String from,
+                                             @RequestParam(name = "to", required = false) final String to)
+            throws EntityNotFoundException, ServiceNotAvailableException {
+        return totalsService.getTotalsByProduct(productId, from, to);
+    }
+
+    @Operation(
+            summary = "Retrieves the products with the most Stock movement",
+            description = "The products with the largest inputs plus outputs between from and to (yyyyMM), with their totals. " +
+                    "The last 12 months when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A List of the Stock totals of the top products"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month range or the number of products is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/totals/movers")
+    public List<StockTotalsDTO> getTopMovers(@RequestParam(name = "from", required = false) final String from,
+                                             @RequestParam(name = "to", required = false) final String to,
+                                             @RequestParam(name = "limit", defaultValue = "10") final int limit) {
+        return totalsService.getTopMovers(from, to, limit);
+    }
+
     @Operation(
             summary = "Update stock information",
-            description = "Add or Remove stock information for a product/year/month based on the provided data",
+            description = "Add or Remove stock information for a product/year/month based on the provided data. " +
+                    "An update whose idempotency key was already applied is not applied again and gets the same result",
             tags = { "Stock" })
     @ApiResponses({
             @ApiResponse(responseCode = "200", description = "The information has been updated for the stock"),
-            @ApiResponse(responseCode = "400", description = "When the quantify provided is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "400", description = "When the quantify provided is invalid or the idempotency key was used by a different update", content = { @Content(schema = @Schema()) }),
             @ApiResponse(responseCode = "404", description = "When the provided Product doesn't exist", content = { @Content(schema = @Schema()) }),
             @ApiResponse(responseCode = "503", description = "When the product-service is not available", content = { @Content(schema = @Schema()) }),
             @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
@@ -103,4 +250,46 @@ public class StockController {
             throws EntityNotFoundException, InvalidRequestException, ServiceNotAvailableException {
         stockService.addOrUpdateStock(updateRequest);
     }
+
+    @Operation(
+            summary = "Update stock information in batch",
+            description = "Add or Remove stock information for several products/year/month at once. The lines are netted by product and year/month and applied in a single transaction. " +
+                    "Lines whose idempotency key was already applied are not applied again and get the same result",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The result of each line, applied or rejected with the reason"),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @PostMapping("/batch")
+    List<StockUpdateResult> addOrUpdateStocks(@RequestBody final List<StockUpdateRequest> updateRequests) {
+        return stockService.addOrUpdateStocks(updateRequests);
+    }
+
+    @Operation(
+            summary = "Recalculate stock balances of a product",
+            description = "Repair operation that recalculates the balances of all stock information of a product from its first Year/Month",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The stock balances of the product have been recalculated"),
+            @ApiResponse(responseCode = "404", description = "When the provided Product doesn't exist", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the product-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @PostMapping("/product/{productId}/sync")
+    void syncStockBalance(@PathVariable("productId") final Long productId)
+            throws EntityNotFoundException, ServiceNotAvailableException {
+        stockService.syncStockBalance(productId);
+    }
+
+    private ResponseEntity<StreamingResponseBody> ndjson(final Consumer<Consumer<StockDTO>> stream) {
+        final StreamingResponseBody body = outputStream -> stream.accept(stock -> {
+            try {
+                outputStream.write(objectMapper.writeValueAsBytes(stock));
+                outputStream.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
 }
@@ -0,0 +1,66 @@
+package com.franzoia.stockservice.controller;
+
+import com.franzoia.common.dto.StockPeriodDTO;
+import com.franzoia.common.util.StockRequests;
+import com.franzoia.stockservice.service.StockPeriodService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@Tag(name = "Stock Period", description = "Stock period closing API")
+@RestController
+@RequestMapping("/api/v1/stocks/periods")
+public class StockPeriodController {
+
+    private final StockPeriodService periodService;
+
+    @Autowired
+    public StockPeriodController(StockPeriodService service) {
+        this.periodService = service;
+    }
+
+    @Operation(
+            summary = "Retrieves all closed and reopened Year/Month periods",
+            description = "Lists the Year/Month periods that have been closed, with the number of products and the total balance at closing",
+            tags = { "Stock Period" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A List of all Stock periods"),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping
+    public List<StockPeriodDTO> listPeriods() {
+        return periodService.listPeriods();
+    }
+
+    @Operation(
+            summary = "Close Year/Month periods",
+            description = "Closes every open Year/Month period up to the provided one. The stocks of closed periods can't be changed anymore",
+            tags = { "Stock Period" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The periods closed by this request"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month is invalid or not before the current month", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @PostMapping("/{yearMonth}/close")
+    public List<StockPeriodDTO> close(@PathVariable("yearMonth") final String yearMonth) {
+        return periodService.close(StockRequests.toPeriod(yearMonth));
+    }
+
+    @Operation(
+            summary = "Reopen Year/Month periods",
+            description = "Reopens a closed Year/Month period and every period after it, so their stocks can be changed again",
+            tags = { "Stock Period" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The periods reopened by this request"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month is invalid or not closed", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @PostMapping("/{yearMonth}/reopen")
+    public List<StockPeriodDTO> reopen(@PathVariable("yearMonth") final String yearMonth) {
+        return periodService.reopen(StockRequests.toPeriod(yearMonth));
+    }
+}
@@ -0,0 +1,55 @@
+package com.franzoia.stockservice.controller;
+
+import com.franzoia.common.dto.StockRebuildDTO;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.stockservice.service.StockRebuildService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.*;
+
+@Tag(name = "Stock Rebuild", description = "Stock rebuild from the transactions API")
+@RestController
+@RequestMapping("/api/v1/stocks/rebuild")
+public class StockRebuildController {
+
+    private final StockRebuildService rebuildService;
+
+    @Autowired
+    public StockRebuildController(StockRebuildService service) {
+        this.rebuildService = service;
+    }
+
+    @Operation(
+            summary = "Rebuild the stocks from the transactions",
+            description = "Starts recomputing the stocks of every product for the open Year/Month periods from the registered transactions. " +
+                    "With dryRun nothing is written and the rows that would change are reported in the status",
+            tags = { "Stock Rebuild" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "202", description = "The rebuild was started"),
+            @ApiResponse(responseCode = "400", description = "When a rebuild is already running", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @PostMapping
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    public StockRebuildDTO start(@RequestParam(name = "dryRun", defaultValue = "false") final boolean dryRun) {
+        return rebuildService.start(dryRun);
+    }
+
+    @Operation(
+            summary = "Retrieves the progress of the stock rebuild",
+            description = "Shows the progress of the running rebuild or the result of the last one, with the differences found by a dry run",
+            tags = { "Stock Rebuild" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The status of the rebuild"),
+            @ApiResponse(responseCode = "404", description = "When no rebuild has been started", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping
+    public StockRebuildDTO getStatus() throws EntityNotFoundException {
+        return rebuildService.getStatus();
+    }
+}
@@ -5,16 +5,23 @@ import com.franzoia.common.util.DefaultEntity;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import lombok.*;
 
+/**
+ * Stock of a product in a year/month period. The primary key, (year_month, product_id), serves the reads of
+ * a period, the index on (product_id, year_month) the ones of a product.
+ */
 @Getter
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
 @ToString
 @Entity
-@Table(name = "stocks")
+@Table(name = "stocks", indexes = {
+        @Index(name = "idx_stocks_product_period", columnList = "product_id, year_month") })
 public class Stock implements DefaultEntity {
 
     @Id
@@ -31,4 +38,8 @@ public class Stock implements DefaultEntity {
 
     @Column
     private Long currentBalance;
+
+    @Version
+    @Column(nullable = false, columnDefinition = "bigint default 0")
+    private Long version;
 }
@@ -0,0 +1,33 @@
+package com.franzoia.stockservice.model;
+
+import com.franzoia.common.util.DefaultEntity;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Last journal segment of the write-behind stock ledger whose movements have been flushed to the stocks,
+ * one per journal, the id being the one of the journal
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+@Entity
+@Table(name = "stock_ledger_checkpoint")
+public class StockLedgerCheckpoint implements DefaultEntity {
+
+    @Id
+    private Long id;
+
+    @Column(nullable = false)
+    private Long segment;
+
+    @Column
+    private LocalDateTime flushedAt;
+}
@@ -0,0 +1,50 @@
+package com.franzoia.stockservice.model;
+
+import com.franzoia.common.util.DefaultEntity;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Movement of the write-behind stock ledger that could not be flushed because its period was closed
+ * meanwhile, possibly by another instance. It is kept here instead of the stocks, to be reviewed and
+ * registered again in an open period.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+@Entity
+@Table(name = "stock_ledger_rejections")
+public class StockLedgerRejection implements DefaultEntity {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    /**
+     * The journal the movement was recorded in
+     */
+    @Column(nullable = false)
+    private Long journal;
+
+    @Column(nullable = false)
+    private Long segment;
+
+    @Column(nullable = false)
+    private Long productId;
+
+    @Column(name = "year_month", length = 6, nullable = false)
+    private String yearMonth;
+
+    @Column(nullable = false)
+    private Long inputs;
+
+    @Column(nullable = false)
+    private Long outputs;
+
+    @Column(nullable = false)
+    private LocalDateTime rejectedAt;
+}
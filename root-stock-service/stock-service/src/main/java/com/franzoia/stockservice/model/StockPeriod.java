@@ -0,0 +1,42 @@
+package com.franzoia.stockservice.model;
+
+import com.franzoia.common.dto.StockPeriodStatus;
+import com.franzoia.common.util.DefaultEntity;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Closing of a year/month period. The stocks of a closed period can't change anymore, and the
+ * number of products and the sum of their balances are kept from the moment it was closed.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+@Entity
+@Table(name = "stock_periods")
+public class StockPeriod implements DefaultEntity {
+
+    @Id
+    @Column(name = "year_month", length = 6)
+    private String yearMonth;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private StockPeriodStatus status;
+
+    @Column
+    private Long products;
+
+    @Column
+    private Long closingBalance;
+
+    @Column
+    private LocalDateTime closedAt;
+
+    @Column
+    private LocalDateTime reopenedAt;
+}
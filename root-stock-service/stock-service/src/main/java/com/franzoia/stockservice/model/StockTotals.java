@@ -0,0 +1,21 @@
+package com.franzoia.stockservice.model;
+
+/**
+ * Totals of a group of stock rows, read straight from an aggregate query
+ */
+public interface StockTotals {
+
+    String getYearMonth();
+
+    Long getProductId();
+
+    Long getProducts();
+
+    Long getInputs();
+
+    Long getOutputs();
+
+    Long getOpeningBalance();
+
+    Long getClosingBalance();
+}
@@ -0,0 +1,64 @@
+package com.franzoia.stockservice.model;
+
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.StockUpdateStatus;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.util.DefaultEntity;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * Idempotency key of a stock update, recorded in the same transaction as the update it identifies, with
+ * the result the update got
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+@Entity
+@Table(name = "stock_update_keys", indexes = @Index(name = "idx_stock_update_keys_created_at", columnList = "created_at"))
+public class StockUpdateKey implements DefaultEntity {
+
+    public static final int MAX_LENGTH = 100;
+
+    @Id
+    @Column(name = "idempotency_key", length = MAX_LENGTH)
+    private String idempotencyKey;
+
+    @Column(nullable = false)
+    private Long productId;
+
+    @Column(name = "year_month", length = 6, nullable = false)
+    private String yearMonth;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private TransactionType type;
+
+    @Column(nullable = false)
+    private Long quantity;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private StockUpdateStatus status;
+
+    @Column
+    private String message;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    /**
+     * @return true when the update is the one the key was recorded for
+     */
+    public boolean matches(final StockUpdateRequest updateRequest) {
+        return Objects.equals(productId, updateRequest.key().getProductId())
+                && Objects.equals(yearMonth, updateRequest.key().getYearMonth())
+                && type == updateRequest.type()
+                && Objects.equals(quantity, updateRequest.quantity());
+    }
+}
@@ -0,0 +1,16 @@
+package com.franzoia.stockservice.model;
+
+import com.franzoia.common.dto.StockKey;
+
+/**
+ * Read-only projection of a {@link Stock} used by the list queries
+ */
+public record StockView(int period, Long productId, Long previousBalance, Long inputs, Long outputs, Long currentBalance) {
+
+    /**
+     * @return an unmanaged stock with the values of the projection, changing it is never written back
+     */
+    public Stock toStock() {
+        return new Stock(new StockKey(period, productId), previousBalance, inputs, outputs, currentBalance, null);
+    }
+}
@@ -0,0 +1,9 @@
+package com.franzoia.stockservice.repository;
+
+import com.franzoia.stockservice.model.StockLedgerCheckpoint;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface StockLedgerCheckpointRepository extends CrudRepository<StockLedgerCheckpoint, Long> {
+}
@@ -0,0 +1,13 @@
+package com.franzoia.stockservice.repository;
+
+import com.franzoia.stockservice.model.StockLedgerRejection;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface StockLedgerRejectionRepository extends CrudRepository<StockLedgerRejection, Long> {
+
+    List<StockLedgerRejection> findAllByProductIdOrderById(final Long productId);
+}
@@ -0,0 +1,32 @@
+package com.franzoia.stockservice.repository;
+
+import com.franzoia.common.dto.StockPeriodStatus;
+import com.franzoia.stockservice.model.StockPeriod;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface StockPeriodRepository extends CrudRepository<StockPeriod, String> {
+
+    @Query(value = "SELECT MAX(p.yearMonth) " +
+                   "FROM StockPeriod p " +
+                   "WHERE p.status = :status")
+    Optional<String> findLastByStatus(@Param("status") final StockPeriodStatus status);
+
+    @Query(value = "SELECT p " +
+                   "FROM StockPeriod p " +
+                   "ORDER BY p.yearMonth")
+    List<StockPeriod> findAllOrderByYearMonth();
+
+    @Query(value = "SELECT p " +
+                   "FROM StockPeriod p " +
+                   "WHERE p.yearMonth >= :yearMonth " +
+                   "AND p.status = :status")
+    List<StockPeriod> findAllFromYearMonthByStatus(@Param("yearMonth") final String yearMonth,
+                                                  @Param("status") final StockPeriodStatus status);
+}
@@ -2,30 +2,283 @@ package com.franzoia.stockservice.repository;
 
 import com.franzoia.common.dto.StockKey;
 import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.model.StockTotals;
+import com.franzoia.stockservice.model.StockView;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.HibernateHints.HINT_READ_ONLY;
 
 @Repository
 public interface StockRepository extends CrudRepository<Stock, StockKey> {
 
-    @Query(value = "SELECT s " +
-                    "FROM Stock s " +
-                    "ORDER BY s.key.yearMonth ASC, s.key.productId ASC")
-    List<Stock> findAllOrderByYearMonthAndProductId();
+    /**
+     * Rows fetched per round trip by the streaming queries, which must run inside a transaction
+     * for the driver to use a cursor instead of reading the whole result
+     */
+    String STREAM_FETCH_SIZE = "500";
+
+    /**
+     * First key of the two int advisory lock held by the stock movements and the period close
+     */
+    int PERIOD_CLOSE_LOCK = 6;
 
     @Query(value = "SELECT s " +
                    "FROM Stock s " +
                    "WHERE s.key.productId = :product " +
-                   "ORDER BY s.key.yearMonth")
+                   "ORDER BY s.key.period")
     List<Stock> findAllByProductId(@Param("product") final Long productId);
 
+    @Query(value = "SELECT new com.franzoia.stockservice.model.StockView(s.key.period, s.key.productId, " +
+                   "       s.previousBalance, s.inputs, s.outputs, s.currentBalance) " +
+                   "FROM Stock s " +
+                   "ORDER BY s.key.period ASC, s.key.productId ASC")
+    List<StockView> findAllViewsOrderByYearMonthAndProductId();
+
+    @Query(value = "SELECT new com.franzoia.stockservice.model.StockView(s.key.period, s.key.productId, " +
+                   "       s.previousBalance, s.inputs, s.outputs, s.currentBalance) " +
+                   "FROM Stock s " +
+                   "WHERE s.key.productId = :product " +
+                   "ORDER BY s.key.period")
+    List<StockView> findAllViewsByProductId(@Param("product") final Long productId);
+
+    @Query(value = "SELECT new com.franzoia.stockservice.model.StockView(s.key.period, s.key.productId, " +
+                   "       s.previousBalance, s.inputs, s.outputs, s.currentBalance) " +
+                   "FROM Stock s " +
+                   "WHERE s.key.period = :period " +
+                   "ORDER BY s.key.productId")
+    List<StockView> findAllViewsByYearMonth(@Param("period") final int period);
+
+    @QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READ_ONLY, value = "true") })
     @Query(value = "SELECT s " +
                    "FROM Stock s " +
-                   "WHERE s.key.yearMonth = :period " +
+                   "ORDER BY s.key.period ASC, s.key.productId ASC")
+    Stream<Stock> streamAllOrderByYearMonthAndProductId();
+
+    @QueryHints({ @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE), @QueryHint(name = HINT_READ_ONLY, value = "true") })
+    @Query(value = "SELECT s " +
+                   "FROM Stock s " +
+                   "WHERE s.key.period = :period " +
                    "ORDER BY s.key.productId")
-    List<Stock> findAllByYearMonth(@Param("period") final String productId);
+    Stream<Stock> streamAllByYearMonth(@Param("period") final int period);
+
+    @Query(value = "SELECT s " +
+                   "FROM Stock s " +
+                   "WHERE s.key.productId = :product " +
+                   "AND s.key.period >= :period " +
+                   "ORDER BY s.key.period")
+    List<Stock> findAllByProductIdFromPeriod(@Param("product") final Long productId, @Param("period") final int period);
+
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE Stock s " +
+                   "SET s.previousBalance = s.previousBalance + :delta, " +
+                   "    s.currentBalance = s.currentBalance + :delta, " +
+                   "    s.version = s.version + 1 " +
+                   "WHERE s.key.productId = :product " +
+                   "AND s.key.period > :period")
+    int shiftBalancesAfterPeriod(@Param("product") final Long productId, @Param("period") final int period, @Param("delta") final Long delta);
+
+    /**
+     * Adds the quantity to the inputs of an existing stock row, the fast path when the row of the period
+     * has already been created, usually by the opening of the month
+     *
+     * @return 0 when the row doesn't exist
+     */
+    @Modifying
+    @Query(value = "UPDATE Stock s " +
+                   "SET s.inputs = s.inputs + :quantity, " +
+                   "    s.currentBalance = s.currentBalance + :quantity, " +
+                   "    s.version = s.version + 1 " +
+                   "WHERE s.key.productId = :product " +
+                   "AND s.key.period = :period")
+    int incrementInputs(@Param("period") final int period, @Param("product") final Long productId, @Param("quantity") final Long quantity);
+
+    /**
+     * Adds the quantity to the outputs of an existing stock row when its balance covers it
+     *
+     * @return 0 when the row doesn't exist or the balance is not enough
+     */
+    @Modifying
+    @Query(value = "UPDATE Stock s " +
+                   "SET s.outputs = s.outputs + :quantity, " +
+                   "    s.currentBalance = s.currentBalance - :quantity, " +
+                   "    s.version = s.version + 1 " +
+                   "WHERE s.key.productId = :product " +
+                   "AND s.key.period = :period " +
+                   "AND s.currentBalance >= :quantity")
+    int incrementOutputs(@Param("period") final int period, @Param("product") final Long productId, @Param("quantity") final Long quantity);
+
+    /**
+     * @return the lowest current balance of the stock rows of a product after a period, null when there's none.
+     * An output lowers all of them, so it is also limited by the lowest one.
+     */
+    @Query(value = "SELECT MIN(s.currentBalance) " +
+                   "FROM Stock s " +
+                   "WHERE s.key.productId = :product " +
+                   "AND s.key.period > :period")
+    Long findLowestBalanceAfterPeriod(@Param("product") final Long productId, @Param("period") final int period);
+
+    /**
+     * Serializes the stock movements of a product until the end of the current transaction. The movement
+     * statements update the latest row of the product anyway, this also covers creating a new row while the
+     * balance it opens with is being changed by a concurrent movement. The period close lock is taken first
+     * and shared, so a close waits for the movements in progress and the ones after it wait for the close.
+     */
+    @Query(value = "SELECT 1 FROM (SELECT pg_advisory_xact_lock_shared(" + PERIOD_CLOSE_LOCK + ", 0), " +
+                   "                      pg_advisory_xact_lock(:product)) l", nativeQuery = true)
+    Integer lockProductMovements(@Param("product") final Long productId);
+
+    /**
+     * Waits for the stock movements in progress, on every instance, and holds back the new ones until the
+     * end of the current transaction, see {@link #lockProductMovements(Long)}
+     */
+    @Query(value = "SELECT 1 FROM pg_advisory_xact_lock(" + PERIOD_CLOSE_LOCK + ", 0)", nativeQuery = true)
+    Integer lockAllMovements();
+
+    /**
+     * The last closed period as stored, read after {@link #lockProductMovements(Long)} so it includes the
+     * periods closed meanwhile by any instance
+     */
+    @Query(value = "SELECT MAX(p.year_month) FROM stock_periods p WHERE p.status = 'CLOSED'", nativeQuery = true)
+    Optional<String> findLastClosedPeriod();
+
+    /**
+     * Adds the quantity to the inputs of the stock row of the period in a single statement. When the row
+     * doesn't exist yet it is created with the balance of the latest previous row as opening balance.
+     * The period is the "yyyyMM" text stored in the year_month column.
+     */
+    @Modifying
+    @Query(value = "INSERT INTO stocks (year_month, product_id, previous_balance, inputs, outputs, current_balance, version) " +
+                   "SELECT :period, :product, o.balance, :quantity, 0, o.balance + :quantity, 0 " +
+                   "FROM (SELECT COALESCE((SELECT p.current_balance FROM stocks p " +
+                   "                       WHERE p.product_id = :product AND p.year_month < :period " +
+                   "                       ORDER BY p.year_month DESC LIMIT 1), 0) AS balance) o " +
+                   "ON CONFLICT (year_month, product_id) DO UPDATE " +
+                   "SET inputs = stocks.inputs + EXCLUDED.inputs, " +
+                   "    current_balance = stocks.current_balance + EXCLUDED.inputs, " +
+                   "    version = stocks.version + 1",
+           nativeQuery = true)
+    int addInputs(@Param("period") final String period, @Param("product") final Long productId, @Param("quantity") final Long quantity);
+
+    /**
+     * Adds the quantity to the outputs of the stock row of the period in a single statement, as long as the
+     * balance covers it. When the row doesn't exist yet it is created from the balance of the latest previous row.
+     *
+     * @return 0 when nothing was written because there's no stock or the balance is not enough
+     */
+    @Modifying
+    @Query(value = "INSERT INTO stocks (year_month, product_id, previous_balance, inputs, outputs, current_balance, version) " +
+                   "SELECT :period, :product, o.balance, 0, :quantity, o.balance - :quantity, 0 " +
+                   "FROM (SELECT COALESCE((SELECT p.current_balance FROM stocks p " +
+                   "                       WHERE p.product_id = :product AND p.year_month < :period " +
+                   "                       ORDER BY p.year_month DESC LIMIT 1), 0) AS balance) o " +
+                   "WHERE o.balance >= :quantity " +
+                   "OR EXISTS (SELECT 1 FROM stocks c WHERE c.product_id = :product AND c.year_month = :period) " +
+                   "ON CONFLICT (year_month, product_id) DO UPDATE " +
+                   "SET outputs = stocks.outputs + EXCLUDED.outputs, " +
+                   "    current_balance = stocks.current_balance - EXCLUDED.outputs, " +
+                   "    version = stocks.version + 1 " +
+                   "WHERE stocks.current_balance >= EXCLUDED.outputs",
+           nativeQuery = true)
+    int addOutputs(@Param("period") final String period, @Param("product") final Long productId, @Param("quantity") final Long quantity);
+
+    Optional<Stock> findFirstByKey_ProductIdAndKey_PeriodLessThanOrderByKey_PeriodDesc(final Long productId, final int period);
+
+    /**
+     * Creates the opening row of a period for every product whose latest stock row before it still has
+     * a balance, or that moved in the previous period. Existing rows are left untouched.
+     *
+     * @param period the "yyyyMM" period to open
+     * @param previous the "yyyyMM" period before it
+     * @return the number of rows created
+     */
+    @Modifying
+    @Query(value = "INSERT INTO stocks (year_month, product_id, previous_balance, inputs, outputs, current_balance, version) " +
+                   "SELECT :period, l.product_id, l.current_balance, 0, 0, l.current_balance, 0 " +
+                   "FROM (SELECT DISTINCT ON (p.product_id) p.product_id, p.year_month, p.current_balance " +
+                   "      FROM stocks p " +
+                   "      WHERE p.year_month < :period " +
+                   "      ORDER BY p.product_id, p.year_month DESC) l " +
+                   "WHERE l.current_balance <> 0 OR l.year_month = :previous " +
+                   "ON CONFLICT (year_month, product_id) DO NOTHING",
+           nativeQuery = true)
+    int createOpeningRows(@Param("period") final String period, @Param("previous") final String previous);
+
+    @Query(value = "SELECT MIN(s.key.period) FROM Stock s")
+    Optional<Integer> findFirstPeriod();
+
+    long countByKey_Period(final int period);
+
+    @Query(value = "SELECT COALESCE(SUM(s.currentBalance), 0) " +
+                   "FROM Stock s " +
+                   "WHERE s.key.period = :period")
+    Long sumCurrentBalanceByPeriod(@Param("period") final int period);
+
+    /**
+     * @param period a "yyyyMM" period
+     * @return the balance of all products at the end of the period, from the latest stock row of each
+     * product up to it
+     */
+    @Query(value = "SELECT COALESCE(SUM(l.current_balance), 0) " +
+                   "FROM (SELECT DISTINCT ON (p.product_id) p.current_balance " +
+                   "      FROM stocks p " +
+                   "      WHERE p.year_month <= :period " +
+                   "      ORDER BY p.product_id, p.year_month DESC) l",
+           nativeQuery = true)
+    Long sumBalancesAtEndOf(@Param("period") final String period);
+
+    /**
+     * @return the totals of each period between two "yyyyMM" periods, inclusive
+     */
+    @Query(value = "SELECT s.year_month AS \"yearMonth\", COUNT(*) AS \"products\", " +
+                   "       CAST(SUM(s.inputs) AS BIGINT) AS \"inputs\", CAST(SUM(s.outputs) AS BIGINT) AS \"outputs\", " +
+                   "       CAST(SUM(s.previous_balance) AS BIGINT) AS \"openingBalance\", " +
+                   "       CAST(SUM(s.current_balance) AS BIGINT) AS \"closingBalance\" " +
+                   "FROM stocks s " +
+                   "WHERE s.year_month BETWEEN :from AND :to " +
+                   "GROUP BY s.year_month " +
+                   "ORDER BY s.year_month",
+           nativeQuery = true)
+    List<StockTotals> sumByPeriod(@Param("from") final String from, @Param("to") final String to);
+
+    /**
+     * @return the totals of a product between two "yyyyMM" periods, inclusive, with the opening balance of the
+     * first period and the closing balance of the last one
+     */
+    @Query(value = "SELECT s.product_id AS \"productId\", " +
+                   "       CAST(SUM(s.inputs) AS BIGINT) AS \"inputs\", CAST(SUM(s.outputs) AS BIGINT) AS \"outputs\", " +
+                   "       (ARRAY_AGG(s.previous_balance ORDER BY s.year_month))[1] AS \"openingBalance\", " +
+                   "       (ARRAY_AGG(s.current_balance ORDER BY s.year_month DESC))[1] AS \"closingBalance\" " +
+                   "FROM stocks s " +
+                   "WHERE s.product_id = :product " +
+                   "AND s.year_month BETWEEN :from AND :to " +
+                   "GROUP BY s.product_id",
+           nativeQuery = true)
+    Optional<StockTotals> sumByProduct(@Param("product") final Long productId, @Param("from") final String from, @Param("to") final String to);
+
+    /**
+     * @return the totals of the products that moved the most quantity between two "yyyyMM" periods, inclusive
+     */
+    @Query(value = "SELECT s.product_id AS \"productId\", " +
+                   "       CAST(SUM(s.inputs) AS BIGINT) AS \"inputs\", CAST(SUM(s.outputs) AS BIGINT) AS \"outputs\", " +
+                   "       (ARRAY_AGG(s.previous_balance ORDER BY s.year_month))[1] AS \"openingBalance\", " +
+                   "       (ARRAY_AGG(s.current_balance ORDER BY s.year_month DESC))[1] AS \"closingBalance\" " +
+                   "FROM stocks s " +
+                   "WHERE s.year_month BETWEEN :from AND :to " +
+                   "GROUP BY s.product_id " +
+                   "HAVING SUM(s.inputs) + SUM(s.outputs) > 0 " +
+                   "ORDER BY SUM(s.inputs) + SUM(s.outputs) DESC, s.product_id " +
+                   "LIMIT :limit",
+           nativeQuery = true)
+    List<StockTotals> findTopMovers(@Param("from") final String from, @Param("to") final String to, @Param("limit") final int limit);
 }
@@ -0,0 +1,44 @@
+package com.franzoia.stockservice.repository;
+
+import com.franzoia.common.dto.StockUpdateStatus;
+import com.franzoia.stockservice.model.StockUpdateKey;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+@Repository
+public interface StockUpdateKeyRepository extends CrudRepository<StockUpdateKey, String> {
+
+    /**
+     * Records the key of a stock update as applied, unless it was recorded already. A key being recorded
+     * by a transaction still running waits for it to end.
+     *
+     * @return 0 when the key was already recorded
+     */
+    @Modifying
+    @Query(value = "INSERT INTO stock_update_keys (idempotency_key, product_id, year_month, type, quantity, status, created_at) " +
+                   "VALUES (:key, :product, :period, :type, :quantity, 'APPLIED', :createdAt) " +
+                   "ON CONFLICT (idempotency_key) DO NOTHING",
+           nativeQuery = true)
+    int insertIfAbsent(@Param("key") final String idempotencyKey, @Param("product") final Long productId,
+                       @Param("period") final String period, @Param("type") final String type,
+                       @Param("quantity") final Long quantity, @Param("createdAt") final LocalDateTime createdAt);
+
+    @Modifying
+    @Query(value = "UPDATE StockUpdateKey k " +
+                   "SET k.status = :status, k.message = :message " +
+                   "WHERE k.idempotencyKey = :key")
+    int updateResult(@Param("key") final String idempotencyKey, @Param("status") final StockUpdateStatus status,
+                     @Param("message") final String message);
+
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM StockUpdateKey k " +
+                   "WHERE k.createdAt < :before")
+    int deleteCreatedBefore(@Param("before") final LocalDateTime before);
+}
@@ -1,46 +1,115 @@
 package com.franzoia.stockservice.service;
 
-import com.franzoia.common.dto.CategoryDTO;
 import com.franzoia.common.dto.ProductDTO;
 import com.franzoia.common.exception.EntityNotFoundException;
 import com.franzoia.common.exception.ServiceNotAvailableException;
 import com.franzoia.stockservice.config.ProductFeignClient;
-import feign.FeignException;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
-import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toMap;
 
+/**
+ * Product information used to enrich the stocks, kept in a local cache.
+ * <p/>
+ * Entries are refreshed in the background once they are older than {@code stock.product-cache.refresh-after},
+ * keeping the previous value while the product-service doesn't answer, and evicted after
+ * {@code stock.product-cache.expire-after}. Missing products are loaded one by one, or with a single
+ * catalog download when too many are missing at once.
+ */
 @Slf4j
 @Component
 public class ProductService {
 
-    @Autowired
-    private ProductFeignClient productFeignClient;
+    private final ProductFeignClient productFeignClient;
+
+    private final LoadingCache<Long, ProductDTO> products;
+
+    private final int bulkThreshold;
+
+    public ProductService(final ProductFeignClient productFeignClient,
+                          final MeterRegistry registry,
+                          @Value("${stock.product-cache.maximum-size:50000}") final long maximumSize,
+                          @Value("${stock.product-cache.refresh-after:1m}") final Duration refreshAfter,
+                          @Value("${stock.product-cache.expire-after:1h}") final Duration expireAfter,
+                          @Value("${stock.product-cache.bulk-threshold:20}") final int bulkThreshold) {
+        this.productFeignClient = productFeignClient;
+        this.bulkThreshold = bulkThreshold;
+        this.products = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .refreshAfterWrite(refreshAfter)
+                .expireAfterWrite(expireAfter)
+                .recordStats()
+                .build(new ProductLoader());
+        CaffeineCacheMetrics.monitor(registry, products, "products");
+    }
 
     public ProductDTO getProductById(final Long productId) throws EntityNotFoundException, ServiceNotAvailableException {
         try {
-            return productFeignClient.getProductById(productId);
-        } catch (FeignException fe) {
-            log.error("product-service status: {}", fe.getMessage());
-            throw fe;
+            return products.get(productId);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof EntityNotFoundException enf) {
+                throw enf;
+            }
+            log.error("product-service status: {}", e.getCause().getMessage());
+            throw new ServiceNotAvailableException("Product Service is unavailable");
+        } catch (RuntimeException e) {
+            log.error("product-service status: {}", e.getMessage());
+            throw new ServiceNotAvailableException("Product Service is unavailable");
         }
     }
 
-    public Map<Long, List<ProductDTO>> getProductMap() {
+    /**
+     * Retrieves several products at once. When the product-service is not available only the
+     * products already in the cache are returned.
+     *
+     * @param productIds ids of the products
+     * @return the products found, by id
+     */
+    public Map<Long, ProductDTO> getProducts(final Collection<Long> productIds) {
         try {
-            List<ProductDTO> products = productFeignClient.getAllProducts();
-            return products.stream().collect(groupingBy(ProductDTO::id));
-        } catch (Throwable fe) {
-            log.error("product-service status: {}", fe.getMessage());
-            return new TreeMap<>();
+            return products.getAll(productIds);
+        } catch (RuntimeException e) {
+            final Throwable cause = e instanceof CompletionException && e.getCause() != null? e.getCause(): e;
+            log.error("product-service status: {}", cause.getMessage());
+            return products.getAllPresent(productIds);
         }
-
     }
 
+    private class ProductLoader implements CacheLoader<Long, ProductDTO> {
+
+        @Override
+        public ProductDTO load(final Long productId) throws Exception {
+            return productFeignClient.getProductById(productId);
+        }
+
+        @Override
+        public Map<Long, ProductDTO> loadAll(final Set<? extends Long> productIds) throws Exception {
+            if (productIds.size() <= bulkThreshold) {
+                final Map<Long, ProductDTO> loaded = new HashMap<>();
+                for (Long productId : productIds) {
+                    try {
+                        loaded.put(productId, load(productId));
+                    } catch (EntityNotFoundException e) {
+                        log.debug("product {} not found", productId);
+                    }
+                }
+                return loaded;
+            }
+            // the whole catalog is cached, not only the requested products
+            return productFeignClient.getAllProducts().stream()
+                    .collect(toMap(ProductDTO::id, Function.identity(), (p1, p2) -> p1));
+        }
+    }
 }
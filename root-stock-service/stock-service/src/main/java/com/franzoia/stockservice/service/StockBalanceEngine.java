@@ -0,0 +1,254 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.repository.StockRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Maintains the running balances (previous/current) of the stock of a product.
+ * <p/>
+ * Regular stock movements only shift the balances of the rows after the affected month by the
+ * movement delta, in a single statement. The full recalculation loads every row from the starting
+ * period onward with a single query, recalculates it in memory and writes back only the rows that
+ * changed as one batch, creating the months without a row up to the current month. Batches of
+ * movements go through the same in-memory pass, once per product.
+ * <p/>
+ * The recalculation works on versioned entities, so when a concurrent movement changes the same rows
+ * it is retried on a fresh read, unless it is running inside a transaction owned by the caller.
+ */
+@Slf4j
+@Component
+public class StockBalanceEngine {
+
+    private final StockRepository repository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final StockBalanceIndex balanceIndex;
+
+    @Value("${stock.balance.max-attempts:3}")
+    private int maxAttempts;
+
+    public StockBalanceEngine(final StockRepository repository, final TransactionTemplate transactionTemplate,
+                              final StockBalanceIndex balanceIndex) {
+        this.repository = repository;
+        this.transactionTemplate = transactionTemplate;
+        this.balanceIndex = balanceIndex;
+    }
+
+    /**
+     * Applies a balance delta to every stock row of a product after the given period
+     *
+     * @param productId id of the product
+     * @param period year/month period where the movement happened, see {@link Periods}
+     * @param delta the quantity added to (or removed from, when negative) the balance
+     * @return the number of rows updated
+     */
+    @Transactional
+    public int shiftForward(final Long productId, final int period, final long delta) {
+        if (delta == 0) {
+            return 0;
+        }
+        return repository.shiftBalancesAfterPeriod(productId, period, delta);
+    }
+
+    /**
+     * Applies the quantities moved in several periods of several products in one transaction. Each product
+     * is locked, read and recalculated once, no matter how many periods it moves. The outputs of a period
+     * are only applied when the balance of the month and of every month after it covers them, otherwise
+     * that period is reported back.
+     * Once all the products are locked the last closed period is read from the database, and nothing is
+     * applied to the periods up to it.
+     *
+     * @param movements the movements of each product, by year/month period
+     * @return the periods of each product whose outputs were rejected and the last closed period
+     */
+    public Applied apply(final SortedMap<Long, SortedMap<Integer, Movement>> movements) {
+        return apply(movements, true);
+    }
+
+    /**
+     * Same as {@link #apply(SortedMap)}, optionally skipping the balance check of the outputs when they have
+     * already been validated by the caller. The closed periods are always left out.
+     */
+    public Applied apply(final SortedMap<Long, SortedMap<Integer, Movement>> movements, final boolean checkBalance) {
+        return withRetry(() -> {
+            // products are always locked in the same order so concurrent batches can't deadlock
+            movements.keySet().forEach(repository::lockProductMovements);
+            final int closedThrough = repository.findLastClosedPeriod().map(Periods::parse).orElse(Periods.NONE);
+            final Map<Long, Set<Integer>> rejected = new HashMap<>();
+            movements.forEach((productId, productMovements) -> {
+                final SortedMap<Integer, Movement> open = productMovements.tailMap(closedThrough + 1);
+                if (open.isEmpty()) {
+                    return;
+                }
+                final int fromPeriod = open.firstKey();
+                final Set<Integer> productRejected = new HashSet<>();
+                recalculate(productId, fromPeriod, getOpeningBalance(productId, fromPeriod),
+                        repository.findAllByProductIdFromPeriod(productId, fromPeriod), open,
+                        checkBalance? productRejected: null, false);
+                rejected.put(productId, productRejected);
+            });
+            return new Applied(rejected, closedThrough);
+        });
+    }
+
+    /**
+     * Recalculates the balances of all stock rows of a product, starting from its first period
+     *
+     * @param productId id of the product
+     * @return the number of rows written
+     */
+    public int rebuild(final Long productId) {
+        return withRetry(() -> {
+            final List<Stock> stocks = repository.findAllByProductId(productId);
+            if (stocks.isEmpty()) {
+                return 0;
+            }
+            return recalculate(productId, stocks.get(0).getKey().getPeriod(), 0L, stocks, Collections.emptySortedMap(), null, true);
+        });
+    }
+
+    /**
+     * Recalculates the balances of the stock rows of a product from a period onward. The opening balance
+     * is the current balance of the latest row before that period.
+     *
+     * @param productId id of the product
+     * @param fromPeriod first year/month period to recalculate
+     * @return the number of rows written
+     */
+    public int rebuild(final Long productId, final int fromPeriod) {
+        return withRetry(() -> recalculate(productId, fromPeriod, getOpeningBalance(productId, fromPeriod),
+                repository.findAllByProductIdFromPeriod(productId, fromPeriod), Collections.emptySortedMap(), null, true));
+    }
+
+    /**
+     * @return the current balance of the latest stock row of a product before a period, or zero
+     */
+    public Long getOpeningBalance(final Long productId, final int period) {
+        return repository
+                .findFirstByKey_ProductIdAndKey_PeriodLessThanOrderByKey_PeriodDesc(productId, period)
+                .map(Stock::getCurrentBalance)
+                .orElse(0L);
+    }
+
+    private <T> T withRetry(final Supplier<T> recalculation) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            // the caller owns the transaction, so it is the one that can retry
+            return recalculation.get();
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transactionTemplate.execute(status -> recalculation.get());
+            } catch (OptimisticLockingFailureException | DataIntegrityViolationException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                log.info("stock rows changed concurrently during recalculation, retrying ({}/{})", attempt, maxAttempts);
+            }
+        }
+    }
+
+    private int recalculate(final Long productId, final int fromPeriod, final Long opening, final List<Stock> stocks,
+                            final SortedMap<Integer, Movement> movements, final Set<Integer> rejected, final boolean fillGaps) {
+        final TreeMap<Integer, Stock> rows = new TreeMap<>();
+        stocks.forEach(stock -> rows.put(stock.getKey().getPeriod(), stock));
+        movements.keySet().forEach(period ->
+                rows.computeIfAbsent(period, p -> new Stock(new StockKey(p, productId), null, 0L, 0L, null, null)));
+
+        if (fillGaps) {
+            // months without movement carry the balance forward, up to the current month
+            final int last = rows.isEmpty()? Periods.current(): Math.max(rows.lastKey(), Periods.current());
+            for (int period = fromPeriod; period <= last; period = Periods.next(period)) {
+                rows.computeIfAbsent(period, p -> new Stock(new StockKey(p, productId), null, 0L, 0L, null, null));
+            }
+        }
+
+        final Map<Integer, Long> lowest = rejected == null? Map.of(): lowestBalances(opening, rows, movements);
+        final List<Stock> changed = new ArrayList<>();
+        long balance = opening;
+        long removed = 0;
+        for (Stock stock : rows.values()) {
+            final Movement movement = movements.get(stock.getKey().getPeriod());
+            boolean moved = false;
+            if (movement != null) {
+                stock.setInputs(stock.getInputs() + movement.inputs());
+                moved = movement.inputs() != 0;
+                if (rejected == null || lowest.get(stock.getKey().getPeriod()) - removed >= movement.outputs()) {
+                    stock.setOutputs(stock.getOutputs() + movement.outputs());
+                    removed += movement.outputs();
+                    moved = moved || movement.outputs() != 0;
+                } else {
+                    rejected.add(stock.getKey().getPeriod());
+                }
+            }
+
+            if (!fillGaps && !moved && stock.getVersion() == null) {
+                // a new month whose movement was rejected is not created
+                continue;
+            }
+
+            final long current = balance + stock.getInputs() - stock.getOutputs();
+            if (moved || stock.getPreviousBalance() == null || stock.getPreviousBalance() != balance
+                    || stock.getCurrentBalance() == null || stock.getCurrentBalance() != current) {
+                stock.setPreviousBalance(balance);
+                stock.setCurrentBalance(current);
+                changed.add(stock);
+            }
+            balance = current;
+        }
+
+        repository.saveAll(changed);
+        if (!changed.isEmpty()) {
+            balanceIndex.invalidate(productId);
+        }
+        log.debug("stock balance of product {} recalculated from {}: {} rows written", productId, fromPeriod, changed.size());
+        return changed.size();
+    }
+
+    /**
+     * @return the lowest balance of each period and the ones after it, with the inputs moved but none of the
+     * outputs, as an output lowers the balance of the months after it too
+     */
+    private static Map<Integer, Long> lowestBalances(final long opening, final TreeMap<Integer, Stock> rows,
+                                                     final SortedMap<Integer, Movement> movements) {
+        final Map<Integer, Long> balances = new HashMap<>();
+        long balance = opening;
+        for (Stock stock : rows.values()) {
+            final Movement movement = movements.get(stock.getKey().getPeriod());
+            balance += stock.getInputs() - stock.getOutputs() + (movement == null? 0: movement.inputs());
+            balances.put(stock.getKey().getPeriod(), balance);
+        }
+        long lowest = Long.MAX_VALUE;
+        for (Integer period : rows.descendingKeySet()) {
+            lowest = Math.min(lowest, balances.get(period));
+            balances.put(period, lowest);
+        }
+        return balances;
+    }
+
+    /**
+     * Quantities moved into and out of the stock of a product in one period
+     */
+    public record Movement(long inputs, long outputs) {}
+
+    /**
+     * Result of applying the movements of several products
+     *
+     * @param rejectedOutputs the periods of each product whose outputs were rejected
+     * @param closedThrough the last closed period, whose movements and the ones before it were not applied
+     */
+    public record Applied(Map<Long, Set<Integer>> rejectedOutputs, int closedThrough) {}
+}
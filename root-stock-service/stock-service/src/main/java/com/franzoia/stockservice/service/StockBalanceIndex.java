@@ -0,0 +1,251 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.util.Periods;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-product index of the stock balance at the end of each period, for point-in-time balance lookups.
+ * <p/>
+ * The closing balance of a period is the prefix sum of the movements of every period up to it, which is
+ * what the current balance of the stock rows already holds. The index keeps it in two sorted primitive
+ * arrays per product, so the balance at the end of any period is a binary search. Balances within a month
+ * add the running total of the transactions of each day of that month, asked to the transaction-service, to
+ * the opening balance of the month.
+ * <p/>
+ * The index is updated in place by the single stock movements and dropped for a product when its rows are
+ * recalculated. Updates are applied after the transaction commits, and a load that overlaps an update of
+ * the same product is not cached. The daily totals are checked against the movement of the month in the
+ * stock rows and reloaded when they don't match, as the transaction-service counts a transaction before
+ * its stock update is applied, or after it was rejected until the transaction is deleted.
+ * <p/>
+ * The changes of the other instances are relayed by {@link StockChangeRelay}, which drops the products they
+ * moved, along with the ones notified by the reactive stock-service. Changes that are not relayed, with
+ * {@code stock.events.relay=local}, are only seen once the balances of the product expire,
+ * {@code stock.balance-index.expire-after} after they were loaded.
+ */
+@Component
+public class StockBalanceIndex {
+
+    private static final int STRIPES = 1024;
+
+    private static final String SELECT_BALANCES =
+            "SELECT s.year_month, s.current_balance FROM stocks s WHERE s.product_id = ? ORDER BY s.year_month";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionService transactionService;
+
+    private final Cache<Long, ProductBalances> products;
+
+    // changes seen by each stripe of products, a load is only cached when no change happened meanwhile
+    private final AtomicLongArray changes = new AtomicLongArray(STRIPES);
+
+    public StockBalanceIndex(final JdbcTemplate jdbcTemplate,
+                             final TransactionService transactionService,
+                             final MeterRegistry registry,
+                             @Value("${stock.balance-index.maximum-size:100000}") final long maximumSize,
+                             @Value("${stock.balance-index.expire-after:5m}") final Duration expireAfter) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionService = transactionService;
+        this.products = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                // from the load, the movements applied in place don't make the balances any fresher
+                .expireAfter(new Expiry<Long, ProductBalances>() {
+                    @Override
+                    public long expireAfterCreate(final Long productId, final ProductBalances balances, final long currentTime) {
+                        return expireAfter.toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(final Long productId, final ProductBalances balances, final long currentTime,
+                                                  final long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(final Long productId, final ProductBalances balances, final long currentTime,
+                                                final long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, products, "stock-balances");
+    }
+
+    /**
+     * @return the balance of a product at the end of a period, zero before its first stock
+     */
+    public long getBalance(final Long productId, final int period) {
+        return get(productId).closing(period);
+    }
+
+    /**
+     * @return the balance of a product at the end of a day
+     * @throws ServiceNotAvailableException when the transaction-service is not available
+     */
+    public long getBalance(final Long productId, final LocalDate date) throws ServiceNotAvailableException {
+        final ProductBalances balances = get(productId);
+        final int period = Periods.of(date);
+        final long opening = balances.closing(Periods.previous(period));
+        final long movement = balances.closing(period) - opening;
+
+        long[] days = balances.daily.get(period);
+        if (days == null || days[days.length - 1] != movement) {
+            days = loadDaily(productId, period);
+            if (days[days.length - 1] == movement) {
+                balances.daily.put(period, days);
+            }
+        }
+        return opening + days[date.getDayOfMonth() - 1];
+    }
+
+    /**
+     * Registers a movement of a product in a period, shifting the balance of that period and of every
+     * period after it
+     */
+    public void movement(final Long productId, final int period, final long delta) {
+        afterCommit(productId, () -> products.asMap().computeIfPresent(productId, (id, balances) -> balances.shift(period, delta)));
+    }
+
+    /**
+     * Drops the balances of a product, which are loaded again on the next lookup
+     */
+    public void invalidate(final Long productId) {
+        afterCommit(productId, () -> products.invalidate(productId));
+    }
+
+    /**
+     * Drops the balances of every product, after the stocks were changed by anything whose changes are unknown
+     */
+    public void invalidateAll() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            changes.incrementAndGet(stripe);
+        }
+        products.invalidateAll();
+    }
+
+    private ProductBalances get(final Long productId) {
+        final ProductBalances cached = products.getIfPresent(productId);
+        if (cached != null) {
+            return cached;
+        }
+        final long seen = changes.get(stripe(productId));
+        final ProductBalances loaded = load(productId);
+        if (changes.get(stripe(productId)) == seen) {
+            products.asMap().putIfAbsent(productId, loaded);
+        }
+        return loaded;
+    }
+
+    private ProductBalances load(final Long productId) {
+        final int[][] periods = { new int[16] };
+        final long[][] closing = { new long[16] };
+        final int[] size = { 0 };
+        jdbcTemplate.query(SELECT_BALANCES, rs -> {
+            if (size[0] == periods[0].length) {
+                periods[0] = Arrays.copyOf(periods[0], size[0] * 2);
+                closing[0] = Arrays.copyOf(closing[0], size[0] * 2);
+            }
+            periods[0][size[0]] = Periods.parse(rs.getString(1));
+            closing[0][size[0]] = rs.getLong(2);
+            size[0]++;
+        }, productId);
+        return new ProductBalances(Arrays.copyOf(periods[0], size[0]), Arrays.copyOf(closing[0], size[0]), new ConcurrentHashMap<>());
+    }
+
+    /**
+     * @return the running total of the movements of each day of a month, by day of month - 1
+     */
+    private long[] loadDaily(final Long productId, final int period) throws ServiceNotAvailableException {
+        final LocalDate first = Periods.toYearMonth(period).atDay(1);
+        final long[] days = new long[first.lengthOfMonth()];
+        transactionService.getDailyMovements(first, first.plusMonths(1).minusDays(1), productId)
+                .forEach((date, movement) -> days[date.getDayOfMonth() - 1] = movement);
+        for (int day = 1; day < days.length; day++) {
+            days[day] += days[day - 1];
+        }
+        return days;
+    }
+
+    private void afterCommit(final Long productId, final Runnable update) {
+        changes.incrementAndGet(stripe(productId));
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            update.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(final int status) {
+                changes.incrementAndGet(stripe(productId));
+                if (status == STATUS_COMMITTED) {
+                    update.run();
+                }
+            }
+        });
+    }
+
+    private static int stripe(final Long productId) {
+        return Long.hashCode(productId) & (STRIPES - 1);
+    }
+
+    /**
+     * Balances of a product at the end of each period with a stock row, sorted by period. Periods
+     * without a row keep the balance of the previous one.
+     */
+    private record ProductBalances(int[] periods, long[] closing, Map<Integer, long[]> daily) {
+
+        long closing(final int period) {
+            final int i = Arrays.binarySearch(periods, period);
+            if (i >= 0) {
+                return closing[i];
+            }
+            final int before = -i - 2;
+            return before < 0? 0L: closing[before];
+        }
+
+        ProductBalances shift(final int period, final long delta) {
+            final int i = Arrays.binarySearch(periods, period);
+            final int[] newPeriods;
+            final long[] newClosing;
+            final int from;
+            if (i >= 0) {
+                newPeriods = periods;
+                newClosing = closing.clone();
+                from = i;
+            } else {
+                // the movement created the row of the period
+                from = -i - 1;
+                newPeriods = new int[periods.length + 1];
+                newClosing = new long[closing.length + 1];
+                System.arraycopy(periods, 0, newPeriods, 0, from);
+                System.arraycopy(closing, 0, newClosing, 0, from);
+                System.arraycopy(periods, from, newPeriods, from + 1, periods.length - from);
+                System.arraycopy(closing, from, newClosing, from + 1, closing.length - from);
+                newPeriods[from] = period;
+                newClosing[from] = from == 0? 0L: closing[from - 1];
+            }
+            for (int j = from; j < newClosing.length; j++) {
+                newClosing[j] += delta;
+            }
+            return new ProductBalances(newPeriods, newClosing, daily);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockChangeEvent;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.util.Periods;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes the stock changes to the Server-Sent Events subscribers of this instance.
+ * <p/>
+ * Each subscriber has a bounded buffer drained by a small pool of dispatcher threads, so a slow screen
+ * never holds the publisher or the other subscribers back. When the buffer of a subscriber is full its
+ * pending changes are dropped and it receives a single {@code resync} event instead, telling it to reload
+ * the stocks it shows before applying the next changes. The same happens when the changes may have been
+ * lost on their way to this instance, or when the stocks were recalculated.
+ */
+@Slf4j
+@Component
+public class StockChangeBroadcaster {
+
+    static final String CHANGE_EVENT = "stock";
+
+    static final String RESYNC_EVENT = "resync";
+
+    // events sent per dispatch, so a busy subscriber gives the dispatcher threads back to the others
+    private static final int DISPATCH_BATCH = 64;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final ExecutorService dispatcher;
+
+    private final ScheduledExecutorService heartbeats;
+
+    private final int bufferSize;
+
+    private final int maxSubscribers;
+
+    private final long timeoutMs;
+
+    private final Counter sentCounter;
+
+    private final Counter resyncCounter;
+
+    public StockChangeBroadcaster(final MeterRegistry registry,
+                                  @Value("${stock.events.buffer-size:256}") final int bufferSize,
+                                  @Value("${stock.events.max-subscribers:5000}") final int maxSubscribers,
+                                  @Value("${stock.events.dispatch-threads:4}") final int dispatchThreads,
+                                  @Value("${stock.events.heartbeat-ms:15000}") final long heartbeatMs,
+                                  @Value("${stock.events.timeout-ms:1800000}") final long timeoutMs) {
+        this.bufferSize = bufferSize;
+        this.maxSubscribers = maxSubscribers;
+        this.timeoutMs = timeoutMs;
+        final AtomicInteger threads = new AtomicInteger();
+        this.dispatcher = Executors.newFixedThreadPool(dispatchThreads, runnable -> {
+            final Thread thread = new Thread(runnable, "stock-events-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "stock-events-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // comments keep idle connections open through the gateway and find the subscribers that left
+        heartbeats.scheduleWithFixedDelay(() -> subscribers.forEach(Subscriber::heartbeat), heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+
+        this.sentCounter = Counter.builder("stock.events.sent")
+                .description("Stock change events sent to the subscribers")
+                .register(registry);
+        this.resyncCounter = Counter.builder("stock.events.resyncs")
+                .description("Subscribers told to reload the stocks because changes were dropped")
+                .register(registry);
+        Gauge.builder("stock.events.subscribers", subscribers, Set::size)
+                .description("Subscribers of the stock change events")
+                .register(registry);
+    }
+
+    /**
+     * Subscribes to the stock changes
+     *
+     * @param productId only the changes of this product, all products when null
+     * @param period only the changes that affect the stocks of this period, which includes the movements
+     *               of the periods before it, all periods when {@link Periods#NONE}
+     * @param resync starts with a resync event, for a subscriber reconnecting after missing changes
+     * @throws ServiceNotAvailableException when the maximum number of subscribers was reached
+     */
+    public SseEmitter subscribe(final Long productId, final int period, final boolean resync) throws ServiceNotAvailableException {
+        if (subscribers.size() >= maxSubscribers) {
+            throw new ServiceNotAvailableException("The maximum number of stock change subscribers was reached");
+        }
+        final Subscriber subscriber = new Subscriber(new SseEmitter(timeoutMs), productId, period);
+        subscriber.emitter.onCompletion(() -> subscribers.remove(subscriber));
+        subscriber.emitter.onTimeout(() -> subscribers.remove(subscriber));
+        subscriber.emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        if (resync) {
+            subscriber.resync();
+        }
+        return subscriber.emitter;
+    }
+
+    /**
+     * Queues the changes to every subscriber interested in them
+     */
+    public void broadcast(final List<StockChangeEvent> events) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        events.forEach(event -> {
+            final Change change = new Change(sequence.incrementAndGet(), event, event.productId(), Periods.parse(event.yearMonth()));
+            subscribers.forEach(subscriber -> subscriber.offer(change));
+        });
+    }
+
+    /**
+     * Tells every subscriber to reload the stocks it shows
+     */
+    public void resyncAll() {
+        subscribers.forEach(Subscriber::resync);
+    }
+
+    @PreDestroy
+    void close() {
+        heartbeats.shutdownNow();
+        dispatcher.shutdownNow();
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    }
+
+    private record Change(long id, StockChangeEvent event, Long productId, int period) {}
+
+    private class Subscriber {
+
+        private final SseEmitter emitter;
+
+        private final Long productId;
+
+        private final int period;
+
+        private final BlockingQueue<Change> buffer;
+
+        private final AtomicBoolean dispatching = new AtomicBoolean();
+
+        private final AtomicBoolean resync = new AtomicBoolean();
+
+        private final AtomicBoolean heartbeat = new AtomicBoolean();
+
+        Subscriber(final SseEmitter emitter, final Long productId, final int period) {
+            this.emitter = emitter;
+            this.productId = productId;
+            this.period = period;
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        void offer(final Change change) {
+            if ((productId != null && !productId.equals(change.productId()))
+                    || (period != Periods.NONE && change.period() > period)) {
+                return;
+            }
+            if (!buffer.offer(change)) {
+                // fell behind: what it has is stale anyway, it reloads instead of catching up
+                buffer.clear();
+                resync();
+                return;
+            }
+            dispatch();
+        }
+
+        void resync() {
+            if (!resync.getAndSet(true)) {
+                resyncCounter.increment();
+            }
+            dispatch();
+        }
+
+        void heartbeat() {
+            heartbeat.set(true);
+            dispatch();
+        }
+
+        private void dispatch() {
+            if (dispatching.compareAndSet(false, true)) {
+                try {
+                    dispatcher.execute(this::send);
+                } catch (RejectedExecutionException e) {
+                    dispatching.set(false);
+                }
+            }
+        }
+
+        private void send() {
+            try {
+                if (resync.getAndSet(false)) {
+                    emitter.send(SseEmitter.event().name(RESYNC_EVENT).data(RESYNC_EVENT));
+                }
+                Change change;
+                int sent = 0;
+                while (sent < DISPATCH_BATCH && (change = buffer.poll()) != null) {
+                    emitter.send(SseEmitter.event()
+                            .id(Long.toString(change.id()))
+                            .name(CHANGE_EVENT)
+                            .data(change.event(), MediaType.APPLICATION_JSON));
+                    sent++;
+                }
+                sentCounter.increment(sent);
+                if (heartbeat.getAndSet(false) && sent == 0) {
+                    emitter.send(SseEmitter.event().comment("heartbeat"));
+                }
+            } catch (IOException | IllegalStateException e) {
+                // the subscriber left, or its emitter completed
+                log.debug("stock change subscriber removed: {}", e.getMessage());
+                subscribers.remove(this);
+                emitter.completeWithError(e);
+                return;
+            } finally {
+                dispatching.set(false);
+            }
+            if (!buffer.isEmpty() || resync.get()) {
+                dispatch();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockChangeEvent;
+import com.franzoia.common.dto.StockUpdateRequest;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+
+/**
+ * Publishes the stock changes once they are committed, to the local subscribers or, when the
+ * {@link StockChangeRelay} is enabled, to the subscribers of every instance. The {@link StockMatrix} and
+ * {@link StockPresence} of this instance are updated right away, so its own changes are read back as soon
+ * as they are committed.
+ */
+@Component
+public class StockChangePublisher {
+
+    private final StockChangeBroadcaster broadcaster;
+
+    private final ObjectProvider<StockChangeRelay> relay;
+
+    private final ObjectProvider<StockMatrix> matrix;
+
+    private final ObjectProvider<StockPresence> presence;
+
+    public StockChangePublisher(final StockChangeBroadcaster broadcaster,
+                                final ObjectProvider<StockChangeRelay> relay,
+                                final ObjectProvider<StockMatrix> matrix,
+                                final ObjectProvider<StockPresence> presence) {
+        this.broadcaster = broadcaster;
+        this.relay = relay;
+        this.matrix = matrix;
+        this.presence = presence;
+    }
+
+    /**
+     * Publishes accepted stock updates
+     */
+    public void publish(final List<StockUpdateRequest> updateRequests) {
+        if (updateRequests.isEmpty()) {
+            return;
+        }
+        final List<StockChangeEvent> events = updateRequests.stream()
+                .map(updateRequest -> StockChangeEvent.builder()
+                        .productId(updateRequest.key().getProductId())
+                        .yearMonth(updateRequest.key().getYearMonth())
+                        .type(updateRequest.type())
+                        .quantity(updateRequest.quantity())
+                        .build())
+                .toList();
+        afterCommit(() -> {
+            matrix.ifAvailable(m -> m.apply(events));
+            presence.ifAvailable(p -> p.apply(events));
+            final StockChangeRelay changeRelay = relay.getIfAvailable();
+            if (changeRelay == null) {
+                broadcaster.broadcast(events);
+            } else {
+                changeRelay.send(events);
+            }
+        });
+    }
+
+    /**
+     * Tells the subscribers, the matrix and the presence to reload the stocks, after the stocks were changed by
+     * anything other than the stock updates
+     */
+    public void resync() {
+        afterCommit(() -> {
+            matrix.ifAvailable(StockMatrix::reload);
+            presence.ifAvailable(StockPresence::reload);
+            final StockChangeRelay changeRelay = relay.getIfAvailable();
+            if (changeRelay == null) {
+                broadcaster.resyncAll();
+            } else {
+                changeRelay.resync();
+            }
+        });
+    }
+
+    private static void afterCommit(final Runnable publish) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publish.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                publish.run();
+            }
+        });
+    }
+}
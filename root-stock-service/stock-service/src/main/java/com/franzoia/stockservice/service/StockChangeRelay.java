@@ -0,0 +1,248 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockChangeEvent;
+import com.franzoia.common.dto.TransactionType;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Relays the stock changes between the instances of the stock-service through Postgres LISTEN/NOTIFY,
+ * enabled with {@code stock.events.relay=postgres}, so the subscribers of every instance see the changes
+ * committed by all of them.
+ * <p/>
+ * Committed changes are queued and sent together every {@code stock.events.notify-interval-ms}, one
+ * notification per batch, as lines of {@code productId,yyyyMM,I|O,quantity} after an {@code @origin} line
+ * naming the instance that sent them. Every instance, this one included, listens on a dedicated connection
+ * and hands the changes to its {@link StockChangeBroadcaster}, and the changes of the other instances to its
+ * {@link StockMatrix}, {@link StockPresence} and {@link StockBalanceIndex}. Changes that can't be sent are
+ * dropped and a resync is sent in their place, and the local subscribers, matrix, presence and balances are
+ * resynced whenever the listening connection is reestablished, as notifications may have been missed.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "stock.events.relay", havingValue = "postgres")
+public class StockChangeRelay {
+
+    static final String CHANNEL = "stock_changes";
+
+    static final String RESYNC = "R";
+
+    static final char ORIGIN = '@';
+
+    // notification payloads must stay under 8000 bytes
+    private static final int MAX_PAYLOAD = 7900;
+
+    private static final long RECONNECT_DELAY_MS = 5000;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final DataSourceProperties dataSourceProperties;
+
+    private final StockChangeBroadcaster broadcaster;
+
+    private final ObjectProvider<StockMatrix> matrix;
+
+    private final ObjectProvider<StockPresence> presence;
+
+    private final StockBalanceIndex balanceIndex;
+
+    private final String origin = Long.toHexString(new SecureRandom().nextLong());
+
+    private final BlockingQueue<StockChangeEvent> outbound;
+
+    private volatile boolean lost;
+
+    private volatile boolean running = true;
+
+    private volatile Connection listening;
+
+    private final Thread listener = new Thread(this::listen, "stock-events-listener");
+
+    public StockChangeRelay(final JdbcTemplate jdbcTemplate,
+                            final DataSourceProperties dataSourceProperties,
+                            final StockChangeBroadcaster broadcaster,
+                            final ObjectProvider<StockMatrix> matrix,
+                            final ObjectProvider<StockPresence> presence,
+                            final StockBalanceIndex balanceIndex,
+                            @Value("${stock.events.relay-buffer-size:100000}") final int bufferSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.dataSourceProperties = dataSourceProperties;
+        this.broadcaster = broadcaster;
+        this.matrix = matrix;
+        this.presence = presence;
+        this.balanceIndex = balanceIndex;
+        this.outbound = new ArrayBlockingQueue<>(bufferSize);
+    }
+
+    @PostConstruct
+    void start() {
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Queues committed changes to be sent to every instance
+     */
+    public void send(final List<StockChangeEvent> events) {
+        events.forEach(event -> {
+            if (!outbound.offer(event)) {
+                lost = true;
+            }
+        });
+    }
+
+    /**
+     * Tells the subscribers of every instance to reload the stocks they show
+     */
+    public void resync() {
+        lost = true;
+    }
+
+    @Scheduled(fixedDelayString = "${stock.events.notify-interval-ms:50}")
+    public void flush() {
+        if (outbound.isEmpty() && !lost) {
+            return;
+        }
+        final List<StockChangeEvent> events = new ArrayList<>(outbound.size());
+        outbound.drainTo(events);
+        final boolean resync = lost;
+        lost = false;
+        try {
+            for (String payload : payloads(events, resync)) {
+                jdbcTemplate.query("SELECT pg_notify(?, ?)", rs -> {}, CHANNEL, payload);
+            }
+        } catch (RuntimeException e) {
+            log.warn("failed to notify {} stock changes, the subscribers will resync: {}", events.size(), e.getMessage());
+            lost = true;
+        }
+    }
+
+    private List<String> payloads(final List<StockChangeEvent> events, final boolean resync) {
+        final String header = ORIGIN + origin;
+        final List<String> payloads = new ArrayList<>();
+        final StringBuilder payload = new StringBuilder(header);
+        if (resync) {
+            payload.append('\n').append(RESYNC);
+        }
+        for (StockChangeEvent event : events) {
+            final String line = event.productId() + "," + event.yearMonth() + ","
+                    + (event.type() == TransactionType.INPUT? "I": "O") + "," + event.quantity();
+            if (payload.length() + line.length() + 1 > MAX_PAYLOAD) {
+                payloads.add(payload.toString());
+                payload.setLength(0);
+                payload.append(header);
+            }
+            payload.append('\n').append(line);
+        }
+        if (payload.length() > header.length()) {
+            payloads.add(payload.toString());
+        }
+        return payloads;
+    }
+
+    private void listen() {
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(dataSourceProperties.determineUrl(),
+                    dataSourceProperties.determineUsername(), dataSourceProperties.determinePassword())) {
+                listening = connection;
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                // anything notified while not listening was missed
+                broadcaster.resyncAll();
+                matrix.ifAvailable(StockMatrix::reload);
+                presence.ifAvailable(StockPresence::reload);
+                balanceIndex.invalidateAll();
+                final PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (running) {
+                    final PGNotification[] notifications = pgConnection.getNotifications(1000);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            receive(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (!running) {
+                    return;
+                }
+                log.warn("stock change listener disconnected, reconnecting in {} ms: {}", RECONNECT_DELAY_MS, e.getMessage());
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void receive(final String payload) {
+        final List<StockChangeEvent> events = new ArrayList<>();
+        // the changes of this instance were applied to its matrix and presence when they were committed
+        boolean remote = true;
+        for (String line : payload.split("\n")) {
+            if (line.charAt(0) == ORIGIN) {
+                remote = !line.substring(1).equals(origin);
+                continue;
+            }
+            if (line.equals(RESYNC)) {
+                broadcaster.resyncAll();
+                if (remote) {
+                    matrix.ifAvailable(StockMatrix::reload);
+                    presence.ifAvailable(StockPresence::reload);
+                    balanceIndex.invalidateAll();
+                }
+                continue;
+            }
+            final String[] fields = line.split(",");
+            events.add(StockChangeEvent.builder()
+                    .productId(Long.valueOf(fields[0]))
+                    .yearMonth(fields[1])
+                    .type(fields[2].equals("I")? TransactionType.INPUT: TransactionType.OUTPUT)
+                    .quantity(Long.valueOf(fields[3]))
+                    .build());
+        }
+        broadcaster.broadcast(events);
+        if (remote) {
+            matrix.ifAvailable(m -> m.apply(events));
+            presence.ifAvailable(p -> p.apply(events));
+            // the balances of this instance may have been loaded before or after the change was committed
+            events.forEach(event -> balanceIndex.invalidate(event.productId()));
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        running = false;
+        flush();
+        try {
+            final Connection connection = listening;
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            log.debug("failed to close the stock change listener: {}", e.getMessage());
+        }
+    }
+}
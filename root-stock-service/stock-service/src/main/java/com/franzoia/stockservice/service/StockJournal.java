@@ -0,0 +1,182 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.TransactionType;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Append-only local journal of the stock updates accepted by the write-behind ledger.
+ * <p/>
+ * The journal is split in numbered segments. The ledger rotates to a new segment every time it flushes,
+ * so a segment can be deleted as soon as its movements are in the database, and the segments left behind
+ * by a crash are replayed on startup.
+ */
+@Slf4j
+class StockJournal implements AutoCloseable {
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final String ID_FILE = "journal.id";
+
+    private final Path directory;
+
+    private final boolean fsync;
+
+    private FileChannel channel;
+
+    private long segment;
+
+    StockJournal(final Path directory, final boolean fsync) {
+        this.directory = directory;
+        this.fsync = fsync;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Identifies the journal, so its checkpoint is told apart from the ones of the journals of other instances.
+     * The id is kept in the journal directory and stays the same across restarts.
+     *
+     * @param legacy the id taken by a journal that already has segments but no id, written before the journals had one
+     * @return the id of the journal
+     */
+    synchronized long id(final long legacy) {
+        final Path file = directory.resolve(ID_FILE);
+        try {
+            if (Files.exists(file)) {
+                return Long.parseLong(Files.readString(file, StandardCharsets.UTF_8).trim());
+            }
+            final long id = segments().isEmpty()? new SecureRandom().nextLong(legacy + 1, Long.MAX_VALUE): legacy;
+            Files.writeString(file, Long.toString(id), StandardCharsets.UTF_8);
+            return id;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the ids of the segments in the journal directory, in ascending order
+     */
+    List<Long> segments() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens a segment to append the next updates
+     */
+    synchronized void open(final long segment) {
+        try {
+            this.channel = FileChannel.open(file(segment),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.segment = segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Closes the current segment and opens the next one
+     *
+     * @return the id of the closed segment
+     */
+    synchronized long rotate() {
+        final long closed = segment;
+        closeChannel();
+        open(closed + 1);
+        return closed;
+    }
+
+    synchronized void append(final StockUpdateRequest updateRequest) {
+        final String line = String.format("%s,%s,%d,%d\n", updateRequest.type(), updateRequest.key().getYearMonth(),
+                updateRequest.key().getProductId(), updateRequest.quantity());
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the updates of a segment. A last line cut short by a crash is ignored, the update
+     * was never acknowledged.
+     */
+    List<StockUpdateRequest> read(final long segment) {
+        final List<StockUpdateRequest> updates = new ArrayList<>();
+        try {
+            final String[] lines = Files.readString(file(segment), StandardCharsets.UTF_8).split("\n", -1);
+            // the last element is what follows the last line break, only a partial line when not empty
+            for (int i = 0; i < lines.length - 1; i++) {
+                final String[] fields = lines[i].trim().split(",");
+                updates.add(new StockUpdateRequest(new StockKey(fields[1], Long.valueOf(fields[2])),
+                        TransactionType.valueOf(fields[0]), Long.valueOf(fields[3])));
+            }
+            if (!lines[lines.length - 1].isEmpty()) {
+                log.warn("ignoring incomplete entry '{}' of stock journal segment {}", lines[lines.length - 1], segment);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return updates;
+    }
+
+    void delete(final long segment) {
+        try {
+            Files.deleteIfExists(file(segment));
+        } catch (IOException e) {
+            log.warn("could not delete stock journal segment {}: {}", segment, e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            channel = null;
+        }
+    }
+
+    private Path file(final long segment) {
+        return directory.resolve(String.format("%s%019d%s", PREFIX, segment, SUFFIX));
+    }
+}
@@ -0,0 +1,493 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.model.StockLedgerCheckpoint;
+import com.franzoia.stockservice.model.StockLedgerRejection;
+import com.franzoia.stockservice.repository.StockLedgerCheckpointRepository;
+import com.franzoia.stockservice.repository.StockLedgerRejectionRepository;
+import com.franzoia.stockservice.repository.StockRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Write-behind mode of the stock updates, enabled with {@code stock.write-behind.enabled}.
+ * <p/>
+ * Updates are appended to a local {@link StockJournal} and added to per-key accumulators, without touching
+ * the database, once the transaction they are recorded in commits: an update rolled back, whose idempotency
+ * key is released with it, is never flushed. Until then the outputs are held back from the balance checks
+ * of the other outputs, without being part of the reads. A scheduler periodically moves the accumulated deltas into the stocks in one batch through
+ * {@link StockBalanceEngine#apply}, recording the flushed journal segment in the same transaction, so each
+ * segment is applied exactly once even when the service stops between the commit and the segment deletion.
+ * <p/>
+ * Reads merge the pending deltas into the stored rows, and outputs are checked against that merged balance.
+ * <p/>
+ * A flush never writes into a closed period: the movements of the periods closed since they were recorded,
+ * possibly by another instance, are kept as {@link StockLedgerRejection}s instead, in the same transaction.
+ * <p/>
+ * The journal and the pending deltas are local to the instance, so the ledger needs a single writer: with
+ * more than one instance the outputs of each one are only checked against its own pending deltas. Each
+ * journal keeps its own checkpoint all the same, so the segments of an instance are never skipped because
+ * of the checkpoint of another one.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "stock.write-behind.enabled", havingValue = "true")
+public class StockLedger {
+
+    /**
+     * Checkpoint of the journal written before the checkpoints were kept by journal
+     */
+    private static final long LEGACY_CHECKPOINT = 1L;
+
+    private static final long NO_SEGMENT = -1;
+
+    private final StockRepository repository;
+
+    private final StockLedgerCheckpointRepository checkpointRepository;
+
+    private final StockLedgerRejectionRepository rejectionRepository;
+
+    private final StockBalanceEngine balanceEngine;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final StockJournal journal;
+
+    private final Long checkpoint;
+
+    // updates take the read lock, moving the pending deltas to the flush takes the write lock
+    private final ReadWriteLock rotationLock = new ReentrantReadWriteLock();
+
+    // merged reads take the read lock, committing the flushed deltas takes the write lock
+    private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+
+    private final Map<Long, Object> outputMonitors = new ConcurrentHashMap<>();
+
+    // outputs recorded by transactions not yet ended, by key
+    private final Map<StockKey, Long> reserved = new ConcurrentHashMap<>();
+
+    private volatile Map<StockKey, Accumulator> pending = new ConcurrentHashMap<>();
+
+    private volatile Map<StockKey, Accumulator> flushing = Map.of();
+
+    private volatile long flushingSegment = NO_SEGMENT;
+
+    private final AtomicLong pendingSince = new AtomicLong();
+
+    private volatile long flushingSince;
+
+    private final Timer flushTimer;
+
+    private final Counter recordedCounter;
+
+    private final Counter rejectedCounter;
+
+    public StockLedger(final StockRepository repository,
+                       final StockLedgerCheckpointRepository checkpointRepository,
+                       final StockLedgerRejectionRepository rejectionRepository,
+                       final StockBalanceEngine balanceEngine,
+                       final TransactionTemplate transactionTemplate,
+                       final MeterRegistry registry,
+                       @Value("${stock.write-behind.journal-dir:stock-journal}") final String journalDir,
+                       @Value("${stock.write-behind.journal-fsync:true}") final boolean fsync) {
+        this.repository = repository;
+        this.checkpointRepository = checkpointRepository;
+        this.rejectionRepository = rejectionRepository;
+        this.balanceEngine = balanceEngine;
+        this.transactionTemplate = transactionTemplate;
+        this.journal = new StockJournal(Path.of(journalDir), fsync);
+        this.checkpoint = journal.id(LEGACY_CHECKPOINT);
+
+        this.flushTimer = Timer.builder("stock.ledger.flush")
+                .description("Time taken to flush the pending stock deltas to the database")
+                .register(registry);
+        this.recordedCounter = Counter.builder("stock.ledger.records")
+                .description("Stock updates accepted by the write-behind ledger")
+                .register(registry);
+        this.rejectedCounter = Counter.builder("stock.ledger.rejections")
+                .description("Flushed stock movements kept aside because their period was closed")
+                .register(registry);
+        Gauge.builder("stock.ledger.pending.keys", this, ledger -> ledger.pending.size() + ledger.flushing.size())
+                .description("Stock keys with deltas not yet flushed to the database")
+                .register(registry);
+        Gauge.builder("stock.ledger.flush.lag", this, StockLedger::flushLag)
+                .description("Age of the oldest stock update not yet flushed to the database")
+                .baseUnit("seconds")
+                .register(registry);
+    }
+
+    /**
+     * Replays the journal segments that were not flushed before the last shutdown
+     */
+    @PostConstruct
+    void recover() {
+        final long flushed = checkpointRepository.findById(checkpoint)
+                .map(StockLedgerCheckpoint::getSegment)
+                .orElse(0L);
+
+        final Map<StockKey, Accumulator> replayed = new ConcurrentHashMap<>();
+        long last = flushed;
+        for (Long segment : journal.segments()) {
+            if (segment > flushed) {
+                final List<StockUpdateRequest> updates = journal.read(segment);
+                updates.forEach(updateRequest -> accumulate(replayed, updateRequest));
+                log.info("replaying {} stock updates from journal segment {}", updates.size(), segment);
+            } else {
+                journal.delete(segment);
+            }
+            last = Math.max(last, segment);
+        }
+        journal.open(last + 1);
+
+        if (last > flushed) {
+            flushing = replayed;
+            flushingSegment = last;
+            flushingSince = replayed.isEmpty()? 0: System.currentTimeMillis();
+            flush();
+        }
+    }
+
+    /**
+     * Accepts a stock update, which is appended when the current transaction commits. Outputs are only
+     * accepted when the merged balance of the period, and of every period after it, covers them
+     *
+     * @param updateRequest the stock update
+     * @throws EntityNotFoundException when removing from a product without any stock information
+     * @throws InvalidRequestException when the quantity removed exceeds the balance
+     */
+    public void record(final StockUpdateRequest updateRequest) throws EntityNotFoundException, InvalidRequestException {
+        if (updateRequest.type() != TransactionType.OUTPUT) {
+            appendAfterCommit(updateRequest, () -> {});
+            return;
+        }
+
+        final StockKey key = updateRequest.key();
+        synchronized (outputMonitors.computeIfAbsent(key.getProductId(), id -> new Object())) {
+            flushLock.readLock().lock();
+            try {
+                final Long balance = lowestBalanceFrom(key);
+                if (balance == null) {
+                    log.info("No Stock information found for {}, remove not possible", key);
+                    throw new EntityNotFoundException("No Stock information found, remove not possible");
+                }
+                if (balance < updateRequest.quantity()) {
+                    log.info("Removal quantity cannot exceed the current balance");
+                    throw new InvalidRequestException("Removal quantity cannot exceed the current balance");
+                }
+                reserved.merge(key, updateRequest.quantity(), Long::sum);
+                appendAfterCommit(updateRequest, () -> reserved.merge(key, -updateRequest.quantity(),
+                        (quantity, released) -> quantity + released == 0? null: quantity + released));
+            } finally {
+                flushLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Appends an update once the current transaction commits, right away without a transaction
+     *
+     * @param completion run once the transaction ended, committed or not
+     */
+    private void appendAfterCommit(final StockUpdateRequest updateRequest, final Runnable completion) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            try {
+                append(updateRequest);
+            } finally {
+                completion.run();
+            }
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    append(updateRequest);
+                } catch (RuntimeException e) {
+                    log.error("stock update {} committed but not journaled: {}", updateRequest, e.getMessage());
+                }
+            }
+
+            @Override
+            public void afterCompletion(final int status) {
+                completion.run();
+            }
+        });
+    }
+
+    /**
+     * Runs a stock query and merges the pending deltas into its rows
+     *
+     * @param query the query on the stored stocks
+     * @param missing selects the pending keys without a stored row that are part of the result
+     * @return the merged stocks, detached copies when a delta was merged
+     */
+    public List<Stock> merge(final Supplier<List<Stock>> query, final Predicate<StockKey> missing) {
+        flushLock.readLock().lock();
+        try {
+            final List<Stock> stocks = query.get();
+            final Map<Long, TreeMap<Integer, long[]>> deltas = pendingByProduct();
+            if (deltas.isEmpty()) {
+                return stocks;
+            }
+
+            final List<Stock> merged = new ArrayList<>(stocks.size());
+            final Set<StockKey> stored = new HashSet<>();
+            for (Stock stock : stocks) {
+                stored.add(stock.getKey());
+                merged.add(overlay(stock, deltas.get(stock.getKey().getProductId())));
+            }
+
+            boolean added = false;
+            for (Map.Entry<Long, TreeMap<Integer, long[]>> product : deltas.entrySet()) {
+                for (Integer period : product.getValue().keySet()) {
+                    final StockKey key = new StockKey(period, product.getKey());
+                    if (!stored.contains(key) && missing.test(key)) {
+                        final Long opening = balanceEngine.getOpeningBalance(key.getProductId(), period);
+                        merged.add(overlay(new Stock(key, opening, 0L, 0L, opening, null), product.getValue()));
+                        added = true;
+                    }
+                }
+            }
+            if (added) {
+                merged.sort(Comparator.comparingInt((Stock s) -> s.getKey().getPeriod())
+                        .thenComparing(s -> s.getKey().getProductId()));
+            }
+            return merged;
+        } finally {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Opens a stock query stream and merges the pending deltas into its rows as they are read. The deltas
+     * are taken when the query runs, so they match the database snapshot read by the stream. Rows that only
+     * exist as pending deltas are not part of the stream.
+     *
+     * @param query the streaming query on the stored stocks
+     * @return the merged stocks
+     */
+    public Stream<Stock> merge(final Supplier<Stream<Stock>> query) {
+        final Stream<Stock> stocks;
+        final Map<Long, TreeMap<Integer, long[]>> deltas;
+        flushLock.readLock().lock();
+        try {
+            stocks = query.get();
+            deltas = pendingByProduct();
+        } finally {
+            flushLock.readLock().unlock();
+        }
+        return deltas.isEmpty()? stocks: stocks.map(stock -> overlay(stock, deltas.get(stock.getKey().getProductId())));
+    }
+
+    /**
+     * Moves the pending deltas to the database. A flush that fails is retried on the next run before
+     * any newer delta is flushed.
+     */
+    @Scheduled(fixedDelayString = "${stock.write-behind.flush-interval-ms:1000}")
+    public synchronized void flush() {
+        if (flushingSegment == NO_SEGMENT) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            rotate();
+        }
+        try {
+            flushTimer.record(this::commit);
+        } catch (RuntimeException e) {
+            log.error("failed to flush stock journal segment {}, retrying on the next run: {}", flushingSegment, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        // the first flush may only complete a previously failed one
+        flush();
+        flush();
+        journal.close();
+    }
+
+    private void append(final StockUpdateRequest updateRequest) {
+        rotationLock.readLock().lock();
+        try {
+            journal.append(updateRequest);
+            accumulate(pending, updateRequest);
+            pendingSince.compareAndSet(0, System.currentTimeMillis());
+        } finally {
+            rotationLock.readLock().unlock();
+        }
+        recordedCounter.increment();
+    }
+
+    private void rotate() {
+        rotationLock.writeLock().lock();
+        try {
+            flushing = pending;
+            pending = new ConcurrentHashMap<>();
+            flushingSegment = journal.rotate();
+            flushingSince = pendingSince.getAndSet(0);
+        } finally {
+            rotationLock.writeLock().unlock();
+        }
+    }
+
+    private void commit() {
+        final SortedMap<Long, SortedMap<Integer, StockBalanceEngine.Movement>> movements = new TreeMap<>();
+        flushing.forEach((key, accumulator) -> movements
+                .computeIfAbsent(key.getProductId(), id -> new TreeMap<>())
+                .put(key.getPeriod(), new StockBalanceEngine.Movement(accumulator.inputs.sum(), accumulator.outputs.sum())));
+
+        final long segment = flushingSegment;
+        final List<StockLedgerRejection> rejections;
+        flushLock.writeLock().lock();
+        try {
+            rejections = transactionTemplate.execute(status -> {
+                final List<StockLedgerRejection> closed = new ArrayList<>();
+                if (!movements.isEmpty()) {
+                    // the outputs were checked against the merged balance when they were recorded
+                    final int closedThrough = balanceEngine.apply(movements, false).closedThrough();
+                    movements.forEach((productId, productMovements) -> productMovements.headMap(closedThrough + 1)
+                            .forEach((period, movement) -> closed.add(new StockLedgerRejection(null, checkpoint, segment,
+                                    productId, Periods.format(period), movement.inputs(), movement.outputs(), LocalDateTime.now()))));
+                    rejectionRepository.saveAll(closed);
+                }
+                checkpointRepository.save(new StockLedgerCheckpoint(checkpoint, segment, LocalDateTime.now()));
+                return closed;
+            });
+            flushing = Map.of();
+            flushingSegment = NO_SEGMENT;
+            flushingSince = 0;
+        } finally {
+            flushLock.writeLock().unlock();
+        }
+
+        rejections.forEach(rejection -> log.error("stock movement of closed period {} kept aside: product {}, inputs {}, outputs {}",
+                rejection.getYearMonth(), rejection.getProductId(), rejection.getInputs(), rejection.getOutputs()));
+        rejectedCounter.increment(rejections.size());
+
+        journal.segments().stream()
+                .filter(s -> s <= segment)
+                .forEach(journal::delete);
+        log.debug("stock journal segment {} flushed: {} stock keys", segment, movements.values().stream().mapToInt(Map::size).sum());
+    }
+
+    /**
+     * @return the lowest merged balance of a product from the period of the key onward, as an output also lowers
+     * the balances of the periods after it, or null when the product has no stock up to that period
+     */
+    private Long lowestBalanceFrom(final StockKey key) {
+        final TreeMap<Integer, Long> stored = new TreeMap<>();
+        repository.findAllViewsByProductId(key.getProductId()).forEach(view -> stored.put(view.period(), view.currentBalance()));
+        final TreeMap<Integer, long[]> deltas = pendingByProduct().getOrDefault(key.getProductId(), new TreeMap<>());
+        if (stored.floorKey(key.getPeriod()) == null && deltas.headMap(key.getPeriod(), true).isEmpty()) {
+            return null;
+        }
+        final TreeMap<Integer, Long> outputs = new TreeMap<>();
+        reserved.forEach((reservedKey, quantity) -> {
+            if (reservedKey.getProductId().equals(key.getProductId())) {
+                outputs.merge(reservedKey.getPeriod(), quantity, Long::sum);
+            }
+        });
+
+        final SortedSet<Integer> periods = new TreeSet<>(List.of(key.getPeriod()));
+        periods.addAll(stored.tailMap(key.getPeriod(), false).keySet());
+        periods.addAll(deltas.tailMap(key.getPeriod(), false).keySet());
+        periods.addAll(outputs.tailMap(key.getPeriod(), false).keySet());
+        long lowest = Long.MAX_VALUE;
+        for (Integer period : periods) {
+            final Map.Entry<Integer, Long> row = stored.floorEntry(period);
+            long balance = row == null? 0L: row.getValue();
+            for (long[] delta : deltas.headMap(period, true).values()) {
+                balance += delta[0] - delta[1];
+            }
+            for (Long output : outputs.headMap(period, true).values()) {
+                balance -= output;
+            }
+            lowest = Math.min(lowest, balance);
+        }
+        return lowest;
+    }
+
+    /**
+     * @return the inputs and outputs not yet in the database, by product and period
+     */
+    private Map<Long, TreeMap<Integer, long[]>> pendingByProduct() {
+        final Map<Long, TreeMap<Integer, long[]>> deltas = new HashMap<>();
+        for (Map<StockKey, Accumulator> accumulators : List.of(flushing, pending)) {
+            accumulators.forEach((key, accumulator) -> {
+                final long[] delta = deltas.computeIfAbsent(key.getProductId(), id -> new TreeMap<>())
+                        .computeIfAbsent(key.getPeriod(), period -> new long[2]);
+                delta[0] += accumulator.inputs.sum();
+                delta[1] += accumulator.outputs.sum();
+            });
+        }
+        return deltas;
+    }
+
+    private static Stock overlay(final Stock stock, final TreeMap<Integer, long[]> deltas) {
+        if (deltas == null) {
+            return stock;
+        }
+        long shift = 0;
+        for (long[] delta : deltas.headMap(stock.getKey().getPeriod(), false).values()) {
+            shift += delta[0] - delta[1];
+        }
+        final long[] delta = deltas.getOrDefault(stock.getKey().getPeriod(), new long[2]);
+        if (shift == 0 && delta[0] == 0 && delta[1] == 0) {
+            return stock;
+        }
+        return new Stock(stock.getKey(),
+                stock.getPreviousBalance() + shift,
+                stock.getInputs() + delta[0],
+                stock.getOutputs() + delta[1],
+                stock.getCurrentBalance() + shift + delta[0] - delta[1],
+                stock.getVersion());
+    }
+
+    private static void accumulate(final Map<StockKey, Accumulator> accumulators, final StockUpdateRequest updateRequest) {
+        final Accumulator accumulator = accumulators.computeIfAbsent(updateRequest.key(), key -> new Accumulator());
+        switch (updateRequest.type()) {
+            case INPUT -> accumulator.inputs.add(updateRequest.quantity());
+            case OUTPUT -> accumulator.outputs.add(updateRequest.quantity());
+        }
+    }
+
+    private double flushLag() {
+        final long oldest = flushingSince != 0? flushingSince: pendingSince.get();
+        return oldest == 0? 0: (System.currentTimeMillis() - oldest) / 1000.0;
+    }
+
+    private static final class Accumulator {
+        private final LongAdder inputs = new LongAdder();
+        private final LongAdder outputs = new LongAdder();
+    }
+}
@@ -0,0 +1,512 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockChangeEvent;
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.model.Stock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory read model of all the stocks, serving the single stock and year/month reads without going to
+ * the database. Enabled with {@code stock.matrix.enabled}, and only when the write-behind ledger is not,
+ * as the ledger already merges its pending updates into the reads.
+ * <p/>
+ * The stocks are kept as primitive longs in one array per product slot, indexed by period ordinal (see
+ * {@link Periods}) from the first period of the product: the inputs, outputs and current balance of each
+ * period, the previous balance being their difference. That is 24 bytes per period between the first and
+ * the last stock of each product, with no object per stock.
+ * <p/>
+ * The whole table is loaded after startup, and again whenever the stocks are resynced. The stock changes
+ * are applied as they are committed by this instance, and as they are relayed from the other instances and
+ * the reactive stock-service, so the matrix is only enabled along with {@code stock.events.relay=postgres}.
+ * Stocks changed in the database by anything else are not seen until the next reload.
+ * A change received while the stocks of its product are being loaded may or may not be part of what was
+ * loaded, so the product is marked stale and its reads go to the database until it is reloaded without
+ * receiving changes for {@code stock.matrix.settle-ms}, which must be longer than the relay delay.
+ */
+@Slf4j
+@Component
+@ConditionalOnExpression("${stock.matrix.enabled:true} and !${stock.write-behind.enabled:false} "
+        + "and '${stock.events.relay:local}' == 'postgres'")
+public class StockMatrix {
+
+    /**
+     * Returned by the lookups when the product has no stock in the period
+     */
+    public static final Stock MISSING = new Stock();
+
+    private static final long ABSENT = Long.MIN_VALUE;
+
+    private static final int FETCH_SIZE = 5000;
+
+    private static final String SELECT_ALL =
+            "SELECT s.year_month, s.product_id, s.inputs, s.outputs, s.current_balance FROM stocks s";
+
+    private static final String SELECT_BY_PRODUCT = SELECT_ALL + " WHERE s.product_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final long settleNanos;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "stock-matrix-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean reloadRequested = new AtomicBoolean();
+
+    // products whose stocks may differ from the database, by the time of the last change received for them
+    private final Map<Long, Long> stale = new ConcurrentHashMap<>();
+
+    // products recently loaded, by the time the load started, any change received until they settle makes them stale
+    private final Map<Long, Long> settling = new ConcurrentHashMap<>();
+
+    private volatile Matrix matrix;
+
+    private volatile boolean loading;
+
+    private volatile long loadStarted;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    public StockMatrix(final JdbcTemplate jdbcTemplate,
+                       final TransactionTemplate transactionTemplate,
+                       final MeterRegistry registry,
+                       @Value("${stock.matrix.settle-ms:2000}") final long settleMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMs);
+
+        this.hits = Counter.builder("stock.matrix.reads").tag("result", "hit")
+                .description("Stock reads served by the in-memory matrix")
+                .register(registry);
+        this.misses = Counter.builder("stock.matrix.reads").tag("result", "miss")
+                .description("Stock reads sent to the database as the matrix could not serve them")
+                .register(registry);
+        Gauge.builder("stock.matrix.cells", this, m -> m.matrix == null? 0: (double) m.matrix.cells)
+                .description("Product and period cells held by the stock matrix")
+                .register(registry);
+        Gauge.builder("stock.matrix.stale.products", stale, Map::size)
+                .description("Products whose stocks are read from the database until they are reloaded")
+                .register(registry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void start() {
+        if (matrix == null && !loading && !reloadRequested.get()) {
+            reload();
+        }
+    }
+
+    /**
+     * @return the stock of a product in a period, {@link #MISSING} when there is none, or null when the
+     * matrix can't serve the product and it must be read from the database
+     */
+    public Stock get(final int period, final Long productId) {
+        lock.readLock().lock();
+        try {
+            final Matrix current = matrix;
+            if (current == null || loading || stale.containsKey(productId)) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            final int slot = current.slots.get(productId);
+            if (slot < 0) {
+                return MISSING;
+            }
+            final Stock stock = current.stock(slot, period, productId);
+            return stock == null? MISSING: stock;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the stocks of all products in a period, ordered by product, or null when the matrix can't
+     * serve all of them and they must be read from the database
+     */
+    public List<Stock> listByPeriod(final int period) {
+        lock.readLock().lock();
+        try {
+            final Matrix current = matrix;
+            if (current == null || loading || !stale.isEmpty()) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            final long[] productIds = new long[current.size];
+            int found = 0;
+            for (int slot = 0; slot < current.size; slot++) {
+                if (current.has(slot, period)) {
+                    productIds[found++] = current.productIds[slot];
+                }
+            }
+            Arrays.sort(productIds, 0, found);
+            final List<Stock> stocks = new ArrayList<>(found);
+            for (int i = 0; i < found; i++) {
+                stocks.add(current.stock(current.slots.get(productIds[i]), period, productIds[i]));
+            }
+            return stocks;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies committed stock changes
+     */
+    public void apply(final List<StockChangeEvent> events) {
+        final long now = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            for (StockChangeEvent event : events) {
+                final Long productId = event.productId();
+                final Long settlingSince = settling.get(productId);
+                if (matrix == null || loading || stale.containsKey(productId)
+                        || now - loadStarted < settleNanos
+                        || settlingSince != null && now - settlingSince < settleNanos) {
+                    // the change may already be part of the stocks being loaded
+                    stale.put(productId, now);
+                    settling.remove(productId);
+                    continue;
+                }
+                final long quantity = event.quantity();
+                if (event.type() == TransactionType.INPUT) {
+                    matrix.move(productId, Periods.parse(event.yearMonth()), quantity, 0);
+                } else {
+                    matrix.move(productId, Periods.parse(event.yearMonth()), 0, quantity);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads all the stocks again in the background, after they were changed by anything other than
+     * the stock updates or when changes may have been missed
+     */
+    public void reload() {
+        if (reloadRequested.getAndSet(true)) {
+            return;
+        }
+        loader.execute(() -> {
+            reloadRequested.set(false);
+            load();
+        });
+    }
+
+    private void load() {
+        final long started = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            loading = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            final Matrix loaded = new Matrix();
+            // not read-only, so the stocks are read from the primary database and not from a lagging replica
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+                final var statement = connection.prepareStatement(SELECT_ALL);
+                statement.setFetchSize(FETCH_SIZE);
+                return statement;
+            }, rs -> {
+                loaded.put(rs.getLong(2), Periods.parse(rs.getString(1)), rs.getLong(3), rs.getLong(4), rs.getLong(5));
+            }));
+            lock.writeLock().lock();
+            try {
+                matrix = loaded;
+                loadStarted = started;
+                settling.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.info("stock matrix loaded: {} products, {} product periods in {} ms", loaded.size, loaded.cells,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (RuntimeException e) {
+            log.error("failed to load the stock matrix, the stocks are read from the database: {}", e.getMessage());
+            matrix = null;
+        } finally {
+            loading = false;
+        }
+    }
+
+    /**
+     * Reloads the stale products once they stopped changing
+     */
+    @Scheduled(fixedDelayString = "${stock.matrix.settle-ms:2000}")
+    public void reloadStale() {
+        final long now = System.nanoTime();
+        settling.values().removeIf(since -> now - since >= settleNanos);
+        if (matrix == null || loading) {
+            return;
+        }
+        stale.forEach((productId, changedAt) -> {
+            if (now - changedAt < settleNanos) {
+                return;
+            }
+            final long started = System.nanoTime();
+            final Matrix product = new Matrix();
+            try {
+                jdbcTemplate.query(SELECT_BY_PRODUCT, rs -> {
+                    product.put(productId, Periods.parse(rs.getString(1)), rs.getLong(3), rs.getLong(4), rs.getLong(5));
+                }, productId);
+            } catch (RuntimeException e) {
+                log.warn("failed to reload the stocks of product {}: {}", productId, e.getMessage());
+                return;
+            }
+            lock.writeLock().lock();
+            try {
+                // a change received during the reload keeps the product stale
+                if (matrix != null && !loading && stale.remove(productId, changedAt)) {
+                    matrix.replace(productId, product);
+                    settling.put(productId, started);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    @PreDestroy
+    void close() {
+        loader.shutdownNow();
+    }
+
+    /**
+     * Stocks of the product slots by period. Not thread-safe, guarded by the lock of the matrix.
+     */
+    private static class Matrix {
+
+        private static final long[] EMPTY = new long[0];
+
+        private final ProductSlots slots = new ProductSlots();
+
+        private long[] productIds = new long[1024];
+
+        // inputs, outputs and current balance of each period of each product slot, from the first period of the slot
+        private long[][] rows = new long[1024][];
+
+        private int[] firsts = new int[1024];
+
+        private int size;
+
+        // periods covered by the rows of all the slots
+        private long cells;
+
+        boolean has(final int slot, final int period) {
+            final int cell = (period - firsts[slot]) * 3;
+            return cell >= 0 && cell < rows[slot].length && rows[slot][cell + 2] != ABSENT;
+        }
+
+        Stock stock(final int slot, final int period, final Long productId) {
+            if (!has(slot, period)) {
+                return null;
+            }
+            final long[] row = rows[slot];
+            final int cell = (period - firsts[slot]) * 3;
+            return new Stock(new StockKey(period, productId), row[cell + 2] - row[cell] + row[cell + 1],
+                    row[cell], row[cell + 1], row[cell + 2], null);
+        }
+
+        /**
+         * Sets the stock of a product in a period, as loaded from the database
+         */
+        void put(final long productId, final int period, final long inputs, final long outputs, final long currentBalance) {
+            final int slot = slot(productId);
+            final int cell = cell(slot, period);
+            final long[] row = rows[slot];
+            row[cell] = inputs;
+            row[cell + 1] = outputs;
+            row[cell + 2] = currentBalance;
+        }
+
+        /**
+         * Adds a movement to the stock of a product in a period, creating it from the balance of the latest
+         * previous period when needed, and shifts the balances of the periods after it
+         */
+        void move(final long productId, final int period, final long inputs, final long outputs) {
+            final int slot = slot(productId);
+            final int cell = cell(slot, period);
+            final long[] row = rows[slot];
+            if (row[cell + 2] == ABSENT) {
+                long opening = 0;
+                for (int previous = cell - 3; previous >= 0; previous -= 3) {
+                    if (row[previous + 2] != ABSENT) {
+                        opening = row[previous + 2];
+                        break;
+                    }
+                }
+                row[cell] = 0;
+                row[cell + 1] = 0;
+                row[cell + 2] = opening;
+            }
+            row[cell] += inputs;
+            row[cell + 1] += outputs;
+            final long delta = inputs - outputs;
+            for (int balance = cell + 2; balance < row.length; balance += 3) {
+                if (row[balance] != ABSENT) {
+                    row[balance] += delta;
+                }
+            }
+        }
+
+        /**
+         * Replaces the stocks of a product with the ones loaded for it alone
+         */
+        void replace(final long productId, final Matrix loaded) {
+            final int slot = slot(productId);
+            final int loadedSlot = loaded.slots.get(productId);
+            final long[] row = loadedSlot < 0? EMPTY: loaded.rows[loadedSlot];
+            cells += row.length / 3 - rows[slot].length / 3;
+            rows[slot] = row;
+            firsts[slot] = loadedSlot < 0? 0: loaded.firsts[loadedSlot];
+        }
+
+        private int slot(final long productId) {
+            final int slot = slots.get(productId);
+            if (slot >= 0) {
+                return slot;
+            }
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+                firsts = Arrays.copyOf(firsts, size * 2);
+                productIds = Arrays.copyOf(productIds, size * 2);
+            }
+            rows[size] = EMPTY;
+            firsts[size] = 0;
+            productIds[size] = productId;
+            slots.put(productId, size);
+            return size++;
+        }
+
+        /**
+         * @return the index of the inputs of a period in the row of a slot, widening the periods it covers when
+         * needed. Each product only covers the periods around its own stocks, at least doubling when it grows so
+         * the rows loaded out of order are copied a few times only.
+         */
+        private int cell(final int slot, final int period) {
+            final long[] row = rows[slot];
+            final int first = firsts[slot];
+            final int width = row.length / 3;
+            if (width == 0) {
+                rows[slot] = absentRow(1);
+                firsts[slot] = period;
+                cells++;
+            } else if (period < first || period >= first + width) {
+                final int newFirst = period < first? Math.max(0, Math.min(period, first - width)): first;
+                final int newEnd = period < first? first + width: Math.max(period + 1, first + 2 * width);
+                final int newWidth = newEnd - newFirst;
+                final long[] newRow = absentRow(newWidth);
+                System.arraycopy(row, 0, newRow, (first - newFirst) * 3, width * 3);
+                rows[slot] = newRow;
+                firsts[slot] = newFirst;
+                cells += newWidth - width;
+            }
+            return (period - firsts[slot]) * 3;
+        }
+
+        private static long[] absentRow(final int width) {
+            final long[] row = new long[width * 3];
+            for (int balance = 2; balance < row.length; balance += 3) {
+                row[balance] = ABSENT;
+            }
+            return row;
+        }
+    }
+
+    /**
+     * Open addressing map of product ids to their slots, without boxing
+     */
+    private static class ProductSlots {
+
+        private long[] keys = new long[2048];
+
+        private int[] values = new int[2048];
+
+        private boolean[] used = new boolean[2048];
+
+        private int size;
+
+        int get(final long productId) {
+            final int mask = keys.length - 1;
+            for (int i = hash(productId) & mask; used[i]; i = (i + 1) & mask) {
+                if (keys[i] == productId) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(final long productId, final int slot) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            final int mask = keys.length - 1;
+            int i = hash(productId) & mask;
+            while (used[i] && keys[i] != productId) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                used[i] = true;
+                size++;
+            }
+            keys[i] = productId;
+            values[i] = slot;
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final int[] oldValues = values;
+            final boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(final long productId) {
+            final long h = productId * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
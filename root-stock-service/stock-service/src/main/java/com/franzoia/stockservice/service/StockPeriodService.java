@@ -0,0 +1,281 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockPeriodDTO;
+import com.franzoia.common.dto.StockPeriodStatus;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.model.StockPeriod;
+import com.franzoia.stockservice.repository.StockPeriodRepository;
+import com.franzoia.stockservice.repository.StockRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntConsumer;
+
+/**
+ * Closing of the year/month periods of the stocks.
+ * <p/>
+ * Periods are closed in order, so the closed periods are always the ones up to {@link #getClosedThrough()}.
+ * The stocks of a closed period can't be changed, which also means a movement never shifts the balances
+ * of a closed period. Reopening a period reopens every period after it too.
+ * <p/>
+ * At the start of every month the previous month is closed and the opening rows of the new month are
+ * created for the products with stock, so the movements of the month find their row already in place.
+ * As closed periods never change, their stocks are cached without expiration.
+ * <p/>
+ * Every instance keeps the last closed period, reloaded every {@code stock.period-close.refresh-ms}, to reject
+ * the movements of closed periods early. The movements check it again against the database once they hold
+ * the lock of their product, which a close waits for, so a period closed by another instance is never moved.
+ */
+@Slf4j
+@Service
+public class StockPeriodService {
+
+    private final StockRepository stockRepository;
+
+    private final StockPeriodRepository periodRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ObjectProvider<StockLedger> ledger;
+
+    private final StockChangePublisher changePublisher;
+
+    private final Cache<Integer, Map<Long, Stock>> closedStocks;
+
+    private final List<IntConsumer> reopenListeners = new CopyOnWriteArrayList<>();
+
+    private volatile int closedThrough = Periods.NONE;
+
+    public StockPeriodService(final StockRepository stockRepository,
+                              final StockPeriodRepository periodRepository,
+                              final TransactionTemplate transactionTemplate,
+                              final ObjectProvider<StockLedger> ledger,
+                              final StockChangePublisher changePublisher,
+                              final MeterRegistry registry,
+                              @Value("${stock.period-close.cache-rows:1000000}") final long cacheRows) {
+        this.stockRepository = stockRepository;
+        this.periodRepository = periodRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.ledger = ledger;
+        this.changePublisher = changePublisher;
+        this.closedStocks = Caffeine.newBuilder()
+                .maximumWeight(cacheRows)
+                .weigher((Integer period, Map<Long, Stock> stocks) -> Math.max(1, stocks.size()))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, closedStocks, "closed-periods");
+    }
+
+    /**
+     * @return the last closed period, or {@link Periods#NONE} when no period was closed
+     */
+    public int getClosedThrough() {
+        return closedThrough;
+    }
+
+    public boolean isClosed(final int period) {
+        return period <= closedThrough;
+    }
+
+    /**
+     * @throws InvalidRequestException when the period is closed
+     */
+    public void checkOpen(final int period) {
+        if (isClosed(period)) {
+            throw closed(period);
+        }
+    }
+
+    /**
+     * Checks the period against the last closed period stored, which may have been closed by another instance
+     * since the last {@link #refresh()}. It must be called once the movements of the product are locked, see
+     * {@link StockRepository#lockProductMovements(Long)}, as a close can't commit while they are.
+     *
+     * @throws InvalidRequestException when the period is closed
+     */
+    public void checkStoredOpen(final int period) {
+        if (period <= getStoredClosedThrough()) {
+            throw closed(period);
+        }
+    }
+
+    /**
+     * @return the last closed period stored, or {@link Periods#NONE} when no period was closed
+     */
+    public int getStoredClosedThrough() {
+        return stockRepository.findLastClosedPeriod()
+                .map(Periods::parse)
+                .orElse(Periods.NONE);
+    }
+
+    private static InvalidRequestException closed(final int period) {
+        log.info("Year/Month period {} is closed", Periods.format(period));
+        return new InvalidRequestException(String.format("Year/Month period %s is closed", Periods.format(period)));
+    }
+
+    /**
+     * @return the stocks of a closed period, by product id
+     */
+    public Map<Long, Stock> getClosedStocks(final int period) {
+        return closedStocks.get(period, p -> {
+            final Map<Long, Stock> stocks = new LinkedHashMap<>();
+            stockRepository.findAllViewsByYearMonth(p).forEach(view -> stocks.put(view.productId(), view.toStock()));
+            return Collections.unmodifiableMap(stocks);
+        });
+    }
+
+    /**
+     * Registers a listener called with the last period still closed whenever periods are reopened, so
+     * anything derived from the closed periods after it can be dropped
+     */
+    public void addReopenListener(final IntConsumer listener) {
+        reopenListeners.add(listener);
+    }
+
+    public List<StockPeriodDTO> listPeriods() {
+        return periodRepository.findAllOrderByYearMonth().stream()
+                .map(StockPeriodService::convertToDTO)
+                .toList();
+    }
+
+    /**
+     * Month-close job: closes every period up to the previous month and opens the current one
+     */
+    @Scheduled(cron = "${stock.period-close.cron:0 5 0 1 * *}")
+    public void closeMonth() {
+        final int current = Periods.current();
+        if (closedThrough < Periods.previous(current)) {
+            close(Periods.previous(current));
+        }
+        open(current);
+    }
+
+    /**
+     * Closes every open period up to the given one, keeping the number of products and the total balance
+     * of each of them
+     *
+     * @param through the last period to close, it must be before the current month
+     * @return the closed periods
+     */
+    public synchronized List<StockPeriodDTO> close(final int through) {
+        if (through >= Periods.current()) {
+            throw new InvalidRequestException("Only periods before the current Year/Month can be closed");
+        }
+        final int previous = closedThrough;
+        if (through <= previous) {
+            return List.of();
+        }
+
+        // no movement is accepted for these periods from now on, then the ones already accepted are flushed.
+        // The ones still pending on other instances are kept aside by their next flush, see StockLedger
+        closedThrough = through;
+        try {
+            ledger.ifAvailable(l -> {
+                l.flush();
+                l.flush();
+            });
+            final List<StockPeriod> closed = transactionTemplate.execute(status -> {
+                // the movements in progress on other instances are committed before the periods are closed
+                stockRepository.lockAllMovements();
+                final int first = previous != Periods.NONE? Periods.next(previous): stockRepository.findFirstPeriod().orElse(through);
+                final List<StockPeriod> periods = new ArrayList<>();
+                for (int period = Math.min(first, through); period <= through; period = Periods.next(period)) {
+                    periods.add(periodRepository.save(new StockPeriod(Periods.format(period), StockPeriodStatus.CLOSED,
+                            stockRepository.countByKey_Period(period), stockRepository.sumCurrentBalanceByPeriod(period),
+                            LocalDateTime.now(), null)));
+                }
+                return periods;
+            });
+            log.info("stock periods closed through {}", Periods.format(through));
+            return closed.stream().map(StockPeriodService::convertToDTO).toList();
+        } catch (RuntimeException e) {
+            closedThrough = previous;
+            throw e;
+        }
+    }
+
+    /**
+     * Reopens a closed period and every period after it
+     *
+     * @param from the first period to reopen
+     * @return the reopened periods
+     */
+    public synchronized List<StockPeriodDTO> reopen(final int from) {
+        if (!isClosed(from)) {
+            throw new InvalidRequestException(String.format("Year/Month period %s is not closed", Periods.format(from)));
+        }
+        final List<StockPeriod> reopened = transactionTemplate.execute(status -> {
+            final List<StockPeriod> periods = periodRepository.findAllFromYearMonthByStatus(Periods.format(from), StockPeriodStatus.CLOSED);
+            periods.forEach(period -> {
+                period.setStatus(StockPeriodStatus.REOPENED);
+                period.setReopenedAt(LocalDateTime.now());
+            });
+            periodRepository.saveAll(periods);
+            return periods;
+        });
+        closedThrough = Periods.previous(from);
+        invalidateAfter(closedThrough);
+        log.info("stock periods reopened from {}", Periods.format(from));
+        return reopened.stream().map(StockPeriodService::convertToDTO).toList();
+    }
+
+    /**
+     * Creates the opening rows of a period for the products with stock
+     *
+     * @return the number of rows created
+     */
+    public int open(final int period) {
+        final Integer created = transactionTemplate.execute(status ->
+                stockRepository.createOpeningRows(Periods.format(period), Periods.format(Periods.previous(period))));
+        log.info("stock period {} opened: {} opening rows created", Periods.format(period), created);
+        if (created != null && created > 0) {
+            changePublisher.resync();
+        }
+        return created == null? 0: created;
+    }
+
+    /**
+     * Reloads the last closed period, which may have been changed by another instance
+     */
+    @PostConstruct
+    @Scheduled(fixedDelayString = "${stock.period-close.refresh-ms:30000}", initialDelayString = "${stock.period-close.refresh-ms:30000}")
+    public synchronized void refresh() {
+        final int stored = periodRepository.findLastByStatus(StockPeriodStatus.CLOSED)
+                .map(Periods::parse)
+                .orElse(Periods.NONE);
+        if (stored < closedThrough) {
+            invalidateAfter(stored);
+        }
+        closedThrough = stored;
+    }
+
+    private void invalidateAfter(final int period) {
+        closedStocks.asMap().keySet().removeIf(p -> p > period);
+        reopenListeners.forEach(listener -> listener.accept(period));
+    }
+
+    private static StockPeriodDTO convertToDTO(final StockPeriod period) {
+        return StockPeriodDTO.builder()
+                .yearMonth(period.getYearMonth())
+                .status(period.getStatus())
+                .products(period.getProducts())
+                .closingBalance(period.getClosingBalance())
+                .closedAt(period.getClosedAt())
+                .reopenedAt(period.getReopenedAt())
+                .build();
+    }
+}
@@ -0,0 +1,212 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockChangeEvent;
+import com.franzoia.common.util.Periods;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Which year/month periods have a stock row, for every product, so the stock updates and reads can skip
+ * the statements that are bound to find no row. Enabled with {@code stock.presence.enabled}, and only when
+ * the write-behind ledger is not, as the rows of its pending updates don't exist yet.
+ * <p/>
+ * Each product has a bitmap over the period ordinals (see {@link Periods}) from its first period with stock,
+ * one bit per month. Stock rows are never deleted, so bits are only ever set: from the whole table, loaded
+ * after startup and again whenever the stocks are resynced, and from the stock changes, as they are committed
+ * by this instance and relayed from the other instances. A set bit is always right, while a clear bit may miss
+ * a row created by another instance until its change is relayed, so an absent row is only a hint. It is only
+ * used by the stock updates, where being wrong costs the statement it was meant to save, as the insert that
+ * follows still adds to the row that exists. The reads never take it as a missing stock.
+ */
+@Slf4j
+@Component
+@ConditionalOnExpression("${stock.presence.enabled:true} and !${stock.write-behind.enabled:false}")
+public class StockPresence {
+
+    private static final int FETCH_SIZE = 5000;
+
+    private static final String SELECT_ALL = "SELECT s.product_id, s.year_month FROM stocks s";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    // by product, the index of the first word followed by the words of the bitmap
+    private final Map<Long, long[]> bitmaps = new ConcurrentHashMap<>();
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "stock-presence-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean reloadRequested = new AtomicBoolean();
+
+    private volatile boolean loaded;
+
+    private final Counter skipped;
+
+    private final Counter present;
+
+    private final Counter unknown;
+
+    public StockPresence(final JdbcTemplate jdbcTemplate,
+                         final TransactionTemplate transactionTemplate,
+                         final MeterRegistry registry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+
+        this.skipped = Counter.builder("stock.presence.lookups").tag("result", "absent")
+                .description("Stock row lookups skipped as the row doesn't exist")
+                .register(registry);
+        this.present = Counter.builder("stock.presence.lookups").tag("result", "present")
+                .description("Stock row lookups sent to the database as the row exists")
+                .register(registry);
+        this.unknown = Counter.builder("stock.presence.lookups").tag("result", "unknown")
+                .description("Stock row lookups sent to the database while the stock rows are being loaded")
+                .register(registry);
+        Gauge.builder("stock.presence.products", bitmaps, Map::size)
+                .description("Products whose periods with stock are known")
+                .register(registry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void start() {
+        if (!loaded) {
+            reload();
+        }
+    }
+
+    /**
+     * @return true when the product has no stock row in the period, so looking it up can be skipped
+     */
+    public boolean isAbsent(final int period, final Long productId) {
+        if (!loaded) {
+            unknown.increment();
+            return false;
+        }
+        if (contains(bitmaps.get(productId), period)) {
+            present.increment();
+            return false;
+        }
+        skipped.increment();
+        return true;
+    }
+
+    /**
+     * @return true when the product has a stock row in the period or before it, which is always right
+     */
+    public boolean existsUpTo(final int period, final Long productId) {
+        final long[] bitmap = bitmaps.get(productId);
+        if (bitmap == null) {
+            return false;
+        }
+        final int last = (period >>> 6) - (int) bitmap[0] + 1;
+        for (int i = Math.min(last, bitmap.length - 1); i >= 1; i--) {
+            // only the bits up to the period itself in its own word
+            final long bits = i == last? bitmap[i] & (-1L >>> (63 - (period & 63))): bitmap[i];
+            if (bits != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the periods of committed stock changes
+     */
+    public void apply(final List<StockChangeEvent> events) {
+        for (StockChangeEvent event : events) {
+            add(event.productId(), Periods.parse(event.yearMonth()));
+        }
+    }
+
+    /**
+     * Loads all the stock rows again in the background, after they were changed by anything other than
+     * the stock updates or when changes may have been missed. Nothing is taken as absent until it's loaded.
+     */
+    public void reload() {
+        if (reloadRequested.getAndSet(true)) {
+            return;
+        }
+        loaded = false;
+        loader.execute(() -> {
+            reloadRequested.set(false);
+            load();
+        });
+    }
+
+    private void load() {
+        final long started = System.nanoTime();
+        try {
+            // not read-only, so the rows are read from the primary database and not from a lagging replica
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+                final var statement = connection.prepareStatement(SELECT_ALL);
+                statement.setFetchSize(FETCH_SIZE);
+                return statement;
+            }, rs -> {
+                add(rs.getLong(1), Periods.parse(rs.getString(2)));
+            }));
+            // a reload requested meanwhile keeps it unloaded until it runs
+            loaded = !reloadRequested.get();
+            log.info("stock presence loaded: {} products in {} ms", bitmaps.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (RuntimeException e) {
+            log.error("failed to load the stock presence, the stock rows are looked up in the database: {}", e.getMessage());
+        }
+    }
+
+    private void add(final Long productId, final int period) {
+        if (contains(bitmaps.get(productId), period)) {
+            return;
+        }
+        bitmaps.compute(productId, (id, bitmap) -> with(bitmap, period));
+    }
+
+    private static boolean contains(final long[] bitmap, final int period) {
+        if (bitmap == null) {
+            return false;
+        }
+        final int i = (period >>> 6) - (int) bitmap[0] + 1;
+        return i >= 1 && i < bitmap.length && (bitmap[i] & (1L << period)) != 0;
+    }
+
+    /**
+     * @return a copy of the bitmap with the bit of the period set, grown to cover it when needed
+     */
+    private static long[] with(final long[] bitmap, final int period) {
+        final int word = period >>> 6;
+        if (bitmap == null) {
+            return new long[] { word, 1L << period };
+        }
+        final int first = Math.min(word, (int) bitmap[0]);
+        final int last = Math.max(word, (int) bitmap[0] + bitmap.length - 2);
+        final long[] copy = new long[last - first + 2];
+        copy[0] = first;
+        System.arraycopy(bitmap, 1, copy, (int) bitmap[0] - first + 1, bitmap.length - 1);
+        copy[word - first + 1] |= 1L << period;
+        return copy;
+    }
+
+    @PreDestroy
+    void stop() {
+        loader.shutdownNow();
+    }
+}
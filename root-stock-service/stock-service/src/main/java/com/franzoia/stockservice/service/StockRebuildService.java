@@ -0,0 +1,511 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.dto.StockRebuildDTO;
+import com.franzoia.common.dto.StockRebuildDiff;
+import com.franzoia.common.dto.StockRebuildStatus;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.repository.StockRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Recomputes the stock rows from the transactions table, for when the stocks drifted from the movements
+ * that were actually registered.
+ * <p/>
+ * Only the open periods are rebuilt, starting from the closing balance of the last closed period. The
+ * products are split across a fork-join pool and each one is rebuilt on its own transaction: its
+ * transactions are streamed ordered by date into monthly inputs/outputs arrays, the balances are rolled
+ * forward and only the rows that differ are upserted, in a single JDBC batch.
+ * A dry run does the same without writing, reporting the differences instead.
+ * <p/>
+ * The rebuild runs in the background and its progress is kept in memory. It should run while the
+ * transactions are not being registered: a product is locked against stock movements only while it
+ * is being rebuilt.
+ */
+@Slf4j
+@Service
+public class StockRebuildService {
+
+    private static final int PARTITION_SIZE = 32;
+    private static final int PROGRESS_LOG_INTERVAL = 1000;
+    private static final int FETCH_SIZE = 1000;
+
+    private static final String SELECT_PRODUCTS =
+            "SELECT t.product_id FROM transactions t WHERE t.deleted = false AND t.date >= ? " +
+            "UNION " +
+            "SELECT s.product_id FROM stocks s WHERE s.year_month >= ? " +
+            "ORDER BY 1";
+
+    private static final String SELECT_TRANSACTIONS =
+            "SELECT CAST(EXTRACT(YEAR FROM t.date) * 12 + EXTRACT(MONTH FROM t.date) - 1 AS INTEGER), t.type, t.quantity " +
+            "FROM transactions t " +
+            "WHERE t.product_id = ? AND t.deleted = false AND t.date >= ? " +
+            "ORDER BY t.date";
+
+    private static final String SELECT_STOCKS =
+            "SELECT s.year_month, s.previous_balance, s.inputs, s.outputs, s.current_balance " +
+            "FROM stocks s " +
+            "WHERE s.product_id = ? AND s.year_month >= ? " +
+            "ORDER BY s.year_month";
+
+    private static final String SELECT_OPENING_BALANCE =
+            "SELECT s.current_balance FROM stocks s " +
+            "WHERE s.product_id = ? AND s.year_month < ? " +
+            "ORDER BY s.year_month DESC LIMIT 1";
+
+    private static final String UPSERT_STOCK =
+            "INSERT INTO stocks (year_month, product_id, previous_balance, inputs, outputs, current_balance, version) " +
+            "VALUES (?, ?, ?, ?, ?, ?, 0) " +
+            "ON CONFLICT (year_month, product_id) DO UPDATE " +
+            "SET previous_balance = EXCLUDED.previous_balance, " +
+            "    inputs = EXCLUDED.inputs, " +
+            "    outputs = EXCLUDED.outputs, " +
+            "    current_balance = EXCLUDED.current_balance, " +
+            "    version = stocks.version + 1";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final StockRepository stockRepository;
+
+    private final StockPeriodService periodService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ObjectProvider<StockLedger> ledger;
+
+    private final StockBalanceIndex balanceIndex;
+
+    private final StockChangePublisher changePublisher;
+
+    private final int parallelism;
+
+    private final int productsPerSecond;
+
+    private final int maxDiffs;
+
+    private final AtomicReference<Rebuild> last = new AtomicReference<>();
+
+    public StockRebuildService(final JdbcTemplate jdbcTemplate,
+                               final StockRepository stockRepository,
+                               final StockPeriodService periodService,
+                               final TransactionTemplate transactionTemplate,
+                               final ObjectProvider<StockLedger> ledger,
+                               final StockBalanceIndex balanceIndex,
+                               final StockChangePublisher changePublisher,
+                               @Value("${stock.rebuild.parallelism:0}") final int parallelism,
+                               @Value("${stock.rebuild.products-per-second:0}") final int productsPerSecond,
+                               @Value("${stock.rebuild.max-diffs:1000}") final int maxDiffs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.stockRepository = stockRepository;
+        this.periodService = periodService;
+        this.transactionTemplate = transactionTemplate;
+        this.ledger = ledger;
+        this.balanceIndex = balanceIndex;
+        this.changePublisher = changePublisher;
+        this.parallelism = parallelism > 0? parallelism: Runtime.getRuntime().availableProcessors();
+        this.productsPerSecond = productsPerSecond;
+        this.maxDiffs = maxDiffs;
+    }
+
+    /**
+     * Starts rebuilding the stocks of the open periods in the background
+     *
+     * @param dryRun when true nothing is written, the rows that would change are reported instead
+     * @return the status of the started rebuild
+     * @throws InvalidRequestException when a rebuild is already running
+     */
+    public synchronized StockRebuildDTO start(final boolean dryRun) {
+        final Rebuild running = last.get();
+        if (running != null && running.status == StockRebuildStatus.RUNNING) {
+            throw new InvalidRequestException("A stock rebuild is already running");
+        }
+        if (!dryRun) {
+            // movements accepted by the write-behind ledger are already in the transactions
+            ledger.ifAvailable(l -> {
+                l.flush();
+                l.flush();
+            });
+        }
+
+        final int closedThrough = periodService.getClosedThrough();
+        final Rebuild rebuild = new Rebuild(dryRun, closedThrough == Periods.NONE? Periods.NONE: Periods.next(closedThrough));
+        last.set(rebuild);
+
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        pool.execute(new RebuildAll(rebuild));
+        pool.shutdown();
+        log.info("stock rebuild started from {} (dry run: {}, parallelism: {})",
+                rebuild.fromPeriod == Periods.NONE? "the first period": Periods.format(rebuild.fromPeriod), dryRun, parallelism);
+        return rebuild.toDTO();
+    }
+
+    /**
+     * @return the progress of the running rebuild, or the result of the last one
+     */
+    public StockRebuildDTO getStatus() throws EntityNotFoundException {
+        final Rebuild rebuild = last.get();
+        if (rebuild == null) {
+            throw new EntityNotFoundException("No stock rebuild has been started");
+        }
+        return rebuild.toDTO();
+    }
+
+    private void rebuildProduct(final Rebuild rebuild, final long productId) {
+        throttle(rebuild);
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!rebuild.dryRun) {
+                stockRepository.lockProductMovements(productId);
+            }
+            final Months months = new Months(rebuild.fromPeriod);
+            readTransactions(rebuild, productId, months);
+            readStocks(rebuild, productId, months);
+            if (months.isEmpty()) {
+                return;
+            }
+
+            final long opening = rebuild.fromPeriod == Periods.NONE? 0L: readOpeningBalance(rebuild, productId);
+            final List<Object[]> changed = new ArrayList<>();
+            long balance = opening;
+            for (int period = months.first(); period <= months.last(); period = Periods.next(period)) {
+                final int i = months.index(period);
+                final long inputs = months.inputs(i);
+                final long outputs = months.outputs(i);
+                final long current = balance + inputs - outputs;
+                if (inputs == 0 && outputs == 0 && !months.exists(i)) {
+                    // as with the regular movements, a month without movement doesn't need a row
+                    balance = current;
+                    continue;
+                }
+                if (!months.matches(i, balance, inputs, outputs, current)) {
+                    changed.add(new Object[] { Periods.format(period), productId, balance, inputs, outputs, current });
+                    if (rebuild.dryRun) {
+                        rebuild.addDiff(months.diff(i, new StockKey(period, productId), balance, inputs, outputs, current), maxDiffs);
+                    }
+                }
+                balance = current;
+            }
+
+            if (!rebuild.dryRun && !changed.isEmpty()) {
+                jdbcTemplate.batchUpdate(UPSERT_STOCK, changed);
+                balanceIndex.invalidate(productId);
+            }
+            rebuild.changedRows.addAndGet(changed.size());
+        });
+    }
+
+    private void readTransactions(final Rebuild rebuild, final long productId, final Months months) {
+        jdbcTemplate.query(con -> {
+            final var statement = con.prepareStatement(SELECT_TRANSACTIONS);
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setLong(1, productId);
+            statement.setDate(2, Date.valueOf(rebuild.fromDate));
+            return statement;
+        }, rs -> {
+            final int period = rs.getInt(1);
+            if (rs.getInt(2) == TransactionType.INPUT.ordinal()) {
+                months.addInputs(period, rs.getLong(3));
+            } else {
+                months.addOutputs(period, rs.getLong(3));
+            }
+        });
+    }
+
+    private void readStocks(final Rebuild rebuild, final long productId, final Months months) {
+        jdbcTemplate.query(SELECT_STOCKS, rs -> {
+            months.setExisting(Periods.parse(rs.getString(1)), rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5));
+        }, productId, rebuild.fromYearMonth);
+    }
+
+    private long readOpeningBalance(final Rebuild rebuild, final long productId) {
+        final List<Long> balance = jdbcTemplate.queryForList(SELECT_OPENING_BALANCE, Long.class, productId, rebuild.fromYearMonth);
+        return balance.isEmpty() || balance.get(0) == null? 0L: balance.get(0);
+    }
+
+    /**
+     * Spaces the products out so no more than {@code stock.rebuild.products-per-second} are started
+     * each second, all threads together
+     */
+    private void throttle(final Rebuild rebuild) {
+        if (productsPerSecond <= 0) {
+            return;
+        }
+        final long interval = 1_000_000_000L / productsPerSecond;
+        final long now = System.nanoTime();
+        final long slot = rebuild.nextSlot.accumulateAndGet(now, (next, time) -> Math.max(next, time) + interval) - interval;
+        if (slot > now) {
+            LockSupport.parkNanos(slot - now);
+        }
+    }
+
+    /**
+     * Monthly movements and existing stock values of a product, in primitive arrays indexed by the
+     * period offset from the first period seen. Transactions arrive ordered by date, so the arrays
+     * usually only grow at the end.
+     */
+    private static final class Months {
+
+        private final int fromPeriod;
+
+        private int first = Periods.NONE;
+        private int size;
+
+        private long[] inputs = new long[0];
+        private long[] outputs = new long[0];
+        private long[][] existing = new long[0][];
+
+        Months(final int fromPeriod) {
+            this.fromPeriod = fromPeriod;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int first() {
+            return first;
+        }
+
+        int last() {
+            return first + size - 1;
+        }
+
+        int index(final int period) {
+            return period - first;
+        }
+
+        void addInputs(final int period, final long quantity) {
+            final int i = ensure(period);
+            inputs[i] += quantity;
+        }
+
+        void addOutputs(final int period, final long quantity) {
+            final int i = ensure(period);
+            outputs[i] += quantity;
+        }
+
+        void setExisting(final int period, final long previousBalance, final long inputs, final long outputs, final long currentBalance) {
+            final int i = ensure(period);
+            existing[i] = new long[] { previousBalance, inputs, outputs, currentBalance };
+        }
+
+        long inputs(final int i) {
+            return inputs[i];
+        }
+
+        long outputs(final int i) {
+            return outputs[i];
+        }
+
+        boolean exists(final int i) {
+            return existing[i] != null;
+        }
+
+        boolean matches(final int i, final long previousBalance, final long inputs, final long outputs, final long currentBalance) {
+            final long[] row = existing[i];
+            return row != null && row[0] == previousBalance && row[1] == inputs && row[2] == outputs && row[3] == currentBalance;
+        }
+
+        StockRebuildDiff diff(final int i, final StockKey key, final long previousBalance, final long inputs, final long outputs, final long currentBalance) {
+            final long[] row = existing[i];
+            return StockRebuildDiff.builder()
+                    .key(key)
+                    .previousBalance(row != null? row[0]: null)
+                    .inputs(row != null? row[1]: null)
+                    .outputs(row != null? row[2]: null)
+                    .currentBalance(row != null? row[3]: null)
+                    .rebuiltPreviousBalance(previousBalance)
+                    .rebuiltInputs(inputs)
+                    .rebuiltOutputs(outputs)
+                    .rebuiltCurrentBalance(currentBalance)
+                    .build();
+        }
+
+        private int ensure(final int period) {
+            if (period < fromPeriod) {
+                throw new IllegalStateException("Movement before the first open period: " + Periods.format(period));
+            }
+            if (size == 0) {
+                first = period;
+            }
+            if (period < first) {
+                // shift everything right to make room at the start
+                final int shift = first - period;
+                resize(size + shift, shift);
+                first = period;
+                size += shift;
+            } else if (period - first >= size) {
+                final int newSize = period - first + 1;
+                if (newSize > inputs.length) {
+                    resize(Math.max(newSize, inputs.length * 2), 0);
+                }
+                size = newSize;
+            }
+            return period - first;
+        }
+
+        private void resize(final int capacity, final int offset) {
+            final long[] newInputs = new long[Math.max(capacity, 12)];
+            final long[] newOutputs = new long[newInputs.length];
+            final long[][] newExisting = new long[newInputs.length][];
+            System.arraycopy(inputs, 0, newInputs, offset, size);
+            System.arraycopy(outputs, 0, newOutputs, offset, size);
+            System.arraycopy(existing, 0, newExisting, offset, size);
+            inputs = newInputs;
+            outputs = newOutputs;
+            existing = newExisting;
+        }
+    }
+
+    /**
+     * Progress of a rebuild
+     */
+    private static final class Rebuild {
+
+        private final boolean dryRun;
+        private final int fromPeriod;
+        private final String fromYearMonth;
+        private final LocalDate fromDate;
+        private final LocalDateTime startedAt = LocalDateTime.now();
+
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicLong changedRows = new AtomicLong();
+        private final AtomicLong nextSlot = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicInteger diffCount = new AtomicInteger();
+        private final Queue<StockRebuildDiff> diffs = new ConcurrentLinkedQueue<>();
+
+        private volatile StockRebuildStatus status = StockRebuildStatus.RUNNING;
+        private volatile int products;
+        private volatile LocalDateTime finishedAt;
+        private volatile String message;
+
+        Rebuild(final boolean dryRun, final int fromPeriod) {
+            this.dryRun = dryRun;
+            this.fromPeriod = fromPeriod;
+            // yyyyMM text compares in the same order as the periods, "" is before all of them
+            this.fromYearMonth = fromPeriod == Periods.NONE? "": Periods.format(fromPeriod);
+            this.fromDate = fromPeriod == Periods.NONE? LocalDate.of(1, 1, 1): Periods.toYearMonth(fromPeriod).atDay(1);
+        }
+
+        void addDiff(final StockRebuildDiff diff, final int maxDiffs) {
+            if (diffCount.incrementAndGet() <= maxDiffs) {
+                diffs.add(diff);
+            }
+        }
+
+        void finish(final StockRebuildStatus status, final String message) {
+            this.message = message;
+            this.finishedAt = LocalDateTime.now();
+            this.status = status;
+        }
+
+        StockRebuildDTO toDTO() {
+            return StockRebuildDTO.builder()
+                    .status(status)
+                    .dryRun(dryRun)
+                    .fromYearMonth(Periods.format(fromPeriod))
+                    .products(products)
+                    .processedProducts(processed.get())
+                    .failedProducts(failed.get())
+                    .changedRows(changedRows.get())
+                    .startedAt(startedAt)
+                    .finishedAt(finishedAt)
+                    .message(message)
+                    .diffs(dryRun? List.copyOf(diffs): null)
+                    .build();
+        }
+    }
+
+    /**
+     * Loads the ids of the products to rebuild and splits them across the pool
+     */
+    private final class RebuildAll extends RecursiveAction {
+
+        private final Rebuild rebuild;
+
+        RebuildAll(final Rebuild rebuild) {
+            this.rebuild = rebuild;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                final long[] productIds = jdbcTemplate.queryForList(SELECT_PRODUCTS, Long.class, Date.valueOf(rebuild.fromDate), rebuild.fromYearMonth)
+                        .stream()
+                        .mapToLong(Long::longValue)
+                        .toArray();
+                rebuild.products = productIds.length;
+                new RebuildProducts(rebuild, productIds, 0, productIds.length).invoke();
+                final String message = rebuild.failed.get() == 0? null: rebuild.failed.get() + " products failed, see the log";
+                rebuild.finish(rebuild.failed.get() == 0? StockRebuildStatus.COMPLETED: StockRebuildStatus.FAILED, message);
+                if (!rebuild.dryRun && rebuild.changedRows.get() > 0) {
+                    changePublisher.resync();
+                }
+                log.info("stock rebuild finished: {} products, {} rows {}, {} failed", productIds.length, rebuild.changedRows.get(),
+                        rebuild.dryRun? "differ": "written", rebuild.failed.get());
+            } catch (RuntimeException e) {
+                log.error("stock rebuild failed", e);
+                rebuild.finish(StockRebuildStatus.FAILED, e.getMessage());
+            }
+        }
+    }
+
+    private final class RebuildProducts extends RecursiveAction {
+
+        private final Rebuild rebuild;
+        private final long[] productIds;
+        private final int from;
+        private final int to;
+
+        RebuildProducts(final Rebuild rebuild, final long[] productIds, final int from, final int to) {
+            this.rebuild = rebuild;
+            this.productIds = productIds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARTITION_SIZE) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new RebuildProducts(rebuild, productIds, from, middle),
+                        new RebuildProducts(rebuild, productIds, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                try {
+                    rebuildProduct(rebuild, productIds[i]);
+                } catch (RuntimeException e) {
+                    rebuild.failed.incrementAndGet();
+                    log.error("stock rebuild of product {} failed: {}", productIds[i], e.getMessage());
+                }
+                final int processed = rebuild.processed.incrementAndGet();
+                if (processed % PROGRESS_LOG_INTERVAL == 0) {
+                    log.info("stock rebuild: {}/{} products processed", processed, rebuild.products);
+                }
+            }
+        }
+    }
+}
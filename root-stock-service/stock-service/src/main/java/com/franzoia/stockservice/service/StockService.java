@@ -5,18 +5,29 @@ import com.franzoia.common.exception.EntityNotFoundException;
 import com.franzoia.common.exception.InvalidRequestException;
 import com.franzoia.common.exception.ServiceNotAvailableException;
 import com.franzoia.common.util.DefaultService;
+import com.franzoia.common.util.Periods;
+import com.franzoia.common.util.StockRequests;
 import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.model.StockUpdateKey;
+import com.franzoia.stockservice.model.StockView;
 import com.franzoia.stockservice.repository.StockRepository;
 import com.franzoia.stockservice.service.mapper.StockMapper;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.groupingBy;
 
@@ -24,12 +35,47 @@ import static java.util.stream.Collectors.groupingBy;
 @Service
 public class StockService extends DefaultService<StockDTO, Stock, StockKey, StockMapper> {
 
-    public static final DateTimeFormatter YYYY_MM_DD = DateTimeFormatter.ofPattern("yyyyMMdd");
-    public static final DateTimeFormatter YYYY_MM = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final int STREAM_CHUNK_SIZE = Integer.parseInt(StockRepository.STREAM_FETCH_SIZE);
 
     @Autowired
     private ProductService productService;
 
+    @Autowired
+    private StockBalanceEngine balanceEngine;
+
+    @Autowired(required = false)
+    private StockLedger ledger;
+
+    @Autowired(required = false)
+    private StockMatrix matrix;
+
+    @Autowired(required = false)
+    private StockPresence presence;
+
+    @Autowired
+    private StockPeriodService periodService;
+
+    @Autowired
+    private StockBalanceIndex balanceIndex;
+
+    @Autowired
+    private StockChangePublisher changePublisher;
+
+    @Autowired
+    private StockChangeBroadcaster changeBroadcaster;
+
+    @Autowired
+    private StockUpdateKeys updateKeys;
+
+    @Autowired
+    private TransactionService transactionService;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
     public StockService(final StockRepository stockRepository) {
         super(stockRepository, new StockMapper());
     }
@@ -38,8 +84,9 @@ public class StockService extends DefaultService<StockDTO, Stock, StockKey, Stoc
      * List all stock information available
      * @return List of stock data
      */
+    @Transactional(readOnly = true)
     public List<StockDTO> listALl() throws ServiceNotAvailableException, EntityNotFoundException {
-        return createListOfStockDTO(((StockRepository) repository).findAllOrderByYearMonthAndProductId(), null);
+        return createListOfStockDTO(withPending(() -> toStocks(((StockRepository) repository).findAllViewsOrderByYearMonthAndProductId()), key -> true), null);
     }
 
     /**
@@ -51,9 +98,28 @@ public class StockService extends DefaultService<StockDTO, Stock, StockKey, Stoc
      * @throws EntityNotFoundException when the product is not found
      * @throws ServiceNotAvailableException the the product-service is not available
      */
+    @Transactional(readOnly = true)
     public StockDTO getByYearMonthAndProduct(final String period, final Long productId) throws EntityNotFoundException, ServiceNotAvailableException {
         final ProductDTO product = productService.getProductById(productId);
-        final Stock stock = findByIdChecked(new StockKey(period, productId));
+        final StockKey key = new StockKey(StockRequests.toPeriod(period), productId);
+        final Stock cached = matrix == null? null: matrix.get(key.getPeriod(), productId);
+        final Stock stock;
+        if (cached != null) {
+            if (cached == StockMatrix.MISSING) {
+                throw new EntityNotFoundException("Could not find entity with id: " + key);
+            }
+            stock = cached;
+        } else if (periodService.isClosed(key.getPeriod())) {
+            stock = Optional.ofNullable(periodService.getClosedStocks(key.getPeriod()).get(productId))
+                    .orElseThrow(() -> new EntityNotFoundException("Could not find entity with id: " + key));
+        } else if (ledger == null) {
+            stock = findByIdChecked(key);
+        } else {
+            stock = withPending(() -> repository.findById(key).stream().toList(), key::equals)
+                    .stream()
+                    .findFirst()
+                    .orElseThrow(() -> new EntityNotFoundException("Could not find entity with id: " + key));
+        }
         return StockDTO.builder()
                 .key(stock.getKey())
                 .product(product)
@@ -72,26 +138,165 @@ public class StockService extends DefaultService<StockDTO, Stock, StockKey, Stoc
      * @throws EntityNotFoundException if the product doesn't exists
      * @throws ServiceNotAvailableException if the product service is not available to validate the product
      */
+    @Transactional(readOnly = true)
     public List<StockDTO> listByProduct(final Long productId) throws EntityNotFoundException, ServiceNotAvailableException {
         final ProductDTO product = productService.getProductById(productId);
-        return createListOfStockDTO(((StockRepository)repository).findAllByProductId(productId), product);
+        return createListOfStockDTO(withPending(() -> toStocks(((StockRepository) repository).findAllViewsByProductId(productId)),
+                key -> key.getProductId().equals(productId)), product);
     }
 
+    @Transactional(readOnly = true)
     public List<StockDTO> listByYearMonth(final String yeahMonthPeriod) {
-        return createListOfStockDTO(((StockRepository) repository).findAllByYearMonth(yeahMonthPeriod), null);
+        final int period = StockRequests.toPeriod(yeahMonthPeriod);
+        final List<Stock> cached = matrix == null? null: matrix.listByPeriod(period);
+        if (cached != null) {
+            return createListOfStockDTO(cached, null);
+        }
+        if (periodService.isClosed(period)) {
+            return createListOfStockDTO(new ArrayList<>(periodService.getClosedStocks(period).values()), null);
+        }
+        return createListOfStockDTO(withPending(() -> toStocks(((StockRepository) repository).findAllViewsByYearMonth(period)),
+                key -> key.getPeriod() == period), null);
+    }
+
+    /**
+     * Subscribes to the stock changes committed from now on
+     *
+     * @param productId only the changes of this product, all products when null
+     * @param yearMonth only the changes that affect the stocks of this year/month, all when null
+     * @param resync whether the subscriber starts by reloading its stocks, as it may have missed changes
+     * @throws ServiceNotAvailableException when there are too many subscribers
+     */
+    public SseEmitter subscribeToChanges(final Long productId, final String yearMonth, final boolean resync)
+            throws ServiceNotAvailableException {
+        final int period = yearMonth == null || yearMonth.isBlank()? Periods.NONE: StockRequests.toPeriod(yearMonth);
+        return changeBroadcaster.subscribe(productId, period, resync);
+    }
+
+    /**
+     * Retrieve the stock balance of a product at a point in time
+     *
+     * @param productId the id of the product
+     * @param at a "yyyyMM" period for the balance at the end of that month, or a date for the balance at the
+     *           end of that day. The current date when not provided
+     * @return the balance of the product
+     * @throws EntityNotFoundException when the product is not found
+     * @throws ServiceNotAvailableException when the product-service, or the transaction-service for the balance of a day, is not available
+     */
+    public StockBalanceDTO getBalance(final Long productId, final String at) throws EntityNotFoundException, ServiceNotAvailableException {
+        productService.getProductById(productId);
+        final LocalDate date = StockRequests.toBalanceDate(at);
+        if (date == null) {
+            final int period = StockRequests.toPeriod(at);
+            return StockBalanceDTO.builder()
+                    .productId(productId)
+                    .yearMonth(Periods.format(period))
+                    .balance(balanceIndex.getBalance(productId, period))
+                    .build();
+        }
+        return StockBalanceDTO.builder()
+                .productId(productId)
+                .date(date)
+                .balance(balanceIndex.getBalance(productId, date))
+                .build();
+    }
+
+    /**
+     * Retrieve the stock balance of all products at a point in time, see {@link #getBalance(Long, String)}
+     *
+     * @throws ServiceNotAvailableException when the balance of a day is asked and the transaction-service is not available
+     */
+    public StockBalanceDTO getTotalBalance(final String at) throws ServiceNotAvailableException {
+        final LocalDate date = StockRequests.toBalanceDate(at);
+        if (date == null) {
+            final int period = StockRequests.toPeriod(at);
+            return StockBalanceDTO.builder()
+                    .yearMonth(Periods.format(period))
+                    .balance(((StockRepository) repository).sumBalancesAtEndOf(Periods.format(period)))
+                    .build();
+        }
+        final String previous = Periods.format(Periods.previous(Periods.of(date)));
+        return StockBalanceDTO.builder()
+                .date(date)
+                .balance(((StockRepository) repository).sumBalancesAtEndOf(previous)
+                        + transactionService.getDailyMovements(date.withDayOfMonth(1), date, null).values().stream()
+                                .mapToLong(Long::longValue)
+                                .sum())
+                .build();
+    }
+
+    /**
+     * The list queries read projections instead of entities, so the rows are never tracked by the
+     * persistence context of the read-only transaction
+     */
+    private static List<Stock> toStocks(final List<StockView> views) {
+        final List<Stock> stocks = new ArrayList<>(views.size());
+        views.forEach(view -> stocks.add(view.toStock()));
+        return stocks;
+    }
+
+    /**
+     * Merges the stock updates not yet flushed by the write-behind ledger, when it is enabled
+     */
+    private List<Stock> withPending(final Supplier<List<Stock>> query, final Predicate<StockKey> missing) {
+        return ledger == null? query.get(): ledger.merge(query, missing);
+    }
+
+    /**
+     * Streams all stock information, ordered by year/month and product, reading the rows through a
+     * database cursor so the memory used doesn't depend on the number of stocks
+     *
+     * @param consumer receives each stock information, in order
+     */
+    @Transactional(readOnly = true)
+    public void streamAll(final Consumer<StockDTO> consumer) {
+        streamStockDTO(((StockRepository) repository)::streamAllOrderByYearMonthAndProductId, consumer);
+    }
+
+    /**
+     * Streams the stock information of all products for a year/month, see {@link #streamAll(Consumer)}
+     *
+     * @param yearMonthPeriod the year/month period
+     * @param consumer receives each stock information, in order
+     */
+    @Transactional(readOnly = true)
+    public void streamByYearMonth(final String yearMonthPeriod, final Consumer<StockDTO> consumer) {
+        streamStockDTO(() -> ((StockRepository) repository).streamAllByYearMonth(StockRequests.toPeriod(yearMonthPeriod)), consumer);
+    }
+
+    private void streamStockDTO(final Supplier<Stream<Stock>> query, final Consumer<StockDTO> consumer) {
+        // rows leave the persistence context as soon as they are read, the stream is read-only
+        final Supplier<Stream<Stock>> detached = () -> query.get().map(stock -> {
+            entityManager.detach(stock);
+            return stock;
+        });
+        // the products are looked up once per chunk of rows
+        final List<Stock> chunk = new ArrayList<>(STREAM_CHUNK_SIZE);
+        try (Stream<Stock> stocks = ledger == null? detached.get(): ledger.merge(detached)) {
+            stocks.forEach(stock -> {
+                chunk.add(stock);
+                if (chunk.size() == STREAM_CHUNK_SIZE) {
+                    createListOfStockDTO(chunk, null).forEach(consumer);
+                    chunk.clear();
+                }
+            });
+        }
+        createListOfStockDTO(chunk, null).forEach(consumer);
     }
 
     private List<StockDTO> createListOfStockDTO(final List<Stock> stocks, final ProductDTO product) {
-        final Map<Long, List<ProductDTO>> productsMap = product == null? productService.getProductMap(): null;
+        final Map<Long, ProductDTO> productsMap = product == null?
+                productService.getProducts(stocks.stream().map(s -> s.getKey().getProductId()).distinct().toList()):
+                null;
 
-        // fallback for category-service
+        // fallback for product-service
         final Function<Long, ProductDTO> prod = id -> {
-            if (productsMap == null || productsMap.isEmpty() || !productsMap.containsKey(id)) {
+            if (productsMap == null || !productsMap.containsKey(id)) {
                 return ProductDTO.builder()
                         .name("Unavailable Product Data")
                         .build();
             } else {
-                return productsMap.get(id).get(0);
+                return productsMap.get(id);
             }
         };
 
@@ -106,159 +311,303 @@ public class StockService extends DefaultService<StockDTO, Stock, StockKey, Stoc
                                 .build()).toList();
     }
 
-    @Transactional
+    /**
+     * Applies a stock update. An update with an idempotency key that was already applied is not applied
+     * again, it gets the result of the first one. An update that fails leaves nothing behind, its key included,
+     * so it can be retried with the same key.
+     */
+    @Transactional(rollbackFor = Exception.class)
     public void addOrUpdateStock(final StockUpdateRequest updateRequest)
             throws EntityNotFoundException, ServiceNotAvailableException {
-        switch (updateRequest.type()) {
-            case INPUT -> addToStock(updateRequest.key().getYearMonth(), updateRequest.key().getProductId(), updateRequest.quantity());
-            case OUTPUT -> removeFromStock(updateRequest.key().getYearMonth(), updateRequest.key().getProductId(), updateRequest.quantity());
+        final String invalid = validate(updateRequest);
+        if (invalid != null) {
+            throw new InvalidRequestException(invalid);
+        }
+        if (updateRequest.idempotencyKey() != null) {
+            final StockUpdateKey recorded = updateKeys.claim(updateRequest);
+            if (recorded != null) {
+                if (recorded.getStatus() == StockUpdateStatus.REJECTED) {
+                    throw new InvalidRequestException(recorded.getMessage());
+                }
+                return;
+            }
         }
-        // just make sure everything is correctly calculated
-        syncStockBalance(updateRequest.key().getProductId());
+        periodService.checkOpen(updateRequest.key().getPeriod());
+        if (ledger != null) {
+            ledger.record(updateRequest);
+        } else {
+            switch (updateRequest.type()) {
+                case INPUT -> addToStock(updateRequest.key().getPeriod(), updateRequest.key().getProductId(), updateRequest.quantity());
+                case OUTPUT -> removeFromStock(updateRequest.key().getPeriod(), updateRequest.key().getProductId(), updateRequest.quantity());
+            }
+        }
+        changePublisher.publish(List.of(updateRequest));
     }
 
     /**
-     * Add a quantity to the stock of a product on a specific date, converted to Year/Month
+     * Applies a batch of stock updates. The lines are grouped by product and year/month period, their
+     * quantities are netted and every product is recalculated once, all in a single transaction.
+     * Invalid lines and outputs that exceed the balance of their period, or of a period after it, are
+     * rejected without affecting the other lines. Lines with an idempotency key that was already applied are not applied again, they
+     * get the result of the first one.
+     *
+     * @param updateRequests the stock updates
+     * @return the result of each line, in the same order as the request
      */
-    @Transactional
-    public void addToStock(final String yearMonth, final Long productId, final Long quantity) throws EntityNotFoundException {
-        // retrieve the Stock for the Product
-        Stock stock = repository.findById(new StockKey(yearMonth, productId)).orElse(null);
-
-        if (stock == null) {
-            Stock previousStock = getPreviousMonthStock(yearMonth, productId);
-            Long previous = previousStock == null? 0L: previousStock.getCurrentBalance();
-            saveStockUpdate(yearMonth, productId,
-                    quantity,
-                    0L,
-                    previous,
-                    previous + quantity);
-        } else {
-            saveStockUpdate(yearMonth, productId,
-                    stock.getInputs() + quantity,
-                    stock.getOutputs(),
-                    stock.getPreviousBalance(),
-                    Math.min(stock.getCurrentBalance() + quantity, 0));
-        }
-        final String today = LocalDate.now().format(YYYY_MM);
-        if (Integer.parseInt(yearMonth) < Integer.parseInt(today)) {
-            updateForwardStock(yearMonth, productId);
+    public List<StockUpdateResult> addOrUpdateStocks(final List<StockUpdateRequest> updateRequests) {
+        if (updateRequests.stream().anyMatch(r -> r != null && r.idempotencyKey() != null)) {
+            // the keys are recorded in the same transaction as the updates they identify
+            return transactionTemplate.execute(status -> applyStocks(updateRequests));
         }
+        return applyStocks(updateRequests);
     }
 
-    /**
-     * removes a quantity from the stock of a product on a specific date, converted to Year/Month
-     */
-    public void removeFromStock(final String yearMonth, final Long productId, final Long quantity) throws EntityNotFoundException, InvalidRequestException {
-        // retrieve the Stock for the Product
-        StockKey key = new StockKey(yearMonth, productId);
-        Stock stock = repository.findById(key).orElse(null);
-
-        if (stock == null) {
-            Stock previousStock = getPreviousMonthStock(yearMonth, productId);
-            if (previousStock == null ) {
-                log.info("No Stock information found for {}, remove not possible", key);
-                throw new EntityNotFoundException("No Stock information found, remove not possible");
+    private List<StockUpdateResult> applyStocks(final List<StockUpdateRequest> updateRequests) {
+        final StockUpdateResult[] results = new StockUpdateResult[updateRequests.size()];
+        final SortedMap<Long, SortedMap<Integer, StockBalanceEngine.Movement>> movements = new TreeMap<>();
+        // lines whose idempotency key was already applied, by an earlier request or an earlier line of the batch
+        final Set<Integer> replayed = new HashSet<>();
+        // lines repeating an earlier line of the batch, with the line they repeat
+        final Map<Integer, Integer> repeated = new HashMap<>();
+        final Map<String, Integer> keyLines = new HashMap<>();
+
+        for (int line = 0; line < updateRequests.size(); line++) {
+            final StockUpdateRequest updateRequest = updateRequests.get(line);
+            final String invalid = validateOpen(updateRequest);
+            if (invalid != null) {
+                results[line] = rejected(line, updateRequest, invalid);
+                continue;
+            }
+            if (updateRequest.idempotencyKey() != null) {
+                final Integer first = keyLines.putIfAbsent(updateRequest.idempotencyKey(), line);
+                if (first != null) {
+                    if (updateRequest.equals(updateRequests.get(first))) {
+                        repeated.put(line, first);
+                        replayed.add(line);
+                    } else {
+                        results[line] = rejected(line, updateRequest, "Idempotency key was used by a different stock update");
+                    }
+                    continue;
+                }
+                final StockUpdateKey recorded;
+                try {
+                    recorded = updateKeys.claim(updateRequest);
+                } catch (InvalidRequestException e) {
+                    results[line] = rejected(line, updateRequest, e.getMessage());
+                    continue;
+                }
+                if (recorded != null) {
+                    results[line] = StockUpdateResult.builder()
+                            .line(line)
+                            .key(updateRequest.key())
+                            .status(recorded.getStatus())
+                            .message(recorded.getMessage())
+                            .build();
+                    replayed.add(line);
+                    continue;
+                }
+            }
+            final long quantity = updateRequest.quantity();
+            movements.computeIfAbsent(updateRequest.key().getProductId(), id -> new TreeMap<>())
+                    .merge(updateRequest.key().getPeriod(),
+                            updateRequest.type() == TransactionType.INPUT?
+                                    new StockBalanceEngine.Movement(quantity, 0):
+                                    new StockBalanceEngine.Movement(0, quantity),
+                            (m1, m2) -> new StockBalanceEngine.Movement(m1.inputs() + m2.inputs(), m1.outputs() + m2.outputs()));
+        }
 
-            } else if (previousStock.getCurrentBalance() < quantity) {
-                log.info("Removal quantity cannot exceed the current balance");
-                throw new InvalidRequestException("quantity cannot exceed the current balance");
+        if (ledger != null) {
+            return published(updateRequests, repeated(recordStocks(updateRequests, results, replayed), repeated), replayed);
+        }
 
+        final StockBalanceEngine.Applied applied = movements.isEmpty()?
+                new StockBalanceEngine.Applied(Map.of(), Periods.NONE): balanceEngine.apply(movements);
+
+        for (int line = 0; line < updateRequests.size(); line++) {
+            if (results[line] != null || replayed.contains(line)) {
+                continue;
+            }
+            final StockUpdateRequest updateRequest = updateRequests.get(line);
+            final StockKey key = updateRequest.key();
+            if (key.getPeriod() <= applied.closedThrough()) {
+                results[line] = rejectedKey(line, updateRequest, String.format("Year/Month period %s is closed", key.getYearMonth()));
+            } else if (updateRequest.type() == TransactionType.OUTPUT
+                    && applied.rejectedOutputs().getOrDefault(key.getProductId(), Set.of()).contains(key.getPeriod())) {
+                results[line] = rejectedKey(line, updateRequest, "Removal quantity cannot exceed the current balance");
             } else {
-                saveStockUpdate(yearMonth, productId,
-                        0L,
-                        quantity,
-                        previousStock.getCurrentBalance(),
-                        Math.min(previousStock.getCurrentBalance() - quantity, 0));
+                results[line] = StockUpdateResult.builder()
+                        .line(line)
+                        .key(key)
+                        .status(StockUpdateStatus.APPLIED)
+                        .build();
+            }
+        }
+        return published(updateRequests, repeated(results, repeated), replayed);
+    }
 
+    private List<StockUpdateResult> published(final List<StockUpdateRequest> updateRequests, final List<StockUpdateResult> results,
+                                              final Set<Integer> replayed) {
+        final List<StockUpdateRequest> applied = new ArrayList<>(updateRequests.size());
+        for (int line = 0; line < updateRequests.size(); line++) {
+            if (results.get(line).status() == StockUpdateStatus.APPLIED && !replayed.contains(line)) {
+                applied.add(updateRequests.get(line));
             }
-        } else if (stock.getCurrentBalance() < quantity) {
-            log.info("Removal quantity cannot exceed the current balance");
-            throw new InvalidRequestException("Removal quantity cannot exceed the current balance");
+        }
+        changePublisher.publish(applied);
+        return results;
+    }
 
-        } else {
-            saveStockUpdate(yearMonth, productId,
-                    stock.getInputs(),
-                    stock.getOutputs() + quantity,
-                    stock.getPreviousBalance(),
-                    Math.min(stock.getCurrentBalance() - quantity, 0));
+    /**
+     * Gives the lines repeating an earlier line of the batch the result of that line, they are not applied
+     *
+     * @return the results of all lines
+     */
+    private static List<StockUpdateResult> repeated(final StockUpdateResult[] results, final Map<Integer, Integer> repeated) {
+        repeated.forEach((line, first) -> results[line] = StockUpdateResult.builder()
+                .line(line)
+                .key(results[first].key())
+                .status(results[first].status())
+                .message(results[first].message())
+                .build());
+        return Arrays.asList(results);
+    }
 
+    private StockUpdateResult[] recordStocks(final List<StockUpdateRequest> updateRequests, final StockUpdateResult[] results,
+                                             final Set<Integer> replayed) {
+        for (int line = 0; line < updateRequests.size(); line++) {
+            if (results[line] != null || replayed.contains(line)) {
+                continue;
+            }
+            final StockUpdateRequest updateRequest = updateRequests.get(line);
+            try {
+                ledger.record(updateRequest);
+                results[line] = StockUpdateResult.builder()
+                        .line(line)
+                        .key(updateRequest.key())
+                        .status(StockUpdateStatus.APPLIED)
+                        .build();
+            } catch (EntityNotFoundException | InvalidRequestException e) {
+                results[line] = rejectedKey(line, updateRequest, e.getMessage());
+            }
         }
-        final String today = LocalDate.now().format(YYYY_MM);
-        if (Integer.parseInt(yearMonth) < Integer.parseInt(today)) {
-            updateForwardStock(yearMonth, productId);
-        }
+        return results;
     }
 
     /**
-     * this will update all stock information for a product
-     *
-     * @param productId id of the product
-     * @throws EntityNotFoundException if the product doesn't exists
-     * @throws ServiceNotAvailableException if the product service is not available to validate the product
+     * Validates a line of a batch, which is also rejected when its period is closed
      */
-    @Transactional
-    public void syncStockBalance(final Long productId) throws EntityNotFoundException, ServiceNotAvailableException {
-        List<StockDTO> list = listByProduct(productId);
-        Long previousBalance = 0L;
-        for (StockDTO dto : list) {
-            // ignore previous years stock since the listByProduct brings everything
-            int stockYear = LocalDate.parse(dto.getKey().getYearMonth() + "01", YYYY_MM_DD).getYear();
-            if (stockYear < LocalDate.now().getYear()) continue;
-
-            // update the stock quantities
-            StockDTO updatedDTO = StockDTO.builder()
-                    .key(dto.getKey())
-                    .inputs(dto.getInputs())
-                    .outputs(dto.getOutputs())
-                    .previousBalance(previousBalance)
-                    .currentBalance(previousBalance + dto.getInputs() - dto.getOutputs())
-                    .build();
-            repository.save(mapper.convertDtoToEntity(updatedDTO));
-            previousBalance = updatedDTO.getCurrentBalance();
+    private String validateOpen(final StockUpdateRequest updateRequest) {
+        final String invalid = validate(updateRequest);
+        if (invalid == null && periodService.isClosed(updateRequest.key().getPeriod())) {
+            return String.format("Year/Month period %s is closed", updateRequest.key().getYearMonth());
         }
+        return invalid;
     }
 
+    /**
+     * @return why a stock update is invalid, null when it is valid
+     */
+    private static String validate(final StockUpdateRequest updateRequest) {
+        final String invalid = StockRequests.validate(updateRequest);
+        return invalid != null? invalid: StockUpdateKeys.validate(updateRequest);
+    }
 
+    /**
+     * Rejects a line that was validated, recording the result of its idempotency key
+     */
+    private StockUpdateResult rejectedKey(final int line, final StockUpdateRequest updateRequest, final String message) {
+        if (updateRequest.idempotencyKey() != null) {
+            updateKeys.rejected(updateRequest.idempotencyKey(), message);
+        }
+        return rejected(line, updateRequest, message);
+    }
 
-    private void updateForwardStock(final String currentPeriod, final Long productId) {
-        Stock currentStock = repository.findById(new StockKey(currentPeriod, productId)).orElse(null);
+    private StockUpdateResult rejected(final int line, final StockUpdateRequest updateRequest, final String message) {
+        return StockUpdateResult.builder()
+                .line(line)
+                .key(updateRequest == null? null: updateRequest.key())
+                .status(StockUpdateStatus.REJECTED)
+                .message(message)
+                .build();
+    }
 
-        assert currentStock != null;
-        Long balance = currentStock.getCurrentBalance();
-        LocalDate nextMonth = LocalDate.parse(currentPeriod + "01", YYYY_MM_DD);
+    /**
+     * Add a quantity to the stock of a product on a specific date, converted to Year/Month
+     */
+    @Transactional
+    public void addToStock(final int period, final Long productId, final Long quantity) {
+        periodService.checkOpen(period);
+        ((StockRepository) repository).lockProductMovements(productId);
+        periodService.checkStoredOpen(period);
+        // the row of the period usually exists already, created by the month opening
+        if (isAbsent(period, productId) || ((StockRepository) repository).incrementInputs(period, productId, quantity) == 0) {
+            ((StockRepository) repository).addInputs(Periods.format(period), productId, quantity);
+        }
+        balanceEngine.shiftForward(productId, period, quantity);
+        balanceIndex.movement(productId, period, quantity);
+    }
 
-        do {
-            nextMonth = nextMonth.plusMonths(1);
-            String nextPeriod = nextMonth.format(YYYY_MM);
-            Stock nextMoonthStock = repository.findById(new StockKey(nextPeriod, productId)).orElse(null);
-            if (nextMoonthStock != null) {
-                saveStockUpdate(nextPeriod, productId, nextMoonthStock.getInputs(), nextMoonthStock.getOutputs(),
-                        balance, Math.min(balance + nextMoonthStock.getInputs() - nextMoonthStock.getOutputs(), 0));
-                balance = nextMoonthStock.getCurrentBalance();
-            } else {
-                saveStockUpdate(nextPeriod, productId, 0L, 0L, balance, balance);
+    /**
+     * removes a quantity from the stock of a product on a specific date, converted to Year/Month
+     */
+    @Transactional
+    public void removeFromStock(final int period, final Long productId, final Long quantity) throws EntityNotFoundException, InvalidRequestException {
+        periodService.checkOpen(period);
+        ((StockRepository) repository).lockProductMovements(productId);
+        periodService.checkStoredOpen(period);
+
+        // a backdated output also lowers the following months, which can't go below zero either
+        final Long lowest = ((StockRepository) repository).findLowestBalanceAfterPeriod(productId, period);
+        if (lowest != null && lowest < quantity) {
+            log.info("Removal quantity cannot exceed the balance of the following months");
+            throw new InvalidRequestException("Removal quantity cannot exceed the balance of the following months");
+        }
+        // the balance check of the month is part of the update statements, nothing is written when it fails
+        if ((isAbsent(period, productId) || ((StockRepository) repository).incrementOutputs(period, productId, quantity) == 0)
+                && ((StockRepository) repository).addOutputs(Periods.format(period), productId, quantity) == 0) {
+            StockKey key = new StockKey(period, productId);
+            if ((presence == null || !presence.existsUpTo(period, productId))
+                    && repository.findById(key).isEmpty() && getPreviousStock(period, productId) == null) {
+                log.info("No Stock information found for {}, remove not possible", key);
+                throw new EntityNotFoundException("No Stock information found, remove not possible");
             }
+            log.info("Removal quantity cannot exceed the current balance");
+            throw new InvalidRequestException("Removal quantity cannot exceed the current balance");
+        }
+        balanceEngine.shiftForward(productId, period, -quantity);
+        balanceIndex.movement(productId, period, -quantity);
+    }
 
-        } while (!nextMonth.getMonth().equals(LocalDate.now().getMonth()));
+    /**
+     * Repair operation that recalculates all stock information for a product from its first open period.
+     * It is not part of the regular stock updates, which only apply deltas to the affected months
+     *
+     * @param productId id of the product
+     * @throws EntityNotFoundException if the product doesn't exists
+     * @throws ServiceNotAvailableException if the product service is not available to validate the product
+     */
+    public void syncStockBalance(final Long productId) throws EntityNotFoundException, ServiceNotAvailableException {
+        // implicit product validation
+        productService.getProductById(productId);
+        if (periodService.getClosedThrough() == Periods.NONE) {
+            balanceEngine.rebuild(productId);
+        } else {
+            balanceEngine.rebuild(productId, Periods.next(periodService.getClosedThrough()));
+        }
+        changePublisher.resync();
     }
 
-    private void saveStockUpdate(final String yearMonth, final Long productId, final Long in, final Long out, final Long previous, final Long current) {
-        StockDTO dto = StockDTO.builder()
-                .key(new StockKey(yearMonth, productId))
-                .inputs(in)
-                .outputs(out)
-                .previousBalance(previous)
-                .currentBalance(current)
-                .build();
-        log.info(dto.toString());
-        Stock entity = mapper.convertDtoToEntity(dto);
-        repository.save(entity);
+    /**
+     * @return true when the product has no known stock row in the period, see {@link StockPresence}. Only a
+     * hint for the updates, whose statements still create the row when it was there after all
+     */
+    private boolean isAbsent(final int period, final Long productId) {
+        return presence != null && presence.isAbsent(period, productId);
     }
 
-    private Stock getPreviousMonthStock(final String yearMonth, final Long productId) {
-        LocalDate currentDate = LocalDate.parse(yearMonth + "01", YYYY_MM_DD);
-        String previousYearMonth = currentDate.plusMonths(-1).format(YYYY_MM);
-        return repository.findById(new StockKey(previousYearMonth, productId)).orElse(null);
+    private Stock getPreviousStock(final int period, final Long productId) {
+        return ((StockRepository) repository)
+                .findFirstByKey_ProductIdAndKey_PeriodLessThanOrderByKey_PeriodDesc(productId, period)
+                .orElse(null);
     }
 }
@@ -0,0 +1,215 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockTotalsDTO;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.common.util.StockRequests;
+import com.franzoia.stockservice.model.StockTotals;
+import com.franzoia.stockservice.repository.StockRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Stock totals for dashboards, aggregated by the database so only the totals leave it.
+ * <p/>
+ * Totals that only cover closed periods never change, so they are cached until those periods are reopened.
+ * The totals per period of a range are split at the last closed period: the closed part is cached one
+ * period at a time and the open part is always read.
+ */
+@Service
+public class StockTotalsService {
+
+    private static final int DEFAULT_RANGE = 12;
+
+    private static final Object NOT_FOUND = new Object();
+
+    private final StockRepository stockRepository;
+
+    private final StockPeriodService periodService;
+
+    private final ProductService productService;
+
+    private final int maxMovers;
+
+    private final Cache<Integer, StockTotalsDTO> periodTotals;
+
+    private final Cache<TotalsKey, Object> rangeTotals;
+
+    public StockTotalsService(final StockRepository stockRepository,
+                              final StockPeriodService periodService,
+                              final ProductService productService,
+                              final MeterRegistry registry,
+                              @Value("${stock.totals.cache-size:10000}") final long cacheSize,
+                              @Value("${stock.totals.max-movers:100}") final int maxMovers) {
+        this.stockRepository = stockRepository;
+        this.periodService = periodService;
+        this.productService = productService;
+        this.maxMovers = maxMovers;
+        this.periodTotals = Caffeine.newBuilder().maximumSize(cacheSize).recordStats().build();
+        this.rangeTotals = Caffeine.newBuilder().maximumSize(cacheSize).recordStats().build();
+        CaffeineCacheMetrics.monitor(registry, periodTotals, "stock-period-totals");
+        CaffeineCacheMetrics.monitor(registry, rangeTotals, "stock-range-totals");
+        periodService.addReopenListener(this::invalidateAfter);
+    }
+
+    /**
+     * Totals of inputs, outputs and balances of all products for each period of a range
+     *
+     * @param from first "yyyyMM" period, 11 months before the last one when not provided
+     * @param to last "yyyyMM" period, the current month when not provided
+     * @return the totals of each period with stock, in order
+     */
+    @Transactional(readOnly = true)
+    public List<StockTotalsDTO> getTotalsByPeriod(final String from, final String to) {
+        final int[] range = toRange(from, to);
+        final List<StockTotalsDTO> totals = new ArrayList<>();
+        final int closedThrough = Math.min(periodService.getClosedThrough(), range[1]);
+
+        if (range[0] <= closedThrough) {
+            List<StockTotalsDTO> closed = new ArrayList<>();
+            for (int period = range[0]; period <= closedThrough && closed != null; period = Periods.next(period)) {
+                final StockTotalsDTO periodTotal = periodTotals.getIfPresent(period);
+                if (periodTotal == null) {
+                    closed = null;
+                } else {
+                    closed.add(periodTotal);
+                }
+            }
+            if (closed == null) {
+                closed = loadClosedTotals(range[0], closedThrough);
+            }
+            // closed periods without stock are cached as empty totals
+            closed.stream().filter(t -> t.getProducts() != null).forEach(totals::add);
+        }
+
+        final int openFrom = Math.max(range[0], Periods.next(closedThrough));
+        if (openFrom <= range[1]) {
+            stockRepository.sumByPeriod(Periods.format(openFrom), Periods.format(range[1]))
+                    .forEach(t -> totals.add(convertToDTO(t)));
+        }
+        return totals;
+    }
+
+    private List<StockTotalsDTO> loadClosedTotals(final int from, final int to) {
+        final Map<String, StockTotalsDTO> loaded = new HashMap<>();
+        stockRepository.sumByPeriod(Periods.format(from), Periods.format(to))
+                .forEach(t -> loaded.put(t.getYearMonth(), convertToDTO(t)));
+        final List<StockTotalsDTO> closed = new ArrayList<>();
+        for (int period = from; period <= to; period = Periods.next(period)) {
+            final String yearMonth = Periods.format(period);
+            final StockTotalsDTO periodTotal = loaded.getOrDefault(yearMonth, StockTotalsDTO.builder().yearMonth(yearMonth).build());
+            periodTotals.put(period, periodTotal);
+            closed.add(periodTotal);
+        }
+        return closed;
+    }
+
+    /**
+     * Totals of inputs and outputs of one product over a range of periods, with its opening and closing balances
+     *
+     * @throws EntityNotFoundException when the product is not found or has no stock in the range
+     * @throws ServiceNotAvailableException when the product-service is not available
+     */
+    @Transactional(readOnly = true)
+    public StockTotalsDTO getTotalsByProduct(final Long productId, final String from, final String to)
+            throws EntityNotFoundException, ServiceNotAvailableException {
+        productService.getProductById(productId);
+        final int[] range = toRange(from, to);
+        final StockTotalsDTO totals = cached(new TotalsKey(productId, null, range[0], range[1]), () ->
+                stockRepository.sumByProduct(productId, Periods.format(range[0]), Periods.format(range[1]))
+                        .map(t -> convertToDTO(t, range))
+                        .orElse(null));
+        if (totals == null) {
+            throw new EntityNotFoundException(String.format("No Stock information found for product %d between %s and %s",
+                    productId, Periods.format(range[0]), Periods.format(range[1])));
+        }
+        return totals;
+    }
+
+    /**
+     * The products that moved the most quantity (inputs plus outputs) over a range of periods
+     *
+     * @param limit number of products, up to {@code stock.totals.max-movers}
+     */
+    @Transactional(readOnly = true)
+    public List<StockTotalsDTO> getTopMovers(final String from, final String to, final int limit) {
+        if (limit < 1 || limit > maxMovers) {
+            throw new InvalidRequestException(String.format("The number of products must be between 1 and %d", maxMovers));
+        }
+        final int[] range = toRange(from, to);
+        return cached(new TotalsKey(null, limit, range[0], range[1]), () ->
+                stockRepository.findTopMovers(Periods.format(range[0]), Periods.format(range[1]), limit).stream()
+                        .map(t -> convertToDTO(t, range))
+                        .toList());
+    }
+
+    /**
+     * Caches the totals of a range when it only covers closed periods
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T cached(final TotalsKey key, final Supplier<T> query) {
+        if (!periodService.isClosed(key.to())) {
+            return query.get();
+        }
+        final Object totals = rangeTotals.get(key, k -> {
+            final T result = query.get();
+            return result == null? NOT_FOUND: result;
+        });
+        return totals == NOT_FOUND? null: (T) totals;
+    }
+
+    private void invalidateAfter(final int period) {
+        periodTotals.asMap().keySet().removeIf(p -> p > period);
+        rangeTotals.asMap().keySet().removeIf(key -> key.to() > period);
+    }
+
+    private static int[] toRange(final String from, final String to) {
+        final int last = to == null || to.isBlank()? Periods.current(): StockRequests.toPeriod(to);
+        final int first = from == null || from.isBlank()? last - DEFAULT_RANGE + 1: StockRequests.toPeriod(from);
+        if (first > last) {
+            throw new InvalidRequestException("The first Year/Month period cannot be after the last one");
+        }
+        return new int[] { first, last };
+    }
+
+    private static StockTotalsDTO convertToDTO(final StockTotals totals) {
+        return StockTotalsDTO.builder()
+                .yearMonth(totals.getYearMonth())
+                .products(totals.getProducts())
+                .inputs(totals.getInputs())
+                .outputs(totals.getOutputs())
+                .openingBalance(totals.getOpeningBalance())
+                .closingBalance(totals.getClosingBalance())
+                .build();
+    }
+
+    private static StockTotalsDTO convertToDTO(final StockTotals totals, final int[] range) {
+        return StockTotalsDTO.builder()
+                .fromYearMonth(Periods.format(range[0]))
+                .toYearMonth(Periods.format(range[1]))
+                .productId(totals.getProductId())
+                .inputs(totals.getInputs())
+                .outputs(totals.getOutputs())
+                .openingBalance(totals.getOpeningBalance())
+                .closingBalance(totals.getClosingBalance())
+                .build();
+    }
+
+    /**
+     * Cache key of the totals of a range, of a product or of a number of top movers
+     */
+    private record TotalsKey(Long productId, Integer limit, int from, int to) {}
+}
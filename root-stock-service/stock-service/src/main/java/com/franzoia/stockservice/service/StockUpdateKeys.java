@@ -0,0 +1,143 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.StockUpdateStatus;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.stockservice.model.StockUpdateKey;
+import com.franzoia.stockservice.repository.StockUpdateKeyRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * Idempotency keys of the stock updates, so an update retried after a timeout or sent twice by a hedged
+ * call is applied only once.
+ * <p/>
+ * A key is recorded in the transaction that applies its update, so the key and the update are committed
+ * or rolled back together, and an update arriving while the same key is being applied waits for it.
+ * The keys are kept for {@code stock.idempotency.expire-after}, and the most recently replayed ones are
+ * also cached so further replays don't go to the database.
+ */
+@Slf4j
+@Component
+public class StockUpdateKeys {
+
+    private final StockUpdateKeyRepository repository;
+
+    private final Duration expireAfter;
+
+    private final Cache<String, StockUpdateKey> replayed;
+
+    private final Counter applied;
+
+    private final Counter replays;
+
+    public StockUpdateKeys(final StockUpdateKeyRepository repository,
+                           final MeterRegistry registry,
+                           @Value("${stock.idempotency.expire-after:24h}") final Duration expireAfter,
+                           @Value("${stock.idempotency.cache-size:10000}") final long cacheSize) {
+        this.repository = repository;
+        this.expireAfter = expireAfter;
+        this.replayed = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                // a key is only cached until it expires
+                .expireAfter(new Expiry<String, StockUpdateKey>() {
+                    @Override
+                    public long expireAfterCreate(final String idempotencyKey, final StockUpdateKey recorded, final long currentTime) {
+                        return Math.max(0, Duration.between(LocalDateTime.now(), recorded.getCreatedAt().plus(expireAfter)).toNanos());
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(final String idempotencyKey, final StockUpdateKey recorded, final long currentTime,
+                                                  final long currentDuration) {
+                        return expireAfterCreate(idempotencyKey, recorded, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(final String idempotencyKey, final StockUpdateKey recorded, final long currentTime,
+                                                final long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, replayed, "stock-update-keys");
+        this.applied = Counter.builder("stock.idempotency.keys").tag("result", "applied")
+                .description("Stock updates applied with an idempotency key")
+                .register(registry);
+        this.replays = Counter.builder("stock.idempotency.keys").tag("result", "replayed")
+                .description("Stock updates not applied again as their idempotency key was already applied")
+                .register(registry);
+    }
+
+    /**
+     * @return an error message when the idempotency key of the update is not valid, otherwise null
+     */
+    public static String validate(final StockUpdateRequest updateRequest) {
+        if (updateRequest.idempotencyKey() != null
+                && (updateRequest.idempotencyKey().isBlank() || updateRequest.idempotencyKey().length() > StockUpdateKey.MAX_LENGTH)) {
+            return String.format("Idempotency key must have between 1 and %d characters", StockUpdateKey.MAX_LENGTH);
+        }
+        return null;
+    }
+
+    /**
+     * Records the idempotency key of an update, it must be called in the transaction that applies the update
+     *
+     * @return null when the update has to be applied, or the key recorded when it was applied before
+     * @throws InvalidRequestException when the key is not valid or was recorded for a different update
+     */
+    public StockUpdateKey claim(final StockUpdateRequest updateRequest) {
+        final String invalid = validate(updateRequest);
+        if (invalid != null) {
+            throw new InvalidRequestException(invalid);
+        }
+        final String idempotencyKey = updateRequest.idempotencyKey();
+        StockUpdateKey recorded = replayed.getIfPresent(idempotencyKey);
+        if (recorded == null) {
+            if (repository.insertIfAbsent(idempotencyKey, updateRequest.key().getProductId(), updateRequest.key().getYearMonth(),
+                    updateRequest.type().name(), updateRequest.quantity(), LocalDateTime.now()) == 1) {
+                applied.increment();
+                return null;
+            }
+            recorded = repository.findById(idempotencyKey)
+                    .orElseThrow(() -> new InvalidRequestException("Idempotency key " + idempotencyKey + " is expiring, use a new one"));
+            replayed.put(idempotencyKey, recorded);
+        }
+        if (!recorded.matches(updateRequest)) {
+            log.info("Idempotency key {} was used by a different stock update", idempotencyKey);
+            throw new InvalidRequestException("Idempotency key was used by a different stock update");
+        }
+        replays.increment();
+        log.debug("stock update with idempotency key {} already applied, replaying its result", idempotencyKey);
+        return recorded;
+    }
+
+    /**
+     * Records that the update of a key claimed in the current transaction was rejected, the result replayed from then on
+     */
+    public void rejected(final String idempotencyKey, final String message) {
+        repository.updateResult(idempotencyKey, StockUpdateStatus.REJECTED, message);
+    }
+
+    /**
+     * Deletes the expired keys
+     */
+    @Scheduled(fixedDelayString = "${stock.idempotency.purge-ms:600000}")
+    public void purge() {
+        final int deleted = repository.deleteCreatedBefore(LocalDateTime.now().minus(expireAfter));
+        if (deleted > 0) {
+            log.info("{} expired stock update idempotency keys deleted", deleted);
+        }
+    }
+}
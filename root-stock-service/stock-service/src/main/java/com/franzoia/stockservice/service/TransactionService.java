@@ -0,0 +1,49 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.TransactionRollupDTO;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.stockservice.config.TransactionFeignClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Daily movements of the transactions, for the balances within a month. The stock rows only hold the
+ * movements of each month, the ones of each day are asked to the transaction-service, which owns them.
+ */
+@Slf4j
+@Component
+public class TransactionService {
+
+    private final TransactionFeignClient transactionFeignClient;
+
+    public TransactionService(final TransactionFeignClient transactionFeignClient) {
+        this.transactionFeignClient = transactionFeignClient;
+    }
+
+    /**
+     * @param productId only the transactions of this product, all of them when null
+     * @return the quantity moved by the transactions of each day between two dates, inclusive, by date. Days
+     * without transactions are left out
+     * @throws ServiceNotAvailableException when the transaction-service is not available
+     */
+    public SortedMap<LocalDate, Long> getDailyMovements(final LocalDate from, final LocalDate to, final Long productId)
+            throws ServiceNotAvailableException {
+        final List<TransactionRollupDTO> rollups;
+        try {
+            rollups = transactionFeignClient.getDailyRollups(from.toString(), to.toString(), productId);
+        } catch (RuntimeException e) {
+            log.error("transaction-service status: {}", e.getMessage());
+            throw new ServiceNotAvailableException("Transaction Service is unavailable");
+        }
+        final SortedMap<LocalDate, Long> movements = new TreeMap<>();
+        rollups.forEach(rollup -> movements.merge(rollup.date(),
+                rollup.type() == TransactionType.INPUT? rollup.quantity(): -rollup.quantity(), Long::sum));
+        return movements;
+    }
+}
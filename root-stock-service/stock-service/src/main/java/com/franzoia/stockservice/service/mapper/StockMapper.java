@@ -14,8 +14,8 @@ public class StockMapper implements AbstractMapper<Stock, StockDTO> {
 
     @Override
     public Stock convertDtoToEntity(StockDTO dto) {
-        StockKey key = new StockKey(dto.getKey().getYearMonth(), dto.getKey().getProductId());
-        return new Stock(key, dto.getPreviousBalance(), dto.getInputs(), dto.getOutputs(), dto.getCurrentBalance());
+        StockKey key = new StockKey(dto.getKey().getPeriod(), dto.getKey().getProductId());
+        return new Stock(key, dto.getPreviousBalance(), dto.getInputs(), dto.getOutputs(), dto.getCurrentBalance(), null);
     }
 
     @Override
@@ -0,0 +1,160 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.common.util.Periods;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.franzoia.stockservice.service.StockServiceTest.update;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false",
+        "stock.events.relay=local" })
+public class StockBalanceIndexTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) {
+        PostgresTestDatabase.register(registry);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @MockBean
+    TransactionService transactionService;
+
+    @Autowired
+    StockService service;
+
+    private static final int CURRENT = Periods.current();
+
+    private static final int PREVIOUS = Periods.previous(CURRENT);
+
+    private static final LocalDate FIRST_DAY = Periods.toYearMonth(CURRENT).atDay(1);
+
+    private static final LocalDate LAST_DAY = Periods.toYearMonth(CURRENT).atEndOfMonth();
+
+    @Test
+    void shouldAddTheDailyMovementsOfTheMonthToItsOpeningBalance() throws Exception {
+        // given
+        final long productId = 701;
+        service.addOrUpdateStock(update(PREVIOUS, productId, TransactionType.INPUT, 3));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 10));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.OUTPUT, 4));
+        when(transactionService.getDailyMovements(FIRST_DAY, LAST_DAY, productId))
+                .thenReturn(new TreeMap<>(Map.of(FIRST_DAY, 10L, LAST_DAY, -4L)));
+
+        // when
+        final long first = service.getBalance(productId, FIRST_DAY.toString()).getBalance();
+        final long last = service.getBalance(productId, LAST_DAY.toString()).getBalance();
+
+        // then
+        assertAll(
+                () -> assertEquals(13, first),
+                () -> assertEquals(9, last),
+                () -> assertEquals(3, service.getBalance(productId, Periods.format(PREVIOUS)).getBalance()),
+                () -> assertEquals(9, service.getBalance(productId, Periods.format(CURRENT)).getBalance())
+        );
+    }
+
+    @Test
+    void shouldAddTheDailyMovementsOfAllProductsToTheTotalBalance() throws Exception {
+        // given
+        when(transactionService.getDailyMovements(eq(FIRST_DAY), eq(FIRST_DAY), isNull()))
+                .thenReturn(new TreeMap<>(Map.of(FIRST_DAY, 7L)));
+
+        // when
+        final long total = service.getTotalBalance(FIRST_DAY.toString()).getBalance();
+
+        // then
+        assertEquals(service.getTotalBalance(Periods.format(PREVIOUS)).getBalance() + 7, total);
+    }
+
+    @Test
+    void shouldShiftTheBalancesOfTheFollowingPeriodsWithABackdatedMovement() throws Exception {
+        // given
+        final long productId = 703;
+        final int before = Periods.previous(PREVIOUS);
+        service.addOrUpdateStock(update(PREVIOUS, productId, TransactionType.INPUT, 10));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 2));
+        assertEquals(12, service.getBalance(productId, Periods.format(CURRENT)).getBalance());
+
+        // when
+        service.addOrUpdateStock(update(PREVIOUS, productId, TransactionType.INPUT, 5));
+        // the row of a period before the first one is added to the index
+        service.addOrUpdateStock(update(before, productId, TransactionType.INPUT, 1));
+
+        // then
+        assertAll(
+                () -> assertEquals(1, service.getBalance(productId, Periods.format(before)).getBalance()),
+                () -> assertEquals(16, service.getBalance(productId, Periods.format(PREVIOUS)).getBalance()),
+                () -> assertEquals(18, service.getBalance(productId, Periods.format(CURRENT)).getBalance())
+        );
+    }
+
+    @Test
+    void shouldReloadTheDailyMovementsThatDontMatchTheMovementOfTheMonth() throws Exception {
+        // given
+        final long productId = 704;
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 10));
+        when(transactionService.getDailyMovements(FIRST_DAY, LAST_DAY, productId))
+                .thenReturn(new TreeMap<>(Map.of(FIRST_DAY, 10L)));
+        assertEquals(10, service.getBalance(productId, LAST_DAY.toString()).getBalance());
+
+        // when
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 3));
+        when(transactionService.getDailyMovements(FIRST_DAY, LAST_DAY, productId))
+                .thenReturn(new TreeMap<>(Map.of(FIRST_DAY, 10L, LAST_DAY, 3L)));
+
+        // then
+        assertAll(
+                () -> assertEquals(13, service.getBalance(productId, LAST_DAY.toString()).getBalance()),
+                () -> assertEquals(10, service.getBalance(productId, FIRST_DAY.toString()).getBalance())
+        );
+        verify(transactionService, times(2)).getDailyMovements(FIRST_DAY, LAST_DAY, productId);
+    }
+
+    @Test
+    void shouldOnlyAnswerTheBalancesOfThePeriodsWithoutTheTransactionService() throws Exception {
+        // given
+        final long productId = 705;
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 4));
+        when(transactionService.getDailyMovements(FIRST_DAY, LAST_DAY, productId))
+                .thenThrow(new ServiceNotAvailableException("Transaction Service is unavailable"));
+
+        // when
+        Executable executable = () -> service.getBalance(productId, FIRST_DAY.toString());
+
+        // then
+        assertThrows(ServiceNotAvailableException.class, executable);
+        assertEquals(4, service.getBalance(productId, Periods.format(CURRENT)).getBalance());
+    }
+
+    @Test
+    void shouldNotAcceptABalanceDateThatIsNeitherADateNorAPeriod() {
+        // when
+        Executable executable = () -> service.getBalance(706L, "2024-13-45");
+
+        // then
+        assertThrows(InvalidRequestException.class, executable);
+    }
+}
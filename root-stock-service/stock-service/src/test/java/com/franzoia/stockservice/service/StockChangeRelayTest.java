@@ -0,0 +1,155 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.common.util.Periods;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.franzoia.stockservice.service.StockServiceTest.update;
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false",
+        "stock.events.relay=postgres" })
+public class StockChangeRelayTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) {
+        PostgresTestDatabase.register(registry);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @Autowired
+    StockService service;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @LocalServerPort
+    int port;
+
+    private static final int CURRENT = Periods.current();
+
+    private final List<Stream<String>> subscriptions = new ArrayList<>();
+
+    @AfterEach
+    void unsubscribe() {
+        subscriptions.forEach(Stream::close);
+    }
+
+    @Test
+    void shouldPushTheCommittedChangesOfTheSubscribedProduct() throws Exception {
+        // given
+        final long productId = 901;
+        final BlockingQueue<String> events = subscribe("?productId=" + productId, false);
+
+        // when
+        service.addOrUpdateStock(update(CURRENT, 902, TransactionType.INPUT, 3));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 7));
+
+        // then
+        final String data = awaitData(events, "stock");
+        assertAll(
+                () -> assertTrue(data.contains("\"productId\":901"), data),
+                () -> assertTrue(data.contains("\"type\":\"INPUT\""), data),
+                () -> assertTrue(data.contains("\"quantity\":7"), data)
+        );
+    }
+
+    @Test
+    void shouldPushTheChangesNotifiedByTheOtherInstances() throws Exception {
+        // given
+        final long productId = 903;
+        final BlockingQueue<String> events = subscribe("?productId=" + productId, false);
+
+        // when
+        notify("@other\n" + productId + "," + Periods.format(CURRENT) + ",O,2");
+        final String data = awaitData(events, "stock");
+        // a resync is sent ahead of the changes still buffered, so it follows the change once it was received
+        notify("@other\n" + StockChangeRelay.RESYNC);
+
+        // then
+        assertAll(
+                () -> assertTrue(data.contains("\"productId\":903"), data),
+                () -> assertTrue(data.contains("\"type\":\"OUTPUT\""), data),
+                () -> assertEquals(StockChangeBroadcaster.RESYNC_EVENT, awaitData(events, StockChangeBroadcaster.RESYNC_EVENT))
+        );
+    }
+
+    @Test
+    void shouldStartWithAResyncWhenReconnecting() throws Exception {
+        // when
+        final BlockingQueue<String> events = subscribe("?productId=904", true);
+
+        // then
+        assertEquals(StockChangeBroadcaster.RESYNC_EVENT, awaitData(events, StockChangeBroadcaster.RESYNC_EVENT));
+    }
+
+    private void notify(final String payload) {
+        jdbcTemplate.query("SELECT pg_notify(?, ?)", rs -> {}, StockChangeRelay.CHANNEL, payload);
+    }
+
+    /**
+     * @return the lines received by a subscriber of the stock changes, as they arrive
+     */
+    private BlockingQueue<String> subscribe(final String query, final boolean reconnecting) throws Exception {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(
+                URI.create("http://localhost:" + port + "/stock-service/api/v1/stocks/events" + query));
+        if (reconnecting) {
+            request.header("Last-Event-ID", "1");
+        }
+        final Stream<String> lines = HttpClient.newHttpClient()
+                .send(request.build(), HttpResponse.BodyHandlers.ofLines())
+                .body();
+        subscriptions.add(lines);
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        final Thread reader = new Thread(() -> {
+            try {
+                lines.forEach(events::add);
+            } catch (RuntimeException e) {
+                // unsubscribed
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return events;
+    }
+
+    /**
+     * @return the data of the next event with the name, skipping the events before it
+     */
+    private static String awaitData(final BlockingQueue<String> events, final String name) throws InterruptedException {
+        boolean named = false;
+        String line;
+        while ((line = events.poll(10, TimeUnit.SECONDS)) != null) {
+            if (line.startsWith("event:")) {
+                named = line.substring("event:".length()).equals(name);
+            } else if (named && line.startsWith("data:")) {
+                return line.substring("data:".length());
+            }
+        }
+        return fail("no " + name + " event received");
+    }
+}
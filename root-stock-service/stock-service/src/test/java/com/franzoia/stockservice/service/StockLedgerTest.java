@@ -0,0 +1,224 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.model.StockLedgerCheckpoint;
+import com.franzoia.stockservice.model.StockLedgerRejection;
+import com.franzoia.stockservice.repository.StockLedgerCheckpointRepository;
+import com.franzoia.stockservice.repository.StockLedgerRejectionRepository;
+import com.franzoia.stockservice.repository.StockRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static com.franzoia.stockservice.service.StockServiceTest.update;
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false",
+        "stock.events.relay=local",
+        "stock.write-behind.enabled=true",
+        "stock.write-behind.flush-interval-ms=3600000",
+        "stock.write-behind.journal-fsync=false" })
+public class StockLedgerTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) throws IOException {
+        PostgresTestDatabase.register(registry);
+        final String journalDir = Files.createTempDirectory("stock-journal").toString();
+        registry.add("stock.write-behind.journal-dir", () -> journalDir);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @Autowired
+    StockService service;
+
+    @Autowired
+    StockLedger ledger;
+
+    @Autowired
+    StockPeriodService periodService;
+
+    @Autowired
+    StockLedgerRejectionRepository rejectionRepository;
+
+    @Autowired
+    StockLedgerCheckpointRepository checkpointRepository;
+
+    @Autowired
+    StockRepository repository;
+
+    @Autowired
+    StockBalanceEngine balanceEngine;
+
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    private static final int CURRENT = Periods.current();
+
+    @AfterEach
+    void reopenAll() {
+        // nothing is left to flush when the database stops with the tests
+        ledger.flush();
+        jdbcTemplate.update("DELETE FROM stock_periods");
+        periodService.refresh();
+    }
+
+    @Test
+    void shouldNotJournalAnUpdateRolledBack() throws Exception {
+        // given
+        final long productId = 601;
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 5));
+        final StockUpdateRequest remove = new StockUpdateRequest(new StockKey(CURRENT, productId), TransactionType.OUTPUT, 3L, "ledger-601");
+
+        // when
+        transactionTemplate.executeWithoutResult(status -> {
+            try {
+                service.addOrUpdateStock(remove);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            // the update fails after being recorded, when publishing or committing it
+            status.setRollbackOnly();
+        });
+        service.addOrUpdateStock(remove);
+        ledger.flush();
+
+        // then
+        assertAll(
+                () -> assertEquals(3, service.getByYearMonthAndProduct(Periods.format(CURRENT), productId).getOutputs()),
+                () -> assertEquals(2, service.getByYearMonthAndProduct(Periods.format(CURRENT), productId).getCurrentBalance())
+        );
+    }
+
+    @Test
+    void shouldNotRemoveFromAPreviousMonthTheStockUsedByTheFollowingOnes() throws Exception {
+        // given
+        final long productId = 603;
+        final int previous = Periods.previous(CURRENT);
+        service.addOrUpdateStock(update(previous, productId, TransactionType.INPUT, 5));
+        ledger.flush();
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.OUTPUT, 5));
+
+        // when
+        Executable executable = () -> service.addOrUpdateStock(update(previous, productId, TransactionType.OUTPUT, 2));
+
+        // then
+        assertThrows(InvalidRequestException.class, executable);
+        assertEquals(0, service.getByYearMonthAndProduct(Periods.format(CURRENT), productId).getCurrentBalance());
+    }
+
+    @Test
+    void shouldKeepAsideTheMovementsOfAPeriodClosedBeforeTheFlush() throws Exception {
+        // given
+        final long productId = 602;
+        final int period = Periods.parse("200903");
+        ledger.flush();
+        service.addOrUpdateStock(update(period, productId, TransactionType.INPUT, 4));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 1));
+        // closed by another instance, after the movement was accepted
+        jdbcTemplate.update("INSERT INTO stock_periods (year_month, status, closed_at) VALUES ('200903', 'CLOSED', now())");
+
+        // when
+        ledger.flush();
+
+        // then
+        final List<StockLedgerRejection> rejections = rejectionRepository.findAllByProductIdOrderById(productId);
+        assertAll(
+                () -> assertEquals(1, rejections.size()),
+                () -> assertEquals("200903", rejections.get(0).getYearMonth()),
+                () -> assertEquals(4, rejections.get(0).getInputs()),
+                () -> assertEquals(0, jdbcTemplate.queryForObject(
+                        "SELECT COUNT(*) FROM stocks WHERE product_id = ? AND year_month = '200903'", Long.class, productId)),
+                () -> assertEquals(1, jdbcTemplate.queryForObject(
+                        "SELECT current_balance FROM stocks WHERE product_id = ? AND year_month = ?", Long.class,
+                        productId, Periods.format(CURRENT)))
+        );
+    }
+
+    @Test
+    void shouldMergeThePendingMovementsIntoTheReadsUntilTheyAreFlushed() throws Exception {
+        // given
+        final long productId = 604;
+        ledger.flush();
+
+        // when
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 6));
+        final long stored = countStocks(productId);
+        final long merged = service.getByYearMonthAndProduct(Periods.format(CURRENT), productId).getCurrentBalance();
+        ledger.flush();
+
+        // then
+        assertAll(
+                () -> assertEquals(0, stored),
+                () -> assertEquals(6, merged),
+                () -> assertEquals(1, countStocks(productId)),
+                () -> assertEquals(6, service.getByYearMonthAndProduct(Periods.format(CURRENT), productId).getCurrentBalance())
+        );
+    }
+
+    @Test
+    void shouldReplayOnlyTheJournalSegmentsNotFlushedBeforeTheShutdown() throws Exception {
+        // given
+        final long productId = 605;
+        final String yearMonth = Periods.format(CURRENT);
+        final Path journalDir = Files.createTempDirectory("stock-journal");
+        Files.writeString(journalDir.resolve("journal.id"), "605");
+        // segment 1 was flushed before the shutdown, the service stopped before deleting it
+        checkpointRepository.save(new StockLedgerCheckpoint(605L, 1L, LocalDateTime.now()));
+        Files.writeString(segment(journalDir, 1), "INPUT," + yearMonth + ",605,100\n");
+        // the last update of segment 2 was cut short by the crash, it was never acknowledged
+        Files.writeString(segment(journalDir, 2),
+                "INPUT," + yearMonth + ",605,8\nOUTPUT," + yearMonth + ",605,3\nINPUT," + yearMonth + ",6");
+
+        // when
+        final StockLedger restarted = new StockLedger(repository, checkpointRepository, rejectionRepository, balanceEngine,
+                transactionTemplate, new SimpleMeterRegistry(), journalDir.toString(), false);
+        try {
+            restarted.recover();
+        } finally {
+            restarted.close();
+        }
+
+        // then
+        assertAll(
+                () -> assertEquals(8, service.getByYearMonthAndProduct(yearMonth, productId).getInputs()),
+                () -> assertEquals(5, service.getByYearMonthAndProduct(yearMonth, productId).getCurrentBalance()),
+                () -> assertEquals(2, checkpointRepository.findById(605L).orElseThrow().getSegment()),
+                () -> assertFalse(Files.exists(segment(journalDir, 1))),
+                () -> assertFalse(Files.exists(segment(journalDir, 2)))
+        );
+    }
+
+    private static Path segment(final Path journalDir, final long segment) {
+        return journalDir.resolve(String.format("segment-%019d.log", segment));
+    }
+
+    private long countStocks(final long productId) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM stocks WHERE product_id = ?", Long.class, productId);
+    }
+}
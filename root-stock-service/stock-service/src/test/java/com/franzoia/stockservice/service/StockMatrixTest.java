@@ -0,0 +1,97 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.model.Stock;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import static com.franzoia.stockservice.service.StockServiceTest.update;
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false",
+        "stock.events.relay=postgres",
+        "stock.matrix.settle-ms=200" })
+public class StockMatrixTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) {
+        PostgresTestDatabase.register(registry);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @Autowired
+    StockMatrix matrix;
+
+    @Autowired
+    StockService service;
+
+    @Autowired
+    MeterRegistry registry;
+
+    private static final int CURRENT = Periods.current();
+
+    @Test
+    void shouldOnlyHoldThePeriodsAroundTheStocksOfEachProduct() throws Exception {
+        // given
+        final int first = Periods.of(1, 1);
+        final int last = Periods.of(9999, 12);
+        service.addOrUpdateStock(update(first, 301, TransactionType.INPUT, 3));
+        service.addOrUpdateStock(update(last, 302, TransactionType.INPUT, 4));
+
+        // when
+        matrix.reload();
+
+        // then
+        assertAll(
+                () -> assertEquals(3, awaitStock(first, 301L).getCurrentBalance()),
+                () -> assertEquals(4, awaitStock(last, 302L).getCurrentBalance()),
+                () -> assertSame(StockMatrix.MISSING, matrix.get(last, 301L)),
+                () -> assertTrue(registry.get("stock.matrix.cells").gauge().value() < 1000)
+        );
+    }
+
+    @Test
+    void shouldApplyTheCommittedChanges() throws Exception {
+        // given
+        final long productId = 303;
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 10));
+        matrix.reload();
+        awaitStock(CURRENT, productId);
+
+        // when
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.OUTPUT, 4));
+
+        // then
+        final Stock stock = awaitStock(CURRENT, productId);
+        assertAll(
+                () -> assertEquals(10, stock.getInputs()),
+                () -> assertEquals(4, stock.getOutputs()),
+                () -> assertEquals(6, stock.getCurrentBalance())
+        );
+    }
+
+    /**
+     * @return the stock served by the matrix once it is loaded and the product is not stale
+     */
+    private Stock awaitStock(final int period, final Long productId) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            final Stock stock = matrix.get(period, productId);
+            if (stock != null && stock != StockMatrix.MISSING) {
+                return stock;
+            }
+            Thread.sleep(100);
+        }
+        return fail("stock of product " + productId + " not served by the matrix");
+    }
+}
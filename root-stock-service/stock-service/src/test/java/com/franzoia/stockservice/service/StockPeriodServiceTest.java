@@ -0,0 +1,120 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockPeriodDTO;
+import com.franzoia.common.dto.StockUpdateStatus;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.common.util.Periods;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.util.List;
+
+import static com.franzoia.stockservice.service.StockServiceTest.update;
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false",
+        "stock.events.relay=local" })
+public class StockPeriodServiceTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) {
+        PostgresTestDatabase.register(registry);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @Autowired
+    StockPeriodService periodService;
+
+    @Autowired
+    StockService service;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void reopenAll() {
+        jdbcTemplate.update("DELETE FROM stock_periods");
+        periodService.refresh();
+    }
+
+    @Test
+    void shouldCloseThePeriodsWithTheirBalances() throws Exception {
+        // given
+        final long productId = 201;
+        final int period = Periods.parse("201003");
+        service.addOrUpdateStock(update(period, productId, TransactionType.INPUT, 10));
+
+        // when
+        final List<StockPeriodDTO> closed = periodService.close(period);
+
+        // then
+        final StockPeriodDTO last = closed.get(closed.size() - 1);
+        assertAll(
+                () -> assertEquals("201003", last.getYearMonth()),
+                () -> assertTrue(last.getProducts() >= 1),
+                () -> assertThrows(InvalidRequestException.class,
+                        () -> service.addOrUpdateStock(update(period, productId, TransactionType.INPUT, 1))),
+                () -> assertDoesNotThrow(
+                        () -> service.addOrUpdateStock(update(Periods.next(period), productId, TransactionType.INPUT, 1)))
+        );
+    }
+
+    @Test
+    void shouldReopenAClosedPeriod() throws Exception {
+        // given
+        final long productId = 202;
+        final int period = Periods.parse("201103");
+        periodService.close(period);
+
+        // when
+        periodService.reopen(Periods.previous(period));
+
+        // then
+        assertAll(
+                () -> assertEquals(Periods.previous(Periods.previous(period)), periodService.getClosedThrough()),
+                () -> assertDoesNotThrow(
+                        () -> service.addOrUpdateStock(update(Periods.previous(period), productId, TransactionType.INPUT, 1)))
+        );
+    }
+
+    @Test
+    void shouldRejectTheMovementsOfAPeriodClosedByAnotherInstance() {
+        // given
+        final long productId = 203;
+        final int period = Periods.parse("201203");
+        jdbcTemplate.update("INSERT INTO stock_periods (year_month, status, closed_at) VALUES ('201203', 'CLOSED', now())");
+
+        // when
+        Executable executable = () -> service.addOrUpdateStock(update(period, productId, TransactionType.INPUT, 1));
+
+        // then
+        assertAll(
+                () -> assertFalse(periodService.isClosed(period)),
+                () -> assertThrows(InvalidRequestException.class, executable),
+                () -> assertEquals(StockUpdateStatus.REJECTED, service.addOrUpdateStocks(
+                        List.of(update(period, productId, TransactionType.INPUT, 1))).get(0).status())
+        );
+    }
+
+    @Test
+    void shouldNotCloseTheCurrentPeriod() {
+        // when
+        Executable executable = () -> periodService.close(Periods.current());
+
+        // then
+        assertThrows(InvalidRequestException.class, executable);
+    }
+}
@@ -0,0 +1,133 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockDTO;
+import com.franzoia.common.dto.StockRebuildDTO;
+import com.franzoia.common.dto.StockRebuildDiff;
+import com.franzoia.common.dto.StockRebuildStatus;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.common.util.Periods;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static com.franzoia.stockservice.service.StockServiceTest.update;
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false",
+        "stock.events.relay=local" })
+public class StockRebuildServiceTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) {
+        PostgresTestDatabase.register(registry);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @Autowired
+    StockRebuildService rebuildService;
+
+    @Autowired
+    StockService service;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    private static final int CURRENT = Periods.current();
+
+    private static final int PREVIOUS = Periods.previous(CURRENT);
+
+    private static final LocalDate TODAY = LocalDate.now();
+
+    @BeforeEach
+    void createTransactions() {
+        // owned by the transaction-service, the rebuild reads it from the same database
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS transactions (id BIGSERIAL PRIMARY KEY, date DATE NOT NULL, " +
+                "type INTEGER NOT NULL, product_id BIGINT NOT NULL, quantity BIGINT NOT NULL, deleted BOOLEAN NOT NULL)");
+    }
+
+    @Test
+    void shouldReportTheRowsThatDifferFromTheTransactionsInADryRun() throws Exception {
+        // given
+        final long productId = 801;
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 5));
+        transaction(productId, TODAY, TransactionType.INPUT, 7, false);
+
+        // when
+        final StockRebuildDTO rebuild = await(rebuildService.start(true));
+
+        // then
+        final List<StockRebuildDiff> diffs = rebuild.getDiffs().stream()
+                .filter(diff -> diff.key().getProductId() == productId)
+                .toList();
+        assertAll(
+                () -> assertEquals(StockRebuildStatus.COMPLETED, rebuild.getStatus()),
+                () -> assertEquals(1, diffs.size()),
+                () -> assertEquals(5, diffs.get(0).inputs()),
+                () -> assertEquals(7, diffs.get(0).rebuiltInputs()),
+                () -> assertEquals(7, diffs.get(0).rebuiltCurrentBalance()),
+                () -> assertEquals(5, stock(CURRENT, productId).getCurrentBalance())
+        );
+    }
+
+    @Test
+    void shouldRebuildTheStocksOfTheOpenPeriodsFromTheTransactions() throws Exception {
+        // given
+        final long productId = 802;
+        final long withoutStock = 803;
+        service.addOrUpdateStock(update(PREVIOUS, productId, TransactionType.INPUT, 10));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.OUTPUT, 2));
+        transaction(productId, Periods.toYearMonth(PREVIOUS).atDay(1), TransactionType.INPUT, 10, false);
+        transaction(productId, TODAY, TransactionType.OUTPUT, 4, false);
+        transaction(productId, TODAY, TransactionType.INPUT, 1, false);
+        transaction(productId, TODAY, TransactionType.OUTPUT, 6, true);
+        transaction(withoutStock, TODAY, TransactionType.INPUT, 3, false);
+
+        // when
+        // the stocks of the other products, without transactions, are emptied as well
+        final StockRebuildDTO rebuild = await(rebuildService.start(false));
+
+        // then
+        final StockDTO current = stock(CURRENT, productId);
+        assertAll(
+                () -> assertEquals(StockRebuildStatus.COMPLETED, rebuild.getStatus()),
+                () -> assertEquals(10, stock(PREVIOUS, productId).getCurrentBalance()),
+                () -> assertEquals(10, current.getPreviousBalance()),
+                () -> assertEquals(1, current.getInputs()),
+                () -> assertEquals(4, current.getOutputs()),
+                () -> assertEquals(7, current.getCurrentBalance()),
+                () -> assertEquals(3, stock(CURRENT, withoutStock).getCurrentBalance())
+        );
+    }
+
+    private StockRebuildDTO await(final StockRebuildDTO started) throws Exception {
+        StockRebuildDTO rebuild = started;
+        for (int i = 0; i < 100 && rebuild.getStatus() == StockRebuildStatus.RUNNING; i++) {
+            Thread.sleep(100);
+            rebuild = rebuildService.getStatus();
+        }
+        return rebuild;
+    }
+
+    private StockDTO stock(final int period, final long productId) throws Exception {
+        return service.getByYearMonthAndProduct(Periods.format(period), productId);
+    }
+
+    private void transaction(final long productId, final LocalDate date, final TransactionType type, final long quantity,
+                             final boolean deleted) {
+        jdbcTemplate.update("INSERT INTO transactions (date, type, product_id, quantity, deleted) VALUES (?, ?, ?, ?, ?)",
+                date, type.ordinal(), productId, quantity, deleted);
+    }
+}
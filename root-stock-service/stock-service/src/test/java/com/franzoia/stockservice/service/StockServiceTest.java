@@ -0,0 +1,223 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.*;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.common.util.Periods;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false",
+        "stock.events.relay=local" })
+public class StockServiceTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) {
+        PostgresTestDatabase.register(registry);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @Autowired
+    StockService service;
+
+    @Autowired
+    StockPresence presence;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    private static final int CURRENT = Periods.current();
+
+    private static final int PREVIOUS = Periods.previous(CURRENT);
+
+    @Test
+    void shouldShiftTheBalancesOfTheFollowingMonths() throws Exception {
+        // given
+        final long productId = 101;
+        service.addOrUpdateStock(update(PREVIOUS, productId, TransactionType.INPUT, 10));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 5));
+
+        // when
+        service.addOrUpdateStock(update(PREVIOUS, productId, TransactionType.INPUT, 3));
+
+        // then
+        final StockDTO current = service.getByYearMonthAndProduct(Periods.format(CURRENT), productId);
+        assertAll(
+                () -> assertEquals(13, current.getPreviousBalance()),
+                () -> assertEquals(5, current.getInputs()),
+                () -> assertEquals(18, current.getCurrentBalance())
+        );
+    }
+
+    @Test
+    void shouldNotRemoveMoreThanTheBalance() throws Exception {
+        // given
+        final long productId = 102;
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 5));
+
+        // when
+        Executable executable = () -> service.addOrUpdateStock(update(CURRENT, productId, TransactionType.OUTPUT, 6));
+
+        // then
+        assertThrows(InvalidRequestException.class, executable);
+        assertEquals(5, service.getByYearMonthAndProduct(Periods.format(CURRENT), productId).getCurrentBalance());
+    }
+
+    @Test
+    void shouldNotRemoveFromAPreviousMonthTheStockUsedByTheFollowingOnes() throws Exception {
+        // given
+        final long productId = 109;
+        service.addOrUpdateStock(update(PREVIOUS, productId, TransactionType.INPUT, 5));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.OUTPUT, 5));
+
+        // when
+        Executable executable = () -> service.addOrUpdateStock(update(PREVIOUS, productId, TransactionType.OUTPUT, 2));
+
+        // then
+        assertThrows(InvalidRequestException.class, executable);
+        final List<StockUpdateResult> results = service.addOrUpdateStocks(List.of(
+                update(PREVIOUS, productId, TransactionType.OUTPUT, 2)));
+        final List<StockUpdateResult> covered = service.addOrUpdateStocks(List.of(
+                update(PREVIOUS, productId, TransactionType.OUTPUT, 2),
+                update(CURRENT, productId, TransactionType.INPUT, 2)));
+        final StockDTO current = service.getByYearMonthAndProduct(Periods.format(CURRENT), productId);
+        assertAll(
+                () -> assertEquals(StockUpdateStatus.REJECTED, results.get(0).status()),
+                () -> assertEquals(StockUpdateStatus.APPLIED, covered.get(0).status()),
+                () -> assertEquals(3, service.getByYearMonthAndProduct(Periods.format(PREVIOUS), productId).getCurrentBalance()),
+                () -> assertEquals(3, current.getPreviousBalance()),
+                () -> assertEquals(0, current.getCurrentBalance())
+        );
+    }
+
+    @Test
+    void shouldNotRemoveWithoutStock() {
+        // given
+        final long productId = 103;
+
+        // when
+        Executable executable = () -> service.addOrUpdateStock(update(CURRENT, productId, TransactionType.OUTPUT, 1));
+
+        // then
+        assertThrows(EntityNotFoundException.class, executable);
+    }
+
+    @Test
+    void shouldApplyAnUpdateOnlyOnceForTheSameIdempotencyKey() throws Exception {
+        // given
+        final long productId = 104;
+        final StockUpdateRequest update = new StockUpdateRequest(new StockKey(CURRENT, productId), TransactionType.INPUT, 7L, "stock-104");
+
+        // when
+        service.addOrUpdateStock(update);
+        service.addOrUpdateStock(update);
+
+        // then
+        assertEquals(7, service.getByYearMonthAndProduct(Periods.format(CURRENT), productId).getCurrentBalance());
+        assertThrows(InvalidRequestException.class, () -> service.addOrUpdateStock(
+                new StockUpdateRequest(new StockKey(CURRENT, productId), TransactionType.INPUT, 8L, "stock-104")));
+    }
+
+    @Test
+    void shouldApplyARetriedUpdateThatFailedBefore() throws Exception {
+        // given
+        final long productId = 108;
+        final StockUpdateRequest remove = new StockUpdateRequest(new StockKey(CURRENT, productId), TransactionType.OUTPUT, 2L, "stock-108");
+        assertThrows(EntityNotFoundException.class, () -> service.addOrUpdateStock(remove));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.INPUT, 5));
+
+        // when
+        Executable executable = () -> service.addOrUpdateStock(remove);
+
+        // then
+        assertDoesNotThrow(executable);
+        assertEquals(3, service.getByYearMonthAndProduct(Periods.format(CURRENT), productId).getCurrentBalance());
+    }
+
+    @Test
+    void shouldRejectOnlyTheInvalidLinesOfABatch() throws Exception {
+        // given
+        final long productId = 105;
+        final StockKey malformed = new StockKey();
+        malformed.setProductId(productId);
+        malformed.setYearMonth("2026-10");
+
+        // when
+        final List<StockUpdateResult> results = service.addOrUpdateStocks(List.of(
+                update(CURRENT, productId, TransactionType.INPUT, 10),
+                update(PREVIOUS, productId, TransactionType.OUTPUT, 1),
+                new StockUpdateRequest(malformed, TransactionType.INPUT, 1L),
+                update(CURRENT, productId, TransactionType.OUTPUT, 4)));
+
+        // then
+        assertAll(
+                () -> assertEquals(StockUpdateStatus.APPLIED, results.get(0).status()),
+                () -> assertEquals(StockUpdateStatus.REJECTED, results.get(1).status()),
+                () -> assertEquals(StockUpdateStatus.REJECTED, results.get(2).status()),
+                () -> assertEquals(StockUpdateStatus.APPLIED, results.get(3).status()),
+                () -> assertEquals(6, service.getByYearMonthAndProduct(Periods.format(CURRENT), productId).getCurrentBalance())
+        );
+    }
+
+    @Test
+    void shouldRecalculateTheBalancesOfAProduct() throws Exception {
+        // given
+        final long productId = 106;
+        service.addOrUpdateStock(update(PREVIOUS, productId, TransactionType.INPUT, 10));
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.OUTPUT, 4));
+
+        // when
+        service.syncStockBalance(productId);
+
+        // then
+        final StockDTO current = service.getByYearMonthAndProduct(Periods.format(CURRENT), productId);
+        assertAll(
+                () -> assertEquals(10, current.getPreviousBalance()),
+                () -> assertEquals(6, current.getCurrentBalance()),
+                () -> assertEquals(6, service.getBalance(productId, Periods.format(CURRENT)).getBalance())
+        );
+    }
+
+    @Test
+    void shouldFindAStockCreatedByAnotherInstance() throws Exception {
+        // given
+        final long productId = 107;
+        while (!presence.isAbsent(CURRENT, -1L)) {
+            // the periods with stock are being loaded
+            Thread.sleep(100);
+        }
+        jdbcTemplate.update("INSERT INTO stocks (year_month, product_id, previous_balance, inputs, outputs, current_balance, version) " +
+                "VALUES (?, ?, 0, 8, 0, 8, 0)", Periods.format(CURRENT), productId);
+
+        // when
+        final StockDTO created = service.getByYearMonthAndProduct(Periods.format(CURRENT), productId);
+        service.addOrUpdateStock(update(CURRENT, productId, TransactionType.OUTPUT, 3));
+
+        // then
+        final StockDTO current = service.getByYearMonthAndProduct(Periods.format(CURRENT), productId);
+        assertAll(
+                () -> assertEquals(8, created.getCurrentBalance()),
+                () -> assertEquals(3, current.getOutputs()),
+                () -> assertEquals(5, current.getCurrentBalance())
+        );
+    }
+
+    static StockUpdateRequest update(final int period, final long productId, final TransactionType type, final long quantity) {
+        return new StockUpdateRequest(new StockKey(period, productId), type, quantity);
+    }
+}
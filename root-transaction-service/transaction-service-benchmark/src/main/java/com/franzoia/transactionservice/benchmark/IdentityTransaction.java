@@ -0,0 +1,49 @@
+package com.franzoia.transactionservice.benchmark;
+
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.util.audit.DefaultAuditableEntity;
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDate;
+
+/**
+ * The columns of a {@link com.franzoia.transactionservice.model.Transaction} with the identity id the transactions
+ * had before their pooled sequence, in a table of its own
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "transactions_identity")
+public class IdentityTransaction extends DefaultAuditableEntity {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private LocalDate date;
+
+    @Column(nullable = false)
+    private TransactionType type;
+
+    @Column(nullable = false)
+    private Long productId;
+
+    @Column
+    private Double price;
+
+    @Column
+    private Long quantity;
+
+    @Column(length = 80)
+    private String idempotencyKey;
+
+    @Column
+    private Long importId;
+}
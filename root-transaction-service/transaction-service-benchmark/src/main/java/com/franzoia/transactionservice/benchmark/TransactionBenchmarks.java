@@ -0,0 +1,33 @@
+package com.franzoia.transactionservice.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the transaction benchmarks with the gc profiler, reporting the allocation rate along with the throughput.
+ * <p/>
+ * {@code mvn -f root-transaction-service/pom.xml package -DskipTests} then
+ * {@code java -jar root-transaction-service/transaction-service-benchmark/target/benchmarks.jar}, which takes the
+ * JMH options, e.g. {@code TransactionInsert -p url=jdbc:postgresql://localhost:5432/scratch -p username=stock}
+ */
+public class TransactionBenchmarks {
+
+    public static void main(final String[] args) throws Exception {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        final Runner runner = new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build());
+        if (commandLine.shouldList()) {
+            runner.list();
+        } else {
+            runner.run();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.franzoia.transactionservice.benchmark;
+
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.transactionservice.config.PooledSequenceConfig;
+import com.franzoia.transactionservice.model.Transaction;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.transaction.TransactionAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Inserting {@value #ROWS} transactions per database transaction, with the identity ids they used to have, which
+ * make Hibernate send every insert on its own to read the generated id, and with the ids of their pooled sequence,
+ * sent in JDBC batches. Both run with the batch size of the transaction-service, reported in rows per second.
+ * <p/>
+ * The tables are created and dropped by the benchmark, on an in-memory H2 database unless {@code url} points to
+ * a scratch PostgreSQL database.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(TransactionInsertBenchmark.ROWS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TransactionInsertBenchmark {
+
+    static final int ROWS = 1000;
+
+    @Benchmark
+    public void insertIdentity(final JpaState state) {
+        state.insert(i -> new IdentityTransaction(null, state.date, type(i), (long) (i % 1000), 1.5, 1L, null, null));
+    }
+
+    @Benchmark
+    public void insertPooled(final JpaState state) {
+        state.insert(i -> new Transaction(null, state.date, type(i), (long) (i % 1000), 1.5, 1L, null, null));
+    }
+
+    private static TransactionType type(final int i) {
+        return i % 3 == 0? TransactionType.OUTPUT: TransactionType.INPUT;
+    }
+
+    /**
+     * The transaction entities over their own database, with nothing else of the transaction-service
+     */
+    @State(Scope.Benchmark)
+    public static class JpaState {
+
+        @Param({ "jdbc:h2:mem:transactions;DB_CLOSE_DELAY=-1" })
+        public String url;
+
+        @Param({ "sa" })
+        public String username;
+
+        @Param({ "" })
+        public String password;
+
+        final LocalDate date = LocalDate.now();
+
+        private EntityManagerFactory entityManagerFactory;
+
+        private JdbcTemplate jdbcTemplate;
+
+        private ConfigurableApplicationContext context;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            context = new SpringApplicationBuilder(JpaConfiguration.class)
+                    .web(WebApplicationType.NONE)
+                    // the application.yaml of the transaction-service is left out, its batching is set here
+                    .run("--spring.config.name=transaction-benchmark",
+                            "--spring.main.banner-mode=off",
+                            "--spring.datasource.url=" + url,
+                            "--spring.datasource.username=" + username,
+                            "--spring.datasource.password=" + password,
+                            "--spring.jpa.hibernate.ddl-auto=create-drop",
+                            "--spring.jpa.properties.hibernate.jdbc.batch_size=50",
+                            "--spring.jpa.properties.hibernate.order_inserts=true");
+            entityManagerFactory = context.getBean(EntityManagerFactory.class);
+            jdbcTemplate = context.getBean(JdbcTemplate.class);
+        }
+
+        void insert(final IntFunction<Object> transaction) {
+            final EntityManager entityManager = entityManagerFactory.createEntityManager();
+            try {
+                entityManager.getTransaction().begin();
+                for (int i = 0; i < ROWS; i++) {
+                    entityManager.persist(transaction.apply(i));
+                }
+                entityManager.getTransaction().commit();
+            } finally {
+                entityManager.close();
+            }
+        }
+
+        /**
+         * Every iteration starts from empty tables
+         */
+        @TearDown(Level.Iteration)
+        public void deleteTransactions() {
+            jdbcTemplate.update("DELETE FROM transactions");
+            jdbcTemplate.update("DELETE FROM transactions_identity");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            context.close();
+        }
+    }
+
+    @Configuration
+    @ImportAutoConfiguration({ DataSourceAutoConfiguration.class, JdbcTemplateAutoConfiguration.class,
+            HibernateJpaAutoConfiguration.class, TransactionAutoConfiguration.class })
+    @Import(PooledSequenceConfig.class)
+    @EntityScan(basePackageClasses = { Transaction.class, IdentityTransaction.class })
+    static class JpaConfiguration {
+    }
+}
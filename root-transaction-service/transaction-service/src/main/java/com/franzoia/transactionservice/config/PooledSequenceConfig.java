@@ -0,0 +1,11 @@
+package com.franzoia.transactionservice.config;
+
+import com.franzoia.common.config.sequence.AbstractPooledSequenceConfig;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Ids of the entities generated from pooled sequences, see {@link com.franzoia.common.config.sequence.PooledSequences}
+ */
+@Configuration
+public class PooledSequenceConfig extends AbstractPooledSequenceConfig {
+}
@@ -1,6 +1,7 @@
 package com.franzoia.transactionservice.config;
 
 import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.StockUpdateResult;
 import com.franzoia.common.exception.EntityNotFoundException;
 import com.franzoia.common.exception.InvalidRequestException;
 import com.franzoia.common.exception.ServiceNotAvailableException;
@@ -8,6 +9,8 @@ import org.springframework.cloud.openfeign.FeignClient;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 
+import java.util.List;
+
 @FeignClient(value = "STOCK-SERVICE", path = "/stock-service/api/v1/stocks",
         configuration = { StockErrorDecoder.class })
 public interface StockFeignClient {
@@ -16,4 +19,8 @@ public interface StockFeignClient {
     void addOrRemoveStock(@RequestBody final StockUpdateRequest updateRequest)
             throws EntityNotFoundException, InvalidRequestException, ServiceNotAvailableException;
 
+    @PostMapping("/batch")
+    List<StockUpdateResult> addOrRemoveStockBatch(@RequestBody final List<StockUpdateRequest> updateRequests)
+            throws ServiceNotAvailableException;
+
 }
@@ -1,17 +1,28 @@
 package com.franzoia.transactionservice.controller;
 
 import com.franzoia.common.dto.TransactionDTO;
+import com.franzoia.common.dto.TransactionImportDTO;
+import com.franzoia.common.dto.TransactionPartitionDTO;
+import com.franzoia.common.dto.TransactionRollupDTO;
 import com.franzoia.common.dto.TransactionType;
 import com.franzoia.common.exception.ConstraintsViolationException;
 import com.franzoia.common.exception.EntityNotFoundException;
 import com.franzoia.common.exception.InvalidRequestException;
 import com.franzoia.common.exception.ServiceNotAvailableException;
 import com.franzoia.common.util.ErrorResponse;
+import com.franzoia.transactionservice.service.TransactionImportService;
+import com.franzoia.transactionservice.service.TransactionPartitionService;
+import com.franzoia.transactionservice.service.TransactionRollupService;
 import com.franzoia.transactionservice.service.TransactionService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.YearMonth;
 import java.util.List;
 import java.util.Map;
 
@@ -25,9 +36,20 @@ public class TransactionController {
 
 	private final TransactionService transactionService;
 
+	private final TransactionImportService transactionImportService;
+
+	private final TransactionPartitionService transactionPartitionService;
+
+	private final TransactionRollupService transactionRollupService;
+
 	@Autowired
-	public TransactionController(final TransactionService transactionsService) {
+	public TransactionController(final TransactionService transactionsService, final TransactionImportService transactionImportService,
+								 final TransactionPartitionService transactionPartitionService,
+								 final TransactionRollupService transactionRollupService) {
 		this.transactionService = transactionsService;
+		this.transactionImportService = transactionImportService;
+		this.transactionPartitionService = transactionPartitionService;
+		this.transactionRollupService = transactionRollupService;
 	}
 
 	@GetMapping("/{transactionId}")
@@ -35,16 +57,60 @@ public class TransactionController {
 		return transactionService.getTransaction(transactionId);
 	}
 
+	/**
+	 * The stock is updated asynchronously, unless waitForStock is set, then the request waits for it
+	 * and fails when the stock update is rejected
+	 */
 	@PostMapping
-	public TransactionDTO createTransaction(@RequestBody final TransactionDTO transactionsDTO)
+	public TransactionDTO createTransaction(@RequestBody final TransactionDTO transactionsDTO,
+											@RequestParam(value = "waitForStock", defaultValue = "false") final boolean waitForStock)
 			throws ServiceNotAvailableException, EntityNotFoundException, ConstraintsViolationException {
-		return transactionService.create(transactionsDTO);
+		final TransactionDTO created = transactionService.create(transactionsDTO);
+		if (waitForStock) {
+			transactionService.awaitStockUpdate(created.id());
+		}
+		return created;
     }
 
+	/**
+	 * Imports the transactions of a CSV or NDJSON file, streamed line by line. The invalid lines are skipped and
+	 * reported, and the stock is updated asynchronously with the totals of the import
+	 */
+	@PostMapping(value = "/import", consumes = { TransactionImportService.CSV, TransactionImportService.NDJSON })
+	public TransactionImportDTO importTransactions(@RequestHeader(HttpHeaders.CONTENT_TYPE) final String contentType,
+												   @RequestParam(value = "idempotencyKey", required = false) final String idempotencyKey,
+												   final InputStream content) throws IOException, ServiceNotAvailableException {
+		return transactionImportService.importTransactions(MediaType.parseMediaType(contentType), idempotencyKey, content);
+	}
+
+	/**
+	 * The partitions of the transactions, of the months and of the archived years
+	 */
+	@GetMapping("/partitions")
+	public List<TransactionPartitionDTO> listPartitions() {
+		return transactionPartitionService.listPartitions();
+	}
+
+	/**
+	 * Merges the monthly partitions of a closed year into a single one, detached from the transactions when
+	 * detach is set
+	 */
+	@PostMapping("/partitions/{year}/archive")
+	public TransactionPartitionDTO archivePartitions(@PathVariable final int year,
+													 @RequestParam(value = "detach", defaultValue = "false") final boolean detach)
+			throws InvalidRequestException {
+		return transactionPartitionService.archive(year, detach);
+	}
+
 	@DeleteMapping("/{transactionId}")
 	@ResponseStatus(HttpStatus.ACCEPTED)
-	public ErrorResponse deleteTransaction(@PathVariable final long transactionId) throws EntityNotFoundException, ServiceNotAvailableException {
+	public ErrorResponse deleteTransaction(@PathVariable final long transactionId,
+										   @RequestParam(value = "waitForStock", defaultValue = "false") final boolean waitForStock)
+			throws EntityNotFoundException, ServiceNotAvailableException {
 		transactionService.deleteTransaction(transactionId);
+		if (waitForStock) {
+			transactionService.awaitStockUpdate(transactionId);
+		}
 		return ErrorResponse.builder()
 				.message("Transaction successfully deleted")
 				.build();
@@ -67,6 +133,30 @@ public class TransactionController {
 		return transactionService.listByDatesAndProduct(validDates.start(), validDates.end(), productId);
     }
 
+	/**
+	 * Count, quantity and value of the transactions per product, type and day, for all the products unless
+	 * productId is set
+	 */
+	@GetMapping("/rollups/daily")
+	public List<TransactionRollupDTO> findDailyRollups(@RequestParam(value = "startDate", required = false) final String startDate,
+													   @RequestParam(value = "endDate", required = false) final String endDate,
+													   @RequestParam(value = "productId", required = false) final Long productId) {
+		TransactionService.ValidDates validDates = transactionService.getValidDates(startDate, endDate);
+		return transactionRollupService.listDaily(validDates.start(), validDates.end(), productId);
+	}
+
+	/**
+	 * Count, quantity and value of the transactions per product, type and month, of the months from startDate
+	 * to endDate, for all the products unless productId is set
+	 */
+	@GetMapping("/rollups/monthly")
+	public List<TransactionRollupDTO> findMonthlyRollups(@RequestParam(value = "startDate", required = false) final String startDate,
+														 @RequestParam(value = "endDate", required = false) final String endDate,
+														 @RequestParam(value = "productId", required = false) final Long productId) {
+		TransactionService.ValidDates validDates = transactionService.getValidDates(startDate, endDate);
+		return transactionRollupService.listMonthly(YearMonth.from(validDates.start()), YearMonth.from(validDates.end()), productId);
+	}
+
 	@GetMapping("/type/{type}")
 	public Map<TransactionType, List<TransactionDTO>> findType(@PathVariable final TransactionType type) {
 		return transactionService.listByTpe(type);
@@ -0,0 +1,98 @@
+package com.franzoia.transactionservice.model;
+
+import com.franzoia.common.dto.TransactionType;
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Stock update of a transaction, written in the same database transaction as the change of the transaction
+ * and sent to the stock-service afterwards. The entries of a product are sent in the order of their ids, and
+ * the id is also the idempotency key of the update, so sending it again doesn't apply it twice.
+ * <p/>
+ * Unlike the other entities the ids are not taken from pooled blocks, whose ids follow the instance that
+ * reserved them rather than the commits: each id is taken from its own sequence one at a time, while the
+ * product is locked (see {@link com.franzoia.transactionservice.repository.StockOutboxRepository#lockProduct}),
+ * so the ids of a product follow the order its updates are committed in.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "stock_outbox", indexes = {
+        @Index(name = "idx_stock_outbox_status", columnList = "status, id"),
+        @Index(name = "idx_stock_outbox_transaction", columnList = "transactionId"),
+        @Index(name = "idx_stock_outbox_import", columnList = "importId, productId") })
+public class StockOutboxEntry {
+
+    @Id
+    // not the stock_outbox_seq of the pooled ids, which increments by the allocation size
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "stock_outbox_seq")
+    @SequenceGenerator(name = "stock_outbox_seq", sequenceName = "stock_outbox_ordered_seq", allocationSize = 1)
+    private Long id;
+
+    /**
+     * The transaction the update comes from, null for the updates of an import
+     */
+    @Column
+    private Long transactionId;
+
+    /**
+     * The import the update comes from, which sends the total quantity of a product, month and type at once
+     */
+    @Column
+    private Long importId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 10)
+    private Operation operation;
+
+    @Column(nullable = false)
+    private Long productId;
+
+    @Column(nullable = false)
+    private LocalDate date;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 10)
+    private TransactionType type;
+
+    @Column(nullable = false)
+    private Long quantity;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 10)
+    private Status status;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    @Column
+    private String message;
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    /**
+     * When the stock-service applied or rejected the update
+     */
+    @Column
+    private LocalDateTime processedAt;
+
+    /**
+     * The change the stock update comes from, which is undone when the update is rejected
+     */
+    public enum Operation {
+        CREATE, DELETE, IMPORT
+    }
+
+    public enum Status {
+        PENDING, APPLIED, REJECTED
+    }
+}
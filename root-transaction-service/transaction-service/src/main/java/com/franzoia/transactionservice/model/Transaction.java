@@ -1,5 +1,6 @@
 package com.franzoia.transactionservice.model;
 
+import com.franzoia.common.config.sequence.PooledSequences;
 import com.franzoia.common.dto.TransactionType;
 import com.franzoia.common.util.audit.DefaultAuditableEntity;
 import jakarta.persistence.*;
@@ -10,6 +11,11 @@ import lombok.Setter;
 
 import java.time.LocalDate;
 
+/**
+ * A transaction, kept in a table partitioned by month of the date. The unique keys and indexes of the partitioned
+ * table are created by {@link com.franzoia.transactionservice.service.TransactionPartitionService}, the schema update
+ * doesn't see them.
+ */
 @Getter
 @Setter
 @NoArgsConstructor
@@ -18,8 +24,11 @@ import java.time.LocalDate;
 @Table(name = "transactions")
 public class Transaction extends DefaultAuditableEntity {
 
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 80;
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "transactions_seq")
+    @SequenceGenerator(name = "transactions_seq", allocationSize = PooledSequences.ALLOCATION_SIZE)
     private Long id;
 
     @Column(nullable = false)
@@ -36,4 +45,17 @@ public class Transaction extends DefaultAuditableEntity {
 
     @Column
     private Long quantity;
+
+    /**
+     * Identifies the creation of the transaction across retries of the client. It's unique with the date, the
+     * unique keys of the partitioned table must include it and the retries of a creation have the same date.
+     */
+    @Column(length = MAX_IDEMPOTENCY_KEY_LENGTH)
+    private String idempotencyKey;
+
+    /**
+     * The import that created the transaction, null for the ones created one by one
+     */
+    @Column
+    private Long importId;
 }
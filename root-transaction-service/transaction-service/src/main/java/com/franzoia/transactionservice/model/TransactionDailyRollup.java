@@ -0,0 +1,49 @@
+package com.franzoia.transactionservice.model;
+
+import com.franzoia.common.dto.TransactionType;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+
+/**
+ * Totals of the transactions of a product and type in a day, changed in the same database transaction as the
+ * transactions. See {@link com.franzoia.transactionservice.service.TransactionRollupService}.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "transaction_daily_rollups", indexes = {
+        @Index(name = "idx_transaction_daily_rollups_product", columnList = "productId, date") })
+public class TransactionDailyRollup {
+
+    @EmbeddedId
+    private Key key;
+
+    @Column(nullable = false)
+    private Long transactionCount;
+
+    @Column(nullable = false)
+    private Long totalQuantity;
+
+    @Column(nullable = false)
+    private Double totalValue;
+
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    @Embeddable
+    public static class Key implements Serializable {
+
+        private Long productId;
+
+        private TransactionType type;
+
+        private LocalDate date;
+    }
+}
@@ -0,0 +1,51 @@
+package com.franzoia.transactionservice.model;
+
+import com.franzoia.common.config.sequence.PooledSequences;
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * An import of transactions from a file, the transactions it created keep its id
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "transaction_imports")
+public class TransactionImport {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "transaction_imports_seq")
+    @SequenceGenerator(name = "transaction_imports_seq", allocationSize = PooledSequences.ALLOCATION_SIZE)
+    private Long id;
+
+    /**
+     * Identifies the import across retries of the client
+     */
+    @Column(unique = true, length = Transaction.MAX_IDEMPOTENCY_KEY_LENGTH)
+    private String idempotencyKey;
+
+    @Column(nullable = false)
+    private long lines;
+
+    @Column(nullable = false)
+    private long imported;
+
+    @Column(nullable = false)
+    private long rejected;
+
+    @Column(nullable = false)
+    private int stockUpdates;
+
+    @Column(nullable = false)
+    private LocalDateTime startedAt;
+
+    @Column
+    private LocalDateTime finishedAt;
+}
@@ -0,0 +1,51 @@
+package com.franzoia.transactionservice.model;
+
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.util.PeriodConverter;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.io.Serializable;
+
+/**
+ * Totals of the transactions of a product and type in a year/month period, changed in the same database
+ * transaction as the transactions. See {@link com.franzoia.transactionservice.service.TransactionRollupService}.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "transaction_monthly_rollups", indexes = {
+        @Index(name = "idx_transaction_monthly_rollups_product", columnList = "productId, year_month") })
+public class TransactionMonthlyRollup {
+
+    @EmbeddedId
+    private Key key;
+
+    @Column(nullable = false)
+    private Long transactionCount;
+
+    @Column(nullable = false)
+    private Long totalQuantity;
+
+    @Column(nullable = false)
+    private Double totalValue;
+
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    @Embeddable
+    public static class Key implements Serializable {
+
+        private Long productId;
+
+        private TransactionType type;
+
+        @Convert(converter = PeriodConverter.class)
+        @Column(name = "year_month")
+        private int period;
+    }
+}
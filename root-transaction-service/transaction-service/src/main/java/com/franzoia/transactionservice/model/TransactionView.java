@@ -0,0 +1,11 @@
+package com.franzoia.transactionservice.model;
+
+import com.franzoia.common.dto.TransactionType;
+
+import java.time.LocalDate;
+
+/**
+ * Read-only projection of a {@link Transaction} used by the list queries
+ */
+public record TransactionView(Long id, LocalDate date, TransactionType type, Long productId, Double price, Long quantity) {
+}
@@ -0,0 +1,73 @@
+package com.franzoia.transactionservice.repository;
+
+import com.franzoia.transactionservice.model.StockOutboxEntry;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface StockOutboxRepository extends CrudRepository<StockOutboxEntry, Long> {
+
+    /**
+     * Lock key of the dispatcher, in the two keys space of the advisory locks which doesn't overlap
+     * the single key one the stock-service locks the products with
+     */
+    int DISPATCHER_LOCK = 1;
+
+    int PRODUCT_LOCK = 2;
+
+    /**
+     * @return the pending stock updates, oldest first
+     */
+    @Query(value = "SELECT o.* FROM stock_outbox o " +
+                   "WHERE o.status = 'PENDING' " +
+                   "ORDER BY o.id " +
+                   "LIMIT :limit",
+           nativeQuery = true)
+    List<StockOutboxEntry> findPending(@Param("limit") final int limit);
+
+    Optional<StockOutboxEntry> findFirstByTransactionIdOrderByIdDesc(final Long transactionId);
+
+    Optional<StockOutboxEntry> findFirstByStatusOrderByIdAsc(final StockOutboxEntry.Status status);
+
+    long countByStatus(final StockOutboxEntry.Status status);
+
+    boolean existsByTransactionIdAndStatus(final Long transactionId, final StockOutboxEntry.Status status);
+
+    boolean existsByImportIdAndProductIdAndStatus(final Long importId, final Long productId, final StockOutboxEntry.Status status);
+
+    boolean existsByStatusAndDateBetween(final StockOutboxEntry.Status status, final LocalDate startDate, final LocalDate finalDate);
+
+    /**
+     * Makes this instance the only one sending the stock updates until the end of the current transaction
+     *
+     * @return false when another instance is sending them
+     */
+    @Query(value = "SELECT pg_try_advisory_xact_lock(" + DISPATCHER_LOCK + ", 0)", nativeQuery = true)
+    boolean tryLockDispatcher();
+
+    /**
+     * Serializes the stock updates of a product until the end of the current transaction, so their ids
+     * follow the order they are committed in
+     */
+    @Query(value = "SELECT 1 FROM pg_advisory_xact_lock(" + PRODUCT_LOCK + ", CAST(MOD(:product, 2147483647) AS INTEGER))",
+           nativeQuery = true)
+    Integer lockProduct(@Param("product") final Long productId);
+
+    /**
+     * Deletes the stock updates sent before the given time, the pending ones have no processing time
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM StockOutboxEntry o " +
+                   "WHERE o.processedAt < :before")
+    int deleteProcessedBefore(@Param("before") final LocalDateTime before);
+}
@@ -0,0 +1,14 @@
+package com.franzoia.transactionservice.repository;
+
+import com.franzoia.transactionservice.model.TransactionImport;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface TransactionImportRepository extends CrudRepository<TransactionImport, Long> {
+
+    Optional<TransactionImport> findByIdempotencyKey(final String idempotencyKey);
+
+}
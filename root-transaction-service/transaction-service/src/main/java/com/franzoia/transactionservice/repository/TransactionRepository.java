@@ -2,21 +2,98 @@ package com.franzoia.transactionservice.repository;
 
 import com.franzoia.common.dto.TransactionType;
 import com.franzoia.transactionservice.model.Transaction;
+import com.franzoia.transactionservice.model.TransactionView;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDate;
+import java.time.ZonedDateTime;
 import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface TransactionRepository extends CrudRepository<Transaction, Long> {
 
+    /**
+     * Lock key of the creations with an idempotency key, in the two keys space of the advisory locks, with the
+     * hash of the key as second key
+     */
+    int IDEMPOTENCY_KEY_LOCK = 7;
+
     List<Transaction> findAllByProductIdOrderByDate(final Long productId);
 
-    List<Transaction> findAllByDateBetweenOrderByDate(final LocalDate startDate, final LocalDate finalDate);
+    /**
+     * @return the first transaction created with the idempotency key, which is only unique with the date
+     */
+    Optional<Transaction> findFirstByIdempotencyKeyOrderById(final String idempotencyKey);
+
+    /**
+     * Serializes the creations with the same idempotency key until the end of the current transaction, so a
+     * retry with another date sees the transaction already created instead of creating a second one
+     */
+    @Query(value = "SELECT 1 FROM pg_advisory_xact_lock(" + IDEMPOTENCY_KEY_LOCK + ", hashtext(:key))", nativeQuery = true)
+    Integer lockIdempotencyKey(@Param("key") final String idempotencyKey);
+
+    /**
+     * Marks a transaction as deleted, or not, without loading it
+     *
+     * @return 0 when it already was
+     */
+    @Modifying
+    @Query(value = "UPDATE Transaction t " +
+                   "SET t.audit.deleted = :deleted, " +
+                   "    t.audit.dateUpdated = :updated " +
+                   "WHERE t.id = :id " +
+                   "AND t.audit.deleted <> :deleted")
+    int updateDeleted(@Param("id") final Long id, @Param("deleted") final boolean deleted, @Param("updated") final ZonedDateTime updated);
+
+    /**
+     * Marks the transactions of an import for a product, type and dates as deleted, the ones a stock update
+     * of the import was made of
+     */
+    @Modifying
+    @Query(value = "UPDATE Transaction t " +
+                   "SET t.audit.deleted = true, " +
+                   "    t.audit.dateUpdated = :updated " +
+                   "WHERE t.importId = :importId " +
+                   "AND t.productId = :productId " +
+                   "AND t.type = :type " +
+                   "AND t.date BETWEEN :startDate AND :finalDate " +
+                   "AND t.audit.deleted = false")
+    int deleteImported(@Param("importId") final Long importId, @Param("productId") final Long productId,
+                       @Param("type") final TransactionType type,
+                       @Param("startDate") final LocalDate startDate, @Param("finalDate") final LocalDate finalDate,
+                       @Param("updated") final ZonedDateTime updated);
+
+    @Query(value = "SELECT new com.franzoia.transactionservice.model.TransactionView(t.id, t.date, t.type, t.productId, t.price, t.quantity) " +
+                   "FROM Transaction t " +
+                   "WHERE t.audit.deleted = false " +
+                   "ORDER BY t.date")
+    List<TransactionView> findAllViewsOrderByDate();
+
+    @Query(value = "SELECT new com.franzoia.transactionservice.model.TransactionView(t.id, t.date, t.type, t.productId, t.price, t.quantity) " +
+                   "FROM Transaction t " +
+                   "WHERE t.date BETWEEN :startDate AND :finalDate " +
+                   "ORDER BY t.date")
+    List<TransactionView> findAllViewsByDateBetweenOrderByDate(@Param("startDate") final LocalDate startDate,
+                                                               @Param("finalDate") final LocalDate finalDate);
 
-    List<Transaction> findAllByDateBetweenAndProductIdOrderByDate(final LocalDate startDate, final LocalDate finalDate, Long productId);
+    @Query(value = "SELECT new com.franzoia.transactionservice.model.TransactionView(t.id, t.date, t.type, t.productId, t.price, t.quantity) " +
+                   "FROM Transaction t " +
+                   "WHERE t.date BETWEEN :startDate AND :finalDate " +
+                   "AND t.productId = :productId " +
+                   "ORDER BY t.date")
+    List<TransactionView> findAllViewsByDateBetweenAndProductIdOrderByDate(@Param("startDate") final LocalDate startDate,
+                                                                           @Param("finalDate") final LocalDate finalDate,
+                                                                           @Param("productId") final Long productId);
 
-    List<Transaction> findAllByTypeOrderByDate(final TransactionType type);
+    @Query(value = "SELECT new com.franzoia.transactionservice.model.TransactionView(t.id, t.date, t.type, t.productId, t.price, t.quantity) " +
+                   "FROM Transaction t " +
+                   "WHERE t.type = :type " +
+                   "ORDER BY t.date")
+    List<TransactionView> findAllViewsByTypeOrderByDate(@Param("type") final TransactionType type);
 
 }
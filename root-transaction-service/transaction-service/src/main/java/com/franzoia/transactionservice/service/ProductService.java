@@ -11,9 +11,11 @@ import org.springframework.stereotype.Component;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toSet;
 
 @Slf4j
 @Component
@@ -31,6 +33,18 @@ public class ProductService {
         }
     }
 
+    /**
+     * @return the ids of all the products, with a single call to the product-service
+     */
+    public Set<Long> getProductIds() throws ServiceNotAvailableException {
+        try {
+            return productFeignClient.getAllProducts().stream().map(ProductDTO::id).collect(toSet());
+        } catch (RuntimeException fe) {
+            log.error("product-service status: {}", fe.getMessage());
+            throw new ServiceNotAvailableException("Products are not available");
+        }
+    }
+
     public Map<Long, List<ProductDTO>> getProductMap() {
         try {
             List<ProductDTO> products = productFeignClient.getAllProducts();
@@ -0,0 +1,374 @@
+package com.franzoia.transactionservice.service;
+
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.StockUpdateResult;
+import com.franzoia.common.dto.StockUpdateStatus;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.transactionservice.config.StockFeignClient;
+import com.franzoia.transactionservice.model.StockOutboxEntry;
+import com.franzoia.transactionservice.repository.StockOutboxRepository;
+import com.franzoia.transactionservice.repository.TransactionRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends the stock updates of the stock outbox to the stock-service, at least once and in order for each
+ * product.
+ * <p/>
+ * The pending updates are sent right after a transaction is committed, and every {@code transaction.outbox.poll-ms}
+ * in case that failed. Only one instance sends them at a time, and updates committed while a batch is being sent
+ * go in the next one, so under load the updates are sent in batches of up to {@code transaction.outbox.batch-size}
+ * with a single call to the stock-service. When the call fails the updates stay pending and are sent again.
+ * <p/>
+ * A rejected update undoes the change it comes from: a created transaction is deleted, a deleted one is restored,
+ * and the imported transactions an update was made of are deleted.
+ */
+@Slf4j
+@Component
+public class StockOutboxDispatcher {
+
+    private static final long RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final int MAX_MESSAGE_LENGTH = 255;
+
+    private final StockOutboxRepository outboxRepository;
+
+    private final TransactionRepository transactionRepository;
+
+    private final TransactionRollupService rollupService;
+
+    private final StockFeignClient stockFeignClient;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int batchSize;
+
+    private final Duration waitTimeout;
+
+    private final Duration retention;
+
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "stock-outbox-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean dispatchRequested = new AtomicBoolean();
+
+    // requests waiting for their stock update, by outbox entry id
+    private final Map<Long, CompletableFuture<StockOutboxEntry>> waiting = new ConcurrentHashMap<>();
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private final AtomicReference<LocalDateTime> oldestPending = new AtomicReference<>();
+
+    private final Counter applied;
+
+    private final Counter rejected;
+
+    private final Counter failed;
+
+    private final DistributionSummary batches;
+
+    private final Timer delivery;
+
+    public StockOutboxDispatcher(final StockOutboxRepository outboxRepository,
+                                 final TransactionRepository transactionRepository,
+                                 final TransactionRollupService rollupService,
+                                 final StockFeignClient stockFeignClient,
+                                 final TransactionTemplate transactionTemplate,
+                                 final MeterRegistry registry,
+                                 @Value("${transaction.outbox.batch-size:500}") final int batchSize,
+                                 @Value("${transaction.outbox.wait-timeout:10s}") final Duration waitTimeout,
+                                 @Value("${transaction.outbox.retention:7d}") final Duration retention) {
+        this.outboxRepository = outboxRepository;
+        this.transactionRepository = transactionRepository;
+        this.rollupService = rollupService;
+        this.stockFeignClient = stockFeignClient;
+        this.transactionTemplate = transactionTemplate;
+        this.batchSize = batchSize;
+        this.waitTimeout = waitTimeout;
+        this.retention = retention;
+
+        this.applied = Counter.builder("transaction.outbox.updates").tag("result", "applied")
+                .description("Stock updates applied by the stock-service")
+                .register(registry);
+        this.rejected = Counter.builder("transaction.outbox.updates").tag("result", "rejected")
+                .description("Stock updates rejected by the stock-service, their transaction changes undone")
+                .register(registry);
+        this.failed = Counter.builder("transaction.outbox.failures")
+                .description("Batches of stock updates the stock-service didn't take, sent again later")
+                .register(registry);
+        this.batches = DistributionSummary.builder("transaction.outbox.batch.size")
+                .description("Stock updates sent per call to the stock-service")
+                .register(registry);
+        this.delivery = Timer.builder("transaction.outbox.delivery")
+                .description("Time from the commit of a stock update to its processing by the stock-service")
+                .register(registry);
+        Gauge.builder("transaction.outbox.pending", pending, AtomicLong::get)
+                .description("Stock updates not sent to the stock-service yet")
+                .register(registry);
+        Gauge.builder("transaction.outbox.lag", oldestPending, StockOutboxDispatcher::lagSeconds)
+                .description("Age of the oldest stock update not sent to the stock-service yet")
+                .baseUnit("seconds")
+                .register(registry);
+    }
+
+    /**
+     * Sends the pending stock updates in the background, requests made while they are being sent are
+     * covered by the next batch
+     */
+    public void requestDispatch() {
+        if (dispatchRequested.getAndSet(true)) {
+            return;
+        }
+        try {
+            dispatcher.execute(() -> {
+                dispatchRequested.set(false);
+                dispatch();
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("stock outbox dispatcher stopped");
+        }
+    }
+
+    /**
+     * Waits until the last stock update of a transaction was processed by the stock-service
+     *
+     * @throws InvalidRequestException when the stock-service rejected it, so the change of the transaction was undone
+     * @throws ServiceNotAvailableException when it's still pending after {@code transaction.outbox.wait-timeout}
+     */
+    public void await(final Long transactionId) throws ServiceNotAvailableException {
+        StockOutboxEntry entry = findLast(transactionId);
+        if (entry != null && entry.getStatus() == StockOutboxEntry.Status.PENDING) {
+            entry = awaitProcessed(entry.getId());
+        }
+        if (entry != null && entry.getStatus() == StockOutboxEntry.Status.REJECTED) {
+            throw new InvalidRequestException(entry.getMessage());
+        }
+    }
+
+    private StockOutboxEntry awaitProcessed(final Long entryId) throws ServiceNotAvailableException {
+        final CompletableFuture<StockOutboxEntry> processed = waiting.computeIfAbsent(entryId, id -> new CompletableFuture<>());
+        final long deadline = System.nanoTime() + waitTimeout.toNanos();
+        requestDispatch();
+        try {
+            while (true) {
+                // it may have been sent by another instance, or before this request started waiting
+                final StockOutboxEntry entry = transactionTemplate.execute(status -> outboxRepository.findById(entryId).orElse(null));
+                if (entry == null || entry.getStatus() != StockOutboxEntry.Status.PENDING) {
+                    return entry;
+                }
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    log.info("stock update {} still pending after {}", entryId, waitTimeout);
+                    throw new ServiceNotAvailableException("The transaction was saved, but its stock update is still pending");
+                }
+                try {
+                    return processed.get(Math.min(remaining, RECHECK_NANOS), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    log.trace("stock update {} still pending", entryId);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceNotAvailableException("Interrupted while waiting for the stock update");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            waiting.remove(entryId, processed);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${transaction.outbox.poll-ms:1000}")
+    void poll() {
+        pending.set(outboxRepository.countByStatus(StockOutboxEntry.Status.PENDING));
+        oldestPending.set(outboxRepository.findFirstByStatusOrderByIdAsc(StockOutboxEntry.Status.PENDING)
+                .map(StockOutboxEntry::getCreatedAt)
+                .orElse(null));
+        if (pending.get() > 0) {
+            requestDispatch();
+        }
+    }
+
+    /**
+     * Deletes the stock updates processed longer than {@code transaction.outbox.retention} ago
+     */
+    @Scheduled(fixedDelayString = "${transaction.outbox.purge-ms:3600000}")
+    void purge() {
+        final int purged = outboxRepository.deleteProcessedBefore(LocalDateTime.now().minus(retention));
+        if (purged > 0) {
+            log.info("{} processed stock updates purged from the outbox", purged);
+        }
+    }
+
+    private void dispatch() {
+        try {
+            Batch batch;
+            do {
+                batch = transactionTemplate.execute(status -> sendBatch());
+                // the waiting requests see the results once they are committed
+                batch.processed().forEach(entry -> {
+                    final CompletableFuture<StockOutboxEntry> processed = waiting.remove(entry.getId());
+                    if (processed != null) {
+                        processed.complete(entry);
+                    }
+                });
+            } while (batch.more());
+        } catch (RuntimeException e) {
+            log.error("failed to send the pending stock updates, they are sent again later: {}", e.getMessage());
+        }
+    }
+
+    private Batch sendBatch() {
+        if (!outboxRepository.tryLockDispatcher()) {
+            log.debug("stock updates being sent by another instance");
+            return Batch.NONE;
+        }
+        final List<StockOutboxEntry> entries = outboxRepository.findPending(batchSize);
+        if (entries.isEmpty()) {
+            return Batch.NONE;
+        }
+
+        // the stock-service checks the outputs of a product in a period against all the inputs of the period in
+        // the batch, so the updates of a product after its first output wait for the next batch, as they would
+        // have been checked after it
+        final Map<Long, List<StockOutboxEntry>> products = new LinkedHashMap<>();
+        final Set<Long> withOutput = new HashSet<>();
+        for (StockOutboxEntry entry : entries) {
+            if (withOutput.contains(entry.getProductId())) {
+                continue;
+            }
+            products.computeIfAbsent(entry.getProductId(), id -> new ArrayList<>()).add(entry);
+            if (entry.getType() == TransactionType.OUTPUT) {
+                withOutput.add(entry.getProductId());
+            }
+        }
+        final List<StockOutboxEntry> batch = products.values().stream().flatMap(List::stream).toList();
+        final boolean more = entries.size() == batchSize || batch.size() < entries.size();
+
+        final List<StockUpdateResult> results;
+        try {
+            results = stockFeignClient.addOrRemoveStockBatch(batch.stream().map(StockOutboxDispatcher::toRequest).toList());
+            if (results == null || results.size() != batch.size()) {
+                throw new IllegalStateException("unexpected stock update results");
+            }
+        } catch (ServiceNotAvailableException | RuntimeException e) {
+            failed.increment();
+            log.warn("stock-service didn't take {} stock updates, they are sent again later: {}", batch.size(), e.getMessage());
+            batch.forEach(entry -> {
+                entry.setAttempts(entry.getAttempts() + 1);
+                entry.setMessage(truncate(e.getMessage()));
+            });
+            return Batch.NONE;
+        }
+        batches.record(batch.size());
+
+        final LocalDateTime now = LocalDateTime.now();
+        for (StockUpdateResult result : results) {
+            final StockOutboxEntry entry = batch.get(result.line());
+            entry.setAttempts(entry.getAttempts() + 1);
+            entry.setProcessedAt(now);
+            delivery.record(Duration.between(entry.getCreatedAt(), now));
+            if (result.status() == StockUpdateStatus.APPLIED) {
+                entry.setStatus(StockOutboxEntry.Status.APPLIED);
+                entry.setMessage(null);
+                applied.increment();
+            } else {
+                entry.setStatus(StockOutboxEntry.Status.REJECTED);
+                entry.setMessage(truncate(result.message()));
+                rejected.increment();
+                undo(entry);
+                log.info("stock update {} rejected, {} of {} undone: {}", entry.getId(), entry.getOperation(),
+                        entry.getOperation() == StockOutboxEntry.Operation.IMPORT? "import " + entry.getImportId(): "transaction " + entry.getTransactionId(),
+                        result.message());
+            }
+        }
+        return new Batch(batch, more);
+    }
+
+    /**
+     * A rejected creation deletes the transaction, a rejected deletion restores it, and a rejected import update
+     * deletes the transactions of the import it was made of. The rollups stop or start counting them again.
+     */
+    private void undo(final StockOutboxEntry entry) {
+        if (entry.getOperation() == StockOutboxEntry.Operation.IMPORT) {
+            final YearMonth month = Periods.toYearMonth(Periods.of(entry.getDate()));
+            rollupService.removeImported(entry.getImportId(), entry.getProductId(), entry.getType(), month.atDay(1), month.atEndOfMonth());
+            transactionRepository.deleteImported(entry.getImportId(), entry.getProductId(), entry.getType(),
+                    month.atDay(1), month.atEndOfMonth(), ZonedDateTime.now());
+        } else {
+            final boolean deleted = entry.getOperation() == StockOutboxEntry.Operation.CREATE;
+            if (transactionRepository.updateDeleted(entry.getTransactionId(), deleted, ZonedDateTime.now()) > 0) {
+                transactionRepository.findById(entry.getTransactionId()).ifPresent(deleted? rollupService::remove: rollupService::add);
+            }
+        }
+    }
+
+    private StockOutboxEntry findLast(final Long transactionId) {
+        // not read-only, so it's read from the primary database and not from a lagging replica
+        return transactionTemplate.execute(status -> outboxRepository.findFirstByTransactionIdOrderByIdDesc(transactionId).orElse(null));
+    }
+
+    private static StockUpdateRequest toRequest(final StockOutboxEntry entry) {
+        return StockUpdateRequest.builder()
+                .key(new StockKey(Periods.of(entry.getDate()), entry.getProductId()))
+                .type(entry.getType())
+                .quantity(entry.getQuantity())
+                .idempotencyKey("stock-outbox:" + entry.getId())
+                .build();
+    }
+
+    private static String truncate(final String message) {
+        return message == null || message.length() <= MAX_MESSAGE_LENGTH? message: message.substring(0, MAX_MESSAGE_LENGTH);
+    }
+
+    private static double lagSeconds(final AtomicReference<LocalDateTime> oldest) {
+        final LocalDateTime createdAt = oldest.get();
+        return createdAt == null? 0: Duration.between(createdAt, LocalDateTime.now()).toMillis() / 1000.0;
+    }
+
+    @PreDestroy
+    void stop() {
+        dispatcher.shutdownNow();
+    }
+
+    /**
+     * @param processed the stock updates processed by the stock-service
+     * @param more whether there are pending stock updates left
+     */
+    private record Batch(List<StockOutboxEntry> processed, boolean more) {
+
+        static final Batch NONE = new Batch(List.of(), false);
+    }
+}
@@ -1,54 +1,94 @@
 package com.franzoia.transactionservice.service;
 
-import com.franzoia.common.dto.StockKey;
-import com.franzoia.common.dto.StockUpdateRequest;
 import com.franzoia.common.dto.TransactionType;
-import com.franzoia.common.exception.EntityNotFoundException;
 import com.franzoia.common.exception.ServiceNotAvailableException;
-import com.franzoia.transactionservice.config.StockFeignClient;
-import feign.FeignException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.transactionservice.model.StockOutboxEntry;
+import com.franzoia.transactionservice.model.Transaction;
+import com.franzoia.transactionservice.repository.StockOutboxRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
+import java.time.LocalDateTime;
 
+/**
+ * Stock updates of the transactions. They are written to the stock outbox in the same database transaction
+ * as the change of the transaction and sent to the stock-service by the {@link StockOutboxDispatcher} once it
+ * is committed, so a slow or unavailable stock-service doesn't hold the transactions back. Every update carries
+ * an idempotency key, so it can be sent again without counting the same quantity twice.
+ */
 @Slf4j
 @Component
 public class StockService {
 
-    public static final DateTimeFormatter YYYY_MM = DateTimeFormatter.ofPattern("yyyyMM");
+    @Autowired
+    private StockOutboxRepository outboxRepository;
 
     @Autowired
-    private StockFeignClient stockFeignClient;
-
-    public void addToStock(LocalDate date, Long productId, Long quantity) throws ServiceNotAvailableException, EntityNotFoundException {
-        try {
-            final String yearMonth = date.format(YYYY_MM);
-            stockFeignClient.addOrRemoveStock(StockUpdateRequest.builder()
-                                    .key(new StockKey(yearMonth, productId))
-                                    .type(TransactionType.INPUT)
-                                    .quantity(quantity)
-                                    .build());
-        } catch (FeignException fe) {
-            log.error("Something went wrong with the stock-service", fe);
-            throw fe;
-        }
+    private StockOutboxDispatcher dispatcher;
+
+    /**
+     * Queues the stock update of a transaction being created, which must run in the transaction creating it
+     */
+    public void addTransaction(final Transaction transaction) {
+        enqueue(transaction.getId(), null, StockOutboxEntry.Operation.CREATE, transaction.getProductId(),
+                transaction.getDate(), transaction.getType(), transaction.getQuantity());
     }
 
-    public void removeFromStock(LocalDate date, Long productId, Long quantity) throws ServiceNotAvailableException, EntityNotFoundException {
-        try {
-            final String yearMonth = date.format(YYYY_MM);
-            stockFeignClient.addOrRemoveStock(StockUpdateRequest.builder()
-                                .key(new StockKey(yearMonth, productId))
-                                .type(TransactionType.OUTPUT)
-                                .quantity(quantity)
-                                .build());
-        } catch (FeignException fe) {
-            log.error("Something went wrong with the stock-service", fe);
-            throw fe;
-        }
+    /**
+     * Queues the stock update reverting a transaction being deleted, which must run in the transaction deleting it
+     */
+    public void removeTransaction(final Transaction transaction) {
+        enqueue(transaction.getId(), null, StockOutboxEntry.Operation.DELETE, transaction.getProductId(), transaction.getDate(),
+                transaction.getType() == TransactionType.INPUT? TransactionType.OUTPUT: TransactionType.INPUT, transaction.getQuantity());
     }
 
+    /**
+     * Queues the stock update of the transactions of an import for a product, month and type, which must run
+     * in the transaction importing them
+     */
+    public void addImport(final Long importId, final Long productId, final int period, final TransactionType type, final long quantity) {
+        enqueue(null, importId, StockOutboxEntry.Operation.IMPORT, productId, Periods.toYearMonth(period).atDay(1), type, quantity);
+    }
+
+    /**
+     * @return true while a stock update of the transaction was not processed by the stock-service
+     */
+    public boolean isPending(final Transaction transaction) {
+        return outboxRepository.existsByTransactionIdAndStatus(transaction.getId(), StockOutboxEntry.Status.PENDING)
+                || transaction.getImportId() != null && outboxRepository.existsByImportIdAndProductIdAndStatus(
+                        transaction.getImportId(), transaction.getProductId(), StockOutboxEntry.Status.PENDING);
+    }
+
+    /**
+     * Waits for the last stock update of a transaction, see {@link StockOutboxDispatcher#await(Long)}
+     */
+    public void awaitStockUpdate(final Long transactionId) throws ServiceNotAvailableException {
+        dispatcher.await(transactionId);
+    }
+
+    private void enqueue(final Long transactionId, final Long importId, final StockOutboxEntry.Operation operation,
+                         final Long productId, final LocalDate date, final TransactionType type, final Long quantity) {
+        outboxRepository.lockProduct(productId);
+        final StockOutboxEntry entry = outboxRepository.save(new StockOutboxEntry(null, transactionId, importId, operation,
+                productId, date, type, quantity, StockOutboxEntry.Status.PENDING, 0, null, LocalDateTime.now(), null));
+        log.debug("stock update {} of {} {} queued", entry.getId(), importId == null? "transaction": "import",
+                importId == null? transactionId: importId);
+
+        // sent as soon as it is committed
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    dispatcher.requestDispatch();
+                }
+            });
+        } else {
+            dispatcher.requestDispatch();
+        }
+    }
 }
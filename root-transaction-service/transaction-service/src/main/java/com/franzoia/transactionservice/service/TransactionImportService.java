@@ -0,0 +1,277 @@
+package com.franzoia.transactionservice.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.franzoia.common.dto.TransactionDTO;
+import com.franzoia.common.dto.TransactionImportDTO;
+import com.franzoia.common.dto.TransactionImportError;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.transactionservice.model.Transaction;
+import com.franzoia.transactionservice.model.TransactionImport;
+import com.franzoia.transactionservice.repository.TransactionImportRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * Imports transactions from CSV or NDJSON files.
+ * <p/>
+ * The file is read line by line and the transactions are inserted, in JDBC batches, and detached every
+ * {@code transaction.import.batch-size} lines, so the memory used doesn't depend on the size of the file.
+ * The products are checked against a single list of all of them, and instead of one stock update per
+ * transaction the import queues the total quantity of each product, month and type, sent to the
+ * stock-service once the import is committed. The invalid lines are skipped and reported, the import of
+ * the other ones is all or nothing.
+ */
+@Slf4j
+@Service
+public class TransactionImportService {
+
+    public static final String CSV = "text/csv";
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    private static final String[] CSV_COLUMNS = { "date", "type", "productId", "price", "quantity" };
+
+    @Autowired
+    private TransactionImportRepository importRepository;
+
+    @Autowired
+    private ProductService productService;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private TransactionRollupService rollupService;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${transaction.import.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${transaction.import.max-errors:100}")
+    private int maxErrors;
+
+    /**
+     * Imports the transactions of a file. A file imported again with the same idempotency key is not imported
+     * twice, the report of the first import is returned.
+     *
+     * @param contentType {@link #CSV}, with an optional header naming the columns, or {@link #NDJSON}, a
+     *                    transaction per line
+     */
+    @Transactional
+    public TransactionImportDTO importTransactions(final MediaType contentType, final String idempotencyKey,
+                                                   final InputStream content) throws IOException, ServiceNotAvailableException {
+        final LineParser parser = parser(contentType);
+        if (idempotencyKey != null) {
+            if (idempotencyKey.isBlank() || idempotencyKey.length() > Transaction.MAX_IDEMPOTENCY_KEY_LENGTH) {
+                throw new InvalidRequestException(String.format("Idempotency key must have between 1 and %d characters", Transaction.MAX_IDEMPOTENCY_KEY_LENGTH));
+            }
+            final Optional<TransactionImport> imported = importRepository.findByIdempotencyKey(idempotencyKey);
+            if (imported.isPresent()) {
+                log.debug("import with idempotency key {} already done", idempotencyKey);
+                return toDTO(imported.get(), null);
+            }
+        }
+
+        // a single call to the product-service for the whole file
+        final Set<Long> products = productService.getProductIds();
+        final TransactionImport transactionImport = importRepository.save(
+                new TransactionImport(null, idempotencyKey, 0, 0, 0, 0, LocalDateTime.now(), null));
+
+        // the total quantities of inputs and outputs, by product and period
+        final Map<Long, Map<Integer, long[]>> totals = new TreeMap<>();
+        final TransactionRollupService.Changes rollups = new TransactionRollupService.Changes();
+        final List<TransactionImportError> errors = new ArrayList<>();
+        int unflushed = 0;
+
+        final Charset charset = Optional.ofNullable(contentType.getCharset()).orElse(StandardCharsets.UTF_8);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(content, charset))) {
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || parser.isHeader(lineNumber, line)) {
+                    continue;
+                }
+                transactionImport.setLines(transactionImport.getLines() + 1);
+
+                final TransactionDTO dto;
+                try {
+                    dto = parser.parse(line);
+                    validate(dto, products);
+                } catch (InvalidRequestException e) {
+                    transactionImport.setRejected(transactionImport.getRejected() + 1);
+                    if (errors.size() < maxErrors) {
+                        errors.add(new TransactionImportError(lineNumber, e.getMessage()));
+                    }
+                    continue;
+                }
+
+                entityManager.persist(new Transaction(null, dto.date(), dto.type(), dto.productId(), dto.price(), dto.quantity(),
+                        null, transactionImport.getId()));
+                if (++unflushed == batchSize) {
+                    flush();
+                    unflushed = 0;
+                }
+                final long[] total = totals.computeIfAbsent(dto.productId(), id -> new TreeMap<>())
+                        .computeIfAbsent(Periods.of(dto.date()), period -> new long[2]);
+                total[dto.type() == TransactionType.INPUT? 0: 1] += dto.quantity();
+                rollups.add(dto.productId(), dto.type(), dto.date(), dto.price(), dto.quantity(), 1);
+                transactionImport.setImported(transactionImport.getImported() + 1);
+            }
+        }
+        flush();
+        rollupService.apply(rollups);
+
+        // the inputs of a month are sent before its outputs, which are checked against them
+        int stockUpdates = 0;
+        for (Map.Entry<Long, Map<Integer, long[]>> product : totals.entrySet()) {
+            for (Map.Entry<Integer, long[]> period : product.getValue().entrySet()) {
+                if (period.getValue()[0] > 0) {
+                    stockService.addImport(transactionImport.getId(), product.getKey(), period.getKey(), TransactionType.INPUT, period.getValue()[0]);
+                    stockUpdates++;
+                }
+                if (period.getValue()[1] > 0) {
+                    stockService.addImport(transactionImport.getId(), product.getKey(), period.getKey(), TransactionType.OUTPUT, period.getValue()[1]);
+                    stockUpdates++;
+                }
+            }
+        }
+        transactionImport.setStockUpdates(stockUpdates);
+        transactionImport.setFinishedAt(LocalDateTime.now());
+        log.info("import {}: {} transactions imported, {} rejected, {} stock updates queued", transactionImport.getId(),
+                transactionImport.getImported(), transactionImport.getRejected(), stockUpdates);
+
+        return toDTO(importRepository.save(transactionImport), errors);
+    }
+
+    /**
+     * Inserts the transactions persisted so far and detaches them
+     */
+    private void flush() {
+        entityManager.flush();
+        entityManager.clear();
+    }
+
+    private static void validate(final TransactionDTO dto, final Set<Long> products) {
+        if (dto.date() == null || dto.type() == null || dto.productId() == null || dto.price() == null || dto.quantity() == null) {
+            throw new InvalidRequestException("Transactions must have a date, type, productId, price and quantity");
+        }
+        if (!products.contains(dto.productId())) {
+            throw new InvalidRequestException("Could not find product with id: " + dto.productId());
+        }
+        TransactionService.validate(dto);
+    }
+
+    private static TransactionImportDTO toDTO(final TransactionImport transactionImport, final List<TransactionImportError> errors) {
+        return TransactionImportDTO.builder()
+                .id(transactionImport.getId())
+                .idempotencyKey(transactionImport.getIdempotencyKey())
+                .lines(transactionImport.getLines())
+                .imported(transactionImport.getImported())
+                .rejected(transactionImport.getRejected())
+                .stockUpdates(transactionImport.getStockUpdates())
+                .startedAt(transactionImport.getStartedAt())
+                .finishedAt(transactionImport.getFinishedAt())
+                .errors(errors)
+                .build();
+    }
+
+    private LineParser parser(final MediaType contentType) {
+        if (contentType.isCompatibleWith(MediaType.parseMediaType(CSV))) {
+            return new CsvParser();
+        } else if (contentType.isCompatibleWith(MediaType.parseMediaType(NDJSON))) {
+            final ObjectReader reader = objectMapper.readerFor(TransactionDTO.class);
+            return line -> {
+                try {
+                    return reader.readValue(line);
+                } catch (JsonProcessingException e) {
+                    throw new InvalidRequestException("Malformed transaction: " + e.getOriginalMessage());
+                }
+            };
+        }
+        throw new InvalidRequestException("Transactions can only be imported from " + CSV + " or " + NDJSON);
+    }
+
+    private interface LineParser {
+
+        TransactionDTO parse(final String line) throws InvalidRequestException;
+
+        default boolean isHeader(final long lineNumber, final String line) {
+            return false;
+        }
+    }
+
+    /**
+     * The columns are date, type, productId, price and quantity, in this order unless the first line names them
+     */
+    private static class CsvParser implements LineParser {
+
+        private int[] positions = { 0, 1, 2, 3, 4 };
+
+        @Override
+        public boolean isHeader(final long lineNumber, final String line) {
+            if (lineNumber > 1 || !Character.isLetter(line.strip().charAt(0))) {
+                return false;
+            }
+            final List<String> names = Arrays.stream(line.split(",")).map(String::strip).toList();
+            positions = new int[CSV_COLUMNS.length];
+            for (int column = 0; column < CSV_COLUMNS.length; column++) {
+                positions[column] = names.indexOf(CSV_COLUMNS[column]);
+                if (positions[column] < 0) {
+                    throw new InvalidRequestException("Missing column " + CSV_COLUMNS[column] + " in the header");
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public TransactionDTO parse(final String line) throws InvalidRequestException {
+            final String[] values = line.split(",", -1);
+            try {
+                return TransactionDTO.builder()
+                        .date(LocalDate.parse(value(values, 0)))
+                        .type(TransactionType.valueOf(value(values, 1).toUpperCase()))
+                        .productId(Long.valueOf(value(values, 2)))
+                        .price(Double.valueOf(value(values, 3)))
+                        .quantity(Long.valueOf(value(values, 4)))
+                        .build();
+            } catch (DateTimeParseException | IllegalArgumentException e) {
+                throw new InvalidRequestException("Malformed transaction: " + e.getMessage());
+            }
+        }
+
+        private String value(final String[] values, final int column) {
+            if (positions[column] >= values.length) {
+                throw new InvalidRequestException("Missing " + CSV_COLUMNS[column]);
+            }
+            return values[positions[column]].strip();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.franzoia.transactionservice.service;
+
+import com.franzoia.common.dto.TransactionPartitionDTO;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.transactionservice.model.StockOutboxEntry;
+import com.franzoia.transactionservice.repository.StockOutboxRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the transactions table partitioned by month of the date, on PostgreSQL.
+ * <p/>
+ * The table created by the schema update is moved to monthly partitions when the service starts, and the partitions
+ * of the current month and the next {@code transaction.partitions.months-ahead} ones are created ahead of time,
+ * checked every {@code transaction.partitions.check-ms}. The queries by dates only read the partitions of the
+ * requested months, so they don't get slower as the history grows.
+ * <p/>
+ * Only the transactions of the current year can be written, so the years before it are closed: their monthly
+ * partitions can be merged into a single densely packed partition of the year, which can also be detached to
+ * take the year out of the queries while keeping its table.
+ */
+@Slf4j
+@Service
+public class TransactionPartitionService implements SmartInitializingSingleton {
+
+    /**
+     * Lock key of the changes of the partitions, in the two keys space of the advisory locks
+     */
+    public static final int PARTITION_LOCK = 4;
+
+    private static final String UNPARTITIONED = "transactions_unpartitioned";
+
+    /**
+     * The indexes of the partitioned table, created here as the schema update doesn't see the indexes of
+     * partitioned tables and would create them again on every start
+     */
+    private static final Map<String, String> INDEXES = Map.of(
+            "idx_transactions_date", "date",
+            "idx_transactions_product", "product_id, date",
+            "idx_transactions_import", "import_id, product_id");
+
+    private static final Pattern PARTITION = Pattern.compile("transactions_y(\\d{4})(?:m(\\d{2}))?");
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final StockOutboxRepository outboxRepository;
+
+    private final int monthsAhead;
+
+    private boolean enabled;
+
+    public TransactionPartitionService(final JdbcTemplate jdbcTemplate,
+                                       final TransactionTemplate transactionTemplate,
+                                       final StockOutboxRepository outboxRepository,
+                                       @Value("${transaction.partitions.months-ahead:3}") final int monthsAhead) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.outboxRepository = outboxRepository;
+        this.monthsAhead = monthsAhead;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        final String database = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+        enabled = "PostgreSQL".equals(database);
+        if (!enabled) {
+            return;
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            lock();
+            if ("r".equals(relationKind("transactions"))) {
+                partition();
+            }
+            INDEXES.forEach((name, columns) -> {
+                if (relationKind(name) == null) {
+                    jdbcTemplate.execute("CREATE INDEX " + name + " ON transactions (" + columns + ")");
+                }
+            });
+        });
+        createPartitions();
+    }
+
+    /**
+     * Creates the partitions of the current month and of the next ones
+     */
+    @Scheduled(initialDelayString = "${transaction.partitions.check-ms:86400000}", fixedDelayString = "${transaction.partitions.check-ms:86400000}")
+    void createPartitions() {
+        if (!enabled) {
+            return;
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            lock();
+            final YearMonth current = YearMonth.now();
+            for (int i = 0; i <= monthsAhead; i++) {
+                createPartition(current.plusMonths(i));
+            }
+        });
+    }
+
+    /**
+     * @return the partitions of the months and of the archived years, attached or not
+     */
+    @Transactional(readOnly = true)
+    public List<TransactionPartitionDTO> listPartitions() {
+        if (!enabled) {
+            return List.of();
+        }
+        return findPartitions("^transactions_y[0-9]{4}(m[0-9]{2})?$");
+    }
+
+    /**
+     * Merges the monthly partitions of a closed year into a single partition of the year, written in the order
+     * of the dates and without free space in its pages. Archiving a year again only detaches it, when asked.
+     *
+     * @param detach whether the partition of the year is detached, its transactions are no longer read by the queries
+     */
+    @Transactional
+    public TransactionPartitionDTO archive(final int year, final boolean detach) throws InvalidRequestException {
+        if (!enabled) {
+            throw new InvalidRequestException("The transactions are only partitioned on PostgreSQL");
+        }
+        if (year >= LocalDate.now().getYear()) {
+            throw new InvalidRequestException("Only the years before the current one are closed and can be archived");
+        }
+        final LocalDate start = LocalDate.of(year, 1, 1);
+        final LocalDate end = start.plusYears(1);
+        // a rejected stock update changes its transaction, which would be lost in a detached year
+        if (detach && outboxRepository.existsByStatusAndDateBetween(StockOutboxEntry.Status.PENDING, start, end.minusDays(1))) {
+            throw new InvalidRequestException("The stock updates of transactions of " + year + " are still pending");
+        }
+        lock();
+
+        final String archive = "transactions_y" + year;
+        final List<String> months = jdbcTemplate.queryForList(
+                "SELECT c.relname FROM pg_inherits i, pg_class c " +
+                "WHERE i.inhparent = CAST('transactions' AS regclass) AND c.oid = i.inhrelid AND c.relname ~ ? " +
+                "ORDER BY c.relname", String.class, "^" + archive + "m[0-9]{2}$");
+        if (!months.isEmpty()) {
+            if (relationKind(archive) != null) {
+                throw new InvalidRequestException("The table " + archive + " already exists");
+            }
+            // the changes to the months wait until they are merged, so none is lost
+            jdbcTemplate.execute("LOCK TABLE " + String.join(", ", months) + " IN EXCLUSIVE MODE");
+            jdbcTemplate.execute("CREATE TABLE " + archive + " (LIKE transactions INCLUDING DEFAULTS INCLUDING CONSTRAINTS) WITH (fillfactor = 100)");
+            final int rows = jdbcTemplate.update("INSERT INTO " + archive + " SELECT * FROM transactions " +
+                                                 "WHERE date >= ? AND date < ? ORDER BY date, product_id", start, end);
+            for (String month : months) {
+                jdbcTemplate.execute("ALTER TABLE transactions DETACH PARTITION " + month);
+                jdbcTemplate.execute("DROP TABLE " + month);
+            }
+            // the check spares reading the partition again when it's attached
+            jdbcTemplate.execute(String.format("ALTER TABLE %s ADD CONSTRAINT %s_date CHECK (date >= '%s' AND date < '%s')", archive, archive, start, end));
+            jdbcTemplate.execute(String.format("ALTER TABLE transactions ATTACH PARTITION %s FOR VALUES FROM ('%s') TO ('%s')", archive, start, end));
+            jdbcTemplate.execute("ANALYZE " + archive);
+            log.info("{} partitions of {} merged into {}: {} transactions", months.size(), year, archive, rows);
+
+        } else if (relationKind(archive) == null) {
+            throw new InvalidRequestException("There are no partitions of the transactions of " + year);
+        }
+
+        final boolean attached = Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "SELECT relispartition FROM pg_class WHERE oid = CAST(? AS regclass)", Boolean.class, archive));
+        if (detach && attached) {
+            jdbcTemplate.execute("ALTER TABLE transactions DETACH PARTITION " + archive);
+            log.info("transactions of {} detached, kept in {}", year, archive);
+        }
+        return findPartitions("^" + archive + "$").get(0);
+    }
+
+    /**
+     * Moves the rows of the table created by the schema update to a new partitioned table with the same columns.
+     * The unique keys of a partitioned table must include the date.
+     */
+    private void partition() {
+        log.info("moving the transactions to monthly partitions");
+        jdbcTemplate.execute("ALTER TABLE transactions RENAME TO " + UNPARTITIONED);
+        jdbcTemplate.execute("CREATE TABLE transactions (LIKE " + UNPARTITIONED + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS) PARTITION BY RANGE (date)");
+
+        // a serial id keeps its sequence, which would be dropped with the old table
+        final String sequence = jdbcTemplate.queryForObject("SELECT pg_get_serial_sequence(?, 'id')", String.class, UNPARTITIONED);
+        final String idDefault = jdbcTemplate.queryForObject(
+                "SELECT column_default FROM information_schema.columns " +
+                "WHERE table_schema = current_schema() AND table_name = 'transactions' AND column_name = 'id'", String.class);
+        if (sequence != null && idDefault != null) {
+            jdbcTemplate.execute("ALTER SEQUENCE " + sequence + " OWNED BY transactions.id");
+        }
+
+        final LocalDate[] dates = jdbcTemplate.queryForObject("SELECT MIN(date), MAX(date) FROM " + UNPARTITIONED,
+                (rs, row) -> new LocalDate[] { rs.getObject(1, LocalDate.class), rs.getObject(2, LocalDate.class) });
+        YearMonth month = dates[0] == null? YearMonth.now(): YearMonth.from(dates[0]);
+        final YearMonth last = dates[1] == null || YearMonth.from(dates[1]).isBefore(YearMonth.now())? YearMonth.now(): YearMonth.from(dates[1]);
+        for (; !month.isAfter(last); month = month.plusMonths(1)) {
+            createPartition(month);
+        }
+
+        final int rows = jdbcTemplate.update("INSERT INTO transactions SELECT * FROM " + UNPARTITIONED);
+        jdbcTemplate.execute("DROP TABLE " + UNPARTITIONED);
+        jdbcTemplate.execute("ALTER TABLE transactions ADD PRIMARY KEY (id, date)");
+        jdbcTemplate.execute("ALTER TABLE transactions ADD CONSTRAINT uk_transactions_idempotency_key UNIQUE (idempotency_key, date)");
+        log.info("{} transactions moved to monthly partitions", rows);
+    }
+
+    private void createPartition(final YearMonth month) {
+        final String name = String.format("transactions_y%dm%02d", month.getYear(), month.getMonthValue());
+        if (relationKind(name) == null) {
+            jdbcTemplate.execute(String.format("CREATE TABLE %s PARTITION OF transactions FOR VALUES FROM ('%s') TO ('%s')",
+                    name, month.atDay(1), month.plusMonths(1).atDay(1)));
+            log.info("partition {} of the transactions created", name);
+        }
+    }
+
+    private List<TransactionPartitionDTO> findPartitions(final String regex) {
+        return jdbcTemplate.query(
+                "SELECT c.relname, c.relispartition, CAST(c.reltuples AS BIGINT) AS estimated_rows, pg_total_relation_size(c.oid) AS size " +
+                "FROM pg_class c " +
+                "WHERE c.relkind = 'r' AND c.relnamespace = CAST(current_schema() AS regnamespace) AND c.relname ~ ? " +
+                "ORDER BY c.relname",
+                (rs, row) -> {
+                    final Matcher name = PARTITION.matcher(rs.getString("relname"));
+                    name.matches();
+                    final LocalDate start = name.group(2) == null? LocalDate.of(Integer.parseInt(name.group(1)), 1, 1):
+                            LocalDate.of(Integer.parseInt(name.group(1)), Integer.parseInt(name.group(2)), 1);
+                    final long rows = rs.getLong("estimated_rows");
+                    return TransactionPartitionDTO.builder()
+                            .name(rs.getString("relname"))
+                            .startDate(start)
+                            .endDate((name.group(2) == null? start.plusYears(1): start.plusMonths(1)).minusDays(1))
+                            // estimated, unknown until the partition is analyzed
+                            .rows(rows < 0? null: rows)
+                            .sizeBytes(rs.getLong("size"))
+                            .attached(rs.getBoolean("relispartition"))
+                            .build();
+                }, regex);
+    }
+
+    /**
+     * @return the kind of a relation, r for a table and p for a partitioned one, null when there is none
+     */
+    private String relationKind(final String name) {
+        return jdbcTemplate.queryForList("SELECT CAST(relkind AS TEXT) FROM pg_class WHERE oid = to_regclass(?)", String.class, name)
+                .stream().findFirst().orElse(null);
+    }
+
+    /**
+     * Makes the changes of the partitions of the instances wait for each other until the end of the current transaction
+     */
+    private void lock() {
+        jdbcTemplate.queryForList("SELECT pg_advisory_xact_lock(" + PARTITION_LOCK + ", 0)");
+    }
+}
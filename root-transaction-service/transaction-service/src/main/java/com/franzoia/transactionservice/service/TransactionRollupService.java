@@ -0,0 +1,262 @@
+package com.franzoia.transactionservice.service;
+
+import com.franzoia.common.dto.TransactionRollupDTO;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.util.Periods;
+import com.franzoia.transactionservice.model.Transaction;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.*;
+
+/**
+ * Count, quantity and value of the transactions per product, type and day, and per product, type and month, so
+ * the reports over long periods read a few rollup rows instead of all the transactions.
+ * <p/>
+ * The rollups are changed in the same database transaction as the transactions they count: the creations and
+ * deletions, the imports, and the changes undone when the stock-service rejects their stock updates. They only
+ * count the transactions not deleted, and keep the totals of the years detached from the transactions table.
+ * The rollups of the transactions already there are built once, on PostgreSQL, when the service starts with no
+ * rollups.
+ */
+@Slf4j
+@Service
+public class TransactionRollupService implements SmartInitializingSingleton {
+
+    /**
+     * Lock key of the build of the rollups, in the two keys space of the advisory locks
+     */
+    public static final int BUILD_LOCK = 5;
+
+    private static final String UPSERT_DAY =
+            "INSERT INTO transaction_daily_rollups (product_id, type, date, transaction_count, total_quantity, total_value) " +
+            "VALUES (?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT (product_id, type, date) DO UPDATE " +
+            "SET transaction_count = transaction_daily_rollups.transaction_count + EXCLUDED.transaction_count, " +
+            "    total_quantity = transaction_daily_rollups.total_quantity + EXCLUDED.total_quantity, " +
+            "    total_value = transaction_daily_rollups.total_value + EXCLUDED.total_value";
+
+    private static final String UPSERT_MONTH =
+            "INSERT INTO transaction_monthly_rollups (product_id, type, year_month, transaction_count, total_quantity, total_value) " +
+            "VALUES (?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT (product_id, type, year_month) DO UPDATE " +
+            "SET transaction_count = transaction_monthly_rollups.transaction_count + EXCLUDED.transaction_count, " +
+            "    total_quantity = transaction_monthly_rollups.total_quantity + EXCLUDED.total_quantity, " +
+            "    total_value = transaction_monthly_rollups.total_value + EXCLUDED.total_value";
+
+    private static final String SELECT_IMPORTED =
+            "SELECT t.date, COUNT(*), SUM(COALESCE(t.quantity, 0)), SUM(COALESCE(t.price, 0) * COALESCE(t.quantity, 0)) " +
+            "FROM transactions t " +
+            "WHERE t.import_id = ? AND t.product_id = ? AND t.type = ? AND t.date BETWEEN ? AND ? AND t.deleted = false " +
+            "GROUP BY t.date";
+
+    private static final String BUILD_DAYS =
+            "INSERT INTO transaction_daily_rollups (product_id, type, date, transaction_count, total_quantity, total_value) " +
+            "SELECT t.product_id, t.type, t.date, COUNT(*), SUM(COALESCE(t.quantity, 0)), SUM(COALESCE(t.price, 0) * COALESCE(t.quantity, 0)) " +
+            "FROM transactions t " +
+            "WHERE t.deleted = false " +
+            "GROUP BY t.product_id, t.type, t.date";
+
+    private static final String BUILD_MONTHS =
+            "INSERT INTO transaction_monthly_rollups (product_id, type, year_month, transaction_count, total_quantity, total_value) " +
+            "SELECT d.product_id, d.type, TO_CHAR(d.date, 'YYYYMM'), SUM(d.transaction_count), SUM(d.total_quantity), SUM(d.total_value) " +
+            "FROM transaction_daily_rollups d " +
+            "GROUP BY d.product_id, d.type, TO_CHAR(d.date, 'YYYYMM')";
+
+    private static final String SELECT_DAYS =
+            "SELECT r.product_id, r.type, r.date, r.transaction_count, r.total_quantity, r.total_value " +
+            "FROM transaction_daily_rollups r " +
+            "WHERE r.date BETWEEN ? AND ? AND r.transaction_count > 0 ";
+
+    private static final String SELECT_MONTHS =
+            "SELECT r.product_id, r.type, r.year_month, r.transaction_count, r.total_quantity, r.total_value " +
+            "FROM transaction_monthly_rollups r " +
+            "WHERE r.year_month BETWEEN ? AND ? AND r.transaction_count > 0 ";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    public TransactionRollupService(final JdbcTemplate jdbcTemplate, final TransactionTemplate transactionTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * Builds the rollups of the transactions created before them, while the transactions can't be changed
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        final String database = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+        if (!"PostgreSQL".equals(database)) {
+            return;
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.queryForList("SELECT pg_advisory_xact_lock(" + BUILD_LOCK + ", 0)");
+            final boolean built = Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                    "SELECT EXISTS (SELECT 1 FROM transaction_daily_rollups) OR NOT EXISTS (SELECT 1 FROM transactions)", Boolean.class));
+            if (!built) {
+                jdbcTemplate.execute("LOCK TABLE transactions IN SHARE MODE");
+                final int days = jdbcTemplate.update(BUILD_DAYS);
+                final int months = jdbcTemplate.update(BUILD_MONTHS);
+                log.info("rollups of the transactions built: {} days and {} months", days, months);
+            }
+        });
+    }
+
+    /**
+     * Counts a transaction being created or restored, which must run in the transaction changing it
+     */
+    public void add(final Transaction transaction) {
+        final Changes changes = new Changes();
+        changes.add(transaction.getProductId(), transaction.getType(), transaction.getDate(), transaction.getPrice(), transaction.getQuantity(), 1);
+        apply(changes);
+    }
+
+    /**
+     * Stops counting a transaction being deleted, which must run in the transaction deleting it
+     */
+    public void remove(final Transaction transaction) {
+        final Changes changes = new Changes();
+        changes.add(transaction.getProductId(), transaction.getType(), transaction.getDate(), transaction.getPrice(), transaction.getQuantity(), -1);
+        apply(changes);
+    }
+
+    /**
+     * Stops counting the transactions of an import for a product, type and dates, which must run in the
+     * transaction deleting them and before they are deleted
+     */
+    public void removeImported(final Long importId, final Long productId, final TransactionType type,
+                               final LocalDate startDate, final LocalDate finalDate) {
+        final Changes changes = new Changes();
+        jdbcTemplate.query(SELECT_IMPORTED, rs -> {
+            changes.add(new Day(productId, type, rs.getObject(1, LocalDate.class)), -rs.getLong(2), -rs.getLong(3), -rs.getDouble(4));
+        }, importId, productId, type.ordinal(), startDate, finalDate);
+        apply(changes);
+    }
+
+    /**
+     * Writes the changes summed up in memory, the days and then the months in the same order in every
+     * transaction, so the ones changing the same rollups wait for each other instead of deadlocking
+     */
+    public void apply(final Changes changes) {
+        final Map<Month, Totals> months = new TreeMap<>();
+        final List<Object[]> dayRows = new ArrayList<>(changes.days.size());
+        changes.days.forEach((day, totals) -> {
+            dayRows.add(new Object[] { day.productId(), day.type().ordinal(), day.date(), totals.count, totals.quantity, totals.value });
+            months.computeIfAbsent(new Month(day.productId(), day.type(), Periods.of(day.date())), month -> new Totals())
+                    .add(totals.count, totals.quantity, totals.value);
+        });
+        final List<Object[]> monthRows = new ArrayList<>(months.size());
+        months.forEach((month, totals) -> monthRows.add(new Object[] { month.productId(), month.type().ordinal(), Periods.format(month.period()),
+                totals.count, totals.quantity, totals.value }));
+
+        jdbcTemplate.batchUpdate(UPSERT_DAY, dayRows);
+        jdbcTemplate.batchUpdate(UPSERT_MONTH, monthRows);
+    }
+
+    /**
+     * @param productId only the rollups of this product, all of them when null
+     */
+    @Transactional(readOnly = true)
+    public List<TransactionRollupDTO> listDaily(final LocalDate startDate, final LocalDate endDate, final Long productId) {
+        final List<Object> args = new ArrayList<>(List.of(startDate, endDate));
+        String sql = SELECT_DAYS;
+        if (productId != null) {
+            sql += "AND r.product_id = ? ";
+            args.add(productId);
+        }
+        return jdbcTemplate.query(sql + "ORDER BY r.date, r.product_id, r.type", (rs, row) -> TransactionRollupDTO.builder()
+                .productId(rs.getLong(1))
+                .type(TransactionType.values()[rs.getInt(2)])
+                .date(rs.getObject(3, LocalDate.class))
+                .count(rs.getLong(4))
+                .quantity(rs.getLong(5))
+                .value(rs.getDouble(6))
+                .build(), args.toArray());
+    }
+
+    /**
+     * @param productId only the rollups of this product, all of them when null
+     */
+    @Transactional(readOnly = true)
+    public List<TransactionRollupDTO> listMonthly(final YearMonth start, final YearMonth end, final Long productId) {
+        final List<Object> args = new ArrayList<>(List.of(Periods.format(Periods.of(start)), Periods.format(Periods.of(end))));
+        String sql = SELECT_MONTHS;
+        if (productId != null) {
+            sql += "AND r.product_id = ? ";
+            args.add(productId);
+        }
+        return jdbcTemplate.query(sql + "ORDER BY r.year_month, r.product_id, r.type", (rs, row) -> TransactionRollupDTO.builder()
+                .productId(rs.getLong(1))
+                .type(TransactionType.values()[rs.getInt(2)])
+                .yearMonth(rs.getString(3))
+                .count(rs.getLong(4))
+                .quantity(rs.getLong(5))
+                .value(rs.getDouble(6))
+                .build(), args.toArray());
+    }
+
+    /**
+     * Changes to the rollups summed up in memory, by product, type and day
+     */
+    public static class Changes {
+
+        private final Map<Day, Totals> days = new TreeMap<>();
+
+        /**
+         * @param sign 1 for a transaction counted, -1 for one no longer counted
+         */
+        public void add(final Long productId, final TransactionType type, final LocalDate date, final Double price,
+                        final Long quantity, final int sign) {
+            final long units = quantity == null? 0: quantity;
+            add(new Day(productId, type, date), sign, sign * units, sign * units * (price == null? 0: price));
+        }
+
+        private void add(final Day day, final long count, final long quantity, final double value) {
+            days.computeIfAbsent(day, d -> new Totals()).add(count, quantity, value);
+        }
+    }
+
+    private static class Totals {
+
+        private long count;
+
+        private long quantity;
+
+        private double value;
+
+        private void add(final long count, final long quantity, final double value) {
+            this.count += count;
+            this.quantity += quantity;
+            this.value += value;
+        }
+    }
+
+    private record Day(Long productId, TransactionType type, LocalDate date) implements Comparable<Day> {
+
+        private static final Comparator<Day> ORDER = Comparator.comparing(Day::productId).thenComparing(Day::type).thenComparing(Day::date);
+
+        @Override
+        public int compareTo(final Day other) {
+            return ORDER.compare(this, other);
+        }
+    }
+
+    private record Month(Long productId, TransactionType type, int period) implements Comparable<Month> {
+
+        private static final Comparator<Month> ORDER = Comparator.comparing(Month::productId).thenComparing(Month::type).thenComparingInt(Month::period);
+
+        @Override
+        public int compareTo(final Month other) {
+            return ORDER.compare(this, other);
+        }
+    }
+}
@@ -9,6 +9,7 @@ import com.franzoia.common.exception.InvalidRequestException;
 import com.franzoia.common.exception.ServiceNotAvailableException;
 import com.franzoia.common.util.DefaultService;
 import com.franzoia.transactionservice.model.Transaction;
+import com.franzoia.transactionservice.model.TransactionView;
 import com.franzoia.transactionservice.repository.TransactionRepository;
 import com.franzoia.transactionservice.service.mapper.TransactionMapper;
 import lombok.Builder;
@@ -18,11 +19,11 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.function.Function;
 
 import static java.util.stream.Collectors.groupingBy;
@@ -43,10 +44,14 @@ public class TransactionService extends DefaultService<TransactionDTO, Transacti
 	@Autowired
 	private ProductService productService;
 
+	@Autowired
+	private TransactionRollupService rollupService;
+
 	public TransactionService(final TransactionRepository transactionRepository) {
 		super(transactionRepository, new TransactionMapper());
 	}
 
+	@Transactional(readOnly = true)
 	public TransactionDTO getTransaction(final Long transactionId) throws EntityNotFoundException, ServiceNotAvailableException {
 		Transaction transaction = findOne(transactionId);
 		// implicit product validation
@@ -62,31 +67,73 @@ public class TransactionService extends DefaultService<TransactionDTO, Transacti
 				.build();
 	}
 
+	@Transactional(readOnly = true)
 	public List<TransactionDTO> listAllOrderByDate() {
-		return createTransactionList(findAll());
+		return createTransactionList(((TransactionRepository) repository).findAllViewsOrderByDate());
 	}
 
+	@Transactional(readOnly = true)
 	public Map<TransactionType, List<TransactionDTO>> listByTpe(final TransactionType type) {
-		return createTransactionList(((TransactionRepository) repository).findAllByTypeOrderByDate(type))
+		return createTransactionList(((TransactionRepository) repository).findAllViewsByTypeOrderByDate(type))
 				.stream()
 				.collect(groupingBy(TransactionDTO::type));
 	}
 
+	@Transactional(readOnly = true)
 	public List<TransactionDTO> listByDates(final LocalDate startDate, final LocalDate endDate) {
-		return createTransactionList(((TransactionRepository) repository).findAllByDateBetweenOrderByDate(startDate, endDate));
+		return createTransactionList(((TransactionRepository) repository).findAllViewsByDateBetweenOrderByDate(startDate, endDate));
 	}
 
+	@Transactional(readOnly = true)
 	public List<TransactionDTO> listByDatesAndProduct(final LocalDate startDate, final LocalDate endDate, final Long productId) throws EntityNotFoundException, ServiceNotAvailableException {
 		ProductDTO product = productService.getProductById(productId);
-		return createTransactionList(((TransactionRepository) repository).findAllByDateBetweenAndProductIdOrderByDate(startDate, endDate, productId), product);
+		return createTransactionList(((TransactionRepository) repository).findAllViewsByDateBetweenAndProductIdOrderByDate(startDate, endDate, productId), product);
 	}
 
+	/**
+	 * Creates a transaction and queues its stock update. A transaction created again with the same idempotency
+	 * key is not created twice, the one already created is returned, and a different transaction with the key is
+	 * rejected, also when both are created at the same time.
+	 */
 	@Transactional
 	public TransactionDTO create(TransactionDTO dto) throws ConstraintsViolationException, EntityNotFoundException, InvalidRequestException, ServiceNotAvailableException {
 		// implicit product validation
 		ProductDTO product = productService.getProductById(dto.productId());
 
+		if (dto.idempotencyKey() != null) {
+			if (dto.idempotencyKey().isBlank() || dto.idempotencyKey().length() > Transaction.MAX_IDEMPOTENCY_KEY_LENGTH) {
+				throw new InvalidRequestException(String.format("Idempotency key must have between 1 and %d characters", Transaction.MAX_IDEMPOTENCY_KEY_LENGTH));
+			}
+			((TransactionRepository) repository).lockIdempotencyKey(dto.idempotencyKey());
+			final Optional<Transaction> created = ((TransactionRepository) repository).findFirstByIdempotencyKeyOrderById(dto.idempotencyKey());
+			if (created.isPresent()) {
+				return replay(created.get(), dto, product);
+			}
+		}
+
 		// additional validation
+		validate(dto);
+
+		// create the transaction, the stock is updated once it is committed
+		Transaction transaction = create(mapper.convertDtoToEntity(dto));
+		rollupService.add(transaction);
+		stockService.addTransaction(transaction);
+
+		return TransactionDTO.builder()
+				.id(transaction.getId())
+				.type(dto.type())
+				.date(transaction.getDate())
+				.product(product)
+				.price(transaction.getPrice())
+				.quantity(transaction.getQuantity())
+				.idempotencyKey(transaction.getIdempotencyKey())
+				.build();
+	}
+
+	/**
+	 * Validates the values of a new transaction, also used by the imports
+	 */
+	static void validate(final TransactionDTO dto) throws InvalidRequestException {
 		if (dto.date().isAfter(LocalDate.now())) {
 			throw new InvalidRequestException("Future transactions are not permitted");
 
@@ -96,59 +143,66 @@ public class TransactionService extends DefaultService<TransactionDTO, Transacti
 		} else if (dto.quantity() < 0 || dto.price() < 0) {
 			throw new InvalidRequestException("Transactions cannot have quantity or price bellow zero");
 		}
+	}
 
-		// create the transaction and update the stock information
-		Transaction transaction = create(mapper.convertDtoToEntity(dto));
-		try {
-			switch (dto.type()) {
-				case INPUT -> stockService.addToStock(dto.date(), dto.productId(), dto.quantity());
-				case OUTPUT -> stockService.removeFromStock(dto.date(), dto.productId(), dto.quantity());
-				default -> throw new InvalidRequestException("couldn't create the transaction and update stock");
-			}
-		} catch (Throwable throwable) {
-			log.error("Error during stock update: {}", throwable.getMessage());
-			repository.delete(transaction);
-			throw throwable;
+	private TransactionDTO replay(final Transaction transaction, final TransactionDTO dto, final ProductDTO product) {
+		if (!Objects.equals(transaction.getDate(), dto.date()) || transaction.getType() != dto.type()
+				|| !Objects.equals(transaction.getProductId(), dto.productId())
+				|| !Objects.equals(transaction.getPrice(), dto.price()) || !Objects.equals(transaction.getQuantity(), dto.quantity())) {
+			log.info("Idempotency key {} was used by a different transaction", dto.idempotencyKey());
+			throw new InvalidRequestException("Idempotency key was used by a different transaction");
 		}
-
+		log.debug("transaction with idempotency key {} already created", dto.idempotencyKey());
 		return TransactionDTO.builder()
 				.id(transaction.getId())
-				.type(dto.type())
+				.type(transaction.getType())
 				.date(transaction.getDate())
 				.product(product)
 				.price(transaction.getPrice())
 				.quantity(transaction.getQuantity())
+				.idempotencyKey(transaction.getIdempotencyKey())
 				.build();
 	}
 
+	/**
+	 * Deletes a transaction and reverts its stock update, once the stock update of its creation was processed
+	 */
 	@Transactional
 	public void deleteTransaction(Long transactionId) throws EntityNotFoundException, InvalidRequestException, ServiceNotAvailableException {
 		// check if the transaction exists
 		Transaction transaction = findByIdChecked(transactionId);
+		if (stockService.isPending(transaction)) {
+			throw new InvalidRequestException("The stock update of the transaction is still pending");
+		}
 
-		// update stock information before deleting the transaction
-		try {
-			switch (transaction.getType()) {
-				case INPUT -> stockService.removeFromStock(transaction.getDate(), transaction.getProductId(), transaction.getQuantity());
-				case OUTPUT -> stockService.addToStock(transaction.getDate(), transaction.getProductId(), transaction.getQuantity());
-				default -> throw new InvalidRequestException("Could not update stock information for transaction");
-			}
+		// delete the transaction, the stock is updated once it is committed
+		delete(transactionId);
+		rollupService.remove(transaction);
+		stockService.removeTransaction(transaction);
+	}
 
-			// delete the transaction
-			delete(transactionId);
-		} catch (Throwable t) {
-			log.error("Error while updating the stock");
-			throw t;
-		}
+	/**
+	 * Waits until the stock-service processed the last stock update of a transaction, for the callers that
+	 * read the stock right after changing a transaction
+	 *
+	 * @throws InvalidRequestException when the stock update was rejected, so the change of the transaction was undone
+	 * @throws ServiceNotAvailableException when the stock update is still pending after the wait timeout
+	 */
+	public void awaitStockUpdate(final Long transactionId) throws ServiceNotAvailableException {
+		stockService.awaitStockUpdate(transactionId);
 	}
 
-	private List<TransactionDTO> createTransactionList(final List<Transaction> transactions) {
+	private List<TransactionDTO> createTransactionList(final List<TransactionView> transactions) {
 		return createTransactionList(transactions, null);
 	}
 
-	private List<TransactionDTO> createTransactionList(final List<Transaction> transactions, final ProductDTO product) {
+	/**
+	 * Creates the DTOs of the transactions read by a list query. The queries return read-only projections
+	 * already ordered by date.
+	 */
+	private List<TransactionDTO> createTransactionList(final List<TransactionView> transactions, final ProductDTO product) {
 		Map<Long, List<ProductDTO>> productsMap = product == null? productService.getProductMap() : null;
-		List<TransactionDTO> list = new ArrayList<>();
+		List<TransactionDTO> list = new ArrayList<>(transactions.size());
 
 		// fallback for category-service
 		final Function<Long, ProductDTO> prod = id -> {
@@ -163,16 +217,16 @@ public class TransactionService extends DefaultService<TransactionDTO, Transacti
 
 		transactions.forEach(t -> {
 			TransactionDTO dto = TransactionDTO.builder()
-					.id(t.getId())
-					.date(t.getDate())
-					.type(t.getType())
-					.product(product != null? product: prod.apply(t.getProductId()))
-					.price(t.getPrice())
-					.quantity(t.getQuantity())
+					.id(t.id())
+					.date(t.date())
+					.type(t.type())
+					.product(product != null? product: prod.apply(t.productId()))
+					.price(t.price())
+					.quantity(t.quantity())
 					.build();
 			list.add(dto);
 		});
-		return list.stream().sorted(Comparator.comparing(t -> t.date().format(DateTimeFormatter.ofPattern("yyyyMMdd")))).toList();
+		return list;
 	}
 
 	public ValidDates getValidDates(String startDate, String endDate) {
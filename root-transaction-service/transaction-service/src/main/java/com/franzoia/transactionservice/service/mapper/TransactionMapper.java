@@ -13,7 +13,7 @@ public class TransactionMapper implements AbstractMapper<Transaction, Transactio
 
     @Override
     public Transaction convertDtoToEntity(TransactionDTO dto) {
-        return new Transaction(dto.id(), dto.date(), dto.type(), dto.productId(), dto.price(), dto.quantity());
+        return new Transaction(dto.id(), dto.date(), dto.type(), dto.productId(), dto.price(), dto.quantity(), dto.idempotencyKey(), null);
     }
 
     @Override
@@ -30,6 +30,7 @@ public class TransactionMapper implements AbstractMapper<Transaction, Transactio
                 .productId(transaction.getProductId())
                 .price(transaction.getPrice())
                 .quantity(transaction.getQuantity())
+                .idempotencyKey(transaction.getIdempotencyKey())
                 .build();
     }
 
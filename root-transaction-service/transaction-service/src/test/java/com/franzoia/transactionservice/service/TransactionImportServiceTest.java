@@ -0,0 +1,141 @@
+package com.franzoia.transactionservice.service;
+
+import com.franzoia.common.dto.TransactionImportDTO;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.transactionservice.config.StockFeignClient;
+import com.franzoia.transactionservice.model.StockOutboxEntry;
+import com.franzoia.transactionservice.repository.StockOutboxRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false" })
+public class TransactionImportServiceTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) {
+        PostgresTestDatabase.register(registry);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @MockBean
+    StockFeignClient stockFeignClient;
+
+    @Autowired
+    TransactionImportService service;
+
+    @Autowired
+    StockOutboxRepository outboxRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    // the outputs of this product are rejected by the stock-service
+    private static final long WITHOUT_STOCK = 303;
+
+    private static final MediaType CSV = MediaType.parseMediaType(TransactionImportService.CSV);
+
+    private static final String TODAY = LocalDate.now().toString();
+
+    @BeforeEach
+    void mockServices() throws Exception {
+        when(productService.getProductIds()).thenReturn(Set.of(301L, 302L, WITHOUT_STOCK));
+        when(stockFeignClient.addOrRemoveStockBatch(anyList())).thenAnswer(invocation ->
+                TransactionServiceTest.results(invocation.getArgument(0), Set.of(WITHOUT_STOCK)));
+    }
+
+    @Test
+    void shouldImportTheValidLinesWithAStockUpdatePerProductMonthAndType() throws Exception {
+        // given
+        final String file = "productId,date,type,price,quantity\n" +
+                "301," + TODAY + ",INPUT,1.5,10\n" +
+                "301," + TODAY + ",input,1.0,5\n" +
+                "301," + TODAY + ",OUTPUT,2.0,3\n" +
+                "302," + TODAY + ",INPUT,1.0,1\n" +
+                "999," + TODAY + ",INPUT,1.0,1\n" +
+                "302," + TODAY + ",INPUT\n";
+
+        // when
+        final TransactionImportDTO imported = importCsv(file, "import-1");
+
+        // then
+        assertAll(
+                () -> assertEquals(6, imported.getLines()),
+                () -> assertEquals(4, imported.getImported()),
+                () -> assertEquals(2, imported.getRejected()),
+                () -> assertEquals(2, imported.getErrors().size()),
+                () -> assertEquals(3, imported.getStockUpdates()),
+                () -> assertEquals(4, countImported(imported.getId(), false))
+        );
+    }
+
+    @Test
+    void shouldNotImportAFileTwice() throws Exception {
+        // given
+        final String file = TODAY + ",INPUT,302,1.0,2\n";
+        final TransactionImportDTO first = importCsv(file, "import-2");
+
+        // when
+        final TransactionImportDTO again = importCsv(file, "import-2");
+
+        // then
+        assertAll(
+                () -> assertEquals(first.getId(), again.getId()),
+                () -> assertEquals(1, again.getImported()),
+                () -> assertEquals(1, countImported(first.getId(), false))
+        );
+    }
+
+    @Test
+    void shouldDeleteTheImportedTransactionsOfARejectedStockUpdate() throws Exception {
+        // given
+        final String file = TODAY + ",INPUT," + WITHOUT_STOCK + ",1.0,2\n" +
+                TODAY + ",OUTPUT," + WITHOUT_STOCK + ",1.0,1\n" +
+                TODAY + ",OUTPUT," + WITHOUT_STOCK + ",1.0,4\n";
+
+        // when
+        final TransactionImportDTO imported = importCsv(file, null);
+        awaitStockUpdates(imported.getId(), WITHOUT_STOCK);
+
+        // then
+        assertAll(
+                () -> assertEquals(1, countImported(imported.getId(), false)),
+                () -> assertEquals(2, countImported(imported.getId(), true))
+        );
+    }
+
+    private TransactionImportDTO importCsv(final String file, final String idempotencyKey) throws Exception {
+        return service.importTransactions(CSV, idempotencyKey, new ByteArrayInputStream(file.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private long countImported(final Long importId, final boolean deleted) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transactions WHERE import_id = ? AND deleted = ?",
+                Long.class, importId, deleted);
+    }
+
+    private void awaitStockUpdates(final Long importId, final Long productId) throws InterruptedException {
+        for (int i = 0; i < 100 && outboxRepository.existsByImportIdAndProductIdAndStatus(importId, productId,
+                StockOutboxEntry.Status.PENDING); i++) {
+            Thread.sleep(100);
+        }
+    }
+}
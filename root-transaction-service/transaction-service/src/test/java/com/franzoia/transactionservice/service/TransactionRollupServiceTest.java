@@ -0,0 +1,128 @@
+package com.franzoia.transactionservice.service;
+
+import com.franzoia.common.dto.ProductDTO;
+import com.franzoia.common.dto.TransactionDTO;
+import com.franzoia.common.dto.TransactionRollupDTO;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.transactionservice.config.StockFeignClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+@SpringBootTest(properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false" })
+public class TransactionRollupServiceTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) {
+        PostgresTestDatabase.register(registry);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @MockBean
+    StockFeignClient stockFeignClient;
+
+    @Autowired
+    TransactionRollupService rollupService;
+
+    @Autowired
+    TransactionService transactionService;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    private static final LocalDate TODAY = LocalDate.now();
+
+    @BeforeEach
+    void mockServices() throws Exception {
+        when(productService.getProductById(anyLong())).thenAnswer(invocation ->
+                ProductDTO.builder().id(invocation.getArgument(0)).name("product").build());
+        when(stockFeignClient.addOrRemoveStockBatch(anyList())).thenAnswer(invocation ->
+                TransactionServiceTest.results(invocation.getArgument(0), Set.of()));
+    }
+
+    @Test
+    void shouldCountTheCreatedTransactionsAndNotTheDeletedOnes() throws Exception {
+        // given
+        final long productId = 401;
+        final TransactionDTO kept = transactionService.create(TransactionServiceTest.transaction(productId, TransactionType.INPUT, 3));
+        final TransactionDTO deleted = transactionService.create(TransactionServiceTest.transaction(productId, TransactionType.INPUT, 5));
+        transactionService.awaitStockUpdate(kept.id());
+        transactionService.awaitStockUpdate(deleted.id());
+
+        // when
+        transactionService.deleteTransaction(deleted.id());
+
+        // then
+        final List<TransactionRollupDTO> days = rollupService.listDaily(TODAY, TODAY, productId);
+        final List<TransactionRollupDTO> months = rollupService.listMonthly(YearMonth.from(TODAY), YearMonth.from(TODAY), productId);
+        assertAll(
+                () -> assertEquals(1, days.size()),
+                () -> assertEquals(1, days.get(0).count()),
+                () -> assertEquals(3, days.get(0).quantity()),
+                () -> assertEquals(4.5, days.get(0).value()),
+                () -> assertEquals(1, months.size()),
+                () -> assertEquals(3, months.get(0).quantity())
+        );
+    }
+
+    @Test
+    void shouldBuildTheRollupsOfTheTransactionsCreatedBeforeThem() {
+        // given
+        final long productId = 402;
+        for (long quantity : new long[] { 2, 4 }) {
+            jdbcTemplate.update("INSERT INTO transactions (date, type, product_id, price, quantity, date_created, date_updated, deleted) " +
+                    "VALUES (?, ?, ?, 2.0, ?, now(), now(), false)", TODAY, TransactionType.INPUT.ordinal(), productId, quantity);
+        }
+        jdbcTemplate.update("DELETE FROM transaction_monthly_rollups");
+        jdbcTemplate.update("DELETE FROM transaction_daily_rollups");
+
+        // when
+        rollupService.afterSingletonsInstantiated();
+
+        // then
+        final List<TransactionRollupDTO> days = rollupService.listDaily(TODAY, TODAY, productId);
+        assertAll(
+                () -> assertEquals(1, days.size()),
+                () -> assertEquals(2, days.get(0).count()),
+                () -> assertEquals(6, days.get(0).quantity()),
+                () -> assertEquals(12.0, days.get(0).value())
+        );
+    }
+
+    @Test
+    void shouldOnlyBuildTheRollupsOnPostgres() {
+        // given
+        final JdbcTemplate h2 = mock(JdbcTemplate.class);
+        final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+        when(h2.execute(ArgumentMatchers.<ConnectionCallback<String>>any())).thenReturn("H2");
+
+        // when
+        new TransactionRollupService(h2, transactionTemplate).afterSingletonsInstantiated();
+
+        // then
+        verifyNoInteractions(transactionTemplate);
+    }
+}
@@ -0,0 +1,205 @@
+package com.franzoia.transactionservice.service;
+
+import com.franzoia.common.dto.*;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.test.PostgresTestDatabase;
+import com.franzoia.transactionservice.config.StockFeignClient;
+import com.franzoia.transactionservice.model.StockOutboxEntry;
+import com.franzoia.transactionservice.repository.StockOutboxRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(properties = {
+        "eureka.client.enabled=false",
+        "spring.jpa.show-sql=false" })
+public class TransactionServiceTest {
+
+    @DynamicPropertySource
+    static void database(final DynamicPropertyRegistry registry) {
+        PostgresTestDatabase.register(registry);
+    }
+
+    @MockBean
+    ProductService productService;
+
+    @MockBean
+    StockFeignClient stockFeignClient;
+
+    @Autowired
+    TransactionService service;
+
+    @Autowired
+    StockOutboxRepository outboxRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    // the outputs of this product are rejected by the stock-service
+    private static final long WITHOUT_STOCK = 202;
+
+    @BeforeEach
+    void mockServices() throws Exception {
+        when(productService.getProductById(anyLong())).thenAnswer(invocation ->
+                ProductDTO.builder().id(invocation.getArgument(0)).name("product").build());
+        when(stockFeignClient.addOrRemoveStockBatch(anyList())).thenAnswer(invocation ->
+                results(invocation.getArgument(0), Set.of(WITHOUT_STOCK)));
+    }
+
+    @Test
+    void shouldSendTheStockUpdateOfACreatedTransaction() throws Exception {
+        // given
+        final long productId = 201;
+
+        // when
+        final TransactionDTO created = service.create(transaction(productId, TransactionType.INPUT, 5));
+        service.awaitStockUpdate(created.id());
+
+        // then
+        final StockOutboxEntry entry = outboxRepository.findFirstByTransactionIdOrderByIdDesc(created.id()).orElseThrow();
+        assertAll(
+                () -> assertEquals(StockOutboxEntry.Status.APPLIED, entry.getStatus()),
+                () -> assertEquals(productId, entry.getProductId()),
+                () -> assertEquals(5, entry.getQuantity()),
+                () -> assertNotNull(entry.getProcessedAt())
+        );
+    }
+
+    @Test
+    void shouldDeleteATransactionWhoseStockUpdateWasRejected() throws Exception {
+        // given
+        final TransactionDTO created = service.create(transaction(WITHOUT_STOCK, TransactionType.OUTPUT, 5));
+
+        // when
+        Executable executable = () -> service.awaitStockUpdate(created.id());
+
+        // then
+        assertThrows(InvalidRequestException.class, executable);
+        assertTrue(jdbcTemplate.queryForObject("SELECT deleted FROM transactions WHERE id = ?", Boolean.class, created.id()));
+    }
+
+    @Test
+    void shouldQueueTheStockUpdatesOfAProductInCommitOrder() throws Exception {
+        // given
+        final long productId = 203;
+        service.create(transaction(productId, TransactionType.INPUT, 5));
+        // another instance queues an update of the product, taking its id from the sequence
+        jdbcTemplate.update("INSERT INTO stock_outbox (operation, product_id, date, type, quantity, status, attempts, created_at, processed_at) " +
+                "VALUES ('CREATE', ?, ?, 'INPUT', 1, 'APPLIED', 1, now(), now())", productId, LocalDate.now());
+        final Long other = jdbcTemplate.queryForObject("SELECT MAX(id) FROM stock_outbox WHERE transaction_id IS NULL AND product_id = ?",
+                Long.class, productId);
+
+        // when
+        final TransactionDTO created = service.create(transaction(productId, TransactionType.INPUT, 3));
+
+        // then
+        assertTrue(outboxRepository.findFirstByTransactionIdOrderByIdDesc(created.id()).orElseThrow().getId() > other);
+    }
+
+    @Test
+    void shouldRejectAnIdempotencyKeyUsedByATransactionOfAnotherDate() throws Exception {
+        // given
+        final long productId = 204;
+        service.create(transaction(productId, TransactionType.INPUT, 5, LocalDate.now(), "key-204"));
+
+        // when
+        Executable executable = () -> service.create(transaction(productId, TransactionType.INPUT, 5,
+                LocalDate.now().minusDays(1), "key-204"));
+
+        // then
+        assertThrows(InvalidRequestException.class, executable);
+        assertEquals(1, countIdempotencyKey("key-204"));
+    }
+
+    @Test
+    void shouldRejectAConcurrentTransactionWithTheSameIdempotencyKey() throws Exception {
+        // given
+        final long productId = 205;
+        final CompletableFuture<TransactionDTO> concurrent = new CompletableFuture<>();
+
+        // when
+        transactionTemplate.executeWithoutResult(status -> {
+            try {
+                service.create(transaction(productId, TransactionType.INPUT, 5, LocalDate.now(), "key-205"));
+                // the other creation starts before this one is committed
+                final Thread other = new Thread(() -> {
+                    try {
+                        concurrent.complete(service.create(transaction(productId, TransactionType.INPUT, 5,
+                                LocalDate.now().minusDays(1), "key-205")));
+                    } catch (Exception | Error e) {
+                        concurrent.completeExceptionally(e);
+                    }
+                });
+                other.start();
+                other.join(500);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        // then
+        final ExecutionException rejected = assertThrows(ExecutionException.class, concurrent::get);
+        assertInstanceOf(InvalidRequestException.class, rejected.getCause());
+        assertEquals(1, countIdempotencyKey("key-205"));
+    }
+
+    private long countIdempotencyKey(final String idempotencyKey) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transactions WHERE idempotency_key = ?", Long.class, idempotencyKey);
+    }
+
+    static TransactionDTO transaction(final long productId, final TransactionType type, final long quantity) {
+        return transaction(productId, type, quantity, LocalDate.now(), null);
+    }
+
+    static TransactionDTO transaction(final long productId, final TransactionType type, final long quantity,
+                                      final LocalDate date, final String idempotencyKey) {
+        return TransactionDTO.builder()
+                .date(date)
+                .type(type)
+                .productId(productId)
+                .price(1.5)
+                .quantity(quantity)
+                .idempotencyKey(idempotencyKey)
+                .build();
+    }
+
+    /**
+     * @return the results of the stock-service, which applies every update but the outputs of the given products
+     */
+    static List<StockUpdateResult> results(final List<StockUpdateRequest> requests, final Set<Long> withoutStock) {
+        final List<StockUpdateResult> results = new ArrayList<>(requests.size());
+        for (int line = 0; line < requests.size(); line++) {
+            final StockUpdateRequest request = requests.get(line);
+            final boolean rejected = request.type() == TransactionType.OUTPUT && withoutStock.contains(request.key().getProductId());
+            results.add(StockUpdateResult.builder()
+                    .line(line)
+                    .key(request.key())
+                    .status(rejected? StockUpdateStatus.REJECTED: StockUpdateStatus.APPLIED)
+                    .message(rejected? "Not enough stock": null)
+                    .build());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,55 @@
+package com.franzoia.stockservice.config;
+
+import com.franzoia.common.exception.ConstraintsViolationException;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.util.ErrorResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.util.Date;
+
+/**
+ * Same error responses as the blocking stock-service, for the WebFlux requests
+ */
+@Slf4j
+@RestControllerAdvice
+public class ApplicationExceptionHandler {
+
+    @ExceptionHandler({ServiceNotAvailableException.class})
+    public ResponseEntity<ErrorResponse> handleProductServiceNotAvailableException(ServiceNotAvailableException exception, ServerHttpRequest request) {
+        return getResponse(HttpStatus.SERVICE_UNAVAILABLE, exception, request);
+    }
+
+    @ExceptionHandler({EntityNotFoundException.class})
+    public ResponseEntity<ErrorResponse> handleProductNotFoundException(EntityNotFoundException exception, ServerHttpRequest request) {
+        return getResponse(HttpStatus.NOT_FOUND, exception, request);
+    }
+
+    @ExceptionHandler({InvalidRequestException.class})
+    public ResponseEntity<ErrorResponse> handleInvalidRequestException(InvalidRequestException exception, ServerHttpRequest request) {
+        return getResponse(HttpStatus.BAD_REQUEST, exception, request);
+    }
+
+    @ExceptionHandler({ConstraintsViolationException.class})
+    public ResponseEntity<ErrorResponse> handleConstraintsViolationException(ConstraintsViolationException exception, ServerHttpRequest request) {
+        return getResponse(HttpStatus.UNPROCESSABLE_ENTITY, exception, request);
+    }
+
+    private ResponseEntity<ErrorResponse> getResponse(HttpStatus status, Exception exception, ServerHttpRequest request) {
+        log.info("message from service: {}", exception.getMessage());
+        return new ResponseEntity<>(ErrorResponse.builder()
+                .timestamp(new Date())
+                .code(status.value())
+                .status(status.toString())
+                .message(exception.getMessage())
+                .details("uri=" + request.getPath().value())
+                .build(), status);
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.franzoia.stockservice.controller;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+
+import java.net.URI;
+
+@Controller
+@CrossOrigin(origins = "http://localhost:4200")
+public class HomeController
+{
+
+    @RequestMapping("/")
+    public ResponseEntity<Void> home()
+    {
+        return ResponseEntity.status(HttpStatus.FOUND).location(URI.create("swagger-ui.html")).build();
+    }
+
+}
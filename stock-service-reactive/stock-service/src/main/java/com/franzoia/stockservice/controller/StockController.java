@@ -0,0 +1,220 @@
+package com.franzoia.stockservice.controller;
+
+import com.franzoia.common.dto.StockBalanceDTO;
+import com.franzoia.common.dto.StockDTO;
+import com.franzoia.common.dto.StockTotalsDTO;
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.StockUpdateResult;
+import com.franzoia.stockservice.service.StockService;
+import com.franzoia.stockservice.service.StockTotalsService;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+import io.swagger.v3.oas.annotations.*;
+
+/**
+ * Same REST contract as the blocking stock-service. The lists are written as a JSON array, or as newline
+ * delimited JSON when it is the accepted media type, in both cases while the rows are still being read.
+ */
+@Tag(name = "Stock", description = "Stock management API")
+@RestController
+@RequestMapping("/api/v1/stocks")
+public class StockController {
+
+    private final StockService stockService;
+
+    private final StockTotalsService totalsService;
+
+    @Autowired
+    public StockController(StockService service, StockTotalsService totalsService) {
+        this.stockService = service;
+        this.totalsService = totalsService;
+    }
+
+    @Operation(
+            summary = "Retrieves all Stock data available",
+            description = "Check all available stock information and creates a List<StockDTO>, or a stream of one StockDTO per line " +
+                    "when newline delimited JSON is accepted, ordered by Year/Month and Product",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A List of all Stock information"),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping(produces = { MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE })
+    public Flux<StockDTO> findAllTransaction() {
+        return stockService.listAll();
+    }
+
+    @Operation(
+            summary = "Retrieve one Stock for Year/Month and Product",
+            description = "Brings information about the stock of one product at the Year/Month provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The Stock information"),
+            @ApiResponse(responseCode = "404", description = "When there's not stock for the Year/Month/Product provided or simply when the Product doesn't exists",
+                    content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the product-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/yearMonth/{yearMonth}/product/{productId}")
+    public Mono<StockDTO> getByYearMonthAndProduct(@PathVariable("yearMonth") final String yearMonth,
+                                                   @PathVariable("productId") final Long productId) {
+        return stockService.getByYearMonthAndProduct(yearMonth, productId);
+    }
+
+    @Operation(
+            summary = "Retrieves all Stock data available for a product",
+            description = "Check all available stock information for a provided product and creates a List<StockDTO>",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A List of all Stock information for a single product"),
+            @ApiResponse(responseCode = "404", description = "When the provided product doesn't exists", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the product-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/product/{productId}")
+    public Mono<List<StockDTO>> listByProduct(@PathVariable("productId") final Long productId) {
+        // collected, so a missing product is answered with its status instead of an empty list
+        return stockService.listByProduct(productId).collectList();
+    }
+
+    @Operation(
+            summary = "Retrieve the Stock balance of a product at a point in time",
+            description = "Brings the balance of one product at the end of the provided day (yyyy-MM-dd) or Year/Month (yyyyMM), today when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The Stock balance"),
+            @ApiResponse(responseCode = "400", description = "When the date or Year/Month is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "404", description = "When the provided product doesn't exists", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the product-service or the transaction-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/product/{productId}/balance")
+    public Mono<StockBalanceDTO> getBalance(@PathVariable("productId") final Long productId,
+                                            @RequestParam(name = "at", required = false) final String at) {
+        return stockService.getBalance(productId, at);
+    }
+
+    @Operation(
+            summary = "Retrieve the Stock balance of all products at a point in time",
+            description = "Brings the total balance of all products at the end of the provided day (yyyy-MM-dd) or Year/Month (yyyyMM), today when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The total Stock balance"),
+            @ApiResponse(responseCode = "400", description = "When the date or Year/Month is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the transaction-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/balance")
+    public Mono<StockBalanceDTO> getTotalBalance(@RequestParam(name = "at", required = false) final String at) {
+        return stockService.getTotalBalance(at);
+    }
+
+    @Operation(
+            summary = "Retrieves all Stock from all products for an Year/Month",
+            description = "Check all available stock information from all products for a provided year/month and creates a List<StockDTO>, " +
+                    "or a stream of one StockDTO per line when newline delimited JSON is accepted",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A List of all Stock information for a Year/Month"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping(value = "/yearMonth/{yearMonth}", produces = { MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE })
+    public Flux<StockDTO> listByYearMonth(@PathVariable("yearMonth") final String yearMonth) {
+        return stockService.listByYearMonth(yearMonth);
+    }
+
+    @Operation(
+            summary = "Retrieves the Stock totals of each Year/Month",
+            description = "Totals of inputs, outputs, opening and closing balances of all products for each Year/Month between from and to (yyyyMM). " +
+                    "The last 12 months when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A List of the Stock totals of each Year/Month with stock"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month range is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/totals")
+    public Flux<StockTotalsDTO> getTotalsByPeriod(@RequestParam(name = "from", required = false) final String from,
+                                                  @RequestParam(name = "to", required = false) final String to) {
+        return totalsService.getTotalsByPeriod(from, to);
+    }
+
+    @Operation(
+            summary = "Retrieves the Stock totals of a product",
+            description = "Totals of inputs and outputs of a product between from and to (yyyyMM), with its opening and closing balances. " +
+                    "The last 12 months when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The Stock totals of the product"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month range is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "404", description = "When the product doesn't exists or has no stock in the range", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the product-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/totals/product/{productId}")
+    public Mono<StockTotalsDTO> getTotalsByProduct(@PathVariable("productId") final Long productId,
+                                                   @RequestParam(name = "from", required = false) final String from,
+                                                   @RequestParam(name = "to", required = false) final String to) {
+        return totalsService.getTotalsByProduct(productId, from, to);
+    }
+
+    @Operation(
+            summary = "Retrieves the products with the most Stock movement",
+            description = "The products with the largest inputs plus outputs between from and to (yyyyMM), with their totals. " +
+                    "The last 12 months when not provided",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "A List of the Stock totals of the top products"),
+            @ApiResponse(responseCode = "400", description = "When the Year/Month range or the number of products is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @GetMapping("/totals/movers")
+    public Flux<StockTotalsDTO> getTopMovers(@RequestParam(name = "from", required = false) final String from,
+                                             @RequestParam(name = "to", required = false) final String to,
+                                             @RequestParam(name = "limit", defaultValue = "10") final int limit) {
+        return totalsService.getTopMovers(from, to, limit);
+    }
+
+    @Operation(
+            summary = "Update stock information",
+            description = "Add or Remove stock information for a product/year/month based on the provided data",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The information has been updated for the stock"),
+            @ApiResponse(responseCode = "400", description = "When the quantify provided is invalid", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "404", description = "When the provided Product doesn't exist", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @PostMapping
+    Mono<Void> addOrUpdateStock(@RequestBody final StockUpdateRequest updateRequest) {
+        return stockService.addOrUpdateStock(updateRequest);
+    }
+
+    @Operation(
+            summary = "Update stock information in batch",
+            description = "Add or Remove stock information for several products/year/month at once. The lines are applied in order in a single transaction",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The result of each line, applied or rejected with the reason"),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @PostMapping("/batch")
+    Mono<List<StockUpdateResult>> addOrUpdateStocks(@RequestBody final List<StockUpdateRequest> updateRequests) {
+        return stockService.addOrUpdateStocks(updateRequests);
+    }
+
+    @Operation(
+            summary = "Recalculate stock balances of a product",
+            description = "Repair operation that recalculates the balances of all stock information of a product from its first open Year/Month",
+            tags = { "Stock" })
+    @ApiResponses({
+            @ApiResponse(responseCode = "200", description = "The stock balances of the product have been recalculated"),
+            @ApiResponse(responseCode = "404", description = "When the provided Product doesn't exist", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "503", description = "When the product-service is not available", content = { @Content(schema = @Schema()) }),
+            @ApiResponse(responseCode = "500", description = "Error with the server", content = { @Content(schema = @Schema()) }) })
+    @PostMapping("/product/{productId}/sync")
+    Mono<Void> syncStockBalance(@PathVariable("productId") final Long productId) {
+        return stockService.syncStockBalance(productId);
+    }
+}
@@ -0,0 +1,28 @@
+package com.franzoia.stockservice.model;
+
+import com.franzoia.common.dto.StockKey;
+import lombok.*;
+
+/**
+ * Row of the stocks table, read by the {@link com.franzoia.stockservice.repository.StockRepository} queries.
+ * The table and its indexes are owned by the blocking stock-service.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class Stock {
+
+    private StockKey key;
+
+    private Long previousBalance;
+
+    private Long inputs;
+
+    private Long outputs;
+
+    private Long currentBalance;
+
+    private Long version;
+}
@@ -0,0 +1,7 @@
+package com.franzoia.stockservice.model;
+
+/**
+ * Totals of a group of stock rows, read straight from an aggregate query
+ */
+public record StockTotals(String yearMonth, Long productId, Long products, Long inputs, Long outputs,
+                          Long openingBalance, Long closingBalance) {}
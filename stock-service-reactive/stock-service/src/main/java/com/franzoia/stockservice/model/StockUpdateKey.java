@@ -0,0 +1,26 @@
+package com.franzoia.stockservice.model;
+
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.StockUpdateStatus;
+import com.franzoia.common.dto.TransactionType;
+
+import java.util.Objects;
+
+/**
+ * Idempotency key of a stock update, as recorded in the stock_update_keys table of the blocking stock-service
+ */
+public record StockUpdateKey(String idempotencyKey, Long productId, String yearMonth, TransactionType type, Long quantity,
+                             StockUpdateStatus status, String message) {
+
+    public static final int MAX_LENGTH = 100;
+
+    /**
+     * @return true when the update is the one the key was recorded for
+     */
+    public boolean matches(final StockUpdateRequest updateRequest) {
+        return Objects.equals(productId, updateRequest.key().getProductId())
+                && Objects.equals(yearMonth, updateRequest.key().getYearMonth())
+                && type == updateRequest.type()
+                && Objects.equals(quantity, updateRequest.quantity());
+    }
+}
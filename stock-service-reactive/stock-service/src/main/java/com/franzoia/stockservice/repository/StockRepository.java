@@ -0,0 +1,368 @@
+package com.franzoia.stockservice.repository;
+
+import com.franzoia.common.dto.StockKey;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.model.StockTotals;
+import io.r2dbc.spi.Readable;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+
+/**
+ * Non-blocking access to the stocks table. The statements are the native queries of the blocking
+ * stock-service, so both versions can work on the same database at the same time.
+ */
+@Repository
+public class StockRepository {
+
+    /**
+     * Rows requested per round trip by the streaming queries, the rows are only read as fast as the
+     * response is written
+     */
+    public static final int STREAM_FETCH_SIZE = 500;
+
+    private static final String STOCK_COLUMNS =
+            "SELECT s.year_month, s.product_id, s.previous_balance, s.inputs, s.outputs, s.current_balance, s.version " +
+            "FROM stocks s ";
+
+    private static final String SELECT_ALL = STOCK_COLUMNS +
+            "ORDER BY s.year_month, s.product_id";
+
+    private static final String SELECT_BY_PRODUCT = STOCK_COLUMNS +
+            "WHERE s.product_id = :product " +
+            "ORDER BY s.year_month";
+
+    private static final String SELECT_BY_PERIOD = STOCK_COLUMNS +
+            "WHERE s.year_month = :period " +
+            "ORDER BY s.product_id";
+
+    private static final String SELECT_BY_KEY = STOCK_COLUMNS +
+            "WHERE s.year_month = :period AND s.product_id = :product";
+
+    private static final String SELECT_PREVIOUS = STOCK_COLUMNS +
+            "WHERE s.product_id = :product AND s.year_month < :period " +
+            "ORDER BY s.year_month DESC LIMIT 1";
+
+    /**
+     * First key of the two int advisory lock held by the stock movements and the period close
+     */
+    private static final int PERIOD_CLOSE_LOCK = 6;
+
+    private static final String LOCK_PRODUCT =
+            "SELECT 1 FROM (SELECT pg_advisory_xact_lock_shared(" + PERIOD_CLOSE_LOCK + ", 0), " +
+            "                      pg_advisory_xact_lock(:product)) l";
+
+    private static final String INCREMENT_INPUTS =
+            "UPDATE stocks " +
+            "SET inputs = inputs + :quantity, current_balance = current_balance + :quantity, version = version + 1 " +
+            "WHERE product_id = :product AND year_month = :period";
+
+    private static final String INCREMENT_OUTPUTS =
+            "UPDATE stocks " +
+            "SET outputs = outputs + :quantity, current_balance = current_balance - :quantity, version = version + 1 " +
+            "WHERE product_id = :product AND year_month = :period AND current_balance >= :quantity";
+
+    private static final String ADD_INPUTS =
+            "INSERT INTO stocks (year_month, product_id, previous_balance, inputs, outputs, current_balance, version) " +
+            "SELECT :period, :product, o.balance, :quantity, 0, o.balance + :quantity, 0 " +
+            "FROM (SELECT COALESCE((SELECT p.current_balance FROM stocks p " +
+            "                       WHERE p.product_id = :product AND p.year_month < :period " +
+            "                       ORDER BY p.year_month DESC LIMIT 1), 0) AS balance) o " +
+            "ON CONFLICT (year_month, product_id) DO UPDATE " +
+            "SET inputs = stocks.inputs + EXCLUDED.inputs, " +
+            "    current_balance = stocks.current_balance + EXCLUDED.inputs, " +
+            "    version = stocks.version + 1";
+
+    private static final String ADD_OUTPUTS =
+            "INSERT INTO stocks (year_month, product_id, previous_balance, inputs, outputs, current_balance, version) " +
+            "SELECT :period, :product, o.balance, 0, :quantity, o.balance - :quantity, 0 " +
+            "FROM (SELECT COALESCE((SELECT p.current_balance FROM stocks p " +
+            "                       WHERE p.product_id = :product AND p.year_month < :period " +
+            "                       ORDER BY p.year_month DESC LIMIT 1), 0) AS balance) o " +
+            "WHERE o.balance >= :quantity " +
+            "OR EXISTS (SELECT 1 FROM stocks c WHERE c.product_id = :product AND c.year_month = :period) " +
+            "ON CONFLICT (year_month, product_id) DO UPDATE " +
+            "SET outputs = stocks.outputs + EXCLUDED.outputs, " +
+            "    current_balance = stocks.current_balance - EXCLUDED.outputs, " +
+            "    version = stocks.version + 1 " +
+            "WHERE stocks.current_balance >= EXCLUDED.outputs";
+
+    private static final String SHIFT_AFTER_PERIOD =
+            "UPDATE stocks " +
+            "SET previous_balance = previous_balance + :delta, current_balance = current_balance + :delta, version = version + 1 " +
+            "WHERE product_id = :product AND year_month > :period";
+
+    private static final String RECALCULATE_FROM_PERIOD =
+            "UPDATE stocks s " +
+            "SET previous_balance = r.closing - r.movement, current_balance = r.closing, version = s.version + 1 " +
+            "FROM (SELECT c.year_month, c.inputs - c.outputs AS movement, " +
+            "             o.balance + SUM(c.inputs - c.outputs) OVER (ORDER BY c.year_month) AS closing " +
+            "      FROM stocks c, " +
+            "           (SELECT COALESCE((SELECT p.current_balance FROM stocks p " +
+            "                             WHERE p.product_id = :product AND p.year_month < :period " +
+            "                             ORDER BY p.year_month DESC LIMIT 1), 0) AS balance) o " +
+            "      WHERE c.product_id = :product AND c.year_month >= :period) r " +
+            "WHERE s.product_id = :product AND s.year_month = r.year_month " +
+            "AND (s.previous_balance <> r.closing - r.movement OR s.current_balance <> r.closing)";
+
+    private static final String BALANCE_AT_END_OF =
+            "SELECT p.current_balance FROM stocks p " +
+            "WHERE p.product_id = :product AND p.year_month <= :period " +
+            "ORDER BY p.year_month DESC LIMIT 1";
+
+    private static final String SUM_BALANCES_AT_END_OF =
+            "SELECT CAST(COALESCE(SUM(l.current_balance), 0) AS BIGINT) " +
+            "FROM (SELECT DISTINCT ON (p.product_id) p.current_balance " +
+            "      FROM stocks p " +
+            "      WHERE p.year_month <= :period " +
+            "      ORDER BY p.product_id, p.year_month DESC) l";
+
+    private static final String SUM_BY_PERIOD =
+            "SELECT s.year_month, COUNT(*) AS products, " +
+            "       CAST(SUM(s.inputs) AS BIGINT) AS inputs, CAST(SUM(s.outputs) AS BIGINT) AS outputs, " +
+            "       CAST(SUM(s.previous_balance) AS BIGINT) AS opening_balance, " +
+            "       CAST(SUM(s.current_balance) AS BIGINT) AS closing_balance " +
+            "FROM stocks s " +
+            "WHERE s.year_month BETWEEN :from AND :to " +
+            "GROUP BY s.year_month " +
+            "ORDER BY s.year_month";
+
+    private static final String SUM_BY_PRODUCT_COLUMNS =
+            "SELECT s.product_id, " +
+            "       CAST(SUM(s.inputs) AS BIGINT) AS inputs, CAST(SUM(s.outputs) AS BIGINT) AS outputs, " +
+            "       (ARRAY_AGG(s.previous_balance ORDER BY s.year_month))[1] AS opening_balance, " +
+            "       (ARRAY_AGG(s.current_balance ORDER BY s.year_month DESC))[1] AS closing_balance " +
+            "FROM stocks s ";
+
+    private static final String SUM_BY_PRODUCT = SUM_BY_PRODUCT_COLUMNS +
+            "WHERE s.product_id = :product " +
+            "AND s.year_month BETWEEN :from AND :to " +
+            "GROUP BY s.product_id";
+
+    private static final String TOP_MOVERS = SUM_BY_PRODUCT_COLUMNS +
+            "WHERE s.year_month BETWEEN :from AND :to " +
+            "GROUP BY s.product_id " +
+            "HAVING SUM(s.inputs) + SUM(s.outputs) > 0 " +
+            "ORDER BY SUM(s.inputs) + SUM(s.outputs) DESC, s.product_id " +
+            "LIMIT :limit";
+
+    private static final String LAST_CLOSED_PERIOD =
+            "SELECT MAX(p.year_month) AS year_month FROM stock_periods p WHERE p.status = 'CLOSED'";
+
+    private final DatabaseClient databaseClient;
+
+    public StockRepository(final DatabaseClient databaseClient) {
+        this.databaseClient = databaseClient;
+    }
+
+    public Flux<Stock> findAllOrderByYearMonthAndProductId() {
+        return databaseClient.sql(SELECT_ALL)
+                .filter(statement -> statement.fetchSize(STREAM_FETCH_SIZE))
+                .map(StockRepository::toStock)
+                .all();
+    }
+
+    public Flux<Stock> findAllByProductId(final Long productId) {
+        return databaseClient.sql(SELECT_BY_PRODUCT)
+                .bind("product", productId)
+                .map(StockRepository::toStock)
+                .all();
+    }
+
+    public Flux<Stock> findAllByYearMonth(final int period) {
+        return databaseClient.sql(SELECT_BY_PERIOD)
+                .filter(statement -> statement.fetchSize(STREAM_FETCH_SIZE))
+                .bind("period", Periods.format(period))
+                .map(StockRepository::toStock)
+                .all();
+    }
+
+    public Mono<Stock> findById(final StockKey key) {
+        return databaseClient.sql(SELECT_BY_KEY)
+                .bind("period", key.getYearMonth())
+                .bind("product", key.getProductId())
+                .map(StockRepository::toStock)
+                .one();
+    }
+
+    /**
+     * @return the latest stock row of a product before a period
+     */
+    public Mono<Stock> findPreviousStock(final Long productId, final int period) {
+        return databaseClient.sql(SELECT_PREVIOUS)
+                .bind("product", productId)
+                .bind("period", Periods.format(period))
+                .map(StockRepository::toStock)
+                .one();
+    }
+
+    /**
+     * Serializes the stock movements of a product until the end of the current transaction. The period close
+     * lock of the blocking stock-service is taken first and shared, so a close waits for the movements in
+     * progress and the ones after it wait for the close.
+     */
+    public Mono<Void> lockProductMovements(final Long productId) {
+        return databaseClient.sql(LOCK_PRODUCT)
+                .bind("product", productId)
+                .then();
+    }
+
+    /**
+     * Adds the quantity to the inputs of an existing stock row
+     *
+     * @return 0 when the row doesn't exist
+     */
+    public Mono<Long> incrementInputs(final int period, final Long productId, final Long quantity) {
+        return update(INCREMENT_INPUTS, period, productId, quantity);
+    }
+
+    /**
+     * Adds the quantity to the outputs of an existing stock row when its balance covers it
+     *
+     * @return 0 when the row doesn't exist or the balance is not enough
+     */
+    public Mono<Long> incrementOutputs(final int period, final Long productId, final Long quantity) {
+        return update(INCREMENT_OUTPUTS, period, productId, quantity);
+    }
+
+    /**
+     * Adds the quantity to the inputs of the stock row of the period, creating it with the balance of the
+     * latest previous row as opening balance when it doesn't exist yet
+     */
+    public Mono<Long> addInputs(final int period, final Long productId, final Long quantity) {
+        return update(ADD_INPUTS, period, productId, quantity);
+    }
+
+    /**
+     * Adds the quantity to the outputs of the stock row of the period as long as the balance covers it,
+     * creating the row when it doesn't exist yet
+     *
+     * @return 0 when nothing was written because there's no stock or the balance is not enough
+     */
+    public Mono<Long> addOutputs(final int period, final Long productId, final Long quantity) {
+        return update(ADD_OUTPUTS, period, productId, quantity);
+    }
+
+    public Mono<Long> shiftBalancesAfterPeriod(final Long productId, final int period, final Long delta) {
+        return databaseClient.sql(SHIFT_AFTER_PERIOD)
+                .bind("product", productId)
+                .bind("period", Periods.format(period))
+                .bind("delta", delta)
+                .fetch()
+                .rowsUpdated();
+    }
+
+    /**
+     * Recalculates the balances of the stock rows of a product from a period on, as the running total of
+     * their movements over the balance of the latest row before it
+     *
+     * @return the number of rows whose balances were wrong
+     */
+    public Mono<Long> recalculateFromPeriod(final Long productId, final int period) {
+        return databaseClient.sql(RECALCULATE_FROM_PERIOD)
+                .bind("product", productId)
+                .bind("period", Periods.format(period))
+                .fetch()
+                .rowsUpdated();
+    }
+
+    /**
+     * @return the balance of a product at the end of a period, empty before its first stock
+     */
+    public Mono<Long> findBalanceAtEndOf(final Long productId, final int period) {
+        return databaseClient.sql(BALANCE_AT_END_OF)
+                .bind("product", productId)
+                .bind("period", Periods.format(period))
+                .map(row -> row.get(0, Long.class))
+                .one();
+    }
+
+    /**
+     * @return the balance of all products at the end of the period, from the latest stock row of each
+     * product up to it
+     */
+    public Mono<Long> sumBalancesAtEndOf(final int period) {
+        return databaseClient.sql(SUM_BALANCES_AT_END_OF)
+                .bind("period", Periods.format(period))
+                .map(row -> row.get(0, Long.class))
+                .one();
+    }
+
+    /**
+     * @return the totals of each period between two periods, inclusive
+     */
+    public Flux<StockTotals> sumByPeriod(final int from, final int to) {
+        return databaseClient.sql(SUM_BY_PERIOD)
+                .bind("from", Periods.format(from))
+                .bind("to", Periods.format(to))
+                .map(row -> new StockTotals(row.get("year_month", String.class), null, row.get("products", Long.class),
+                        row.get("inputs", Long.class), row.get("outputs", Long.class),
+                        row.get("opening_balance", Long.class), row.get("closing_balance", Long.class)))
+                .all();
+    }
+
+    /**
+     * @return the totals of a product between two periods, inclusive, with the opening balance of the
+     * first period and the closing balance of the last one
+     */
+    public Mono<StockTotals> sumByProduct(final Long productId, final int from, final int to) {
+        return databaseClient.sql(SUM_BY_PRODUCT)
+                .bind("product", productId)
+                .bind("from", Periods.format(from))
+                .bind("to", Periods.format(to))
+                .map(StockRepository::toProductTotals)
+                .one();
+    }
+
+    /**
+     * @return the totals of the products that moved the most quantity between two periods, inclusive
+     */
+    public Flux<StockTotals> findTopMovers(final int from, final int to, final int limit) {
+        return databaseClient.sql(TOP_MOVERS)
+                .bind("from", Periods.format(from))
+                .bind("to", Periods.format(to))
+                .bind("limit", limit)
+                .map(StockRepository::toProductTotals)
+                .all();
+    }
+
+    /**
+     * @return the last period closed by the blocking stock-service, {@link Periods#NONE} when none was closed
+     */
+    public Mono<Integer> findLastClosedPeriod() {
+        return databaseClient.sql(LAST_CLOSED_PERIOD)
+                .map(row -> {
+                    final String yearMonth = row.get("year_month", String.class);
+                    return yearMonth == null? Periods.NONE: Periods.parse(yearMonth);
+                })
+                .one()
+                .defaultIfEmpty(Periods.NONE);
+    }
+
+    private Mono<Long> update(final String sql, final int period, final Long productId, final Long quantity) {
+        return databaseClient.sql(sql)
+                .bind("period", Periods.format(period))
+                .bind("product", productId)
+                .bind("quantity", quantity)
+                .fetch()
+                .rowsUpdated();
+    }
+
+    private static Stock toStock(final Readable row) {
+        return new Stock(new StockKey(row.get("year_month", String.class), row.get("product_id", Long.class)),
+                row.get("previous_balance", Long.class),
+                row.get("inputs", Long.class),
+                row.get("outputs", Long.class),
+                row.get("current_balance", Long.class),
+                row.get("version", Long.class));
+    }
+
+    private static StockTotals toProductTotals(final Readable row) {
+        return new StockTotals(null, row.get("product_id", Long.class), null,
+                row.get("inputs", Long.class), row.get("outputs", Long.class),
+                row.get("opening_balance", Long.class), row.get("closing_balance", Long.class));
+    }
+}
@@ -0,0 +1,89 @@
+package com.franzoia.stockservice.repository;
+
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.StockUpdateStatus;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.stockservice.model.StockUpdateKey;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+
+/**
+ * Non-blocking access to the idempotency keys of the stock updates, the table is created by the blocking
+ * stock-service
+ */
+@Repository
+public class StockUpdateKeyRepository {
+
+    private static final String INSERT_IF_ABSENT =
+            "INSERT INTO stock_update_keys (idempotency_key, product_id, year_month, type, quantity, status, created_at) " +
+            "VALUES (:key, :product, :period, :type, :quantity, 'APPLIED', :createdAt) " +
+            "ON CONFLICT (idempotency_key) DO NOTHING";
+
+    private static final String SELECT_BY_KEY =
+            "SELECT k.idempotency_key, k.product_id, k.year_month, k.type, k.quantity, k.status, k.message " +
+            "FROM stock_update_keys k " +
+            "WHERE k.idempotency_key = :key";
+
+    private static final String UPDATE_RESULT =
+            "UPDATE stock_update_keys SET status = :status, message = :message WHERE idempotency_key = :key";
+
+    private static final String DELETE_CREATED_BEFORE =
+            "DELETE FROM stock_update_keys WHERE created_at < :before";
+
+    private final DatabaseClient databaseClient;
+
+    public StockUpdateKeyRepository(final DatabaseClient databaseClient) {
+        this.databaseClient = databaseClient;
+    }
+
+    /**
+     * Records the key of a stock update as applied, unless it was recorded already. A key being recorded
+     * by a transaction still running waits for it to end.
+     *
+     * @return false when the key was already recorded
+     */
+    public Mono<Boolean> insertIfAbsent(final StockUpdateRequest updateRequest) {
+        return databaseClient.sql(INSERT_IF_ABSENT)
+                .bind("key", updateRequest.idempotencyKey())
+                .bind("product", updateRequest.key().getProductId())
+                .bind("period", updateRequest.key().getYearMonth())
+                .bind("type", updateRequest.type().name())
+                .bind("quantity", updateRequest.quantity())
+                .bind("createdAt", LocalDateTime.now())
+                .fetch()
+                .rowsUpdated()
+                .map(inserted -> inserted == 1);
+    }
+
+    public Mono<StockUpdateKey> findById(final String idempotencyKey) {
+        return databaseClient.sql(SELECT_BY_KEY)
+                .bind("key", idempotencyKey)
+                .map(row -> new StockUpdateKey(row.get("idempotency_key", String.class),
+                        row.get("product_id", Long.class),
+                        row.get("year_month", String.class),
+                        TransactionType.valueOf(row.get("type", String.class)),
+                        row.get("quantity", Long.class),
+                        StockUpdateStatus.valueOf(row.get("status", String.class)),
+                        row.get("message", String.class)))
+                .one();
+    }
+
+    public Mono<Long> updateResult(final String idempotencyKey, final StockUpdateStatus status, final String message) {
+        final DatabaseClient.GenericExecuteSpec update = databaseClient.sql(UPDATE_RESULT)
+                .bind("key", idempotencyKey)
+                .bind("status", status.name());
+        return (message == null? update.bindNull("message", String.class): update.bind("message", message))
+                .fetch()
+                .rowsUpdated();
+    }
+
+    public Mono<Long> deleteCreatedBefore(final LocalDateTime before) {
+        return databaseClient.sql(DELETE_CREATED_BEFORE)
+                .bind("before", before)
+                .fetch()
+                .rowsUpdated();
+    }
+}
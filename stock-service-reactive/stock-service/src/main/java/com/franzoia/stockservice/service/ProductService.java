@@ -0,0 +1,126 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.ProductDTO;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Product information used to enrich the stocks, kept in a local cache and loaded without blocking.
+ * <p/>
+ * Entries are refreshed in the background once they are older than {@code stock.product-cache.refresh-after},
+ * keeping the previous value while the product-service doesn't answer, and evicted after
+ * {@code stock.product-cache.expire-after}. Concurrent lookups of the same product share a single request.
+ * Missing products are loaded one by one, or with a single catalog download when too many are missing at once.
+ */
+@Slf4j
+@Component
+public class ProductService {
+
+    private final WebClient webClient;
+
+    private final AsyncLoadingCache<Long, ProductDTO> products;
+
+    private final int bulkThreshold;
+
+    public ProductService(final WebClient.Builder webClientBuilder,
+                          final MeterRegistry registry,
+                          @Value("${stock.product-service.url:http://PRODUCT-SERVICE/product-service/api/v1/products}") final String url,
+                          @Value("${stock.product-cache.maximum-size:50000}") final long maximumSize,
+                          @Value("${stock.product-cache.refresh-after:1m}") final Duration refreshAfter,
+                          @Value("${stock.product-cache.expire-after:1h}") final Duration expireAfter,
+                          @Value("${stock.product-cache.bulk-threshold:20}") final int bulkThreshold) {
+        this.webClient = webClientBuilder.baseUrl(url).build();
+        this.bulkThreshold = bulkThreshold;
+        this.products = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .refreshAfterWrite(refreshAfter)
+                .expireAfterWrite(expireAfter)
+                .recordStats()
+                .buildAsync(new ProductLoader());
+        CaffeineCacheMetrics.monitor(registry, products, "products");
+    }
+
+    /**
+     * @return the product, or an {@link EntityNotFoundException} when it doesn't exist and a
+     * {@link ServiceNotAvailableException} when the product-service is not available
+     */
+    public Mono<ProductDTO> getProductById(final Long productId) {
+        return Mono.fromFuture(() -> products.get(productId))
+                .onErrorMap(e -> !(e instanceof EntityNotFoundException), e -> {
+                    log.error("product-service status: {}", e.getMessage());
+                    return new ServiceNotAvailableException("Product Service is unavailable");
+                });
+    }
+
+    /**
+     * Retrieves several products at once. When the product-service is not available only the
+     * products already in the cache are returned.
+     *
+     * @param productIds ids of the products
+     * @return the products found, by id
+     */
+    public Mono<Map<Long, ProductDTO>> getProducts(final Collection<Long> productIds) {
+        return Mono.fromFuture(() -> products.getAll(productIds))
+                .onErrorResume(e -> {
+                    log.error("product-service status: {}", e.getMessage());
+                    return Mono.fromSupplier(() -> products.synchronous().getAllPresent(productIds));
+                });
+    }
+
+    private Mono<ProductDTO> fetch(final Long productId) {
+        return webClient.get()
+                .uri("/{productId}", productId)
+                .retrieve()
+                .onStatus(status -> status.value() == HttpStatus.NOT_FOUND.value(),
+                        response -> Mono.error(new EntityNotFoundException(String.format("Product %d not found", productId))))
+                .bodyToMono(ProductDTO.class);
+    }
+
+    private class ProductLoader implements AsyncCacheLoader<Long, ProductDTO> {
+
+        @Override
+        public CompletableFuture<? extends ProductDTO> asyncLoad(final Long productId, final Executor executor) {
+            return fetch(productId).toFuture();
+        }
+
+        @Override
+        public CompletableFuture<? extends Map<? extends Long, ? extends ProductDTO>> asyncLoadAll(final Set<? extends Long> productIds,
+                                                                                                 final Executor executor) {
+            if (productIds.size() <= bulkThreshold) {
+                return Flux.fromIterable(productIds)
+                        .flatMap(productId -> fetch(productId).onErrorResume(EntityNotFoundException.class, e -> {
+                            log.debug("product {} not found", productId);
+                            return Mono.empty();
+                        }))
+                        .collectMap(ProductDTO::id, Function.identity())
+                        .toFuture();
+            }
+            // the whole catalog is cached, not only the requested products
+            return webClient.get()
+                    .retrieve()
+                    .bodyToFlux(ProductDTO.class)
+                    .collectMap(ProductDTO::id, Function.identity())
+                    .toFuture();
+        }
+    }
+}
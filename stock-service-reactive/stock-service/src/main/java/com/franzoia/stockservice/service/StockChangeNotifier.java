@@ -0,0 +1,87 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.TransactionType;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Notifies the stock changes of this service to the instances of the blocking stock-service, on the channel
+ * and in the format of their relay: lines of {@code productId,yyyyMM,I|O,quantity} after an {@code @origin}
+ * line, or {@code R} when the stocks have to be reloaded. Their subscribers, stock matrix, presence and cached
+ * balances see the changes of this service as the ones of another instance.
+ * <p/>
+ * The notifications are sent in the transaction of the changes, so Postgres only delivers them when it commits.
+ */
+@Component
+public class StockChangeNotifier {
+
+    static final String CHANNEL = "stock_changes";
+
+    static final String RESYNC = "R";
+
+    static final char ORIGIN = '@';
+
+    // notification payloads must stay under 8000 bytes
+    private static final int MAX_PAYLOAD = 7900;
+
+    private static final String NOTIFY = "SELECT pg_notify(:channel, :payload)";
+
+    private final DatabaseClient databaseClient;
+
+    private final String origin = Long.toHexString(new SecureRandom().nextLong());
+
+    public StockChangeNotifier(final DatabaseClient databaseClient) {
+        this.databaseClient = databaseClient;
+    }
+
+    /**
+     * Notifies the updates applied by the current transaction
+     */
+    public Mono<Void> notify(final List<StockUpdateRequest> updates) {
+        if (updates.isEmpty()) {
+            return Mono.empty();
+        }
+        return Flux.fromIterable(payloads(updates))
+                .concatMap(this::send)
+                .then();
+    }
+
+    /**
+     * Tells every instance to reload the stocks, after they were changed by more than single movements
+     */
+    public Mono<Void> resync() {
+        return send(ORIGIN + origin + "\n" + RESYNC);
+    }
+
+    private Mono<Void> send(final String payload) {
+        return databaseClient.sql(NOTIFY)
+                .bind("channel", CHANNEL)
+                .bind("payload", payload)
+                .then();
+    }
+
+    private List<String> payloads(final List<StockUpdateRequest> updates) {
+        final String header = ORIGIN + origin;
+        final List<String> payloads = new ArrayList<>();
+        final StringBuilder payload = new StringBuilder(header);
+        for (StockUpdateRequest update : updates) {
+            final String line = update.key().getProductId() + "," + update.key().getYearMonth() + ","
+                    + (update.type() == TransactionType.INPUT? "I": "O") + "," + update.quantity();
+            if (payload.length() + line.length() + 1 > MAX_PAYLOAD) {
+                payloads.add(payload.toString());
+                payload.setLength(0);
+                payload.append(header);
+            }
+            payload.append('\n').append(line);
+        }
+        payloads.add(payload.toString());
+        return payloads;
+    }
+}
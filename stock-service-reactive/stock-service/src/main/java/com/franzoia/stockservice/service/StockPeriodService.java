@@ -0,0 +1,73 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.stockservice.repository.StockRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+/**
+ * The closed year/month periods of the stocks, whose stocks can't be changed.
+ * <p/>
+ * Periods are closed and reopened by the blocking stock-service, this service only follows the last closed
+ * period, reloading it every {@code stock.period-close.refresh-ms} to reject the movements of closed periods
+ * early. The movements check it again against the database once they hold the lock of their product.
+ */
+@Slf4j
+@Service
+public class StockPeriodService {
+
+    private final StockRepository stockRepository;
+
+    private volatile int closedThrough = Periods.NONE;
+
+    public StockPeriodService(final StockRepository stockRepository) {
+        this.stockRepository = stockRepository;
+    }
+
+    /**
+     * @return the last closed period, or {@link Periods#NONE} when no period was closed
+     */
+    public int getClosedThrough() {
+        return closedThrough;
+    }
+
+    public boolean isClosed(final int period) {
+        return period <= closedThrough;
+    }
+
+    /**
+     * @return an {@link InvalidRequestException} when the period is closed
+     */
+    public Mono<Void> checkOpen(final int period) {
+        return isClosed(period)? closed(period): Mono.empty();
+    }
+
+    /**
+     * Checks the period against the last closed period stored, which may have been closed since the last
+     * {@link #refresh()}. It must be called once the movements of the product are locked, see
+     * {@link StockRepository#lockProductMovements(Long)}, as a close can't commit while they are.
+     *
+     * @return an {@link InvalidRequestException} when the period is closed
+     */
+    public Mono<Void> checkStoredOpen(final int period) {
+        return stockRepository.findLastClosedPeriod()
+                .flatMap(closedThrough -> period <= closedThrough? closed(period): Mono.empty());
+    }
+
+    private static Mono<Void> closed(final int period) {
+        log.info("Year/Month period {} is closed", Periods.format(period));
+        return Mono.error(new InvalidRequestException(String.format("Year/Month period %s is closed", Periods.format(period))));
+    }
+
+    @PostConstruct
+    @Scheduled(fixedDelayString = "${stock.period-close.refresh-ms:30000}", initialDelayString = "${stock.period-close.refresh-ms:30000}")
+    public void refresh() {
+        stockRepository.findLastClosedPeriod()
+                .subscribe(period -> closedThrough = period,
+                        e -> log.error("could not reload the closed periods: {}", e.getMessage()));
+    }
+}
@@ -0,0 +1,371 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.*;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.common.util.StockRequests;
+import com.franzoia.stockservice.model.Stock;
+import com.franzoia.stockservice.repository.StockRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Non-blocking version of the stock operations of the blocking stock-service, with the same results.
+ * <p/>
+ * The stock rows are read and written through R2DBC and the products are looked up through the
+ * {@link ProductService} cache, so no thread waits for the database or the product-service. The lists
+ * are streamed: the products are looked up once per chunk of rows and each chunk is written as soon as
+ * it is enriched.
+ * <p/>
+ * The applied changes are notified to the blocking stock-service through {@link StockChangeNotifier}, so both
+ * can run side by side. It doesn't extend {@code DefaultReactiveService}, which needs a Spring Data repository
+ * of the stocks, and Spring Data R2DBC has no composite keys such as {@link StockKey}.
+ */
+@Slf4j
+@Service
+public class StockService {
+
+    private static final int STREAM_CHUNK_SIZE = StockRepository.STREAM_FETCH_SIZE;
+
+    @Autowired
+    private StockRepository stockRepository;
+
+    @Autowired
+    private ProductService productService;
+
+    @Autowired
+    private TransactionService transactionService;
+
+    @Autowired
+    private StockPeriodService periodService;
+
+    @Autowired
+    private StockUpdateKeys updateKeys;
+
+    @Autowired
+    private StockChangeNotifier changeNotifier;
+
+    /**
+     * List all stock information available, ordered by year/month and product
+     */
+    public Flux<StockDTO> listAll() {
+        return createFluxOfStockDTO(stockRepository.findAllOrderByYearMonthAndProductId());
+    }
+
+    /**
+     * Retrieve the Stock information for a specific Product and Year/Month period
+     *
+     * @return the stock information, an {@link EntityNotFoundException} when the product or the stock is not
+     * found or a {@link ServiceNotAvailableException} when the product-service is not available
+     */
+    public Mono<StockDTO> getByYearMonthAndProduct(final String period, final Long productId) {
+        final StockKey key = new StockKey(StockRequests.toPeriod(period), productId);
+        return productService.getProductById(productId)
+                .flatMap(product -> stockRepository.findById(key)
+                        .switchIfEmpty(Mono.error(new EntityNotFoundException("Could not find entity with id: " + key)))
+                        .map(stock -> convertToDTO(stock, product)));
+    }
+
+    /**
+     * List all Stock information for a specific product, see {@link #getByYearMonthAndProduct(String, Long)}
+     * for the errors
+     */
+    public Flux<StockDTO> listByProduct(final Long productId) {
+        return productService.getProductById(productId)
+                .flatMapMany(product -> stockRepository.findAllByProductId(productId)
+                        .map(stock -> convertToDTO(stock, product)));
+    }
+
+    public Flux<StockDTO> listByYearMonth(final String yearMonthPeriod) {
+        return createFluxOfStockDTO(stockRepository.findAllByYearMonth(StockRequests.toPeriod(yearMonthPeriod)));
+    }
+
+    /**
+     * Retrieve the stock balance of a product at a point in time
+     *
+     * @param productId the id of the product
+     * @param at a "yyyyMM" period for the balance at the end of that month, or a date for the balance at the
+     *           end of that day. The current date when not provided
+     */
+    public Mono<StockBalanceDTO> getBalance(final Long productId, final String at) {
+        final LocalDate date = StockRequests.toBalanceDate(at);
+        if (date == null) {
+            final int period = StockRequests.toPeriod(at);
+            return productService.getProductById(productId)
+                    .then(balanceAtEndOf(productId, period))
+                    .map(balance -> StockBalanceDTO.builder()
+                            .productId(productId)
+                            .yearMonth(Periods.format(period))
+                            .balance(balance)
+                            .build());
+        }
+        return productService.getProductById(productId)
+                .then(balanceAtEndOf(productId, Periods.previous(Periods.of(date))))
+                .zipWith(transactionService.sumMovementsBetween(date.withDayOfMonth(1), date, productId), Long::sum)
+                .map(balance -> StockBalanceDTO.builder()
+                        .productId(productId)
+                        .date(date)
+                        .balance(balance)
+                        .build());
+    }
+
+    private Mono<Long> balanceAtEndOf(final Long productId, final int period) {
+        return stockRepository.findBalanceAtEndOf(productId, period).defaultIfEmpty(0L);
+    }
+
+    /**
+     * Retrieve the stock balance of all products at a point in time, see {@link #getBalance(Long, String)}
+     */
+    public Mono<StockBalanceDTO> getTotalBalance(final String at) {
+        final LocalDate date = StockRequests.toBalanceDate(at);
+        if (date == null) {
+            final int period = StockRequests.toPeriod(at);
+            return stockRepository.sumBalancesAtEndOf(period)
+                    .map(balance -> StockBalanceDTO.builder()
+                            .yearMonth(Periods.format(period))
+                            .balance(balance)
+                            .build());
+        }
+        return stockRepository.sumBalancesAtEndOf(Periods.previous(Periods.of(date)))
+                .zipWith(transactionService.sumMovementsBetween(date.withDayOfMonth(1), date, null), Long::sum)
+                .map(balance -> StockBalanceDTO.builder()
+                        .date(date)
+                        .balance(balance)
+                        .build());
+    }
+
+    private Flux<StockDTO> createFluxOfStockDTO(final Flux<Stock> stocks) {
+        // the products are looked up once per chunk of rows, in the order of the rows
+        return stocks.buffer(STREAM_CHUNK_SIZE)
+                .concatMap(chunk -> productService.getProducts(chunk.stream().map(s -> s.getKey().getProductId()).distinct().toList())
+                        .flatMapIterable(products -> createListOfStockDTO(chunk, products)));
+    }
+
+    private static List<StockDTO> createListOfStockDTO(final List<Stock> stocks, final Map<Long, ProductDTO> products) {
+        // fallback for product-service
+        final ProductDTO unavailable = ProductDTO.builder()
+                .name("Unavailable Product Data")
+                .build();
+        final List<StockDTO> dtos = new ArrayList<>(stocks.size());
+        stocks.forEach(stock -> dtos.add(convertToDTO(stock, products.getOrDefault(stock.getKey().getProductId(), unavailable))));
+        return dtos;
+    }
+
+    private static StockDTO convertToDTO(final Stock stock, final ProductDTO product) {
+        return StockDTO.builder()
+                .key(stock.getKey())
+                .product(product)
+                .inputs(stock.getInputs())
+                .outputs(stock.getOutputs())
+                .previousBalance(stock.getPreviousBalance())
+                .currentBalance(stock.getCurrentBalance())
+                .build();
+    }
+
+    /**
+     * Applies a stock update. An update with an idempotency key that was already applied is not applied
+     * again, it gets the result of the first one. An update that fails leaves nothing behind, its key included,
+     * so it can be retried with the same key.
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public Mono<Void> addOrUpdateStock(final StockUpdateRequest updateRequest) {
+        final String invalid = validate(updateRequest);
+        if (invalid != null) {
+            return Mono.error(new InvalidRequestException(invalid));
+        }
+        final StockKey key = updateRequest.key();
+        final Mono<Void> update = periodService.checkOpen(key.getPeriod())
+                .then(stockRepository.lockProductMovements(key.getProductId()))
+                .then(periodService.checkStoredOpen(key.getPeriod()))
+                .then(switch (updateRequest.type()) {
+                    case INPUT -> addToStock(key.getPeriod(), key.getProductId(), updateRequest.quantity());
+                    case OUTPUT -> removeFromStock(key.getPeriod(), key.getProductId(), updateRequest.quantity());
+                })
+                .then(changeNotifier.notify(List.of(updateRequest)));
+        if (updateRequest.idempotencyKey() == null) {
+            return update;
+        }
+        return updateKeys.claim(updateRequest)
+                .flatMap(recorded -> recorded.isEmpty()? update:
+                        recorded.get().status() == StockUpdateStatus.REJECTED?
+                                Mono.error(new InvalidRequestException(recorded.get().message())):
+                                Mono.empty());
+    }
+
+    /**
+     * Applies a batch of stock updates in a single transaction. The products are locked in order before
+     * any line is applied, then the lines are applied one after the other in the order of the request.
+     * Invalid lines and outputs that exceed the balance of their period are rejected without affecting
+     * the other lines. Lines with an idempotency key that was already applied, by an earlier request or an
+     * earlier line, are not applied again, they get the result of the first one.
+     *
+     * @param updateRequests the stock updates
+     * @return the result of each line, in the same order as the request
+     */
+    @Transactional
+    public Mono<List<StockUpdateResult>> addOrUpdateStocks(final List<StockUpdateRequest> updateRequests) {
+        final StockUpdateResult[] results = new StockUpdateResult[updateRequests.size()];
+        final List<Integer> valid = new ArrayList<>(updateRequests.size());
+        // the updates applied by this request, not the ones replayed
+        final List<StockUpdateRequest> applied = new ArrayList<>(updateRequests.size());
+        for (int line = 0; line < updateRequests.size(); line++) {
+            final String invalid = validateOpen(updateRequests.get(line));
+            if (invalid != null) {
+                results[line] = rejected(line, updateRequests.get(line), invalid);
+            } else {
+                valid.add(line);
+            }
+        }
+
+        return Flux.fromIterable(valid)
+                .map(line -> updateRequests.get(line).key().getProductId())
+                .distinct()
+                .sort()
+                .concatMap(stockRepository::lockProductMovements)
+                // read once the products are locked, so it includes any close committed meanwhile
+                .then(stockRepository.findLastClosedPeriod())
+                .flatMapMany(closedThrough -> Flux.fromIterable(valid).concatMap(line -> {
+                    final StockUpdateRequest updateRequest = updateRequests.get(line);
+                    if (updateRequest.key().getPeriod() <= closedThrough) {
+                        return Mono.just(rejected(line, updateRequest,
+                                String.format("Year/Month period %s is closed", updateRequest.key().getYearMonth())));
+                    }
+                    if (updateRequest.idempotencyKey() == null) {
+                        return apply(line, updateRequest, applied);
+                    }
+                    return updateKeys.claim(updateRequest)
+                            .flatMap(recorded -> recorded.isEmpty()?
+                                    apply(line, updateRequest, applied).flatMap(result -> result.status() == StockUpdateStatus.REJECTED?
+                                            updateKeys.rejected(updateRequest.idempotencyKey(), result.message()).thenReturn(result):
+                                            Mono.just(result)):
+                                    Mono.just(StockUpdateResult.builder()
+                                            .line(line)
+                                            .key(updateRequest.key())
+                                            .status(recorded.get().status())
+                                            .message(recorded.get().message())
+                                            .build()))
+                            .onErrorResume(InvalidRequestException.class, e -> Mono.just(rejected(line, updateRequest, e.getMessage())));
+                }))
+                .doOnNext(result -> results[result.line()] = result)
+                .then(Mono.defer(() -> changeNotifier.notify(applied)))
+                .then(Mono.fromSupplier(() -> Arrays.asList(results)));
+    }
+
+    private Mono<StockUpdateResult> apply(final int line, final StockUpdateRequest updateRequest, final List<StockUpdateRequest> applied) {
+        final StockKey key = updateRequest.key();
+        final Mono<Void> update = updateRequest.type() == TransactionType.INPUT?
+                addToStock(key.getPeriod(), key.getProductId(), updateRequest.quantity()):
+                removeFromStock(key.getPeriod(), key.getProductId(), updateRequest.quantity());
+        return update
+                .then(Mono.fromSupplier(() -> {
+                    applied.add(updateRequest);
+                    return StockUpdateResult.builder()
+                            .line(line)
+                            .key(key)
+                            .status(StockUpdateStatus.APPLIED)
+                            .build();
+                }))
+                .onErrorResume(e -> e instanceof EntityNotFoundException || e instanceof InvalidRequestException,
+                        e -> Mono.just(rejected(line, updateRequest, e.getMessage())));
+    }
+
+    /**
+     * Validates a line of a batch, which is also rejected when its period is closed
+     */
+    private String validateOpen(final StockUpdateRequest updateRequest) {
+        final String invalid = validate(updateRequest);
+        if (invalid == null && periodService.isClosed(updateRequest.key().getPeriod())) {
+            return String.format("Year/Month period %s is closed", updateRequest.key().getYearMonth());
+        }
+        return invalid;
+    }
+
+    /**
+     * @return why a stock update is invalid, null when it is valid
+     */
+    private static String validate(final StockUpdateRequest updateRequest) {
+        final String invalid = StockRequests.validate(updateRequest);
+        return invalid != null? invalid: StockUpdateKeys.validate(updateRequest);
+    }
+
+    private StockUpdateResult rejected(final int line, final StockUpdateRequest updateRequest, final String message) {
+        return StockUpdateResult.builder()
+                .line(line)
+                .key(updateRequest == null? null: updateRequest.key())
+                .status(StockUpdateStatus.REJECTED)
+                .message(message)
+                .build();
+    }
+
+    /**
+     * Add a quantity to the stock of a product, the movements of the product must be locked
+     */
+    private Mono<Void> addToStock(final int period, final Long productId, final Long quantity) {
+        // the row of the period usually exists already, created by the month opening
+        return stockRepository.incrementInputs(period, productId, quantity)
+                .filter(updated -> updated == 0)
+                .flatMap(updated -> stockRepository.addInputs(period, productId, quantity))
+                .then(stockRepository.shiftBalancesAfterPeriod(productId, period, quantity))
+                .then();
+    }
+
+    /**
+     * Removes a quantity from the stock of a product, the movements of the product must be locked
+     */
+    private Mono<Void> removeFromStock(final int period, final Long productId, final Long quantity) {
+        // the balance check is part of the update statements, nothing is written when it fails
+        return stockRepository.incrementOutputs(period, productId, quantity)
+                .flatMap(updated -> updated == 0? stockRepository.addOutputs(period, productId, quantity): Mono.just(updated))
+                .flatMap(updated -> updated > 0? Mono.just(updated): noRemoval(period, productId))
+                .then(stockRepository.shiftBalancesAfterPeriod(productId, period, -quantity))
+                .then();
+    }
+
+    private Mono<Long> noRemoval(final int period, final Long productId) {
+        final StockKey key = new StockKey(period, productId);
+        return stockRepository.findById(key)
+                .switchIfEmpty(stockRepository.findPreviousStock(productId, period))
+                .hasElement()
+                .flatMap(exists -> {
+                    if (!exists) {
+                        log.info("No Stock information found for {}, remove not possible", key);
+                        return Mono.error(new EntityNotFoundException("No Stock information found, remove not possible"));
+                    }
+                    log.info("Removal quantity cannot exceed the current balance");
+                    return Mono.error(new InvalidRequestException("Removal quantity cannot exceed the current balance"));
+                });
+    }
+
+    /**
+     * Repair operation that recalculates all stock information for a product from its first open period.
+     * It is not part of the regular stock updates, which only apply deltas to the affected months
+     *
+     * @param productId id of the product
+     * @return an {@link EntityNotFoundException} if the product doesn't exists or a
+     * {@link ServiceNotAvailableException} if the product service is not available to validate the product
+     */
+    @Transactional
+    public Mono<Void> syncStockBalance(final Long productId) {
+        final int from = periodService.getClosedThrough() == Periods.NONE?
+                Periods.of(Periods.FIRST_YEAR, 1):
+                Periods.next(periodService.getClosedThrough());
+        // implicit product validation
+        return productService.getProductById(productId)
+                .then(stockRepository.lockProductMovements(productId))
+                .then(stockRepository.recalculateFromPeriod(productId, from))
+                .doOnNext(updated -> log.info("{} stocks of product {} recalculated", updated, productId))
+                .then(changeNotifier.resync());
+    }
+}
@@ -0,0 +1,111 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockTotalsDTO;
+import com.franzoia.common.exception.EntityNotFoundException;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import com.franzoia.common.util.Periods;
+import com.franzoia.common.util.StockRequests;
+import com.franzoia.stockservice.model.StockTotals;
+import com.franzoia.stockservice.repository.StockRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Stock totals for dashboards, aggregated by the database so only the totals leave it
+ */
+@Service
+public class StockTotalsService {
+
+    private static final int DEFAULT_RANGE = 12;
+
+    private final StockRepository stockRepository;
+
+    private final ProductService productService;
+
+    private final int maxMovers;
+
+    public StockTotalsService(final StockRepository stockRepository,
+                              final ProductService productService,
+                              @Value("${stock.totals.max-movers:100}") final int maxMovers) {
+        this.stockRepository = stockRepository;
+        this.productService = productService;
+        this.maxMovers = maxMovers;
+    }
+
+    /**
+     * Totals of inputs, outputs and balances of all products for each period of a range
+     *
+     * @param from first "yyyyMM" period, 11 months before the last one when not provided
+     * @param to last "yyyyMM" period, the current month when not provided
+     * @return the totals of each period with stock, in order
+     */
+    public Flux<StockTotalsDTO> getTotalsByPeriod(final String from, final String to) {
+        final int[] range = toRange(from, to);
+        return stockRepository.sumByPeriod(range[0], range[1])
+                .map(StockTotalsService::convertToDTO);
+    }
+
+    /**
+     * Totals of inputs and outputs of one product over a range of periods, with its opening and closing balances
+     *
+     * @return the totals, an {@link EntityNotFoundException} when the product is not found or has no stock in
+     * the range or a {@link ServiceNotAvailableException} when the product-service is not available
+     */
+    public Mono<StockTotalsDTO> getTotalsByProduct(final Long productId, final String from, final String to) {
+        final int[] range = toRange(from, to);
+        return productService.getProductById(productId)
+                .then(stockRepository.sumByProduct(productId, range[0], range[1]))
+                .map(totals -> convertToDTO(totals, range))
+                .switchIfEmpty(Mono.error(() -> new EntityNotFoundException(String.format("No Stock information found for product %d between %s and %s",
+                        productId, Periods.format(range[0]), Periods.format(range[1])))));
+    }
+
+    /**
+     * The products that moved the most quantity (inputs plus outputs) over a range of periods
+     *
+     * @param limit number of products, up to {@code stock.totals.max-movers}
+     */
+    public Flux<StockTotalsDTO> getTopMovers(final String from, final String to, final int limit) {
+        if (limit < 1 || limit > maxMovers) {
+            throw new InvalidRequestException(String.format("The number of products must be between 1 and %d", maxMovers));
+        }
+        final int[] range = toRange(from, to);
+        return stockRepository.findTopMovers(range[0], range[1], limit)
+                .map(totals -> convertToDTO(totals, range));
+    }
+
+    private static int[] toRange(final String from, final String to) {
+        final int last = to == null || to.isBlank()? Periods.current(): StockRequests.toPeriod(to);
+        final int first = from == null || from.isBlank()? last - DEFAULT_RANGE + 1: StockRequests.toPeriod(from);
+        if (first > last) {
+            throw new InvalidRequestException("The first Year/Month period cannot be after the last one");
+        }
+        return new int[] { first, last };
+    }
+
+    private static StockTotalsDTO convertToDTO(final StockTotals totals) {
+        return StockTotalsDTO.builder()
+                .yearMonth(totals.yearMonth())
+                .products(totals.products())
+                .inputs(totals.inputs())
+                .outputs(totals.outputs())
+                .openingBalance(totals.openingBalance())
+                .closingBalance(totals.closingBalance())
+                .build();
+    }
+
+    private static StockTotalsDTO convertToDTO(final StockTotals totals, final int[] range) {
+        return StockTotalsDTO.builder()
+                .fromYearMonth(Periods.format(range[0]))
+                .toYearMonth(Periods.format(range[1]))
+                .productId(totals.productId())
+                .inputs(totals.inputs())
+                .outputs(totals.outputs())
+                .openingBalance(totals.openingBalance())
+                .closingBalance(totals.closingBalance())
+                .build();
+    }
+}
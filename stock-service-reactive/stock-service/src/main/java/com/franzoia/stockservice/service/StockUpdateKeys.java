@@ -0,0 +1,91 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.StockUpdateRequest;
+import com.franzoia.common.dto.StockUpdateStatus;
+import com.franzoia.common.exception.InvalidRequestException;
+import com.franzoia.stockservice.model.StockUpdateKey;
+import com.franzoia.stockservice.repository.StockUpdateKeyRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+/**
+ * Idempotency keys of the stock updates, shared with the blocking stock-service, so an update retried
+ * or sent twice by a hedged call is applied only once. A key is recorded in the transaction that applies
+ * its update and kept for {@code stock.idempotency.expire-after}.
+ */
+@Slf4j
+@Component
+public class StockUpdateKeys {
+
+    private final StockUpdateKeyRepository repository;
+
+    private final Duration expireAfter;
+
+    public StockUpdateKeys(final StockUpdateKeyRepository repository,
+                           @Value("${stock.idempotency.expire-after:24h}") final Duration expireAfter) {
+        this.repository = repository;
+        this.expireAfter = expireAfter;
+    }
+
+    /**
+     * @return an error message when the idempotency key of the update is not valid, otherwise null
+     */
+    public static String validate(final StockUpdateRequest updateRequest) {
+        if (updateRequest.idempotencyKey() != null
+                && (updateRequest.idempotencyKey().isBlank() || updateRequest.idempotencyKey().length() > StockUpdateKey.MAX_LENGTH)) {
+            return String.format("Idempotency key must have between 1 and %d characters", StockUpdateKey.MAX_LENGTH);
+        }
+        return null;
+    }
+
+    /**
+     * Records the idempotency key of an update, it must run in the transaction that applies the update
+     *
+     * @return empty when the update has to be applied, or the key recorded when it was applied before, an
+     * {@link InvalidRequestException} when the key is not valid or was recorded for a different update
+     */
+    public Mono<Optional<StockUpdateKey>> claim(final StockUpdateRequest updateRequest) {
+        final String invalid = validate(updateRequest);
+        if (invalid != null) {
+            return Mono.error(new InvalidRequestException(invalid));
+        }
+        return repository.insertIfAbsent(updateRequest)
+                .flatMap(inserted -> inserted? Mono.just(Optional.<StockUpdateKey>empty()): repository.findById(updateRequest.idempotencyKey())
+                        .switchIfEmpty(Mono.error(() -> new InvalidRequestException("Idempotency key " + updateRequest.idempotencyKey() + " is expiring, use a new one")))
+                        .flatMap(recorded -> {
+                            if (!recorded.matches(updateRequest)) {
+                                log.info("Idempotency key {} was used by a different stock update", updateRequest.idempotencyKey());
+                                return Mono.error(new InvalidRequestException("Idempotency key was used by a different stock update"));
+                            }
+                            return Mono.just(Optional.of(recorded));
+                        }));
+    }
+
+    /**
+     * Records that the update of a key claimed in the current transaction was rejected
+     */
+    public Mono<Void> rejected(final String idempotencyKey, final String message) {
+        return repository.updateResult(idempotencyKey, StockUpdateStatus.REJECTED, message).then();
+    }
+
+    /**
+     * Deletes the expired keys
+     */
+    @Scheduled(fixedDelayString = "${stock.idempotency.purge-ms:600000}")
+    public void purge() {
+        repository.deleteCreatedBefore(LocalDateTime.now().minus(expireAfter))
+                .subscribe(deleted -> {
+                            if (deleted > 0) {
+                                log.info("{} expired stock update idempotency keys deleted", deleted);
+                            }
+                        },
+                        e -> log.error("could not delete the expired stock update idempotency keys: {}", e.getMessage()));
+    }
+}
@@ -0,0 +1,51 @@
+package com.franzoia.stockservice.service;
+
+import com.franzoia.common.dto.TransactionRollupDTO;
+import com.franzoia.common.dto.TransactionType;
+import com.franzoia.common.exception.ServiceNotAvailableException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+/**
+ * Daily movements of the transactions, for the balances within a month. The stock rows only hold the
+ * movements of each month, the ones of each day are asked to the transaction-service, which owns them.
+ */
+@Slf4j
+@Component
+public class TransactionService {
+
+    private final WebClient webClient;
+
+    public TransactionService(final WebClient.Builder webClientBuilder,
+                              @Value("${stock.transaction-service.url:http://TRANSACTION-SERVICE/transaction-service/api/v1/transactions}") final String url) {
+        this.webClient = webClientBuilder.baseUrl(url).build();
+    }
+
+    /**
+     * @param productId only the transactions of this product, all of them when null
+     * @return the quantity moved by the transactions between two dates, inclusive, or a
+     * {@link ServiceNotAvailableException} when the transaction-service is not available
+     */
+    public Mono<Long> sumMovementsBetween(final LocalDate from, final LocalDate to, final Long productId) {
+        return webClient.get()
+                .uri(uriBuilder -> uriBuilder.path("/rollups/daily")
+                        .queryParam("startDate", from)
+                        .queryParam("endDate", to)
+                        .queryParamIfPresent("productId", Optional.ofNullable(productId))
+                        .build())
+                .retrieve()
+                .bodyToFlux(TransactionRollupDTO.class)
+                .map(rollup -> rollup.type() == TransactionType.INPUT? rollup.quantity(): -rollup.quantity())
+                .reduce(0L, Long::sum)
+                .onErrorMap(e -> {
+                    log.error("transaction-service status: {}", e.getMessage());
+                    return new ServiceNotAvailableException("Transaction Service is unavailable");
+                });
+    }
+}
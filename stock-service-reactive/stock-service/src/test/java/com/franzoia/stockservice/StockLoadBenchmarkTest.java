@@ -0,0 +1,109 @@
+package com.franzoia.stockservice;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load benchmark of the same stock endpoints served by the blocking and by the reactive stock-service,
+ * reporting the throughput, the latency percentiles and the errors of each at a high number of concurrent
+ * requests. Both services must be running against the same database, on their default ports (8081 and 8091),
+ * with stock for the products and periods requested.
+ * <p/>
+ * Only runs when asked for, e.g.:
+ * <pre>
+ * mvn test -Dbenchmark=true -Dtest=StockLoadBenchmarkTest \
+ *     -Dbenchmark.targets=blocking=http://localhost:8081/stock-service,reactive=http://localhost:8091/stock-service \
+ *     -Dbenchmark.concurrency=1000 -Dbenchmark.requests=50000 -Dbenchmark.products=1000 -Dbenchmark.yearMonth=202401
+ * </pre>
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class StockLoadBenchmarkTest {
+
+    private final String targets = System.getProperty("benchmark.targets",
+            "blocking=http://localhost:8081/stock-service,reactive=http://localhost:8091/stock-service");
+
+    private final int concurrency = Integer.getInteger("benchmark.concurrency", 1000);
+
+    private final int requests = Integer.getInteger("benchmark.requests", 50_000);
+
+    private final int warmup = Integer.getInteger("benchmark.warmup", 5_000);
+
+    private final int products = Integer.getInteger("benchmark.products", 1000);
+
+    private final String yearMonth = System.getProperty("benchmark.yearMonth", "202401");
+
+    @Test
+    void compareBlockingAndReactive() {
+        final ConnectionProvider connections = ConnectionProvider.builder("benchmark")
+                .maxConnections(concurrency)
+                .pendingAcquireMaxCount(-1)
+                .build();
+        final WebClient.Builder builder = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections).responseTimeout(Duration.ofSeconds(60))));
+        try {
+            for (String target : targets.split(",")) {
+                final String[] nameAndUrl = target.split("=", 2);
+                final WebClient client = builder.baseUrl(nameAndUrl[1]).build();
+                run(client, warmup);
+                final Result result = run(client, requests);
+                log.info("{}: {} requests at concurrency {}: {} req/s, p50 {} ms, p95 {} ms, p99 {} ms, max {} ms, {} errors",
+                        nameAndUrl[0], requests, concurrency, result.throughput(),
+                        result.percentile(50), result.percentile(95), result.percentile(99), result.percentile(100), result.errors());
+            }
+        } finally {
+            connections.dispose();
+        }
+    }
+
+    /**
+     * Sends the requests with at most {@code concurrency} of them in flight, mixing single stock lookups
+     * with balance queries
+     */
+    private Result run(final WebClient client, final int count) {
+        final long[] latencies = new long[count];
+        final AtomicLong errors = new AtomicLong();
+        final long start = System.nanoTime();
+        Flux.range(0, count)
+                .flatMap(i -> {
+                    final long productId = ThreadLocalRandom.current().nextLong(products) + 1;
+                    final String uri = i % 4 == 0?
+                            String.format("/api/v1/stocks/product/%d/balance?at=%s", productId, yearMonth):
+                            String.format("/api/v1/stocks/yearMonth/%s/product/%d", yearMonth, productId);
+                    final long sent = System.nanoTime();
+                    return client.get().uri(uri)
+                            .retrieve()
+                            .toBodilessEntity()
+                            .then(Mono.fromRunnable(() -> latencies[i] = System.nanoTime() - sent))
+                            .onErrorResume(e -> {
+                                errors.incrementAndGet();
+                                latencies[i] = System.nanoTime() - sent;
+                                return Mono.empty();
+                            });
+                }, concurrency)
+                .blockLast();
+        final long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        return new Result(latencies, count * 1_000_000_000L / elapsed, errors.get());
+    }
+
+    private record Result(long[] latencies, long throughput, long errors) {
+
+        long percentile(final int percentile) {
+            final int index = Math.max(0, (int) Math.ceil(latencies.length * percentile / 100.0) - 1);
+            return latencies[index] / 1_000_000;
+        }
+    }
+}